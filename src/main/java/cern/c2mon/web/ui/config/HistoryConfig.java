@@ -0,0 +1,111 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.config;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import cern.c2mon.client.ext.history.HistoryManager;
+import cern.c2mon.web.ui.history.HistoryAdmissionController;
+import cern.c2mon.web.ui.history.HistoryChunkLoader;
+import cern.c2mon.web.ui.history.HistoryProviderPool;
+import cern.c2mon.web.ui.history.HistoryTaskExecutor;
+
+/**
+ * Configuration of the components used to serve tag histories.
+ */
+@Configuration
+public class HistoryConfig {
+
+  /** Maximum number of history requests processed concurrently */
+  @Value("${c2mon.web.history.executor.threads:8}")
+  private int executorThreads;
+
+  /** Maximum number of history requests waiting for a thread */
+  @Value("${c2mon.web.history.executor.queueCapacity:50}")
+  private int executorQueueCapacity;
+
+  /** Maximum number of history chunks loaded concurrently */
+  @Value("${c2mon.web.history.chunk.threads:8}")
+  private int chunkThreads;
+
+  /** Duration of the chunks of the long history periods, in hours */
+  @Value("${c2mon.web.history.chunk.hours:24}")
+  private long chunkHours;
+
+  /** Maximum number of history providers, and of history loads running concurrently */
+  @Value("${c2mon.web.history.provider.poolSize:16}")
+  private int providerPoolSize;
+
+  /** Age after which a history provider is recreated, in minutes */
+  @Value("${c2mon.web.history.provider.maxAge:60}")
+  private long providerMaxAge;
+
+  /** Maximum time to wait for a history provider, in seconds */
+  @Value("${c2mon.web.history.provider.borrowTimeout:30}")
+  private long providerBorrowTimeout;
+
+  /** Number of failed history loads in a row after which all the history providers are recreated, 0 for never */
+  @Value("${c2mon.web.history.provider.clearAfterFailures:3}")
+  private int providerClearAfterFailures;
+
+  /** Maximum number of history points loaded by all the requests at once */
+  @Value("${c2mon.web.history.admission.globalBudget:20000000}")
+  private long admissionGlobalBudget;
+
+  /** Maximum number of history points loaded by the requests of one user at once */
+  @Value("${c2mon.web.history.admission.userBudget:5000000}")
+  private long admissionUserBudget;
+
+  /** Maximum number of history requests waiting for budget */
+  @Value("${c2mon.web.history.admission.queueCapacity:50}")
+  private int admissionQueueCapacity;
+
+  /** Maximum time a history request waits for budget, in seconds */
+  @Value("${c2mon.web.history.admission.queueTimeout:30}")
+  private long admissionQueueTimeout;
+
+  /** Update rate assumed for the tags whose history was never loaded, in points per hour */
+  @Value("${c2mon.web.history.admission.defaultRate:60}")
+  private double admissionDefaultRate;
+
+  @Bean(destroyMethod = "shutdown")
+  public HistoryAdmissionController historyAdmissionController() {
+    return new HistoryAdmissionController(admissionGlobalBudget, admissionUserBudget, admissionQueueCapacity,
+        TimeUnit.SECONDS.toMillis(admissionQueueTimeout), admissionDefaultRate);
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public HistoryTaskExecutor historyTaskExecutor(final HistoryAdmissionController historyAdmissionController) {
+    return new HistoryTaskExecutor(executorThreads, executorQueueCapacity, historyAdmissionController);
+  }
+
+  @Bean(destroyMethod = "shutdown")
+  public HistoryChunkLoader historyChunkLoader() {
+    return new HistoryChunkLoader(chunkThreads, TimeUnit.HOURS.toMillis(chunkHours));
+  }
+
+  @Bean(destroyMethod = "clear")
+  public HistoryProviderPool historyProviderPool(final HistoryManager historyManager) {
+    return new HistoryProviderPool(() -> historyManager.getHistoryProviderFactory().createHistoryProvider(),
+        providerPoolSize, TimeUnit.MINUTES.toMillis(providerMaxAge), TimeUnit.SECONDS.toMillis(providerBorrowTimeout),
+        providerClearAfterFailures);
+  }
+}
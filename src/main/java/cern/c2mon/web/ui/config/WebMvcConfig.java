@@ -19,14 +19,18 @@ package cern.c2mon.web.ui.config;
 
 import cern.c2mon.web.ui.controller.HandlerInterceptor;
 import cern.c2mon.web.ui.serialization.BarChartSerializer;
+import cern.c2mon.web.ui.serialization.HistoryTrendMessageConverter;
 import cern.c2mon.web.ui.serialization.PieChartSerializer;
 import cern.c2mon.web.ui.serialization.StackedBarChartSerializer;
 import cern.c2mon.web.ui.statistics.charts.JFreeBarChart;
 import cern.c2mon.web.ui.statistics.charts.JFreePieChart;
 import cern.c2mon.web.ui.statistics.charts.JFreeStackedBarChart;
 
+import java.util.List;
+
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
@@ -42,6 +46,13 @@ public class WebMvcConfig extends WebMvcConfigurerAdapter {
     registry.addInterceptor(new HandlerInterceptor());
   }
 
+  @Override
+  public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+    // Binary trend data, for the clients asking for it. Added last, so that
+    // JSON stays the default.
+    converters.add(new HistoryTrendMessageConverter());
+  }
+
   @Bean
   public Jackson2ObjectMapperBuilder jacksonBuilder() {
     Jackson2ObjectMapperBuilder builder = new Jackson2ObjectMapperBuilder();
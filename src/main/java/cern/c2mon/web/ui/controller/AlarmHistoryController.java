@@ -16,12 +16,12 @@
  *****************************************************************************/
 package cern.c2mon.web.ui.controller;
 
-import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -35,6 +35,7 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 
 import cern.c2mon.client.ext.history.alarm.Alarm;
+import cern.c2mon.web.ui.history.HistoryTaskExecutor;
 import cern.c2mon.web.ui.service.HistoryAlarmService;
 import cern.c2mon.web.ui.service.HistoryService;
 import cern.c2mon.web.ui.util.FormUtility;
@@ -87,6 +88,12 @@ public class AlarmHistoryController {
   @Autowired
   private HistoryAlarmService historyService;
 
+  /**
+   * Thread pool loading the histories outside of the servlet container threads
+   */
+  @Autowired
+  private HistoryTaskExecutor historyExecutor;
+
   /**
    * @return Redirects to the form
    */
@@ -100,42 +107,45 @@ public class AlarmHistoryController {
    * @param id       the last 100 records of the given alarm id are being shown
    * @param response the html result is written to that HttpServletResponse
    *                 response
-   * @return Displays the history of a given alarm id.
+   * @return Displays the history of a given alarm id, loaded on the
+   * {@link HistoryTaskExecutor}.
    */
   @RequestMapping(value = HISTORY_URL + "{id}", method = {RequestMethod.GET})
-  public final String viewHistory(@PathVariable(value = "id") final String id,
+  public final CompletableFuture<String> viewHistory(@PathVariable(value = "id") final String id,
                                   @RequestParam(value = MAX_RECORDS_PARAMETER, required = false) final String
                                       maxRecords,
                                   @RequestParam(value = LAST_DAYS_PARAMETER, required = false) final String lastDays,
                                   @RequestParam(value = START_DATE_PARAMETER, required = false) final String startTime,
                                   @RequestParam(value = END_DATE_PARAMETER, required = false) final String endTime,
-                                  final HttpServletResponse response, final Model model) throws IOException {
+                                  final HttpServletResponse response, final Model model) {
     log.info("/alarmhistoryviewer/{id} " + id);
 
-    List<Alarm> history = new ArrayList<>();
-    String description = null;
-
-    try {
-      if (startTime != null && endTime != null) {
-        history = historyService.requestAlarmHistory(Long.parseLong(id), HistoryService.stringToLocalDateTime(startTime),
-                                                 HistoryService.stringToLocalDateTime(endTime));
-        description = " (From " + startTime + " to " + endTime + ")";
-      } else if (lastDays != null) {
-        history = historyService.requestAlarmHistoryForLastDays(Long.parseLong(id), Integer.parseInt(lastDays));
-        description = "(Last " + lastDays + " days)";
-      } else if (id != null) {
-        int numRecords = maxRecords != null ? Integer.parseInt(maxRecords) : HISTORY_RECORDS_TO_ASK_FOR;
-        history = historyService.requestAlarmHistory(Long.parseLong(id), numRecords);
-        description = "(Last " + numRecords + " records)";
+    return historyExecutor.submit(() -> {
+      List<Alarm> history = new ArrayList<>();
+      String description = null;
+
+      try {
+        if (startTime != null && endTime != null) {
+          history = historyService.requestAlarmHistory(Long.parseLong(id), HistoryService.stringToLocalDateTime(startTime),
+                                                   HistoryService.stringToLocalDateTime(endTime));
+          description = " (From " + startTime + " to " + endTime + ")";
+        } else if (lastDays != null) {
+          history = historyService.requestAlarmHistoryForLastDays(Long.parseLong(id), Integer.parseInt(lastDays));
+          description = "(Last " + lastDays + " days)";
+        } else if (id != null) {
+          int numRecords = maxRecords != null ? Integer.parseInt(maxRecords) : HISTORY_RECORDS_TO_ASK_FOR;
+          history = historyService.requestAlarmHistory(Long.parseLong(id), numRecords);
+          description = "(Last " + numRecords + " records)";
+        }
+      } catch (Exception e) {
+        return ("redirect:" + HISTORY_FORM_URL + "?error=" + id);
       }
-    } catch (Exception e) {
-      return ("redirect:" + HISTORY_FORM_URL + "?error=" + id);
-    }
 
-    model.addAttribute("description", description);
-    model.addAttribute("history", history);
-    model.addAttribute("title", HISTORY_FORM_TITLE);
-    return "alarmHistory";
+      model.addAttribute("description", description);
+      model.addAttribute("history", history);
+      model.addAttribute("title", HISTORY_FORM_TITLE);
+      return "alarmHistory";
+    });
   }
 
   /**
@@ -16,14 +16,19 @@
  *****************************************************************************/
 package cern.c2mon.web.ui.controller;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
@@ -36,6 +41,8 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.ServletWebRequest;
 
 import cern.c2mon.client.common.tag.Tag;
 import cern.c2mon.client.ext.history.alarm.Alarm;
@@ -43,12 +50,20 @@ import cern.c2mon.client.ext.history.alarm.AlarmHistoryService;
 import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
 import cern.c2mon.client.ext.history.common.exception.HistoryProviderException;
 import cern.c2mon.client.ext.history.common.exception.LoadingParameterException;
-import cern.c2mon.client.ext.history.updates.HistoryTagValueUpdateImpl;
 import cern.c2mon.shared.client.alarm.AlarmValue;
-import cern.c2mon.shared.client.alarm.AlarmValueImpl;
+import cern.c2mon.web.ui.history.HistoryAdmissionController;
+import cern.c2mon.web.ui.history.HistoryAlarmCorrelator;
+import cern.c2mon.web.ui.history.HistoryChunkLoader;
+import cern.c2mon.web.ui.history.HistoryPage;
+import cern.c2mon.web.ui.history.HistoryProviderPool;
+import cern.c2mon.web.ui.history.HistoryQuery;
+import cern.c2mon.web.ui.history.HistorySeries;
+import cern.c2mon.web.ui.history.HistorySummary;
+import cern.c2mon.web.ui.history.HistoryTaskExecutor;
 import cern.c2mon.web.ui.service.HistoryAlarmService;
 import cern.c2mon.web.ui.service.HistoryService;
 import cern.c2mon.web.ui.service.TagService;
+import cern.c2mon.web.ui.service.TrendUpdateService;
 import cern.c2mon.web.ui.util.FormUtility;
 
 import static cern.c2mon.client.ext.history.util.LocalDateTimeConverter.convertToLocalDateTime;
@@ -94,6 +109,43 @@ public class HistoryController {
    */
   public static final String HISTORY_CSV_URL = HISTORY_URL + "csv";
 
+  /**
+   * The URL to view the statistics of the history caches and thread pool
+   */
+  public static final String HISTORY_STATISTICS_URL = HISTORY_URL + "statistics";
+
+  /**
+   * The URL suffix to export the history of a tag (appended to HISTORY_URL + id)
+   */
+  public static final String HISTORY_EXPORT_URL = "/export";
+
+  /**
+   * The URL suffix of the statistical summary of the history of a tag
+   * (appended to HISTORY_URL + id)
+   */
+  public static final String HISTORY_SUMMARY_URL = "/summary";
+
+  /**
+   * The URL suffix of a page of the history table of a tag (appended to
+   * HISTORY_URL + id)
+   */
+  public static final String HISTORY_PAGE_URL = "/page";
+
+  /** Parameter: cursor of the history page, as given by the previous page */
+  public static final String AFTER_PARAMETER = "AFTER";
+
+  /** Parameter: maximum number of rows of the history page */
+  public static final String LIMIT_PARAMETER = "LIMIT";
+
+  /** Parameter: export FORMAT */
+  public static final String FORMAT_PARAMETER = "FORMAT";
+
+  /** Export format: CSV */
+  public static final String CSV_FORMAT = "csv";
+
+  /** Export format: JSON */
+  public static final String JSON_FORMAT = "json";
+
   /**
    * Title for the history form page
    */
@@ -107,6 +159,10 @@ public class HistoryController {
   /** How many records in history to ask for. 100 looks ok! */
   private static final int HISTORY_RECORDS_TO_ASK_FOR = 100;
 
+  /** Rows of a history page, by default and at most */
+  private static final int HISTORY_PAGE_SIZE = 200;
+  private static final int MAX_HISTORY_PAGE_SIZE = 1000;
+
   /**
    * Link to a custom help page. If the URL contains the placeholder "{id}" then
    * it will be replaced with the tag id.
@@ -126,6 +182,36 @@ public class HistoryController {
   @Autowired
   private HistoryAlarmService alarmService;
 
+  /**
+   * Thread pool loading the histories outside of the servlet container threads
+   */
+  @Autowired
+  private HistoryTaskExecutor historyExecutor;
+
+  /**
+   * Loads the long history periods as chunks
+   */
+  @Autowired
+  private HistoryChunkLoader chunkLoader;
+
+  /**
+   * Long-lived history providers
+   */
+  @Autowired
+  private HistoryProviderPool providerPool;
+
+  /**
+   * Pushes the new tag values to the trend views
+   */
+  @Autowired
+  private TrendUpdateService trendUpdateService;
+
+  /**
+   * Budgets of the history loads
+   */
+  @Autowired
+  private HistoryAdmissionController admissionController;
+
   /**
    * HistoryController logger
    */
@@ -141,88 +227,237 @@ public class HistoryController {
   }
 
   /**
-   * @return Displays the history of a given id.
+   * @return Displays the history of a given id. Only the page is rendered
+   *         here, the rows are fetched by the page from
+   *         {@link #viewHistoryPage} with the same parameters, as the table is
+   *         scrolled.
    *
    * @param id the last 100 records of the given tag id are being shown
-   * @param response the html result is written to that HttpServletResponse
-   *          response
    */
   @RequestMapping(value = HISTORY_URL + "{id}", method = { RequestMethod.GET })
   public final String viewHistory(@PathVariable(value = "id") final String id,
       @RequestParam(value = MAX_RECORDS_PARAMETER, required = false) final String maxRecords,
       @RequestParam(value = LAST_DAYS_PARAMETER, required = false) final String lastDays,
       @RequestParam(value = START_DATE_PARAMETER, required = false) final String startTime,
-      @RequestParam(value = END_DATE_PARAMETER, required = false) final String endTime, final HttpServletResponse response, final Model model) throws IOException {
+      @RequestParam(value = END_DATE_PARAMETER, required = false) final String endTime, final HttpServletRequest request,
+      final Model model) {
 
     logger.info("/historyviewer/{id} " + id);
 
-    List<HistoryTagValueUpdate> history = new ArrayList<>();
-    String description = null;
-
-    try {
-      if (startTime != null && endTime != null) {
-        history = service.requestHistoryData(id, HistoryService.stringToTimestamp(startTime), HistoryService.stringToTimestamp(endTime));
-        description = " (From " + startTime + " to " + endTime + ")";
-      } else if (lastDays != null) {
-        history = service.requestHistoryDataForLastDays(id, Integer.parseInt(lastDays));
-        description = "(Last " + lastDays + " days)";
-      } else if (maxRecords != null) {
-        history = service.requestHistoryData(id, Integer.parseInt(maxRecords));
-        description = "(Last " + maxRecords + " records)";
-      } else if (id != null) {
-        history = service.requestHistoryData(id, HISTORY_RECORDS_TO_ASK_FOR);
-        description = "(Last " + HISTORY_RECORDS_TO_ASK_FOR + " records)";
-      }
-    } catch (Exception e) {
+    final Tag tag;
+    if (getHistoryQuery(id, maxRecords, lastDays, startTime, endTime) == null
+        || (tag = tagService.getTag(Long.parseLong(id))) == null) {
       return ("redirect:" + HISTORY_FORM_URL + "?error=" + id);
     }
 
-    setAlarmsForHistory(Long.parseLong(id), history);
+    final String description;
+    if (startTime != null && endTime != null) {
+      description = " (From " + startTime + " to " + endTime + ")";
+    } else if (lastDays != null) {
+      description = "(Last " + lastDays + " days)";
+    } else if (maxRecords != null) {
+      description = "(Last " + maxRecords + " records)";
+    } else {
+      description = "(Last " + HISTORY_RECORDS_TO_ASK_FOR + " records)";
+    }
 
+    model.addAttribute("id", id);
     model.addAttribute("description", description);
-    model.addAttribute("history", history);
+    model.addAttribute("alarmflag", tag.getAlarms() != null && !tag.getAlarms().isEmpty());
     model.addAttribute("title", HISTORY_FORM_TITLE);
     model.addAttribute("help_url", helpUrl.replaceAll("\\{id\\}", id));
+    model.addAttribute("queryParameters", request.getQueryString() != null ? request.getQueryString() : "");
     return "history";
   }
 
   /**
-   * @return Displays the History in RAW XML for a tag with the given id.
+   * @return a page of the history table of a given id, as JSON. The alarms
+   *         are only looked up for the rows of the page.
+   *
+   * @param id the tag id whose history is shown
+   * @param after (Optional parameter) the cursor given by the previous page,
+   *          the first page is sent without it
+   * @param limit (Optional parameter) maximum number of rows of the page
+   * @param response the error is sent to that HttpServletResponse, if the
+   *          history cannot be loaded
+   */
+  @RequestMapping(value = HISTORY_URL + "{id}" + HISTORY_PAGE_URL, method = { RequestMethod.GET })
+  @ResponseBody
+  public final CompletableFuture<HistoryPage> viewHistoryPage(@PathVariable(value = "id") final String id,
+      @RequestParam(value = MAX_RECORDS_PARAMETER, required = false) final String maxRecords,
+      @RequestParam(value = LAST_DAYS_PARAMETER, required = false) final String lastDays,
+      @RequestParam(value = START_DATE_PARAMETER, required = false) final String startTime,
+      @RequestParam(value = END_DATE_PARAMETER, required = false) final String endTime,
+      @RequestParam(value = AFTER_PARAMETER, required = false) final String after,
+      @RequestParam(value = LIMIT_PARAMETER, required = false) final Integer limit,
+      final ServletWebRequest webRequest, final HttpServletResponse response) {
+
+    logger.info(HISTORY_URL + "{id}" + HISTORY_PAGE_URL + " " + id + " after:" + after);
+
+    if (isNotModified(id, startTime, endTime, webRequest)) {
+      return null;
+    }
+
+    final int pageSize = Math.max(1, Math.min(MAX_HISTORY_PAGE_SIZE, limit != null ? limit : HISTORY_PAGE_SIZE));
+    final HistoryQuery query = getHistoryQuery(id, maxRecords, lastDays, startTime, endTime);
+    return historyExecutor.submit(query, () -> {
+      try {
+        final List<HistoryTagValueUpdate> history = requestHistory(id, maxRecords, lastDays, startTime, endTime);
+        final int from = HistoryPage.indexOf(history, after);
+        final int to = Math.min(history.size(), from + pageSize);
+
+        Boolean[] alarmActive = null;
+        if (to > from) {
+          // the last row of the page stands until the next row, or until the
+          // end of the period for the last row of the history
+          final long pageEnd = to < history.size() ? history.get(to).getServerTimestamp().getTime()
+              : Math.max(history.get(to - 1).getServerTimestamp().getTime(), query.getPeriodEnd(System.currentTimeMillis()));
+          alarmActive = getAlarmActivity(Long.parseLong(id), history.subList(from, to), new Timestamp(pageEnd));
+        }
+        return HistoryPage.of(history, from, pageSize, alarmActive);
+
+      } catch (Exception e) {
+        logger.error("Error loading the history page of tag " + id, e);
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot load the history of tag " + id);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Exports the history of a given id, writing it directly to the response
+   * output stream instead of rendering it through the model and a jsp.
+   *
+   * @param id the tag id whose history is exported
+   * @param format the export format: {@link #CSV_FORMAT} (default) or
+   *          {@link #JSON_FORMAT}
+   * @param response the export is written to that HttpServletResponse, from
+   *          the {@link HistoryTaskExecutor}
+   */
+  @RequestMapping(value = HISTORY_URL + "{id}" + HISTORY_EXPORT_URL, method = { RequestMethod.GET })
+  @ResponseBody
+  public final CompletableFuture<Void> exportHistory(@PathVariable(value = "id") final String id,
+      @RequestParam(value = MAX_RECORDS_PARAMETER, required = false) final String maxRecords,
+      @RequestParam(value = LAST_DAYS_PARAMETER, required = false) final String lastDays,
+      @RequestParam(value = START_DATE_PARAMETER, required = false) final String startTime,
+      @RequestParam(value = END_DATE_PARAMETER, required = false) final String endTime,
+      @RequestParam(value = FORMAT_PARAMETER, required = false, defaultValue = CSV_FORMAT) final String format,
+      final HttpServletResponse response) {
+
+    logger.info(HISTORY_URL + "{id}" + HISTORY_EXPORT_URL + " " + id);
+
+    return historyExecutor.submit(getHistoryQuery(id, maxRecords, lastDays, startTime, endTime), () -> {
+      final HistorySeries history;
+      try {
+        history = requestHistorySeries(id, maxRecords, lastDays, startTime, endTime);
+      } catch (Exception e) {
+        logger.error("Error exporting history of tag " + id, e);
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot export the history of tag " + id);
+        return null;
+      }
+
+      response.setCharacterEncoding("UTF-8");
+      if (JSON_FORMAT.equalsIgnoreCase(format)) {
+        response.setContentType("application/json");
+        service.writeJson(history, response.getOutputStream());
+      } else {
+        response.setContentType("text/csv");
+        response.setHeader("Content-Disposition", "attachment; filename=\"history-" + id + ".csv\"");
+        service.writeCSV(history, new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8)));
+      }
+      return null;
+    });
+  }
+
+  /**
+   * @return the statistical summary of the history of a tag, as JSON. It is
+   *         computed in a single pass over the history, which is not sent.
+   *
+   * @param id the tag id whose history is summarised
+   * @param response the error is sent to that HttpServletResponse, if the
+   *          history cannot be loaded
+   */
+  @RequestMapping(value = HISTORY_URL + "{id}" + HISTORY_SUMMARY_URL, method = { RequestMethod.GET })
+  @ResponseBody
+  public final CompletableFuture<HistorySummary> viewSummary(@PathVariable(value = "id") final String id,
+      @RequestParam(value = MAX_RECORDS_PARAMETER, required = false) final String maxRecords,
+      @RequestParam(value = LAST_DAYS_PARAMETER, required = false) final String lastDays,
+      @RequestParam(value = START_DATE_PARAMETER, required = false) final String startTime,
+      @RequestParam(value = END_DATE_PARAMETER, required = false) final String endTime,
+      final HttpServletResponse response) {
+
+    logger.info(HISTORY_URL + "{id}" + HISTORY_SUMMARY_URL + " " + id);
+
+    final HistoryQuery query = getHistoryQuery(id, maxRecords, lastDays, startTime, endTime);
+    return historyExecutor.submit(query, () -> {
+      try {
+        final HistorySeries history = requestHistorySeries(id, maxRecords, lastDays, startTime, endTime);
+        return service.summarise(history, query.getPeriodEnd(System.currentTimeMillis()));
+
+      } catch (Exception e) {
+        logger.error("Error summarising history of tag " + id, e);
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot summarise the history of tag " + id);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * @return the counters of the history caches, of the history thread pools,
+   *         of the admission control, of the history providers and of the
+   *         live trend updates, as JSON
+   */
+  @RequestMapping(value = HISTORY_STATISTICS_URL, method = { RequestMethod.GET })
+  @ResponseBody
+  public final Map<String, Map<String, Long>> viewStatistics() {
+    final Map<String, Map<String, Long>> statistics = new LinkedHashMap<>(service.getCacheStatistics());
+    statistics.put("executor", historyExecutor.getStatistics());
+    statistics.put("admission", admissionController.getStatistics());
+    statistics.put("chunks", chunkLoader.getStatistics());
+    statistics.put("providers", providerPool.getStatistics());
+    statistics.put("live", trendUpdateService.getStatistics());
+    return statistics;
+  }
+
+  /**
+   * Streams the History in RAW XML for a tag with the given id, writing it
+   * directly to the response output stream instead of rendering it through
+   * the model and a jsp.
    *
    * @param id tag id
-   * @param model Spring MVC Model instance to be filled in before jsp processes
-   *          it
+   * @param response the XML is written to that HttpServletResponse, from the
+   *          {@link HistoryTaskExecutor}
    */
   @RequestMapping(value = HISTORY_XML_URL + "/{id}", method = { RequestMethod.GET })
-  public final String viewXml(@PathVariable final String id, @RequestParam(value = MAX_RECORDS_PARAMETER, required = false) final String maxRecords,
+  @ResponseBody
+  public final CompletableFuture<Void> viewXml(@PathVariable final String id, @RequestParam(value = MAX_RECORDS_PARAMETER, required = false) final String maxRecords,
       @RequestParam(value = LAST_DAYS_PARAMETER, required = false) final String lastDays,
       @RequestParam(value = START_DATE_PARAMETER, required = false) final String startTime,
-      @RequestParam(value = END_DATE_PARAMETER, required = false) final String endTime, final Model model) throws ParseException {
+      @RequestParam(value = END_DATE_PARAMETER, required = false) final String endTime, final HttpServletRequest request,
+      final HttpServletResponse response) {
 
     logger.info(HISTORY_XML_URL + id);
-    try {
+    final String errorUrl = request.getContextPath() + "/historyviewer/errorform/" + id;
+    return historyExecutor.submit(getHistoryQuery(id, maxRecords, lastDays, startTime, endTime), () -> {
+      response.setContentType("text/xml");
+      response.setCharacterEncoding("UTF-8");
+      try {
+        if (startTime != null && endTime != null) {
+          service.writeHistoryXml(id, startTime, endTime, response.getOutputStream());
+        } else if (lastDays != null) {
+          service.writeHistoryXmlForLastDays(id, Integer.parseInt(lastDays), response.getOutputStream());
+        } else if (maxRecords != null) {
+          service.writeHistoryXml(id, Integer.parseInt(maxRecords), response.getOutputStream());
+        } else {
+          service.writeHistoryXml(id, HISTORY_RECORDS_TO_ASK_FOR, response.getOutputStream());
+        }
 
-      if (id == null) {
-        model.addAttribute("xml", service.getHistoryXml(id, HISTORY_RECORDS_TO_ASK_FOR));
-      } else if (lastDays != null) {
-        final String xml = service.getHistoryXmlForLastDays(id, Integer.parseInt(lastDays));
-        model.addAttribute("xml", xml);
+      } catch (HistoryProviderException | LoadingParameterException | ParseException | NumberFormatException e) {
+        logger.error(e.getMessage());
+        response.sendRedirect(errorUrl);
       }
-      if (startTime != null && endTime != null) {
-        final String xml = service.getHistoryXml(id, startTime, endTime);
-        model.addAttribute("xml", xml);
-      } else if (maxRecords != null) {
-        model.addAttribute("xml", service.getHistoryXml(id, Integer.parseInt(maxRecords)));
-      }
-
-    } catch (HistoryProviderException e) {
-      logger.error(e.getMessage());
-      return ("redirect:" + "/historyviewer/errorform/" + id);
-    } catch (LoadingParameterException e) {
-      logger.error(e.getMessage());
-      return ("redirect:" + "/historyviewer/errorform/" + id);
-    }
-    return "raw/xml";
+      return null;
+    });
   }
 
   /**
@@ -273,47 +508,138 @@ public class HistoryController {
 
 
   /**
-   * Helper method to populate the alarms to a given tag history from the {@link AlarmHistoryService}.
+   * @return true if the request is for a closed Start-End period the client
+   *         already has, in which case a 304 Not Modified has been set on the
+   *         response
+   */
+  private boolean isNotModified(final String id, final String startTime, final String endTime, final ServletWebRequest webRequest) {
+    if (startTime == null || endTime == null) {
+      return false;
+    }
+
+    try {
+      final HistoryQuery query = HistoryQuery.range(Long.parseLong(id), HistoryService.stringToTimestamp(startTime),
+          HistoryService.stringToTimestamp(endTime));
+      return service.checkNotModified(query, webRequest);
+    } catch (NumberFormatException | ParseException e) {
+      // malformed requests are reported when loading the history
+      return false;
+    }
+  }
+
+  /**
+   * @return the history query matching the given parameters, as chosen by
+   *         {@link #requestHistory(String, String, String, String, String)},
+   *         or <code>null</code> if a parameter is malformed
+   */
+  private static HistoryQuery getHistoryQuery(final String id, final String maxRecords, final String lastDays,
+      final String startTime, final String endTime) {
+    try {
+      if (startTime != null && endTime != null) {
+        return HistoryQuery.range(Long.parseLong(id), HistoryService.stringToTimestamp(startTime),
+            HistoryService.stringToTimestamp(endTime));
+      } else if (lastDays != null) {
+        return HistoryQuery.lastDays(Long.parseLong(id), Integer.parseInt(lastDays));
+      } else if (maxRecords != null) {
+        return HistoryQuery.lastRecords(Long.parseLong(id), Integer.parseInt(maxRecords));
+      }
+      return HistoryQuery.lastRecords(Long.parseLong(id), HISTORY_RECORDS_TO_ASK_FOR);
+    } catch (NumberFormatException | ParseException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Requests the history of a tag, choosing the kind of query based on which
+   * parameters were given (Start-End date, days or records).
    *
-   * @param tagId The id of the tag which might hold the history of alarms
-   * @param tagValueUpdates The history of the tag
+   * @return the history of the given tag
+   * @throws Exception if the history cannot be retrieved or a parameter is
+   *           malformed
    */
-  private void setAlarmsForHistory(Long tagId, List<HistoryTagValueUpdate> tagValueUpdates){
-    Map<Timestamp, Alarm> timeToAlarmValue = new HashMap<>();
-    Tag clientTag = tagService.getTag(tagId);
+  private List<HistoryTagValueUpdate> requestHistory(final String id, final String maxRecords, final String lastDays,
+      final String startTime, final String endTime) throws Exception {
+
+    if (startTime != null && endTime != null) {
+      return service.requestHistoryData(id, HistoryService.stringToTimestamp(startTime), HistoryService.stringToTimestamp(endTime));
+    } else if (lastDays != null) {
+      return service.requestHistoryDataForLastDays(id, Integer.parseInt(lastDays));
+    } else if (maxRecords != null) {
+      return service.requestHistoryData(id, Integer.parseInt(maxRecords));
+    }
+    return service.requestHistoryData(id, HISTORY_RECORDS_TO_ASK_FOR);
+  }
 
-    if(clientTag.getAlarms() !=  null) {
-      List<AlarmValue> alarms = new ArrayList<>(clientTag.getAlarms());
+  /**
+   * Same as {@link #requestHistory(String, String, String, String, String)},
+   * but the history is returned in its compact columnar form.
+   *
+   * @return the history of the given tag
+   * @throws Exception if the history cannot be retrieved or a parameter is
+   *           malformed
+   */
+  private HistorySeries requestHistorySeries(final String id, final String maxRecords, final String lastDays,
+      final String startTime, final String endTime) throws Exception {
+
+    if (startTime != null && endTime != null) {
+      return service.requestHistorySeries(id, HistoryService.stringToTimestamp(startTime), HistoryService.stringToTimestamp(endTime));
+    } else if (lastDays != null) {
+      return service.requestHistorySeriesForLastDays(id, Integer.parseInt(lastDays));
+    } else if (maxRecords != null) {
+      return service.requestHistorySeries(id, Integer.parseInt(maxRecords));
+    }
+    return service.requestHistorySeries(id, HISTORY_RECORDS_TO_ASK_FOR);
+  }
+
+  /**
+   * Correlates the history of all alarms of a tag with its history, see
+   * {@link HistoryAlarmCorrelator}. The last state of each alarm before the
+   * first value is fetched too, so that an alarm activated earlier is shown
+   * as active.
+   *
+   * The history values are shared through the history cache, so nothing is
+   * attached to them: the result belongs to the current response only.
+   *
+   * @param tagId The id of the tag which might hold the history of alarms
+   * @param tagValueUpdates The history of the tag, sorted by server timestamp
+   * @param endTime Until when the last value of the history stands
+   * @return for each value, True if an alarm was active while it stood, False
+   *         if alarms were only terminated, <code>null</code> without alarm;
+   *         or <code>null</code> if the tag has no alarms
+   */
+  private Boolean[] getAlarmActivity(final Long tagId, final List<HistoryTagValueUpdate> tagValueUpdates, final Timestamp endTime) {
+    final Tag clientTag = tagService.getTag(tagId);
+    if (clientTag == null || clientTag.getAlarms() == null || clientTag.getAlarms().isEmpty() || tagValueUpdates.isEmpty()) {
+      return null;
+    }
 
-      if (!alarms.isEmpty() && !tagValueUpdates.isEmpty()) {
-        // get the range of the history of the sorted list
-        LocalDateTime start = convertToLocalDateTime(tagValueUpdates.get(0).getServerTimestamp());
-        LocalDateTime end   = convertToLocalDateTime(tagValueUpdates.get(tagValueUpdates.size() - 1).getServerTimestamp());
-        List<Alarm> alarmHistory = alarmService.requestAlarmHistory(alarms.get(0).getId(), start, end);
+    final List<Long> alarmIds = new ArrayList<>();
+    for (final AlarmValue alarm : clientTag.getAlarms()) {
+      alarmIds.add(alarm.getId());
+    }
 
-        alarmHistory.forEach(alarm -> timeToAlarmValue.put(convertToTimestamp(alarm.getTimestamp()), alarm));
+    final LocalDateTime start = convertToLocalDateTime(tagValueUpdates.get(0).getServerTimestamp());
+    final LocalDateTime end = convertToLocalDateTime(endTime);
+    final Map<Long, List<Alarm>> alarmHistories = alarmService.requestAlarmHistory(alarmIds, start, end);
+    final Map<Long, Alarm> lastStates = alarmService.requestLastAlarmStates(alarmIds, start);
+
+    final List<List<Alarm>> states = new ArrayList<>();
+    alarmHistories.forEach((alarmId, alarmHistory) -> {
+      final Alarm lastState = lastStates.get(alarmId);
+      if (lastState == null) {
+        states.add(alarmHistory);
+      } else {
+        final List<Alarm> seeded = new ArrayList<>(alarmHistory.size() + 1);
+        seeded.add(lastState);
+        seeded.addAll(alarmHistory);
+        states.add(seeded);
       }
+    });
 
-      if (!timeToAlarmValue.isEmpty()) {
-        for(HistoryTagValueUpdate tagValueUpdate : tagValueUpdates){
-          HistoryTagValueUpdateImpl tagValue = (HistoryTagValueUpdateImpl) tagValueUpdate;
-          Timestamp currentTime = tagValueUpdate.getServerTimestamp();
-
-          if(timeToAlarmValue.containsKey(currentTime)){
-            Alarm alarm = timeToAlarmValue.get(currentTime);
-            AlarmValueImpl alarmValue = new AlarmValueImpl(
-                alarm.getId(),
-                alarm.getFaultCode(),
-                alarm.getFaultMember(),
-                alarm.getFaultFamily(),
-                alarm.getInfo(),
-                alarm.getTagId(),
-                currentTime,
-                alarm.isActive());
-            tagValue.getAlarms().add(alarmValue);
-          }
-        }
-      }
-    }
+    final Boolean[] alarmActive = new Boolean[tagValueUpdates.size()];
+    HistoryAlarmCorrelator.correlate(tagValueUpdates, endTime.getTime(), states,
+        alarm -> convertToTimestamp(alarm.getTimestamp()).getTime(),
+        (alarm, index) -> alarmActive[index] = Boolean.TRUE.equals(alarmActive[index]) || alarm.isActive());
+    return alarmActive;
   }
 }
@@ -21,30 +21,53 @@ import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.time.LocalDateTime;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.ServletWebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import cern.c2mon.client.common.tag.Tag;
-import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
-import cern.c2mon.client.ext.history.common.exception.HistoryProviderException;
-import cern.c2mon.client.ext.history.common.exception.LoadingParameterException;
+import cern.c2mon.shared.client.alarm.AlarmValue;
+import cern.c2mon.web.ui.history.HistoryHistogram;
+import cern.c2mon.web.ui.history.HistoryOverlay;
+import cern.c2mon.web.ui.history.HistoryQuery;
+import cern.c2mon.web.ui.history.HistoryRollup;
+import cern.c2mon.web.ui.history.HistorySeries;
+import cern.c2mon.web.ui.history.HistoryTrend;
+import cern.c2mon.web.ui.history.HistoryTaskExecutor;
+import cern.c2mon.web.ui.service.HistoryAlarmService;
 import cern.c2mon.web.ui.service.HistoryService;
 import cern.c2mon.web.ui.service.TagIdException;
 import cern.c2mon.web.ui.service.TagService;
+import cern.c2mon.web.ui.serialization.HistoryTrendMessageConverter;
+import cern.c2mon.web.ui.service.TrendUpdateService;
 import cern.c2mon.web.ui.util.FormUtility;
-import cern.c2mon.web.ui.util.InvalidPoint;
+
+import static cern.c2mon.client.ext.history.util.LocalDateTimeConverter.convertToLocalDateTime;
+import static cern.c2mon.client.ext.history.util.LocalDateTimeConverter.convertToTimestamp;
 
 /**
  * A controller for the Online Trend Viewer
@@ -81,11 +104,67 @@ public class TrendViewController {
   public static final String TREND_FORM_TITLE = "Trend Viewer";
 
   /** Instruction for the form page */
-  public static final String INSTRUCTION = "Enter a Tag Id to create a Trend View.";
+  public static final String INSTRUCTION = "Enter a Tag Id (or several, separated by commas) to create a Trend View.";
+
+  /** URL suffix of the bucket rollup (appended to TREND_VIEW_URL + id) */
+  public static final String ROLLUP_URL = "/rollup";
+
+  /** URL suffix of the chart data of a trend view (appended to TREND_VIEW_URL + id) */
+  public static final String DATA_URL = "/data";
+
+  /** URL suffix of the chart data of a period of a trend view (appended to TREND_VIEW_URL + id) */
+  public static final String WINDOW_URL = "/window";
+
+  /** Start of the period of a window, in epoch milliseconds */
+  public static final String FROM_PARAMETER = "FROM";
+
+  /** End of the period of a window, in epoch milliseconds */
+  public static final String TO_PARAMETER = "TO";
+
+  /** URL suffix of the value distribution of a trend view (appended to TREND_VIEW_URL + id) */
+  public static final String HISTOGRAM_URL = "/histogram";
+
+  /** Maximum number of bins of the value distribution */
+  public static final String BINS_PARAMETER = "BINS";
+
+  /** How the values of the distribution are counted: SAMPLES or TIME */
+  public static final String WEIGHT_PARAMETER = "WEIGHT";
+
+  /** URL suffix of the live updates of a trend view (appended to TREND_VIEW_URL + id) */
+  public static final String LIVE_URL = "/live";
+
+  /** URL of the multi-tag trend view data (followed by DATA_URL) */
+  public static final String OVERLAY_URL = "/trendviewer/overlay";
+
+  /** Comma separated tag ids of a multi-tag trend view */
+  public static final String IDS_PARAMETER = "ids";
+
+  /** Bucket width of the rollup: MINUTE, HOUR or DAY */
+  public static final String INTERVAL_PARAMETER = "INTERVAL";
+
+  /** Chart width in pixels, used to decide how many points are worth sending */
+  public static final String WIDTH_PARAMETER = "WIDTH";
 
   /** How many records in history to ask for (default): 100 looks ok! */
   private static final int RECORDS_TO_ASK_FOR = 100;
 
+  /** Maximum number of tags of a multi-tag trend view */
+  private static final int MAX_OVERLAY_TAGS = 10;
+
+  /** Bounds for the number of bins of a value distribution */
+  private static final int DEFAULT_HISTOGRAM_BINS = 50;
+  private static final int MAX_HISTOGRAM_BINS = 200;
+
+  /** Chart width assumed when the client does not give one */
+  private static final int DEFAULT_CHART_WIDTH = 1200;
+
+  /** Bounds for the chart width given by the client */
+  private static final int MIN_CHART_WIDTH = 100;
+  private static final int MAX_CHART_WIDTH = 8000;
+
+  /** Points sent per pixel of chart width (a point on each side of a pixel) */
+  private static final int POINTS_PER_PIXEL = 2;
+
   /**
    * Link to a custom help page. If the URL contains the placeholder "{id}" then
    * it will be replaced with the tag id.
@@ -101,9 +180,61 @@ public class TrendViewController {
   @Autowired
   private TagService tagService;
 
+  /** Thread pool loading the histories outside of the servlet container threads */
+  @Autowired
+  private HistoryTaskExecutor historyExecutor;
+
+  /** Pushes the new tag values to the trend views */
+  @Autowired
+  private TrendUpdateService trendUpdateService;
+
+  /** Loads the alarm transitions kept by the downsampling */
+  @Autowired
+  private HistoryAlarmService alarmService;
+
   /** TrendViewController logger */
   private static Logger logger = LoggerFactory.getLogger(TrendViewController.class);
 
+  /**
+   * Loads the activations and terminations of the alarms of a tag over the
+   * period of its history, so that the points around them survive the
+   * downsampling of the chart. Nothing is loaded if the history is not
+   * downsampled. A failure of the alarm history is logged and only costs the
+   * alarm points, not the chart.
+   *
+   * @param tagId the tag whose history is charted
+   * @param history the history of the tag, sorted by server timestamp
+   * @param maxPoints the number of points the chart can usefully display
+   *
+   * @return the times of the alarm transitions, in any order
+   */
+  private long[] getAlarmTimes(final Long tagId, final HistorySeries history, final int maxPoints) {
+    if (history.size() <= maxPoints) {
+      return new long[0];
+    }
+    final Tag tag = tagService.getTag(tagId);
+    if (tag == null || tag.getAlarms() == null || tag.getAlarms().isEmpty()) {
+      return new long[0];
+    }
+
+    final List<Long> alarmIds = new ArrayList<>();
+    for (final AlarmValue alarm : tag.getAlarms()) {
+      alarmIds.add(alarm.getId());
+    }
+
+    try {
+      final LocalDateTime start = convertToLocalDateTime(new Timestamp(history.getServerTimestamp(0)));
+      final LocalDateTime end = convertToLocalDateTime(new Timestamp(history.getServerTimestamp(history.size() - 1)));
+      return alarmService.requestAlarmHistory(alarmIds, start, end).values().stream()
+          .flatMap(List::stream)
+          .mapToLong(alarm -> convertToTimestamp(alarm.getTimestamp()).getTime())
+          .toArray();
+    } catch (RuntimeException e) {
+      logger.warn("Cannot load the alarm history of tag " + tagId + ", its alarm points may be downsampled", e);
+      return new long[0];
+    }
+  }
+
   /**
    * @return Model with the default values added (values that are the same for
    *         all chart types).
@@ -127,39 +258,25 @@ public class TrendViewController {
   }
 
   /**
-   * @return Displays a Trend View for a given id.
+   * @return Displays a Trend View for a given id. The chart data is fetched
+   *         by the page from {@link #getTrendData}.
    *
    * @param id the last records of the given tag id are being shown
    * @param lastRecords number of records to be shown
    */
   @RequestMapping(value = TREND_VIEW_URL + "{id}" + LAST_RECORDS_URL + "{lastRecords}", method = { RequestMethod.GET })
-  public final String viewTrendLastRecords(@PathVariable(value = "id") final String id, @PathVariable(value = "lastRecords") final int lastRecords, Model model)
-      throws IOException {
+  public final String viewTrendLastRecords(@PathVariable(value = "id") final String id, @PathVariable(value = "lastRecords") final int lastRecords,
+      final Model model) {
 
     logger.info(TREND_VIEW_URL + "{id} " + id + LAST_RECORDS_URL + "{lastRecords} ");
 
     try {
-      final List<HistoryTagValueUpdate> historyValues = historyService.requestHistoryData(id, lastRecords);
-
-      final boolean isBooleanData = historyService.isBooleanData(historyValues);
-      final Collection<InvalidPoint> invalidPoints = historyService.getInvalidPoints(historyValues);
-      final Tag tagValue = tagService.getTag(Long.parseLong(id));
-
-      model = getDefaultModel(model, tagValue);
-
-      model.addAttribute("CSV", historyService.getHistoryCSV(historyValues, isBooleanData));
-      model.addAttribute("invalidPoints", invalidPoints);
-      model.addAttribute("is_boolean", ((Boolean) (isBooleanData)));
-      model.addAttribute("records", lastRecords);
-      model.addAttribute("view_title", tagValue.getName());
-      model.addAttribute("view_description", "(Last " + lastRecords + " records)");
-
+      getLastRecordsModel(model, id, lastRecords);
       return "trend/trendView";
-
     } catch (Exception e) {
       logger.error(e.getMessage());
     }
-    return null;
+    return ("redirect:" + TREND_VIEW_FORM_URL + "?error=" + id);
   }
 
   /**
@@ -170,28 +287,12 @@ public class TrendViewController {
    * @param days How many days to go back in history.
    * @throws TagIdException In case the specified TagId does not exist.
    */
-  public final Model getLastDaysModel(Model model, final String id, final int days) throws HistoryProviderException, LoadingParameterException, TagIdException {
-
-    final List<HistoryTagValueUpdate> historyValues = historyService.requestHistoryDataForLastDays(id, days);
-
-    final boolean isBooleanData = historyService.isBooleanData(historyValues);
-    final Collection<InvalidPoint> invalidPoints = historyService.getInvalidPoints(historyValues);
-    final Tag tagValue = tagService.getTag(Long.parseLong(id));
-    final String historyCSV = historyService.getHistoryCSV(historyValues, isBooleanData);
-
-    if (tagValue == null) {
-      logger.debug("TagId: " + id + " not found!");
-      throw new TagIdException("TagId: " + id + " not found!");
-    }
+  public final Model getLastDaysModel(final Model model, final String id, final int days) throws TagIdException {
 
-    model = getDefaultModel(model, tagValue);
-
-    model.addAttribute("CSV", historyCSV);
-    model.addAttribute("invalidPoints", invalidPoints);
-    model.addAttribute("is_boolean", ((Boolean) (isBooleanData)));
-    model.addAttribute("view_title", tagValue.getName());
+    getTagModel(model, id);
     model.addAttribute("view_description", "(Last " + days + " days)");
     model.addAttribute("queryParameters", LAST_DAYS_PARAMETER + "=" + days);
+    model.addAttribute("liveUpdates", true);
 
     return model;
   }
@@ -205,30 +306,13 @@ public class TrendViewController {
    * @param records How many records to go back in history.
    * @throws TagIdException In case the specified TagId does not exist.
    */
-  public final Model getLastRecordsModel(Model model, final String id, final int records) throws HistoryProviderException, LoadingParameterException,
-      TagIdException {
-
-    final List<HistoryTagValueUpdate> historyValues = historyService.requestHistoryData(id, records);
+  public final Model getLastRecordsModel(final Model model, final String id, final int records) throws TagIdException {
 
-    final boolean isBooleanData = historyService.isBooleanData(historyValues);
-    final Collection<InvalidPoint> invalidPoints = historyService.getInvalidPoints(historyValues);
-    final Tag tagValue = tagService.getTag(Long.parseLong(id));
-    final String historyCSV = historyService.getHistoryCSV(historyValues, isBooleanData);
-
-    if (tagValue == null) {
-      logger.debug("TagId: " + id + " not found!");
-      throw new TagIdException("TagId: " + id + " not found!");
-    }
-
-    model = getDefaultModel(model, tagValue);
-
-    model.addAttribute("CSV", historyCSV);
-    model.addAttribute("invalidPoints", invalidPoints);
-    model.addAttribute("is_boolean", ((Boolean) (isBooleanData)));
+    getTagModel(model, id);
     model.addAttribute("records", records);
-    model.addAttribute("view_title", tagValue.getName());
     model.addAttribute("view_description", "(Last " + records + " records)");
     model.addAttribute("queryParameters", MAX_RECORDS_PARAMETER + "=" + records);
+    model.addAttribute("liveUpdates", true);
 
     return model;
   }
@@ -245,33 +329,39 @@ public class TrendViewController {
    * @param end (Optional parameter) If given, this will be the End Date of the
    *          history query. {@link TrendViewController#DATE_FORMAT}
    *
-   * @throws ParseException In case StartDate or EndDate do not follow the
-   *           expected format
+   * @throws TagIdException In case the specified TagId does not exist.
    */
-  public final Model getStartEndDateModel(Model model, final String id, final String start, final String end) throws HistoryProviderException,
-      LoadingParameterException, ParseException {
+  public final Model getStartEndDateModel(final Model model, final String id, final String start, final String end) throws TagIdException {
 
-    final List<HistoryTagValueUpdate> historyValues = historyService.requestHistoryData(id, stringToTimestamp(start), stringToTimestamp(end));
+    getTagModel(model, id);
+    model.addAttribute("view_description", " (From " + start + " to " + end + ")");
+    model.addAttribute("queryParameters", START_DATE_PARAMETER + "=" + start + "&" + END_DATE_PARAMETER + "=" + end);
 
-    final boolean isBooleanData = historyService.isBooleanData(historyValues);
-    final Collection<InvalidPoint> invalidPoints = historyService.getInvalidPoints(historyValues);
-    final Tag tagValue = tagService.getTag(Long.parseLong(id));
-    final String historyCSV = historyService.getHistoryCSV(historyValues, isBooleanData);
+    return model;
+  }
 
-    model = getDefaultModel(model, tagValue);
+  /**
+   * @return Model with the values describing the tag of the chart
+   *
+   * @param id The chart is created for that id.
+   * @throws TagIdException In case the specified TagId does not exist.
+   */
+  private Model getTagModel(final Model model, final String id) throws TagIdException {
+    final Tag tagValue = tagService.getTag(Long.parseLong(id));
+    if (tagValue == null) {
+      logger.debug("TagId: " + id + " not found!");
+      throw new TagIdException("TagId: " + id + " not found!");
+    }
 
-    model.addAttribute("CSV", historyCSV);
-    model.addAttribute("invalidPoints", invalidPoints);
-    model.addAttribute("is_boolean", ((Boolean) (isBooleanData)));
+    getDefaultModel(model, tagValue);
     model.addAttribute("view_title", tagValue.getName());
-    model.addAttribute("view_description", " (From " + start + " to " + end + ")");
-    model.addAttribute("queryParameters", START_DATE_PARAMETER + "=" + start + "&" + END_DATE_PARAMETER + "=" + end);
-
     return model;
   }
 
   /**
-   * @return a Trend View for a given id.
+   * @return a Trend View for a given id. Only the page is rendered here, the
+   *         chart data is fetched by the page from {@link #getTrendData}
+   *         with the same parameters.
    *
    *         Handles 2 cases:
    *
@@ -292,21 +382,22 @@ public class TrendViewController {
       @RequestParam(value = MAX_RECORDS_PARAMETER, required = false) final String maxRecords,
       @RequestParam(value = LAST_DAYS_PARAMETER, required = false) final String lastDays,
       @RequestParam(value = START_DATE_PARAMETER, required = false) final String start,
-      @RequestParam(value = END_DATE_PARAMETER, required = false) final String end, Model model) {
+      @RequestParam(value = END_DATE_PARAMETER, required = false) final String end,
+      final Model model) {
 
     try {
       if (start != null && end != null) {
         logger.info(TREND_VIEW_URL + "{id} " + id + "start:" + start + "end:" + end);
-        model = getStartEndDateModel(model, id, start, end);
+        getStartEndDateModel(model, id, start, end);
       } else if (maxRecords != null) {
         logger.info(TREND_VIEW_URL + "{id} " + id + "maxRecords:" + maxRecords);
-        model = getLastRecordsModel(model, id, Integer.parseInt(maxRecords));
+        getLastRecordsModel(model, id, Integer.parseInt(maxRecords));
       } else if (lastDays != null) {
         logger.info(TREND_VIEW_URL + "{id} " + id + "lastDays:" + lastDays);
-        model = getLastDaysModel(model, id, Integer.parseInt(lastDays));
+        getLastDaysModel(model, id, Integer.parseInt(lastDays));
       } else {
         logger.info(TREND_VIEW_URL + "{id} " + id);
-        model = getLastRecordsModel(model, id, RECORDS_TO_ASK_FOR);
+        getLastRecordsModel(model, id, RECORDS_TO_ASK_FOR);
       }
       return "trend/trendView";
     } catch (final TagIdException e) {
@@ -317,6 +408,383 @@ public class TrendViewController {
     return ("redirect:" + TREND_VIEW_FORM_URL + "?error=" + id);
   }
 
+  /**
+   * @return the chart data of a Trend View, as JSON. The history is
+   *         downsampled to what the chart can display.
+   *
+   * @param id The tag whose chart is shown
+   *
+   * @param start (Optional parameter) If given, this will be the Start Date of
+   *          the history query. {@link TrendViewController#DATE_FORMAT}
+   *
+   * @param end (Optional parameter) If given, this will be the End Date of the
+   *          history query. {@link TrendViewController#DATE_FORMAT}
+   *
+   * @param width (Optional parameter) Width of the chart in pixels. The
+   *          history is downsampled to what this width can display.
+   */
+  @RequestMapping(value = TREND_VIEW_URL + "{id}" + DATA_URL, method = { RequestMethod.GET })
+  @ResponseBody
+  public final CompletableFuture<HistoryTrend> getTrendData(@PathVariable(value = "id") final String id,
+      @RequestParam(value = MAX_RECORDS_PARAMETER, required = false) final String maxRecords,
+      @RequestParam(value = LAST_DAYS_PARAMETER, required = false) final String lastDays,
+      @RequestParam(value = START_DATE_PARAMETER, required = false) final String start,
+      @RequestParam(value = END_DATE_PARAMETER, required = false) final String end,
+      @RequestParam(value = WIDTH_PARAMETER, required = false) final Integer width,
+      final ServletWebRequest webRequest, final HttpServletResponse response) {
+
+    logger.info(TREND_VIEW_URL + "{id}" + DATA_URL + " " + id);
+    final int maxPoints = getMaxChartPoints(width);
+    final MediaType mediaType = getTrendMediaType(webRequest, response);
+    try {
+      if (start != null && end != null
+          && historyService.checkNotModified(HistoryQuery.range(Long.parseLong(id), stringToTimestamp(start), stringToTimestamp(end)), mediaType, webRequest)) {
+        return null;
+      }
+    } catch (NumberFormatException | ParseException e) {
+      // malformed requests are reported when loading the history
+    }
+
+    return historyExecutor.submit(getHistoryQuery(id, maxRecords, lastDays, start, end), () -> {
+      try {
+        final HistorySeries series = requestHistorySeries(id, maxRecords, lastDays, start, end);
+        return historyService.analyse(series, maxPoints, getAlarmTimes(Long.parseLong(id), series, maxPoints));
+
+      } catch (Exception e) {
+        logger.error("Error loading the trend data of tag " + id, e);
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot load the history of tag " + id);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * @return the distribution of the values of a Trend View, as JSON. The
+   *         values with an invalid quality are counted apart.
+   *
+   * @param id The tag whose history is shown
+   *
+   * @param start (Optional parameter) If given, this will be the Start Date of
+   *          the history query. {@link TrendViewController#DATE_FORMAT}
+   *
+   * @param end (Optional parameter) If given, this will be the End Date of the
+   *          history query. {@link TrendViewController#DATE_FORMAT}
+   *
+   * @param bins (Optional parameter) Maximum number of bins. Fewer bins are
+   *          used if the values do not need as many.
+   *
+   * @param weight (Optional parameter) SAMPLES (default) to count each point
+   *          once, TIME to count each value by how long it stood
+   */
+  @RequestMapping(value = TREND_VIEW_URL + "{id}" + HISTOGRAM_URL, method = { RequestMethod.GET })
+  @ResponseBody
+  public final CompletableFuture<HistoryHistogram> getHistogram(@PathVariable(value = "id") final String id,
+      @RequestParam(value = MAX_RECORDS_PARAMETER, required = false) final String maxRecords,
+      @RequestParam(value = LAST_DAYS_PARAMETER, required = false) final String lastDays,
+      @RequestParam(value = START_DATE_PARAMETER, required = false) final String start,
+      @RequestParam(value = END_DATE_PARAMETER, required = false) final String end,
+      @RequestParam(value = BINS_PARAMETER, required = false) final Integer bins,
+      @RequestParam(value = WEIGHT_PARAMETER, required = false, defaultValue = "SAMPLES") final String weight,
+      final HttpServletResponse response) {
+
+    logger.info(TREND_VIEW_URL + "{id}" + HISTOGRAM_URL + " " + id + " weight:" + weight);
+    final int maxBins = Math.max(1, Math.min(MAX_HISTOGRAM_BINS, bins != null ? bins : DEFAULT_HISTOGRAM_BINS));
+    final HistoryQuery query = getHistoryQuery(id, maxRecords, lastDays, start, end);
+    return historyExecutor.submit(query, () -> {
+      try {
+        final HistoryHistogram.Weight countBy = HistoryHistogram.Weight.valueOf(weight.toUpperCase());
+        final HistorySeries historyValues = requestHistorySeries(id, maxRecords, lastDays, start, end);
+        return historyService.histogram(historyValues, countBy, maxBins, query.getPeriodEnd(System.currentTimeMillis()));
+
+      } catch (Exception e) {
+        logger.error("Error creating the histogram of tag " + id, e);
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot create the histogram of tag " + id);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * @return the history of a tag, for the parameters in the order they are
+   *         used by {@link #getTrendData}: Start-End date, records, days
+   */
+  private HistorySeries requestHistorySeries(final String id, final String maxRecords, final String lastDays,
+      final String start, final String end) throws Exception {
+    if (start != null && end != null) {
+      return historyService.requestHistorySeries(id, stringToTimestamp(start), stringToTimestamp(end));
+    } else if (maxRecords != null) {
+      return historyService.requestHistorySeries(id, Integer.parseInt(maxRecords));
+    } else if (lastDays != null) {
+      return historyService.requestHistorySeriesForLastDays(id, Integer.parseInt(lastDays));
+    }
+    return historyService.requestHistorySeries(id, RECORDS_TO_ASK_FOR);
+  }
+
+  /**
+   * @return Displays a Trend View overlaying the history of several tags. The
+   *         chart data is fetched by the page from {@link #getOverlayData}
+   *         with the same parameters.
+   *
+   * @param ids comma separated ids of the tags
+   *
+   * @param start (Optional parameter) If given, this will be the Start Date of
+   *          the history query. {@link TrendViewController#DATE_FORMAT}
+   *
+   * @param end (Optional parameter) If given, this will be the End Date of the
+   *          history query. {@link TrendViewController#DATE_FORMAT}
+   */
+  @RequestMapping(value = { "/trendviewer", TREND_VIEW_URL }, params = IDS_PARAMETER, method = { RequestMethod.GET })
+  public final String viewOverlay(@RequestParam(value = IDS_PARAMETER) final String ids,
+      @RequestParam(value = MAX_RECORDS_PARAMETER, required = false) final String maxRecords,
+      @RequestParam(value = LAST_DAYS_PARAMETER, required = false) final String lastDays,
+      @RequestParam(value = START_DATE_PARAMETER, required = false) final String start,
+      @RequestParam(value = END_DATE_PARAMETER, required = false) final String end,
+      final Model model) {
+
+    logger.info(TREND_VIEW_URL + "?" + IDS_PARAMETER + "=" + ids);
+    final List<Tag> tags = new ArrayList<>();
+    try {
+      for (final Long id : parseTagIds(ids)) {
+        final Tag tag = tagService.getTag(id);
+        if (tag == null) {
+          logger.debug("TagId: " + id + " not found!");
+          return ("redirect:" + TREND_VIEW_FORM_URL + "?error=" + id);
+        }
+        tags.add(tag);
+      }
+    } catch (NumberFormatException e) {
+      return ("redirect:" + TREND_VIEW_FORM_URL + "?error=" + ids);
+    }
+
+    final String description;
+    final String queryParameters;
+    if (start != null && end != null) {
+      description = " (From " + start + " to " + end + ")";
+      queryParameters = START_DATE_PARAMETER + "=" + start + "&" + END_DATE_PARAMETER + "=" + end;
+    } else if (maxRecords != null) {
+      description = "(Last " + maxRecords + " records)";
+      queryParameters = MAX_RECORDS_PARAMETER + "=" + maxRecords;
+    } else if (lastDays != null) {
+      description = "(Last " + lastDays + " days)";
+      queryParameters = LAST_DAYS_PARAMETER + "=" + lastDays;
+    } else {
+      description = "(Last " + RECORDS_TO_ASK_FOR + " records)";
+      queryParameters = MAX_RECORDS_PARAMETER + "=" + RECORDS_TO_ASK_FOR;
+    }
+
+    model.addAttribute("tags", tags);
+    model.addAttribute("ids", ids);
+    model.addAttribute("title", TREND_FORM_TITLE);
+    model.addAttribute("view_description", description);
+    model.addAttribute("queryParameters", IDS_PARAMETER + "=" + ids + "&" + queryParameters);
+    return "trend/trendOverlay";
+  }
+
+  /**
+   * @return the chart data of a multi-tag Trend View, as JSON. The history of
+   *         all tags is loaded with a single round trip, downsampled, and
+   *         aligned on the union of the timestamps.
+   *
+   * @param ids comma separated ids of the tags
+   * @param width (Optional parameter) Width of the chart in pixels
+   */
+  @RequestMapping(value = OVERLAY_URL + DATA_URL, method = { RequestMethod.GET })
+  @ResponseBody
+  public final CompletableFuture<HistoryOverlay> getOverlayData(@RequestParam(value = IDS_PARAMETER) final String ids,
+      @RequestParam(value = MAX_RECORDS_PARAMETER, required = false) final String maxRecords,
+      @RequestParam(value = LAST_DAYS_PARAMETER, required = false) final String lastDays,
+      @RequestParam(value = START_DATE_PARAMETER, required = false) final String start,
+      @RequestParam(value = END_DATE_PARAMETER, required = false) final String end,
+      @RequestParam(value = WIDTH_PARAMETER, required = false) final Integer width,
+      final HttpServletResponse response) throws IOException {
+
+    logger.info(OVERLAY_URL + DATA_URL + " " + ids);
+    final List<Long> tagIds;
+    try {
+      tagIds = parseTagIds(ids);
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid tag ids: " + ids);
+      return null;
+    }
+
+    final List<HistoryQuery> queries = new ArrayList<>();
+    for (final Long tagId : tagIds) {
+      final HistoryQuery query = getHistoryQuery(tagId.toString(), maxRecords, lastDays, start, end);
+      if (query != null) {
+        queries.add(query);
+      }
+    }
+
+    final int maxPoints = getMaxChartPoints(width);
+    return historyExecutor.submit(queries, () -> {
+      try {
+        final Map<Long, HistorySeries> historyValues;
+        if (start != null && end != null) {
+          historyValues = historyService.requestHistorySeries(tagIds, stringToTimestamp(start), stringToTimestamp(end));
+        } else if (maxRecords != null) {
+          historyValues = historyService.requestHistorySeries(tagIds, Integer.parseInt(maxRecords));
+        } else if (lastDays != null) {
+          historyValues = historyService.requestHistorySeriesForLastDays(tagIds, Integer.parseInt(lastDays));
+        } else {
+          historyValues = historyService.requestHistorySeries(tagIds, RECORDS_TO_ASK_FOR);
+        }
+        final int pointsPerTag = HistoryService.getPointsPerTag(historyValues, maxPoints);
+        final Map<Long, long[]> alarmTimes = new HashMap<>();
+        historyValues.forEach((tagId, series) -> alarmTimes.put(tagId, getAlarmTimes(tagId, series, pointsPerTag)));
+        return historyService.overlay(historyValues, maxPoints, alarmTimes);
+
+      } catch (Exception e) {
+        logger.error("Error loading the trend data of tags " + ids, e);
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot load the history of tags " + ids);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * @return the media type the trend data of a request will be written as.
+   *         As it depends on the Accept header, the response is marked as
+   *         varying with it, for the browser and proxy caches.
+   */
+  private static MediaType getTrendMediaType(final ServletWebRequest webRequest, final HttpServletResponse response) {
+    response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+    return HistoryTrendMessageConverter.getResponseMediaType(webRequest.getHeader(HttpHeaders.ACCEPT));
+  }
+
+  /**
+   * @return the distinct tag ids of a comma separated list, in their order
+   * @throws NumberFormatException if an id is not numeric, or if there are
+   *           no ids or too many
+   */
+  private static List<Long> parseTagIds(final String ids) {
+    final Set<Long> tagIds = new LinkedHashSet<>();
+    for (final String id : ids.split(",")) {
+      if (!id.trim().isEmpty()) {
+        tagIds.add(Long.parseLong(id.trim()));
+      }
+    }
+    if (tagIds.isEmpty() || tagIds.size() > MAX_OVERLAY_TAGS) {
+      throw new NumberFormatException("Between 1 and " + MAX_OVERLAY_TAGS + " tag ids expected: " + ids);
+    }
+    return new ArrayList<>(tagIds);
+  }
+
+  /**
+   * @return the chart data of a period of a Trend View, as JSON. Used when
+   *         zooming into a chart, to replace the downsampled points of the
+   *         visible period with more detailed ones. The history of the period
+   *         is only downsampled to what the chart can display.
+   *
+   * @param id The tag whose chart is shown
+   * @param from Start of the period, in epoch milliseconds
+   * @param to End of the period, in epoch milliseconds
+   * @param width (Optional parameter) Width of the chart in pixels
+   */
+  @RequestMapping(value = TREND_VIEW_URL + "{id}" + WINDOW_URL, method = { RequestMethod.GET })
+  @ResponseBody
+  public final CompletableFuture<HistoryTrend> getTrendWindow(@PathVariable(value = "id") final String id,
+      @RequestParam(value = FROM_PARAMETER) final long from,
+      @RequestParam(value = TO_PARAMETER) final long to,
+      @RequestParam(value = WIDTH_PARAMETER, required = false) final Integer width,
+      final ServletWebRequest webRequest, final HttpServletResponse response) throws IOException {
+
+    logger.info(TREND_VIEW_URL + "{id}" + WINDOW_URL + " " + id + " from:" + from + " to:" + to);
+    final Timestamp startTime = new Timestamp(from);
+    final Timestamp endTime = new Timestamp(to);
+    final MediaType mediaType = getTrendMediaType(webRequest, response);
+    try {
+      if (from >= to) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "The period must end after it starts");
+        return null;
+      }
+      if (historyService.checkNotModified(HistoryQuery.range(Long.parseLong(id), startTime, endTime), mediaType, webRequest)) {
+        return null;
+      }
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid tag id: " + id);
+      return null;
+    }
+
+    final int maxPoints = getMaxChartPoints(width);
+    return historyExecutor.submit(HistoryQuery.range(Long.parseLong(id), startTime, endTime), () -> {
+      try {
+        final HistorySeries series = historyService.requestHistorySeries(id, startTime, endTime);
+        return historyService.analyse(series, maxPoints, getAlarmTimes(Long.parseLong(id), series, maxPoints));
+      } catch (Exception e) {
+        logger.error("Error loading the trend data of tag " + id, e);
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot load the history of tag " + id);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * @return a stream of Server-Sent Events carrying the new values of a tag,
+   *         appended by a Trend View to its chart as they arrive
+   *
+   * @param id The tag whose chart is shown
+   */
+  @RequestMapping(value = TREND_VIEW_URL + "{id}" + LIVE_URL, method = { RequestMethod.GET })
+  public final SseEmitter getLiveUpdates(@PathVariable(value = "id") final String id, final HttpServletResponse response)
+      throws IOException {
+
+    logger.info(TREND_VIEW_URL + "{id}" + LIVE_URL + " " + id);
+    try {
+      if (tagService.getTag(Long.parseLong(id)) != null) {
+        return trendUpdateService.subscribe(Long.parseLong(id));
+      }
+      response.sendError(HttpServletResponse.SC_NOT_FOUND, "TagId: " + id + " not found!");
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid tag id: " + id);
+    }
+    return null;
+  }
+
+  /**
+   * @return the history of a tag aggregated into fixed-width time buckets
+   *         (min, max, mean, count, first and last value of each bucket), as
+   *         JSON.
+   *
+   * @param id The tag whose history is aggregated
+   * @param interval The bucket width: MINUTE, HOUR (default) or DAY
+   * @param lastDays (Optional parameter) How many days to go back in history
+   * @param start (Optional parameter) Start Date of the history query.
+   *          {@link TrendViewController#DATE_FORMAT}
+   * @param end (Optional parameter) End Date of the history query.
+   *          {@link TrendViewController#DATE_FORMAT}
+   */
+  @RequestMapping(value = TREND_VIEW_URL + "{id}" + ROLLUP_URL, method = { RequestMethod.GET })
+  @ResponseBody
+  public final CompletableFuture<HistoryRollup> getRollup(@PathVariable(value = "id") final String id,
+      @RequestParam(value = INTERVAL_PARAMETER, required = false, defaultValue = "HOUR") final String interval,
+      @RequestParam(value = LAST_DAYS_PARAMETER, required = false) final String lastDays,
+      @RequestParam(value = START_DATE_PARAMETER, required = false) final String start,
+      @RequestParam(value = END_DATE_PARAMETER, required = false) final String end,
+      final HttpServletResponse response) {
+
+    logger.info(TREND_VIEW_URL + "{id}" + ROLLUP_URL + " " + id + " interval:" + interval);
+    return historyExecutor.submit(getHistoryQuery(id, null, lastDays != null ? lastDays : "1", start, end), () -> {
+      try {
+        final HistoryRollup.Interval bucketWidth = HistoryRollup.Interval.valueOf(interval.toUpperCase());
+
+        final HistorySeries historyValues;
+        if (start != null && end != null) {
+          historyValues = historyService.requestHistorySeries(id, stringToTimestamp(start), stringToTimestamp(end));
+        } else if (lastDays != null) {
+          historyValues = historyService.requestHistorySeriesForLastDays(id, Integer.parseInt(lastDays));
+        } else {
+          historyValues = historyService.requestHistorySeriesForLastDays(id, 1);
+        }
+        return historyService.rollup(historyValues, bucketWidth);
+
+      } catch (Exception e) {
+        logger.error("Error creating the rollup of tag " + id, e);
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Cannot create the rollup of tag " + id);
+      }
+      return null;
+    });
+  }
+
   /**
    * @return Displays an input form for a tag id. After the submit button is
    *         pressed, it redirects to the Trend.
@@ -372,19 +840,53 @@ public class TrendViewController {
       return "trend/trendViewForm";
     }
 
-    else if (days != null) {
-      return ("redirect:" + TREND_VIEW_URL + id + "?" + LAST_DAYS_PARAMETER + "=" + days);
+    // several ids are shown in a multi-tag trend view
+    final String trendUrl = id.contains(",") ? TREND_VIEW_URL + "?" + IDS_PARAMETER + "=" + id + "&" : TREND_VIEW_URL + id + "?";
+    if (days != null) {
+      return ("redirect:" + trendUrl + LAST_DAYS_PARAMETER + "=" + days);
     } else if (startDate != null) {
-      return ("redirect:" + TREND_VIEW_URL + id + "?" + START_DATE_PARAMETER + "=" + startDate + "-" + startTime + "&" + END_DATE_PARAMETER + "=" + endDate
+      return ("redirect:" + trendUrl + START_DATE_PARAMETER + "=" + startDate + "-" + startTime + "&" + END_DATE_PARAMETER + "=" + endDate
           + "-" + endTime);
     } else if (records != null) {
-      return ("redirect:" + TREND_VIEW_URL + id + "?" + MAX_RECORDS_PARAMETER + "=" + records);
+      return ("redirect:" + trendUrl + MAX_RECORDS_PARAMETER + "=" + records);
     }
 
     // Displays an empty form ->
     return "trend/trendViewForm";
   }
 
+  /**
+   * @return How many points are worth sending to a chart of the given width.
+   *
+   * @param width width of the chart in pixels, or <code>null</code> if unknown
+   */
+  private static int getMaxChartPoints(final Integer width) {
+    int chartWidth = width != null ? width : DEFAULT_CHART_WIDTH;
+    chartWidth = Math.max(MIN_CHART_WIDTH, Math.min(MAX_CHART_WIDTH, chartWidth));
+    return chartWidth * POINTS_PER_PIXEL;
+  }
+
+  /**
+   * @return the history query matching the given parameters, in the order
+   *         they are used by {@link #getTrendData}: Start-End date, records,
+   *         days. <code>null</code> if a parameter is malformed.
+   */
+  private static HistoryQuery getHistoryQuery(final String id, final String maxRecords, final String lastDays,
+      final String start, final String end) {
+    try {
+      if (start != null && end != null) {
+        return HistoryQuery.range(Long.parseLong(id), stringToTimestamp(start), stringToTimestamp(end));
+      } else if (maxRecords != null) {
+        return HistoryQuery.lastRecords(Long.parseLong(id), Integer.parseInt(maxRecords));
+      } else if (lastDays != null) {
+        return HistoryQuery.lastDays(Long.parseLong(id), Integer.parseInt(lastDays));
+      }
+      return HistoryQuery.lastRecords(Long.parseLong(id), RECORDS_TO_ASK_FOR);
+    } catch (NumberFormatException | ParseException e) {
+      return null;
+    }
+  }
+
   /**
    * @return Converts a string to Timestamp
    *
@@ -394,12 +896,7 @@ public class TrendViewController {
    * @throws ParseException in case of wrong Date Format
    */
   private static Timestamp stringToTimestamp(final String dateString) throws ParseException {
-
-    DateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
-    dateFormat.setLenient(false);
-    java.util.Date date = dateFormat.parse(dateString);
-    final long time = date.getTime();
-    return new Timestamp(time);
+    return HistoryService.stringToTimestamp(dateString);
   }
 
   @RequestMapping(value = TREND_VIEW_URL, method = { RequestMethod.GET })
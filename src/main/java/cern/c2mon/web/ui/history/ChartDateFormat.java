@@ -0,0 +1,163 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.util.TimeZone;
+
+/**
+ * Formats epoch milliseconds as <code>yyyy-MM-dd'T'HH:mm:ss.SSS</code> in the
+ * default time zone, the date format of the trend views and the exports.
+ *
+ * The digits are written straight into the caller's buffer, without creating
+ * any intermediate object. The date part is computed once per day and reused
+ * for the following timestamps of the same day, which is what histories
+ * sorted by time mostly contain.
+ *
+ * An instance is not thread-safe; {@link #get()} gives the instance of the
+ * current thread.
+ */
+public final class ChartDateFormat {
+
+  /** Length of a formatted timestamp */
+  public static final int LENGTH = 23;
+
+  private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000L;
+
+  private static final ThreadLocal<ChartDateFormat> INSTANCES = ThreadLocal.withInitial(ChartDateFormat::new);
+
+  private final TimeZone timeZone;
+
+  /** Local day (days since epoch) whose date is in {@link #date} */
+  private long cachedDay = Long.MIN_VALUE;
+
+  /** The formatted date of the cached day, <code>yyyy-MM-dd'T'</code> */
+  private final char[] date = new char[11];
+
+  /** Buffer used when formatting to a String */
+  private final char[] buffer = new char[LENGTH];
+
+  /**
+   * Creates a format for the default time zone.
+   */
+  public ChartDateFormat() {
+    this(TimeZone.getDefault());
+  }
+
+  /**
+   * Creates a format for the given time zone.
+   */
+  public ChartDateFormat(final TimeZone timeZone) {
+    this.timeZone = timeZone;
+  }
+
+  /**
+   * @return the format of the current thread, for the default time zone at
+   *         the time it was first used
+   */
+  public static ChartDateFormat get() {
+    return INSTANCES.get();
+  }
+
+  /**
+   * Writes the given time into a buffer.
+   *
+   * @param millis epoch milliseconds
+   * @param out the buffer, with at least {@link #LENGTH} characters left
+   *          after <code>offset</code>
+   * @param offset where the first character is written
+   * @return the position following the last written character
+   */
+  public int format(final long millis, final char[] out, final int offset) {
+    final long local = millis + timeZone.getOffset(millis);
+    final long day = Math.floorDiv(local, MILLIS_PER_DAY);
+    if (day != cachedDay) {
+      formatDate(day);
+      cachedDay = day;
+    }
+    System.arraycopy(date, 0, out, offset, date.length);
+
+    int time = (int) (local - day * MILLIS_PER_DAY);
+    final int millisOfSecond = time % 1000;
+    time /= 1000;
+    final int second = time % 60;
+    time /= 60;
+    final int minute = time % 60;
+    final int hour = time / 60;
+
+    int i = offset + date.length;
+    i = writeTwoDigits(hour, out, i);
+    out[i++] = ':';
+    i = writeTwoDigits(minute, out, i);
+    out[i++] = ':';
+    i = writeTwoDigits(second, out, i);
+    out[i++] = '.';
+    out[i++] = (char) ('0' + millisOfSecond / 100);
+    return writeTwoDigits(millisOfSecond % 100, out, i);
+  }
+
+  /**
+   * Appends the given time to a StringBuilder.
+   *
+   * @param millis epoch milliseconds
+   * @param sb where the time is appended
+   */
+  public void append(final long millis, final StringBuilder sb) {
+    format(millis, buffer, 0);
+    sb.append(buffer, 0, LENGTH);
+  }
+
+  /**
+   * @return the given time as a String
+   */
+  public String format(final long millis) {
+    format(millis, buffer, 0);
+    return new String(buffer, 0, LENGTH);
+  }
+
+  /**
+   * Fills {@link #date} with the date of the given day, converted from days
+   * since epoch to the proleptic Gregorian calendar.
+   *
+   * @see <a href="http://howardhinnant.github.io/date_algorithms.html#civil_from_days">civil_from_days</a>
+   */
+  private void formatDate(final long epochDay) {
+    final long z = epochDay + 719468;
+    final long era = Math.floorDiv(z, 146097);
+    final long dayOfEra = z - era * 146097;
+    final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    final long mp = (5 * dayOfYear + 2) / 153;
+    final int dayOfMonth = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+    final int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+    final int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+    date[0] = (char) ('0' + year / 1000 % 10);
+    date[1] = (char) ('0' + year / 100 % 10);
+    writeTwoDigits(year % 100, date, 2);
+    date[4] = '-';
+    writeTwoDigits(month, date, 5);
+    date[7] = '-';
+    writeTwoDigits(dayOfMonth, date, 8);
+    date[10] = 'T';
+  }
+
+  private static int writeTwoDigits(final int value, final char[] out, final int offset) {
+    out[offset] = (char) ('0' + value / 10);
+    out[offset + 1] = (char) ('0' + value % 10);
+    return offset + 2;
+  }
+}
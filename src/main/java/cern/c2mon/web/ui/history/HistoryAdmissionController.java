@@ -0,0 +1,366 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+/**
+ * Admission control of the history requests, based on their estimated cost.
+ *
+ * The cost of a request is the number of history points it is expected to
+ * load: the number of records, or the length of the period multiplied by the
+ * recent update rate of the tag (learned from its previous loads).
+ *
+ * The requests being processed share a global budget of points, and each
+ * requester (user name, or address of anonymous users) has a smaller budget
+ * of its own. Requests over budget wait, without holding a thread, until
+ * enough running requests have finished. They are rejected if they wait too
+ * long, or if they cost more than a requester's whole budget.
+ *
+ * The requests start in arrival order: a request waiting for the global
+ * budget is not overtaken by later, smaller requests, so that large requests
+ * do not starve. A request waiting for the budget of its requester only
+ * holds back the later requests of the same requester.
+ */
+public class HistoryAdmissionController {
+
+  private static Logger logger = LoggerFactory.getLogger(HistoryAdmissionController.class);
+
+  /** Number of tags whose update rate is remembered */
+  private static final int MAX_RATES = 10000;
+
+  /** Shortest period used to compute an update rate, in milliseconds */
+  private static final long MIN_RATE_PERIOD = TimeUnit.MINUTES.toMillis(1);
+
+  /** Budget of history points of all the requests being processed */
+  private final long globalBudget;
+
+  /** Budget of history points of the requests of one requester */
+  private final long requesterBudget;
+
+  /** Maximum number of requests waiting for budget */
+  private final int queueCapacity;
+
+  /** Maximum time a request waits for budget, in milliseconds */
+  private final long queueTimeout;
+
+  /** Update rate assumed for the tags never loaded, in points per millisecond */
+  private final double defaultRate;
+
+  /** Recent update rates of the tags, in points per millisecond */
+  private final LinkedHashMap<Long, Double> rates = new LinkedHashMap<Long, Double>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<Long, Double> eldest) {
+      return size() > MAX_RATES;
+    }
+  };
+
+  /** Points used by the requests being processed, guarded by <code>this</code> */
+  private long used = 0;
+
+  /** Points used per requester */
+  private final Map<String, Long> usedByRequester = new LinkedHashMap<>();
+
+  /** Requests waiting for budget, in arrival order */
+  private final LinkedHashMap<Admission, ScheduledFuture<?>> waiting = new LinkedHashMap<>();
+
+  private final ScheduledExecutorService timer;
+
+  private long admitted = 0;
+
+  private long queued = 0;
+
+  private long rejected = 0;
+
+  private long timedOut = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param globalBudget budget of history points of all the requests
+   * @param requesterBudget budget of history points of one requester
+   * @param queueCapacity maximum number of requests waiting for budget
+   * @param queueTimeout maximum time a request waits for budget, in
+   *          milliseconds
+   * @param defaultRate update rate assumed for the tags never loaded, in
+   *          points per hour
+   */
+  public HistoryAdmissionController(final long globalBudget, final long requesterBudget, final int queueCapacity,
+      final long queueTimeout, final double defaultRate) {
+    this.globalBudget = globalBudget;
+    this.requesterBudget = Math.min(requesterBudget, globalBudget);
+    this.queueCapacity = queueCapacity;
+    this.queueTimeout = queueTimeout;
+    this.defaultRate = defaultRate / TimeUnit.HOURS.toMillis(1);
+
+    final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+        new CustomizableThreadFactory("history-admission-"));
+    executor.setRemoveOnCancelPolicy(true);
+    this.timer = executor;
+  }
+
+  /**
+   * @return the requester of the current HTTP request: the name of the
+   *         logged in user, or else the address of the client
+   */
+  public static String getRequester() {
+    final RequestAttributes attributes = RequestContextHolder.getRequestAttributes();
+    if (attributes instanceof ServletRequestAttributes) {
+      final HttpServletRequest request = ((ServletRequestAttributes) attributes).getRequest();
+      if (request.getUserPrincipal() != null) {
+        return request.getUserPrincipal().getName();
+      }
+      return request.getRemoteAddr();
+    }
+    return "internal";
+  }
+
+  /**
+   * @return the number of history points the query is expected to load
+   */
+  public long estimateCost(final HistoryQuery query) {
+    switch (query.getType()) {
+      case RECORDS:
+        return query.getAmount();
+      case DAYS:
+        return estimateCost(query.getTagId(), TimeUnit.DAYS.toMillis(query.getAmount()));
+      default:
+        return estimateCost(query.getTagId(), query.getEndTime() - query.getStartTime());
+    }
+  }
+
+  private synchronized long estimateCost(final long tagId, final long period) {
+    final Double rate = rates.get(tagId);
+    return (long) Math.ceil(Math.max(0, period) * (rate != null ? rate : defaultRate));
+  }
+
+  /**
+   * Remembers the update rate of a tag, from a loaded history.
+   *
+   * @param tagId the tag
+   * @param points number of loaded points
+   * @param period period covered by the points, in milliseconds
+   */
+  public synchronized void recordRate(final long tagId, final long points, final long period) {
+    if (points > 1) {
+      rates.put(tagId, (double) points / Math.max(period, MIN_RATE_PERIOD));
+    }
+  }
+
+  /**
+   * Asks for the budget of a request.
+   *
+   * @param requester who makes the request, see {@link #getRequester()}
+   * @param cost the estimated cost of the request
+   * @return the admission of the request, completed once the request fits in
+   *         the budgets. It is completed with a
+   *         {@link HistoryRejectedException} if the request costs more than
+   *         the budget of a requester, and with a
+   *         {@link HistoryOverloadedException} if it waited too long or too
+   *         many requests are already waiting. The admission must be closed
+   *         once the request has been processed.
+   */
+  public synchronized CompletableFuture<Admission> admit(final String requester, final long cost) {
+    final Admission admission = new Admission(requester, cost);
+
+    if (cost > requesterBudget) {
+      rejected++;
+      logger.warn("History request of " + requester + " rejected, its estimated cost of " + cost
+          + " points is over the budget of " + requesterBudget + " points");
+      admission.completeExceptionally(new HistoryRejectedException());
+    } else {
+      // queued last, it starts straight away only if no earlier request holds it back
+      waiting.put(admission, null);
+      if (startWaiting().containsKey(admission)) {
+        admission.complete(admission);
+      } else if (waiting.size() > queueCapacity) {
+        waiting.remove(admission);
+        rejected++;
+        logger.warn("History request of " + requester + " rejected, " + queueCapacity + " requests are already waiting");
+        admission.completeExceptionally(new HistoryOverloadedException());
+      } else {
+        queued++;
+        logger.debug("History request of " + requester + " (" + cost + " points) waits for budget");
+        waiting.put(admission, timer.schedule(() -> timeOut(admission), queueTimeout, TimeUnit.MILLISECONDS));
+      }
+    }
+    return admission;
+  }
+
+  /**
+   * Takes the budget of the waiting requests which can start, in arrival
+   * order. Stops at the first request which does not fit in the global
+   * budget, and skips the requests of a requester whose earlier request does
+   * not fit in its budget.
+   *
+   * @return the started requests, with their timeouts, to be completed
+   */
+  private Map<Admission, ScheduledFuture<?>> startWaiting() {
+    final Map<Admission, ScheduledFuture<?>> started = new LinkedHashMap<>();
+    final Set<String> heldRequesters = new HashSet<>();
+
+    final Iterator<Map.Entry<Admission, ScheduledFuture<?>>> next = waiting.entrySet().iterator();
+    while (next.hasNext()) {
+      final Map.Entry<Admission, ScheduledFuture<?>> entry = next.next();
+      final Admission admission = entry.getKey();
+      if (heldRequesters.contains(admission.requester)) {
+        continue;
+      }
+      if (usedByRequester.getOrDefault(admission.requester, 0L) + admission.cost > requesterBudget) {
+        heldRequesters.add(admission.requester);
+        continue;
+      }
+      if (used + admission.cost > globalBudget) {
+        break;
+      }
+
+      next.remove();
+      used += admission.cost;
+      usedByRequester.merge(admission.requester, admission.cost, Long::sum);
+      admitted++;
+      started.put(admission, entry.getValue());
+    }
+    return started;
+  }
+
+  private void timeOut(final Admission admission) {
+    final Map<Admission, ScheduledFuture<?>> started;
+    synchronized (this) {
+      if (waiting.remove(admission) == null) {
+        return;
+      }
+      timedOut++;
+      // the requests it was holding back may start now
+      started = startWaiting();
+    }
+
+    logger.warn("History request of " + admission.requester + " rejected after waiting " + queueTimeout + " ms");
+    admission.completeExceptionally(new HistoryOverloadedException());
+    complete(started);
+  }
+
+  /**
+   * Completes the admissions of started requests, outside of the lock as
+   * they may run their continuation straight away.
+   */
+  private static void complete(final Map<Admission, ScheduledFuture<?>> started) {
+    started.forEach((admission, timeout) -> {
+      timeout.cancel(false);
+      admission.complete(admission);
+    });
+  }
+
+  /**
+   * Gives back the budget of a processed request, and starts the waiting
+   * requests which now fit, see {@link #startWaiting()}.
+   */
+  private void release(final Admission admission) {
+    final Map<Admission, ScheduledFuture<?>> started;
+    synchronized (this) {
+      used -= admission.cost;
+      usedByRequester.computeIfPresent(admission.requester, (requester, points) ->
+          points > admission.cost ? points - admission.cost : null);
+      started = startWaiting();
+    }
+
+    complete(started);
+  }
+
+  /**
+   * @return the used budgets and the number of admitted, queued and rejected
+   *         requests
+   */
+  public synchronized Map<String, Long> getStatistics() {
+    final Map<String, Long> statistics = new LinkedHashMap<>();
+    statistics.put("used", used);
+    statistics.put("budget", globalBudget);
+    statistics.put("requesterBudget", requesterBudget);
+    statistics.put("requesters", (long) usedByRequester.size());
+    statistics.put("waiting", (long) waiting.size());
+    statistics.put("admitted", admitted);
+    statistics.put("queued", queued);
+    statistics.put("rejected", rejected);
+    statistics.put("timedOut", timedOut);
+    return statistics;
+  }
+
+  /**
+   * Stops the timer of the waiting requests.
+   */
+  public void shutdown() {
+    timer.shutdownNow();
+  }
+
+  /**
+   * The admission of a request, holding its share of the budgets until it is
+   * closed.
+   */
+  public final class Admission extends CompletableFuture<Admission> implements AutoCloseable {
+
+    private final String requester;
+
+    private final long cost;
+
+    private boolean closed = false;
+
+    private Admission(final String requester, final long cost) {
+      this.requester = requester;
+      this.cost = cost;
+    }
+
+    /**
+     * @return the estimated cost of the request
+     */
+    public long getCost() {
+      return cost;
+    }
+
+    /**
+     * Gives back the budget of the request.
+     */
+    @Override
+    public void close() {
+      synchronized (HistoryAdmissionController.this) {
+        if (closed || isCompletedExceptionally()) {
+          return;
+        }
+        closed = true;
+      }
+      release(this);
+    }
+  }
+}
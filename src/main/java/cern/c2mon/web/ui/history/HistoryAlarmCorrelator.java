@@ -0,0 +1,147 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToLongFunction;
+
+import cern.c2mon.client.ext.history.alarm.Alarm;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+
+/**
+ * Correlates the history of the alarms of a tag with the history of its
+ * values.
+ *
+ * Each tag value stands from its server timestamp until the next value, and
+ * each alarm state from its timestamp until the next state of the same
+ * alarm. A value gets the states changing while it stands (activations and
+ * terminations), and the active states standing when it starts. The states
+ * before the first value, such as the last state of each alarm before the
+ * period, only tell which alarms are active when the first value starts.
+ *
+ * The alarm histories, each sorted by time, are merged into a single sorted
+ * stream with a k-way merge, which is then joined with the tag history in a
+ * single pass. Only the active state of each alarm is kept meanwhile: no
+ * per-point index is built.
+ */
+public final class HistoryAlarmCorrelator {
+
+  private HistoryAlarmCorrelator() {
+  }
+
+  /**
+   * Attaches the alarm states to the tag values they overlap.
+   *
+   * @param history the tag values, sorted by server timestamp
+   * @param endTime end of the period of the history, until which the last
+   *          value stands
+   * @param alarmHistories the states of each alarm of the tag, each sorted by
+   *          time. They may start with the last state before the first value.
+   * @param timeOf gives the time of an alarm state, in epoch milliseconds
+   * @param attach called with each alarm state and the index of a value it
+   *          overlaps, in the order of the values
+   */
+  public static void correlate(final List<HistoryTagValueUpdate> history, final long endTime,
+      final List<List<Alarm>> alarmHistories, final ToLongFunction<Alarm> timeOf, final ObjIntConsumer<Alarm> attach) {
+
+    final List<Alarm> states = new ArrayList<>();
+    final long[] times = merge(alarmHistories, timeOf, states);
+    final int m = times.length;
+
+    // Latest state of the alarms which are active, by alarm id
+    final Map<Long, Alarm> active = new LinkedHashMap<>();
+    final int n = history.size();
+    int j = 0;
+
+    // the states before the first value only give the alarms active when it starts
+    final long first = n > 0 ? history.get(0).getServerTimestamp().getTime() : Long.MIN_VALUE;
+    for (; j < m && times[j] < first; j++) {
+      final Alarm state = states.get(j);
+      if (state.isActive()) {
+        active.put(state.getId(), state);
+      } else {
+        active.remove(state.getId());
+      }
+    }
+    for (int i = 0; i < n && (j < m || !active.isEmpty()); i++) {
+      final long start = history.get(i).getServerTimestamp().getTime();
+      final long end = i + 1 < n ? history.get(i + 1).getServerTimestamp().getTime() : endTime;
+
+      for (final Alarm state : active.values()) {
+        attach.accept(state, i);
+      }
+
+      // the states at the very time of a value always belong to it
+      while (j < m && (times[j] < end || times[j] <= start)) {
+        final Alarm state = states.get(j++);
+        if (state.isActive()) {
+          active.put(state.getId(), state);
+        } else {
+          active.remove(state.getId());
+        }
+        attach.accept(state, i);
+      }
+    }
+  }
+
+  /**
+   * Merges the alarm histories into a single stream sorted by time.
+   *
+   * @param states receives the merged alarm states
+   * @return the time of each merged state
+   */
+  private static long[] merge(final List<List<Alarm>> alarmHistories, final ToLongFunction<Alarm> timeOf,
+      final List<Alarm> states) {
+    final int k = alarmHistories.size();
+    int capacity = 0;
+    for (final List<Alarm> alarmHistory : alarmHistories) {
+      capacity += alarmHistory.size();
+    }
+
+    // Time of the next state of each history, and the histories ordered by it
+    final int[] positions = new int[k];
+    final long[] nextTimes = new long[k];
+    final PriorityQueue<Integer> cursors = new PriorityQueue<>(Math.max(k, 1),
+        (a, b) -> Long.compare(nextTimes[a], nextTimes[b]));
+    for (int h = 0; h < k; h++) {
+      if (!alarmHistories.get(h).isEmpty()) {
+        nextTimes[h] = timeOf.applyAsLong(alarmHistories.get(h).get(0));
+        cursors.add(h);
+      }
+    }
+
+    final long[] times = new long[capacity];
+    int size = 0;
+    while (!cursors.isEmpty()) {
+      final int h = cursors.poll();
+      final List<Alarm> alarmHistory = alarmHistories.get(h);
+      times[size++] = nextTimes[h];
+      states.add(alarmHistory.get(positions[h]));
+
+      if (++positions[h] < alarmHistory.size()) {
+        nextTimes[h] = timeOf.applyAsLong(alarmHistory.get(positions[h]));
+        cursors.add(h);
+      }
+    }
+    return times;
+  }
+}
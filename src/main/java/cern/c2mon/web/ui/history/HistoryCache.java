@@ -0,0 +1,277 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * In-memory cache of loaded tag histories, keyed by {@link HistoryQuery}.
+ *
+ * The cache is bounded by the total number of history points it holds rather
+ * than by its number of entries. When full, the least recently used entries
+ * are evicted first. Entries expire after a fixed time to live, since most
+ * windows ("last N days") move with the current time.
+ *
+ * Several caches can share a single point {@link Budget}, e.g. the caches of
+ * the different representations of the same histories: the least recently
+ * used entry of all of them is then evicted first, so that together they
+ * never hold more points than the budget.
+ *
+ * Cached histories are shared between requests and must therefore be
+ * read-only.
+ *
+ * @param <V> the representation of the cached histories
+ */
+public class HistoryCache<V> {
+
+  /**
+   * Maximum number of history points held by a group of caches. The budget
+   * is also the lock of the caches sharing it.
+   */
+  public static final class Budget {
+
+    private final long maxWeight;
+
+    /** Number of history points currently held by all the caches */
+    private long weight = 0;
+
+    /** Orders the accesses to the entries of all the caches */
+    private long clock = 0;
+
+    private final List<HistoryCache<?>> caches = new ArrayList<>();
+
+    /**
+     * @param maxWeight maximum number of history points held by all the
+     *          caches sharing this budget
+     */
+    public Budget(final long maxWeight) {
+      this.maxWeight = maxWeight;
+    }
+
+    /**
+     * @return the cache holding the least recently used entry, or
+     *         <code>null</code> if all caches are empty
+     */
+    private HistoryCache<?> getLeastRecentlyUsed() {
+      HistoryCache<?> leastRecentlyUsed = null;
+      long oldestAccess = Long.MAX_VALUE;
+      for (final HistoryCache<?> cache : caches) {
+        if (!cache.entries.isEmpty()) {
+          final long access = cache.entries.values().iterator().next().lastAccess;
+          if (access < oldestAccess) {
+            oldestAccess = access;
+            leastRecentlyUsed = cache;
+          }
+        }
+      }
+      return leastRecentlyUsed;
+    }
+  }
+
+  /** Maximum number of history points held by this cache and the caches sharing it */
+  private final Budget budget;
+
+  /** Time to live of an entry in milliseconds */
+  private final long timeToLive;
+
+  /** Gives the number of history points of a cached history */
+  private final ToLongFunction<V> weigher;
+
+  /** Entries in access order, the least recently used first */
+  private final LinkedHashMap<HistoryQuery, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** Number of history points currently held by this cache */
+  private long weight = 0;
+
+  private long hits = 0;
+
+  private long misses = 0;
+
+  private long evictions = 0;
+
+  /**
+   * Constructor of a cache with a budget of its own.
+   *
+   * @param maxWeight maximum number of history points held by the cache
+   * @param timeToLive time to live of an entry in milliseconds
+   * @param weigher gives the number of history points of a cached history
+   */
+  public HistoryCache(final long maxWeight, final long timeToLive, final ToLongFunction<V> weigher) {
+    this(new Budget(maxWeight), timeToLive, weigher);
+  }
+
+  /**
+   * Constructor of a cache sharing its budget with other caches.
+   *
+   * @param budget maximum number of history points held by the caches
+   *          sharing it
+   * @param timeToLive time to live of an entry in milliseconds
+   * @param weigher gives the number of history points of a cached history
+   */
+  public HistoryCache(final Budget budget, final long timeToLive, final ToLongFunction<V> weigher) {
+    this.budget = budget;
+    this.timeToLive = timeToLive;
+    this.weigher = weigher;
+    synchronized (budget) {
+      budget.caches.add(this);
+    }
+  }
+
+  /**
+   * @return the cached history for the given query, or <code>null</code> if
+   *         it is not cached or has expired
+   */
+  public V get(final HistoryQuery query) {
+    synchronized (budget) {
+      final V values = peek(query);
+      if (values == null) {
+        misses++;
+      } else {
+        hits++;
+      }
+      return values;
+    }
+  }
+
+  /**
+   * Same as {@link #get(HistoryQuery)}, but not counted in the hit and miss
+   * counters. Used to check the cache again for a query already counted.
+   *
+   * @return the cached history for the given query, or <code>null</code> if
+   *         it is not cached or has expired
+   */
+  public V peek(final HistoryQuery query) {
+    synchronized (budget) {
+      final Entry<V> entry = entries.get(query);
+      if (entry == null) {
+        return null;
+      }
+
+      if (System.currentTimeMillis() - entry.creationTime > timeToLive) {
+        entries.remove(query);
+        weight -= entry.weight;
+        budget.weight -= entry.weight;
+        return null;
+      }
+      entry.lastAccess = budget.clock++;
+      return entry.values;
+    }
+  }
+
+  /**
+   * Caches the history of a query, evicting the least recently used entries
+   * of the caches sharing the budget if needed. Histories bigger than the
+   * whole budget are not cached.
+   *
+   * @return the given history
+   */
+  public V put(final HistoryQuery query, final V values) {
+    final long entryWeight = Math.max(1, weigher.applyAsLong(values));
+    synchronized (budget) {
+      if (entryWeight > budget.maxWeight) {
+        return values;
+      }
+
+      final Entry<V> previous = entries.remove(query);
+      if (previous != null) {
+        weight -= previous.weight;
+        budget.weight -= previous.weight;
+      }
+
+      while (budget.weight + entryWeight > budget.maxWeight) {
+        final HistoryCache<?> victim = budget.getLeastRecentlyUsed();
+        if (victim == null) {
+          break;
+        }
+        victim.evictEldest();
+      }
+
+      final Entry<V> entry = new Entry<>(values, entryWeight);
+      entry.lastAccess = budget.clock++;
+      entries.put(query, entry);
+      weight += entryWeight;
+      budget.weight += entryWeight;
+      return values;
+    }
+  }
+
+  /**
+   * Evicts the least recently used entry. Must be called with the budget
+   * locked.
+   */
+  private void evictEldest() {
+    final Iterator<Entry<V>> eldest = entries.values().iterator();
+    final long eldestWeight = eldest.next().weight;
+    eldest.remove();
+    weight -= eldestWeight;
+    budget.weight -= eldestWeight;
+    evictions++;
+  }
+
+  /**
+   * Removes all entries from the cache.
+   */
+  public void clear() {
+    synchronized (budget) {
+      entries.clear();
+      budget.weight -= weight;
+      weight = 0;
+    }
+  }
+
+  /**
+   * @return the hit, miss and eviction counters and the current size of the
+   *         cache, and the budget it shares
+   */
+  public Map<String, Long> getStatistics() {
+    synchronized (budget) {
+      final Map<String, Long> statistics = new LinkedHashMap<>();
+      statistics.put("hits", hits);
+      statistics.put("misses", misses);
+      statistics.put("evictions", evictions);
+      statistics.put("entries", (long) entries.size());
+      statistics.put("points", weight);
+      statistics.put("maxPoints", budget.maxWeight);
+      return statistics;
+    }
+  }
+
+  /**
+   * A cached history with its weight, creation time and last access
+   */
+  private static final class Entry<V> {
+
+    private final V values;
+
+    private final long weight;
+
+    private final long creationTime = System.currentTimeMillis();
+
+    /** Last access, ordered by the clock of the budget */
+    private long lastAccess;
+
+    private Entry(final V values, final long weight) {
+      this.values = values;
+      this.weight = weight;
+    }
+  }
+}
@@ -0,0 +1,252 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import cern.c2mon.client.ext.history.common.HistoryLoadingConfiguration;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.client.ext.history.common.exception.HistoryProviderException;
+import cern.c2mon.client.ext.history.common.exception.LoadingParameterException;
+
+/**
+ * Loads long history periods as several shorter time chunks queried in
+ * parallel, which the history backend serves much faster than a single
+ * query over the whole period.
+ *
+ * The chunks are merged back in timestamp order: each chunk is appended to
+ * the result as soon as it and all the chunks before it are loaded, and is
+ * released straight away. Only the first chunk loads the initial values of
+ * the tags (their value at the start of the period), if requested.
+ *
+ * The chunks run on a dedicated bounded pool. When it is saturated (or shut
+ * down), the chunks are loaded by the requesting thread instead.
+ */
+public class HistoryChunkLoader {
+
+  private static Logger logger = LoggerFactory.getLogger(HistoryChunkLoader.class);
+
+  /**
+   * Loads the history of several tags with a single round trip
+   */
+  @FunctionalInterface
+  public interface ChunkQuery {
+
+    /**
+     * @return the history of every given tag, sorted by server timestamp
+     * @throws HistoryProviderException in case a HistoryProvider cannot be created
+     * @throws LoadingParameterException in case of an invalid configurations
+     */
+    Map<Long, List<HistoryTagValueUpdate>> load(Collection<Long> tagIds, HistoryLoadingConfiguration configuration)
+        throws HistoryProviderException, LoadingParameterException;
+  }
+
+  /** Idle time after which a pool thread is stopped */
+  private static final long KEEP_ALIVE_SECONDS = 60;
+
+  /** Number of chunks which may wait for a thread, per thread */
+  private static final int QUEUED_CHUNKS_PER_THREAD = 4;
+
+  private final ThreadPoolExecutor executor;
+
+  /** Duration of a chunk, in milliseconds */
+  private final long chunkDuration;
+
+  /** Number of periods split into chunks since startup */
+  private final AtomicLong splitLoads = new AtomicLong();
+
+  /** Number of chunks loaded since startup */
+  private final AtomicLong loadedChunks = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param threads maximum number of chunks loaded concurrently
+   * @param chunkDuration duration of a chunk, in milliseconds
+   */
+  public HistoryChunkLoader(final int threads, final long chunkDuration) {
+    this.chunkDuration = chunkDuration;
+    executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(threads * QUEUED_CHUNKS_PER_THREAD),
+        new CustomizableThreadFactory("history-chunk-"), (chunk, pool) -> chunk.run());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @return True if a period is long enough to be split into chunks
+   */
+  public boolean isSplit(final Timestamp startTime, final Timestamp endTime) {
+    return endTime.getTime() - startTime.getTime() > chunkDuration;
+  }
+
+  /**
+   * Loads the history of the given tags over a period, split into chunks.
+   *
+   * @param tagIds The tag ids whose history we are looking for
+   * @param startTime start of the period
+   * @param endTime end of the period
+   * @param loadInitialValues true to load the value of the tags at the start
+   *          of the period
+   * @param query loads one chunk
+   *
+   * @throws HistoryProviderException in case a HistoryProvider cannot be created
+   * @throws LoadingParameterException in case of an invalid configurations
+   * @return history of every requested tag over the period, sorted by server
+   *         timestamp, in the order of the given ids
+   */
+  public Map<Long, List<HistoryTagValueUpdate>> load(final Collection<Long> tagIds, final Timestamp startTime,
+      final Timestamp endTime, final boolean loadInitialValues, final ChunkQuery query)
+      throws HistoryProviderException, LoadingParameterException {
+
+    final List<Long> chunkStarts = new ArrayList<>();
+    for (long start = startTime.getTime(); start < endTime.getTime(); start += chunkDuration) {
+      chunkStarts.add(start);
+    }
+    splitLoads.incrementAndGet();
+    logger.debug("Loading " + tagIds.size() + " tags from " + startTime + " to " + endTime + " in "
+        + chunkStarts.size() + " chunks");
+
+    final List<CompletableFuture<Map<Long, List<HistoryTagValueUpdate>>>> chunks = new ArrayList<>();
+    for (int i = 0; i < chunkStarts.size(); i++) {
+      final HistoryLoadingConfiguration configuration = new HistoryLoadingConfiguration();
+      configuration.setLoadInitialValues(i == 0 && loadInitialValues);
+      configuration.setStartTime(new Timestamp(chunkStarts.get(i)));
+      configuration.setEndTime(new Timestamp(Math.min(chunkStarts.get(i) + chunkDuration, endTime.getTime())));
+      chunks.add(submit(tagIds, configuration, query));
+    }
+
+    final Map<Long, List<HistoryTagValueUpdate>> historyValues = new LinkedHashMap<>();
+    for (final Long tagId : tagIds) {
+      historyValues.put(tagId, new ArrayList<>());
+    }
+    try {
+      for (int i = 0; i < chunks.size(); i++) {
+        final Map<Long, List<HistoryTagValueUpdate>> chunk = awaitChunk(chunks.get(i));
+        chunks.set(i, null);
+        for (final Long tagId : tagIds) {
+          append(historyValues.get(tagId), chunk.get(tagId), chunkStarts.get(i));
+        }
+      }
+    } finally {
+      chunks.stream().filter(chunk -> chunk != null).forEach(chunk -> chunk.cancel(false));
+    }
+    return historyValues;
+  }
+
+  private CompletableFuture<Map<Long, List<HistoryTagValueUpdate>>> submit(final Collection<Long> tagIds,
+      final HistoryLoadingConfiguration configuration, final ChunkQuery query) {
+    final CompletableFuture<Map<Long, List<HistoryTagValueUpdate>>> result = new CompletableFuture<>();
+    executor.execute(() -> {
+      if (result.isCancelled()) {
+        return;
+      }
+      try {
+        result.complete(query.load(tagIds, configuration));
+        loadedChunks.incrementAndGet();
+      } catch (Throwable e) {
+        result.completeExceptionally(e);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Appends a chunk to the history of a tag. A point lying exactly on the
+   * boundary between two chunks may be returned by both, it is only kept
+   * once.
+   */
+  private static void append(final List<HistoryTagValueUpdate> history, final List<HistoryTagValueUpdate> chunk,
+      final long chunkStart) {
+    if (chunk == null) {
+      return;
+    }
+
+    int first = 0;
+    if (!history.isEmpty() && history.get(history.size() - 1).getServerTimestamp().getTime() == chunkStart) {
+      while (first < chunk.size() && chunk.get(first).getServerTimestamp().getTime() == chunkStart) {
+        first++;
+      }
+    }
+    history.addAll(first == 0 ? chunk : chunk.subList(first, chunk.size()));
+  }
+
+  /**
+   * Waits for a chunk to be loaded.
+   *
+   * @throws HistoryProviderException in case the chunk failed to get a
+   *           HistoryProvider, or the wait was interrupted
+   * @throws LoadingParameterException in case of an invalid configuration
+   */
+  private static Map<Long, List<HistoryTagValueUpdate>> awaitChunk(
+      final CompletableFuture<Map<Long, List<HistoryTagValueUpdate>>> chunk)
+      throws HistoryProviderException, LoadingParameterException {
+    try {
+      return chunk.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HistoryProviderException("Interrupted while waiting for the history to be loaded.");
+    }
+    catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof HistoryProviderException) {
+        throw (HistoryProviderException) cause;
+      } else if (cause instanceof LoadingParameterException) {
+        throw (LoadingParameterException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new HistoryProviderException("The history could not be loaded: " + cause.getMessage());
+    }
+  }
+
+  /**
+   * @return the number of split periods and loaded chunks, and the state of
+   *         the pool
+   */
+  public Map<String, Long> getStatistics() {
+    final Map<String, Long> statistics = new LinkedHashMap<>();
+    statistics.put("threads", (long) executor.getMaximumPoolSize());
+    statistics.put("active", (long) executor.getActiveCount());
+    statistics.put("queued", (long) executor.getQueue().size());
+    statistics.put("splitLoads", splitLoads.get());
+    statistics.put("chunks", loadedChunks.get());
+    return statistics;
+  }
+
+  /**
+   * Stops the pool, letting the running chunks finish.
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,450 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cern.c2mon.client.ext.history.common.exception.HistoryProviderException;
+import cern.c2mon.client.ext.history.common.exception.LoadingParameterException;
+
+/**
+ * On-disk cache of the histories of closed periods, the second level below
+ * the in-memory caches. The history of each tag is stored in blocks of one
+ * day (UTC), each block as a {@link HistorySegment} file named after its tag
+ * and start, so the cache survives restarts. A block holds the points of its
+ * day and the value standing at its start.
+ *
+ * Any Start-End period is built from the blocks covering it: the blocks
+ * found on disk are reused whatever the query which stored them, and only
+ * the missing blocks and the part of the period which is not closed yet are
+ * loaded, see {@link #get(Collection, long, long, RangeLoader)}. Zooming
+ * within a stored period therefore neither loads nor writes anything.
+ *
+ * The cache is bounded by the total size of its files. When full, the least
+ * recently used files are deleted first. The usage order is kept in memory
+ * and rebuilt from the file modification times at startup.
+ *
+ * Only the blocks closed for longer than the close delay are stored, as
+ * they cannot change any more. Each segment records the time it was
+ * written: the segments written before their block was closed for that
+ * long, or older than the time to live, are discarded, as are the
+ * segments of an older format (at startup and when read).
+ */
+public class HistoryDiskCache {
+
+  private static Logger logger = LoggerFactory.getLogger(HistoryDiskCache.class);
+
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /** Duration of a block, in milliseconds */
+  public static final long BLOCK_DURATION = TimeUnit.DAYS.toMillis(1);
+
+  /**
+   * Loads the history of several tags over a period with a single round
+   * trip, including the value of the tags at the start of the period
+   */
+  @FunctionalInterface
+  public interface RangeLoader {
+
+    /**
+     * @return the history of every given tag, sorted by server timestamp
+     * @throws HistoryProviderException in case a HistoryProvider cannot be created
+     * @throws LoadingParameterException in case of an invalid configurations
+     */
+    Map<Long, HistorySeries> load(Collection<Long> tagIds, long startTime, long endTime)
+        throws HistoryProviderException, LoadingParameterException;
+  }
+
+  /** Directory of the segment files, or <code>null</code> if disabled */
+  private final Path directory;
+
+  /** Maximum total size of the segment files, in bytes */
+  private final long maxBytes;
+
+  /** Time after its end before a period is closed, in milliseconds */
+  private final long closeDelay;
+
+  /** Time to live of a segment file, in milliseconds */
+  private final long timeToLive;
+
+  /** Size of the segment files in access order, the least recently used first */
+  private final LinkedHashMap<Path, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+
+  /** Total size of the segment files */
+  private long bytes = 0;
+
+  private long hits = 0;
+
+  private long misses = 0;
+
+  private long writes = 0;
+
+  private long evictions = 0;
+
+  /**
+   * Constructor. Indexes the segment files left by a previous run.
+   *
+   * @param directory directory of the segment files, or <code>null</code> to
+   *          disable the cache
+   * @param maxBytes maximum total size of the segment files, in bytes
+   * @param closeDelay time after its end before a period is closed, in
+   *          milliseconds, see {@link HistoryQuery#isClosed(long, long)}
+   * @param timeToLive time to live of a segment file, in milliseconds
+   */
+  public HistoryDiskCache(final Path directory, final long maxBytes, final long closeDelay, final long timeToLive) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.closeDelay = closeDelay;
+    this.timeToLive = timeToLive;
+    if (directory != null) {
+      index();
+    }
+  }
+
+  /**
+   * @return True if the cache stores histories
+   */
+  public boolean isEnabled() {
+    return directory != null;
+  }
+
+  private synchronized void index() {
+    try {
+      Files.createDirectories(directory);
+      final List<Path> segments;
+      try (Stream<Path> paths = Files.walk(directory)) {
+        segments = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+      }
+      segments.sort(Comparator.comparing(HistoryDiskCache::getLastModifiedTime));
+      final long now = System.currentTimeMillis();
+      for (final Path file : segments) {
+        if (file.getFileName().toString().endsWith(SEGMENT_SUFFIX)) {
+          if (!isValid(file, getEndTime(file), now)) {
+            Files.deleteIfExists(file);
+            continue;
+          }
+          final long size = Files.size(file);
+          files.put(file, size);
+          bytes += size;
+        } else if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+          // left over by an interrupted write
+          Files.deleteIfExists(file);
+        }
+      }
+      evict();
+      logger.info("History disk cache in " + directory + " holds " + files.size() + " segments (" + bytes + " bytes)");
+    } catch (IOException e) {
+      logger.error("Cannot index the history disk cache in " + directory, e);
+    }
+  }
+
+  private static FileTime getLastModifiedTime(final Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  /**
+   * @return the end of the block of a segment file, from its name, or
+   *         <code>Long.MAX_VALUE</code> if the name is not one of this cache
+   */
+  private static long getEndTime(final Path file) {
+    final String name = file.getFileName().toString();
+    try {
+      return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())) + BLOCK_DURATION;
+    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  /**
+   * @return the start of the block holding the given time
+   */
+  public static long getBlockStart(final long time) {
+    return Math.floorDiv(time, BLOCK_DURATION) * BLOCK_DURATION;
+  }
+
+  /**
+   * @return True if the block starting at the given time is closed, i.e. its
+   *         history can no longer change
+   */
+  private boolean isClosed(final long blockStart, final long now) {
+    return blockStart + BLOCK_DURATION < now - closeDelay;
+  }
+
+  /**
+   * @return True if the segment file is of the current format, was written
+   *         once its period was closed, and is not older than the time to
+   *         live
+   */
+  private boolean isValid(final Path file, final long endTime, final long now) {
+    final long writeTime;
+    try {
+      writeTime = HistorySegment.readWriteTime(file);
+    } catch (IOException e) {
+      logger.debug("Discarding the history segment " + file + ": " + e.getMessage());
+      return false;
+    }
+    return endTime < writeTime - closeDelay && now - writeTime <= timeToLive;
+  }
+
+  /**
+   * @return the file of a block: one directory per tag, one file per block
+   */
+  private Path getFile(final long tagId, final long blockStart) {
+    return directory.resolve(Long.toString(tagId)).resolve(blockStart + SEGMENT_SUFFIX);
+  }
+
+  /**
+   * Returns the history of the given tags over a Start-End period, built from
+   * the stored blocks covering it. The missing closed blocks are loaded as a
+   * whole, so that they can be stored, and contiguous missing blocks with a
+   * single load; the part of the period which is not closed yet is loaded
+   * with the last of them. The tags missing the same blocks are loaded
+   * together.
+   *
+   * Like a history loaded with its initial values, the result holds the
+   * points of the period and the last point before its start, if any.
+   *
+   * @param tagIds The tag ids whose history we are looking for
+   * @param startTime start of the period
+   * @param endTime end of the period
+   * @param loader loads the parts of the period which are not stored
+   *
+   * @throws HistoryProviderException in case a HistoryProvider cannot be created
+   * @throws LoadingParameterException in case of an invalid configurations
+   * @return history of every requested tag, in the order of the given ids
+   */
+  public Map<Long, HistorySeries> get(final Collection<Long> tagIds, final long startTime, final long endTime,
+      final RangeLoader loader) throws HistoryProviderException, LoadingParameterException {
+    final long now = System.currentTimeMillis();
+    final long lastBlock = getBlockStart(endTime);
+
+    // Parts of the history of each tag, by start time
+    final Map<Long, TreeMap<Long, HistorySeries>> parts = new LinkedHashMap<>();
+    // Tags to load for each missing period
+    final Map<List<Long>, List<Long>> loads = new LinkedHashMap<>();
+    for (final Long tagId : tagIds) {
+      final TreeMap<Long, HistorySeries> tagParts = new TreeMap<>();
+      parts.put(tagId, tagParts);
+
+      Long loadStart = null;
+      for (long block = getBlockStart(startTime); block <= lastBlock; block += BLOCK_DURATION) {
+        final HistorySeries stored = isClosed(block, now) ? get(tagId, block) : null;
+        if (stored != null) {
+          tagParts.put(block, stored);
+          if (loadStart != null) {
+            loads.computeIfAbsent(Arrays.asList(loadStart, block), period -> new ArrayList<>()).add(tagId);
+            loadStart = null;
+          }
+        } else if (loadStart == null) {
+          loadStart = isClosed(block, now) ? block : Math.max(block, startTime);
+        }
+      }
+      if (loadStart != null) {
+        final long loadEnd = isClosed(lastBlock, now) ? lastBlock + BLOCK_DURATION : endTime;
+        loads.computeIfAbsent(Arrays.asList(loadStart, loadEnd), period -> new ArrayList<>()).add(tagId);
+      }
+    }
+
+    for (final Map.Entry<List<Long>, List<Long>> load : loads.entrySet()) {
+      final long loadStart = load.getKey().get(0);
+      final long loadEnd = load.getKey().get(1);
+      final Map<Long, HistorySeries> loaded = loader.load(load.getValue(), loadStart, loadEnd);
+      for (final Long tagId : load.getValue()) {
+        final HistorySeries series = loaded.getOrDefault(tagId, HistorySeries.of(Collections.emptyList()));
+        parts.get(tagId).put(loadStart, series);
+        for (long block = loadStart; block + BLOCK_DURATION <= loadEnd && isClosed(block, now); block += BLOCK_DURATION) {
+          put(tagId, block, series.slice(Math.max(0, series.indexOf(block) - 1), series.indexOf(block + BLOCK_DURATION)));
+        }
+      }
+    }
+
+    final Map<Long, HistorySeries> historyValues = new LinkedHashMap<>();
+    parts.forEach((tagId, tagParts) -> historyValues.put(tagId, assemble(tagParts, startTime, endTime)));
+    return historyValues;
+  }
+
+  /**
+   * Joins the parts of a history. Each part holds the points from its start
+   * until the start of the next part, the first one also the points before.
+   * A point lying on the boundary between two parts is only kept once.
+   *
+   * @return the points of the period, and the last point before its start
+   */
+  private static HistorySeries assemble(final TreeMap<Long, HistorySeries> parts, final long startTime,
+      final long endTime) {
+    final List<HistorySeries> slices = new ArrayList<>(parts.size());
+    Map.Entry<Long, HistorySeries> part = parts.firstEntry();
+    boolean first = true;
+    while (part != null) {
+      final HistorySeries series = part.getValue();
+      final Map.Entry<Long, HistorySeries> next = parts.higherEntry(part.getKey());
+      final int from = first ? 0 : series.indexOf(part.getKey());
+      final int to = next != null ? series.indexOf(next.getKey()) : series.size();
+      slices.add(from == 0 && to == series.size() ? series : series.slice(from, to));
+      part = next;
+      first = false;
+    }
+
+    final HistorySeries joined = slices.size() == 1 ? slices.get(0) : HistorySeries.concat(slices);
+    final int from = Math.max(0, joined.indexOf(startTime) - 1);
+    final int to = endTime == Long.MAX_VALUE ? joined.size() : joined.indexOf(endTime + 1);
+    return from == 0 && to == joined.size() ? joined : joined.slice(from, to);
+  }
+
+  /**
+   * @return the stored block of a tag, or <code>null</code> if it is not
+   *         stored or cannot be read
+   */
+  private HistorySeries get(final long tagId, final long blockStart) {
+    final Path file = getFile(tagId, blockStart);
+    synchronized (this) {
+      if (files.get(file) == null) {
+        misses++;
+        return null;
+      }
+    }
+
+    if (!isValid(file, blockStart + BLOCK_DURATION, System.currentTimeMillis())) {
+      remove(file);
+      synchronized (this) {
+        misses++;
+      }
+      return null;
+    }
+
+    try {
+      final HistorySeries series = HistorySegment.read(file);
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+      synchronized (this) {
+        hits++;
+      }
+      return series;
+    } catch (IOException e) {
+      logger.warn("Discarding the history segment " + file + ": " + e.getMessage());
+      remove(file);
+      synchronized (this) {
+        misses++;
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Stores a closed block of a tag, evicting the least recently used files if
+   * needed. Blocks which are not closed yet are not stored. Failures are
+   * logged and otherwise ignored.
+   */
+  private void put(final long tagId, final long blockStart, final HistorySeries series) {
+    if (!isClosed(blockStart, System.currentTimeMillis())) {
+      return;
+    }
+
+    final Path file = getFile(tagId, blockStart);
+    final Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+    try {
+      Files.createDirectories(file.getParent());
+      HistorySegment.write(series, temp);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      final long size = Files.size(file);
+      synchronized (this) {
+        final Long previous = files.put(file, size);
+        bytes += size - (previous != null ? previous : 0);
+        writes++;
+        evict();
+      }
+    } catch (IOException e) {
+      logger.warn("Cannot store the history of tag " + tagId + " in " + file + ": " + e.getMessage());
+      try {
+        Files.deleteIfExists(temp);
+      } catch (IOException ignored) {
+        // nothing more can be done
+      }
+    }
+  }
+
+  /**
+   * Deletes the least recently used files until the cache fits its size.
+   */
+  private synchronized void evict() {
+    final Iterator<Map.Entry<Path, Long>> eldest = files.entrySet().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      final Map.Entry<Path, Long> entry = eldest.next();
+      eldest.remove();
+      bytes -= entry.getValue();
+      evictions++;
+      try {
+        Files.deleteIfExists(entry.getKey());
+      } catch (IOException e) {
+        logger.warn("Cannot delete the history segment " + entry.getKey() + ": " + e.getMessage());
+      }
+    }
+  }
+
+  private synchronized void remove(final Path file) {
+    final Long size = files.remove(file);
+    if (size != null) {
+      bytes -= size;
+    }
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      logger.warn("Cannot delete the history segment " + file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * @return the hit, miss, write and eviction counters and the current size
+   *         of the cache
+   */
+  public synchronized Map<String, Long> getStatistics() {
+    final Map<String, Long> statistics = new LinkedHashMap<>();
+    statistics.put("hits", hits);
+    statistics.put("misses", misses);
+    statistics.put("writes", writes);
+    statistics.put("evictions", evictions);
+    statistics.put("segments", (long) files.size());
+    statistics.put("bytes", bytes);
+    statistics.put("maxBytes", maxBytes);
+    return statistics;
+  }
+}
@@ -0,0 +1,173 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+/**
+ * Reduces a time series to a given number of points with the
+ * Largest-Triangle-Three-Buckets (LTTB) algorithm, so that a chart of the
+ * reduced series keeps the visual shape of the original one.
+ *
+ * Points flagged as "keep" (e.g. invalid quality points, or the points
+ * around an alarm transition, see {@link #keepAround}) are always part of
+ * the result, on top of the points chosen by the algorithm.
+ *
+ * @see <a href="https://skemman.is/handle/1946/15343">Sveinn Steinarsson,
+ *      Downsampling Time Series for Visual Representation</a>
+ */
+public final class HistoryDownsampler {
+
+  /** Minimum number of points LTTB can work with (first, one bucket, last) */
+  private static final int MIN_THRESHOLD = 3;
+
+  private HistoryDownsampler() {
+  }
+
+  /**
+   * Selects the points to be kept from a time series.
+   *
+   * @param x the timestamps of the points, in ascending order
+   * @param y the values of the points
+   * @param keep points which must be part of the result, whatever their
+   *          shape. Can be <code>null</code>.
+   * @param threshold the number of points to select with LTTB
+   *
+   * @return the indices of the selected points, in ascending order. If the
+   *         series has no more than <code>threshold</code> points, all
+   *         indices are returned.
+   */
+  public static int[] selectIndices(final long[] x, final double[] y, final boolean[] keep, final int threshold) {
+    final int size = x.length;
+    final boolean[] selected = new boolean[size];
+
+    if (threshold >= size || threshold < MIN_THRESHOLD) {
+      for (int i = 0; i < size; i++) {
+        selected[i] = true;
+      }
+      return toIndices(selected, size);
+    }
+
+    if (keep != null) {
+      System.arraycopy(keep, 0, selected, 0, size);
+    }
+    selected[0] = true;
+    selected[size - 1] = true;
+
+    // Timestamps are shifted to the first point to keep the areas precise
+    final long origin = x[0];
+
+    // Bucket size, leaving room for the first and last points
+    final double every = (double) (size - 2) / (threshold - 2);
+
+    int a = 0;
+    for (int i = 0; i < threshold - 2; i++) {
+
+      // Average point of the next bucket, the third vertex of the triangle
+      int avgStart = (int) Math.floor((i + 1) * every) + 1;
+      int avgEnd = Math.min((int) Math.floor((i + 2) * every) + 1, size);
+      double avgX = 0;
+      double avgY = 0;
+      for (int j = avgStart; j < avgEnd; j++) {
+        avgX += x[j] - origin;
+        avgY += y[j];
+      }
+      final int avgLength = avgEnd - avgStart;
+      if (avgLength > 0) {
+        avgX /= avgLength;
+        avgY /= avgLength;
+      } else {
+        avgX = x[size - 1] - origin;
+        avgY = y[size - 1];
+      }
+
+      // Point of the current bucket forming the largest triangle with the
+      // previously selected point and the average of the next bucket
+      final int rangeStart = (int) Math.floor(i * every) + 1;
+      final int rangeEnd = (int) Math.floor((i + 1) * every) + 1;
+      final double ax = x[a] - origin;
+      final double ay = y[a];
+
+      double maxArea = -1;
+      int next = rangeStart;
+      for (int j = rangeStart; j < rangeEnd; j++) {
+        final double area = Math.abs((ax - avgX) * (y[j] - ay) - (ax - (x[j] - origin)) * (avgY - ay));
+        if (area > maxArea) {
+          maxArea = area;
+          next = j;
+        }
+      }
+
+      selected[next] = true;
+      a = next;
+    }
+
+    return toIndices(selected, size);
+  }
+
+  /**
+   * Flags the points framing each of the given events (e.g. the activations
+   * and terminations of the alarms of the tag) to be kept: the point standing
+   * when the event happens and the point following it, so that the chart
+   * shows the value at the time of the event whatever the downsampling.
+   *
+   * @param x the timestamps of the points, in ascending order
+   * @param eventTimes the times of the events, in any order
+   * @param keep receives the flags of the points to keep
+   */
+  public static void keepAround(final long[] x, final long[] eventTimes, final boolean[] keep) {
+    final int size = x.length;
+    for (final long time : eventTimes) {
+      // First point after the event
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        final int middle = (low + high) >>> 1;
+        if (x[middle] <= time) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      if (low > 0) {
+        keep[low - 1] = true;
+      }
+      if (low < size) {
+        keep[low] = true;
+      }
+    }
+  }
+
+  /**
+   * @return the indices flagged in the given array, in ascending order
+   */
+  private static int[] toIndices(final boolean[] selected, final int size) {
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      if (selected[i]) {
+        count++;
+      }
+    }
+
+    final int[] indices = new int[count];
+    int k = 0;
+    for (int i = 0; i < size; i++) {
+      if (selected[i]) {
+        indices[k++] = i;
+      }
+    }
+    return indices;
+  }
+}
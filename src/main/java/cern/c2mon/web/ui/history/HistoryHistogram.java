@@ -0,0 +1,207 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+/**
+ * Distribution of the values of a tag history, computed in primitive arrays
+ * and serialised as is to JSON.
+ *
+ * The bins are equally wide between the smallest and the largest value. Their
+ * number adapts to the values (Freedman-Diaconis rule: the bin width is
+ * <code>2 * IQR / n^(1/3)</code>, the interquartile range coming from a
+ * {@link QuantileSketch}), up to a maximum. Boolean histories get one bin per
+ * value.
+ *
+ * Each point is counted once (sample weight), or by the time its value stood
+ * until the next point (time weight, the last value standing until the end
+ * of the period). The values with an invalid quality are counted in separate
+ * bins.
+ */
+public class HistoryHistogram {
+
+  /**
+   * How the points are counted
+   */
+  public enum Weight {
+    /** Each point counts for 1 */
+    SAMPLES,
+    /** Each point counts for the milliseconds its value stood */
+    TIME
+  }
+
+  private final Weight weight;
+
+  /** Bin edges: bin i holds the values from edges[i] to edges[i + 1] */
+  private final double[] edges;
+
+  private final double[] counts;
+
+  private final double[] invalidCounts;
+
+  /** Weight of the points without a numeric value */
+  private final double nonNumeric;
+
+  private HistoryHistogram(final Weight weight, final double[] edges, final double[] counts,
+      final double[] invalidCounts, final double nonNumeric) {
+    this.weight = weight;
+    this.edges = edges;
+    this.counts = counts;
+    this.invalidCounts = invalidCounts;
+    this.nonNumeric = nonNumeric;
+  }
+
+  /**
+   * Computes the histogram of a history in two passes over its values: one
+   * for the range and the quartiles, one to fill the bins.
+   *
+   * @param series the history points, sorted by server timestamp
+   * @param weight how the points are counted
+   * @param maxBins maximum number of bins
+   * @param endTime end of the period of the history, until which the last
+   *          value stands (ignored if it is before the last point)
+   * @return the histogram of the history
+   */
+  public static HistoryHistogram of(final HistorySeries series, final Weight weight, final int maxBins,
+      final long endTime) {
+    final int size = series.size();
+    final QuantileSketch sketch = new QuantileSketch();
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < size; i++) {
+      final double value = series.getValue(i);
+      if (isNumeric(value)) {
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sketch.add(value);
+      }
+    }
+
+    final double[] edges = getEdges(series.isBooleanData(), sketch, min, max, Math.max(1, maxBins));
+    final int bins = edges.length - 1;
+    final double[] counts = new double[Math.max(bins, 0)];
+    final double[] invalidCounts = new double[Math.max(bins, 0)];
+    double nonNumeric = 0;
+
+    for (int i = 0; i < size; i++) {
+      final double w;
+      if (weight == Weight.SAMPLES) {
+        w = 1;
+      } else {
+        final long next = i + 1 < size ? series.getServerTimestamp(i + 1) : endTime;
+        w = Math.max(0, next - series.getServerTimestamp(i));
+      }
+
+      final double value = series.getValue(i);
+      if (!isNumeric(value)) {
+        nonNumeric += w;
+      } else {
+        final int bin = getBin(edges, value);
+        if (series.isValid(i)) {
+          counts[bin] += w;
+        } else {
+          invalidCounts[bin] += w;
+        }
+      }
+    }
+    return new HistoryHistogram(weight, edges, counts, invalidCounts, nonNumeric);
+  }
+
+  private static boolean isNumeric(final double value) {
+    return !Double.isNaN(value) && !Double.isInfinite(value);
+  }
+
+  /**
+   * @return the bin edges for values between min and max, no edges at all if
+   *         there is no value
+   */
+  private static double[] getEdges(final boolean booleanData, final QuantileSketch sketch, final double min,
+      final double max, final int maxBins) {
+    final long n = sketch.getCount();
+    if (n == 0) {
+      return new double[0];
+    }
+    if (booleanData) {
+      return new double[] { -0.5, 0.5, 1.5 };
+    }
+    if (min == max) {
+      return new double[] { min - 0.5, max + 0.5 };
+    }
+
+    final double iqr = sketch.getQuantile(0.75) - sketch.getQuantile(0.25);
+    int bins;
+    if (iqr > 0) {
+      bins = (int) Math.ceil((max - min) / (2 * iqr / Math.cbrt(n)));
+    } else {
+      // Sturges' rule, for the values concentrated on a few levels
+      bins = (int) Math.ceil(Math.log(n) / Math.log(2)) + 1;
+    }
+    bins = Math.max(1, Math.min(maxBins, bins));
+
+    final double[] edges = new double[bins + 1];
+    for (int i = 0; i < bins; i++) {
+      edges[i] = min + (max - min) * i / bins;
+    }
+    edges[bins] = max;
+    return edges;
+  }
+
+  /**
+   * @return the bin of a value between the first and the last edge, the last
+   *         bin including its upper edge
+   */
+  private static int getBin(final double[] edges, final double value) {
+    final int bins = edges.length - 1;
+    final int bin = (int) ((value - edges[0]) / (edges[bins] - edges[0]) * bins);
+    return Math.max(0, Math.min(bins - 1, bin));
+  }
+
+  /**
+   * @return how the points are counted
+   */
+  public Weight getWeight() {
+    return weight;
+  }
+
+  /**
+   * @return the bin edges: bin i holds the values from edges[i] to
+   *         edges[i + 1]. Empty if the history has no numeric value.
+   */
+  public double[] getEdges() {
+    return edges;
+  }
+
+  /**
+   * @return the weight of the values with a valid quality in each bin
+   */
+  public double[] getCounts() {
+    return counts;
+  }
+
+  /**
+   * @return the weight of the values with an invalid quality in each bin
+   */
+  public double[] getInvalidCounts() {
+    return invalidCounts;
+  }
+
+  /**
+   * @return the weight of the points without a numeric value
+   */
+  public double getNonNumeric() {
+    return nonNumeric;
+  }
+}
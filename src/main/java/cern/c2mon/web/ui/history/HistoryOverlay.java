@@ -0,0 +1,212 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Chart data of a multi-tag trend view: the trends of several tags aligned
+ * on the union of their timestamps, serialised as is to JSON.
+ *
+ * The trends are merged with a k-way merge over their sorted timestamps.
+ * Every row of the overlay holds, for each tag, the value of its latest point
+ * at or before the row timestamp (a tag value stands until it is updated).
+ * The rows before the first point of a tag have no value for it.
+ */
+public class HistoryOverlay {
+
+  /** Timestamp of each row, in epoch milliseconds */
+  private final long[] timestamps;
+
+  private final List<Series> series;
+
+  private HistoryOverlay(final long[] timestamps, final List<Series> series) {
+    this.timestamps = timestamps;
+    this.series = series;
+  }
+
+  /**
+   * Aligns the trends of several tags.
+   *
+   * @param tagIds the tags, in the order of the trends
+   * @param trends the trend of each tag, sorted by timestamp
+   * @return the overlay of the trends, in the given order
+   */
+  public static HistoryOverlay merge(final List<Long> tagIds, final List<HistoryTrend> trends) {
+    final int k = trends.size();
+    int capacity = 0;
+    for (final HistoryTrend trend : trends) {
+      capacity += trend.getTimestamps().length;
+    }
+
+    // Position of each trend, ordered by the timestamp of its next point
+    final int[] positions = new int[k];
+    final PriorityQueue<Integer> cursors = new PriorityQueue<>(Math.max(k, 1),
+        (a, b) -> Long.compare(trends.get(a).getTimestamps()[positions[a]], trends.get(b).getTimestamps()[positions[b]]));
+    for (int t = 0; t < k; t++) {
+      if (trends.get(t).getTimestamps().length > 0) {
+        cursors.add(t);
+      }
+    }
+
+    final long[] timestamps = new long[capacity];
+    final double[][] values = new double[k][capacity];
+    final BitSet[] invalid = new BitSet[k];
+    final int[] first = new int[k];
+    Arrays.fill(first, -1);
+    final double[] current = new double[k];
+    final boolean[] currentInvalid = new boolean[k];
+    final BitSet[] invalidPoints = new BitSet[k];
+    for (int t = 0; t < k; t++) {
+      invalid[t] = new BitSet();
+      invalidPoints[t] = new BitSet();
+      for (final int i : trends.get(t).getInvalid()) {
+        invalidPoints[t].set(i);
+      }
+    }
+
+    int rows = 0;
+    while (!cursors.isEmpty()) {
+      final long timestamp = trends.get(cursors.peek()).getTimestamps()[positions[cursors.peek()]];
+
+      // Consume the points of every trend at this timestamp, the last one of
+      // a trend standing for the row
+      while (!cursors.isEmpty() && trends.get(cursors.peek()).getTimestamps()[positions[cursors.peek()]] == timestamp) {
+        final int t = cursors.poll();
+        final long[] trendTimestamps = trends.get(t).getTimestamps();
+        while (positions[t] < trendTimestamps.length && trendTimestamps[positions[t]] == timestamp) {
+          current[t] = trends.get(t).getValues()[positions[t]];
+          currentInvalid[t] = invalidPoints[t].get(positions[t]);
+          positions[t]++;
+        }
+        if (first[t] < 0) {
+          first[t] = rows;
+        }
+        if (positions[t] < trendTimestamps.length) {
+          cursors.add(t);
+        }
+      }
+
+      timestamps[rows] = timestamp;
+      for (int t = 0; t < k; t++) {
+        if (first[t] >= 0) {
+          values[t][rows - first[t]] = current[t];
+          invalid[t].set(rows, currentInvalid[t]);
+        }
+      }
+      rows++;
+    }
+
+    final List<Series> series = new ArrayList<>(k);
+    for (int t = 0; t < k; t++) {
+      final int start = first[t] >= 0 ? first[t] : rows;
+      series.add(new Series(tagIds.get(t), trends.get(t), start, Arrays.copyOf(values[t], rows - start),
+          invalid[t].stream().toArray()));
+    }
+    return new HistoryOverlay(Arrays.copyOf(timestamps, rows), Collections.unmodifiableList(series));
+  }
+
+  /**
+   * @return the timestamp of each row, in epoch milliseconds
+   */
+  public long[] getTimestamps() {
+    return timestamps;
+  }
+
+  /**
+   * @return the values of each tag, in the order of the request
+   */
+  public List<Series> getSeries() {
+    return series;
+  }
+
+  /**
+   * The values of one tag in the rows of an overlay.
+   */
+  public static final class Series {
+
+    private final long tagId;
+
+    private final boolean booleanData;
+
+    private final boolean downsampled;
+
+    private final int first;
+
+    private final double[] values;
+
+    private final int[] invalid;
+
+    private Series(final long tagId, final HistoryTrend trend, final int first, final double[] values,
+        final int[] invalid) {
+      this.tagId = tagId;
+      this.booleanData = trend.isBooleanData();
+      this.downsampled = trend.isDownsampled();
+      this.first = first;
+      this.values = values;
+      this.invalid = invalid;
+    }
+
+    /**
+     * @return the tag id
+     */
+    public long getTagId() {
+      return tagId;
+    }
+
+    /**
+     * @return True if the tag holds Boolean Data
+     */
+    public boolean isBooleanData() {
+      return booleanData;
+    }
+
+    /**
+     * @return True if points of the history of the tag were left out
+     */
+    public boolean isDownsampled() {
+      return downsampled;
+    }
+
+    /**
+     * @return the first row holding a value of the tag
+     */
+    public int getFirst() {
+      return first;
+    }
+
+    /**
+     * @return the value of the tag (as represented in the chart) in each
+     *         row, starting at row {@link #getFirst()}
+     */
+    public double[] getValues() {
+      return values;
+    }
+
+    /**
+     * @return the rows in which the value of the tag has an invalid quality
+     */
+    public int[] getInvalid() {
+      return invalid;
+    }
+  }
+}
@@ -14,36 +14,28 @@
  * You should have received a copy of the GNU Lesser General Public License
  * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
  *****************************************************************************/
-package cern.c2mon.web.ui.util;
+package cern.c2mon.web.ui.history;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
 
 /**
- * Helper Class for the TrendViewer.
- *
- * Includes simple information about an invalidation point (Time and Reason for the invalidation).
- * Passed to the .jsp TrendView.
- *
- * @see https://issues.cern.ch/browse/TIMS-873
- *
- * @author ekoufaki
+ * Exception representing a history request rejected because too many history
+ * requests are already being processed. Answered with a 503 (Service
+ * Unavailable), so that the client can try again later.
  */
-public class InvalidPoint {
-
-  /** Time of invalidation */
-  private final String time;
+@ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE, reason = "Too many history requests, please try again later")
+public class HistoryOverloadedException extends RuntimeException {
 
-  /** Reason for the invalidation */
-  private final String invalidationReason;
-
-  public InvalidPoint(final String time, final String invalidationReason) {
-    this.time = time;
-    this.invalidationReason = invalidationReason.replaceAll("\n","");
-  }
-
-  public String getTime() {
-    return time;
-  }
+  /**
+   *
+   */
+  private static final long serialVersionUID = 1L;
 
-  public String getInvalidationReason() {
-    return invalidationReason;
+  /**
+   * Constructs the exception with a default message
+   */
+  public HistoryOverloadedException() {
+    super("Too many history requests, please try again later");
   }
 }
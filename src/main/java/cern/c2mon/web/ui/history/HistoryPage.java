@@ -0,0 +1,262 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+
+/**
+ * One page of the history table, serialised as is to JSON.
+ *
+ * The pages are keyed on the server timestamp (keyset pagination): the
+ * cursor of the next page is the timestamp of the last row sent, with the
+ * number of rows already sent at that timestamp. A page therefore starts
+ * after the right row even if the history has grown or been reloaded in
+ * between, and is found by a binary search instead of skipping the rows of
+ * the previous pages.
+ */
+public final class HistoryPage {
+
+  /** The rows of the page */
+  private final List<Row> rows;
+
+  /** Cursor of the next page, or <code>null</code> if this is the last one */
+  private final String next;
+
+  /** Number of rows of the whole history */
+  private final int total;
+
+  private HistoryPage(final List<Row> rows, final String next, final int total) {
+    this.rows = rows;
+    this.next = next;
+    this.total = total;
+  }
+
+  /**
+   * @param history the history points, sorted by server timestamp
+   * @param cursor the cursor of the page, as given by {@link #getNext()}, or
+   *          <code>null</code> for the first page
+   * @return the index of the first point of the page
+   * @throws IllegalArgumentException if the cursor is malformed
+   */
+  public static int indexOf(final List<HistoryTagValueUpdate> history, final String cursor) {
+    if (cursor == null || cursor.isEmpty()) {
+      return 0;
+    }
+
+    final long timestamp;
+    final int skip;
+    try {
+      final int separator = cursor.indexOf('.');
+      timestamp = Long.parseLong(cursor.substring(0, separator));
+      skip = Integer.parseInt(cursor.substring(separator + 1));
+    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Malformed history page cursor: " + cursor);
+    }
+
+    // first point at the timestamp of the cursor
+    int low = 0;
+    int high = history.size();
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (history.get(middle).getServerTimestamp().getTime() < timestamp) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+
+    // then after the points already sent at that timestamp
+    int index = low;
+    for (int i = 0; i < skip && index < history.size()
+        && history.get(index).getServerTimestamp().getTime() == timestamp; i++) {
+      index++;
+    }
+    return index;
+  }
+
+  /**
+   * Builds a page of the history, without alarms.
+   *
+   * @param history the history points, sorted by server timestamp
+   * @param from the index of the first point of the page, see
+   *          {@link #indexOf(List, String)}
+   * @param limit maximum number of rows of the page
+   * @return the page
+   */
+  public static HistoryPage of(final List<HistoryTagValueUpdate> history, final int from, final int limit) {
+    return of(history, from, limit, null);
+  }
+
+  /**
+   * Builds a page of the history. The history points are only read.
+   *
+   * @param history the history points, sorted by server timestamp
+   * @param from the index of the first point of the page, see
+   *          {@link #indexOf(List, String)}
+   * @param limit maximum number of rows of the page
+   * @param alarmActive for each row of the page, the alarm state of the
+   *          point (see {@link Row#getAlarmActive()}), or <code>null</code>
+   *          if the tag has no alarms
+   * @return the page
+   */
+  public static HistoryPage of(final List<HistoryTagValueUpdate> history, final int from, final int limit,
+      final Boolean[] alarmActive) {
+    final int to = Math.min(history.size(), from + limit);
+    final List<Row> rows = new ArrayList<>(Math.max(0, to - from));
+    for (int i = from; i < to; i++) {
+      rows.add(new Row(history.get(i), alarmActive != null ? alarmActive[i - from] : null));
+    }
+
+    String next = null;
+    if (to < history.size() && to > from) {
+      final long timestamp = history.get(to - 1).getServerTimestamp().getTime();
+      int sent = 0;
+      while (to - 1 - sent >= 0 && history.get(to - 1 - sent).getServerTimestamp().getTime() == timestamp) {
+        sent++;
+      }
+      next = timestamp + "." + sent;
+    }
+    return new HistoryPage(rows, next, history.size());
+  }
+
+  /**
+   * @return the rows of the page
+   */
+  public List<Row> getRows() {
+    return rows;
+  }
+
+  /**
+   * @return the cursor of the next page, or <code>null</code> if this is the
+   *         last one
+   */
+  public String getNext() {
+    return next;
+  }
+
+  /**
+   * @return the number of rows of the whole history
+   */
+  public int getTotal() {
+    return total;
+  }
+
+  /**
+   * A row of the history table, with the fields as they are displayed
+   */
+  public static final class Row {
+
+    private final String serverTimestamp;
+
+    private final Object value;
+
+    private final boolean valid;
+
+    private final List<String> invalidQualityStates;
+
+    private final String description;
+
+    private final String sourceTimestamp;
+
+    private final String mode;
+
+    private final Boolean alarmActive;
+
+    private Row(final HistoryTagValueUpdate update, final Boolean alarmActive) {
+      this.serverTimestamp = String.valueOf(update.getServerTimestamp());
+      this.value = update.getValue();
+      this.valid = update.getDataTagQuality().isValid();
+      this.description = update.getDescription();
+      this.sourceTimestamp = update.getSourceTimestamp() != null ? update.getSourceTimestamp().toString() : null;
+      this.mode = update.getMode() != null ? update.getMode().toString() : null;
+
+      if (valid) {
+        this.invalidQualityStates = Collections.emptyList();
+      } else {
+        this.invalidQualityStates = new ArrayList<>();
+        for (final Map.Entry<?, String> entry : update.getDataTagQuality().getInvalidQualityStates().entrySet()) {
+          invalidQualityStates.add(entry.getKey() + "-" + entry.getValue());
+        }
+      }
+      this.alarmActive = alarmActive;
+    }
+
+    /**
+     * @return the server timestamp
+     */
+    public String getServerTimestamp() {
+      return serverTimestamp;
+    }
+
+    /**
+     * @return the value
+     */
+    public Object getValue() {
+      return value;
+    }
+
+    /**
+     * @return True if the quality is valid
+     */
+    public boolean isValid() {
+      return valid;
+    }
+
+    /**
+     * @return the invalid quality states as "STATE-description", empty if the
+     *         quality is valid
+     */
+    public List<String> getInvalidQualityStates() {
+      return invalidQualityStates;
+    }
+
+    /**
+     * @return the value description
+     */
+    public String getDescription() {
+      return description;
+    }
+
+    /**
+     * @return the source timestamp, or <code>null</code> if there is none
+     */
+    public String getSourceTimestamp() {
+      return sourceTimestamp;
+    }
+
+    /**
+     * @return the tag mode
+     */
+    public String getMode() {
+      return mode;
+    }
+
+    /**
+     * @return True if an alarm was active while the value stood, False if
+     *         the attached alarms are terminated, <code>null</code> without
+     *         alarm
+     */
+    public Boolean getAlarmActive() {
+      return alarmActive;
+    }
+  }
+}
@@ -0,0 +1,307 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cern.c2mon.client.ext.history.common.HistoryProvider;
+import cern.c2mon.client.ext.history.common.exception.HistoryProviderException;
+
+/**
+ * Pool of long-lived {@link HistoryProvider}s, so that the history requests
+ * do not pay the creation of a provider (and of its backend connections)
+ * each time.
+ *
+ * A provider is borrowed by one history load at a time. Providers are
+ * created on demand, up to the size of the pool; when they are all borrowed,
+ * the next request waits for one to be returned. A provider is discarded
+ * and recreated when a load using it failed, when it reaches its maximum
+ * age, and when it was created before the last {@link #clear()}.
+ *
+ * Several loads failing in a row usually mean that the backend went away
+ * (e.g. a database failover), leaving all the providers with broken
+ * connections: the whole pool is then cleared, instead of every provider
+ * failing one request before being discarded.
+ */
+public class HistoryProviderPool {
+
+  private static Logger logger = LoggerFactory.getLogger(HistoryProviderPool.class);
+
+  /**
+   * Creates the providers of the pool
+   */
+  @FunctionalInterface
+  public interface Factory {
+
+    /**
+     * @return a new provider
+     * @throws HistoryProviderException in case a HistoryProvider cannot be created
+     */
+    HistoryProvider create() throws HistoryProviderException;
+  }
+
+  private final Factory factory;
+
+  /** Age after which a provider is recreated, in milliseconds */
+  private final long maxAge;
+
+  /** Maximum time to wait for a provider, in milliseconds */
+  private final long borrowTimeout;
+
+  /** Number of failed loads in a row after which the pool is cleared, 0 for never */
+  private final int clearAfterFailures;
+
+  /** Number of failed loads since the last successful one */
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+  /** Number of providers which may still be borrowed */
+  private final Semaphore available;
+
+  /** Providers ready to be borrowed, the most recently returned first */
+  private final LinkedBlockingDeque<PooledProvider> idle = new LinkedBlockingDeque<>();
+
+  /** Increased by {@link #clear()}: the providers of older generations are discarded */
+  private final AtomicLong generation = new AtomicLong();
+
+  private final AtomicLong created = new AtomicLong();
+
+  private final AtomicLong creationFailures = new AtomicLong();
+
+  private final AtomicLong creationNanos = new AtomicLong();
+
+  private final AtomicLong maxCreationNanos = new AtomicLong();
+
+  private final AtomicLong borrowed = new AtomicLong();
+
+  private final AtomicLong borrowNanos = new AtomicLong();
+
+  private final AtomicLong maxBorrowNanos = new AtomicLong();
+
+  private final AtomicLong borrowTimeouts = new AtomicLong();
+
+  private final AtomicLong invalidated = new AtomicLong();
+
+  private final AtomicLong expired = new AtomicLong();
+
+  private final AtomicLong cleared = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param factory creates the providers
+   * @param size maximum number of providers
+   * @param maxAge age after which a provider is recreated, in milliseconds
+   * @param borrowTimeout maximum time to wait for a provider, in milliseconds
+   * @param clearAfterFailures number of failed loads in a row after which
+   *          the pool is cleared, 0 for never
+   */
+  public HistoryProviderPool(final Factory factory, final int size, final long maxAge, final long borrowTimeout,
+      final int clearAfterFailures) {
+    this.factory = factory;
+    this.maxAge = maxAge;
+    this.borrowTimeout = borrowTimeout;
+    this.clearAfterFailures = clearAfterFailures;
+    this.available = new Semaphore(size, true);
+  }
+
+  /**
+   * Borrows a provider, to be returned by closing the lease.
+   *
+   * @return the lease of a provider
+   * @throws HistoryProviderException in case no provider is returned within
+   *           the timeout, or a new provider cannot be created
+   */
+  public Lease borrow() throws HistoryProviderException {
+    final long start = System.nanoTime();
+    try {
+      if (!available.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+        borrowTimeouts.incrementAndGet();
+        throw new HistoryProviderException("No history provider available after " + borrowTimeout + " ms.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HistoryProviderException("Interrupted while waiting for a history provider.");
+    }
+
+    try {
+      PooledProvider provider = idle.pollFirst();
+      while (provider != null && (provider.isCleared() || provider.isExpired())) {
+        if (provider.isCleared()) {
+          cleared.incrementAndGet();
+        } else {
+          expired.incrementAndGet();
+        }
+        provider = idle.pollFirst();
+      }
+      if (provider == null) {
+        provider = create();
+      }
+
+      final long elapsed = System.nanoTime() - start;
+      borrowed.incrementAndGet();
+      borrowNanos.addAndGet(elapsed);
+      maxBorrowNanos.accumulateAndGet(elapsed, Math::max);
+      return new Lease(provider);
+
+    } catch (HistoryProviderException | RuntimeException e) {
+      available.release();
+      throw e;
+    }
+  }
+
+  private PooledProvider create() throws HistoryProviderException {
+    final long providerGeneration = generation.get();
+    final long start = System.nanoTime();
+    final HistoryProvider provider;
+    try {
+      provider = factory.create();
+    } catch (HistoryProviderException | RuntimeException e) {
+      creationFailures.incrementAndGet();
+      throw e;
+    }
+
+    final long elapsed = System.nanoTime() - start;
+    created.incrementAndGet();
+    creationNanos.addAndGet(elapsed);
+    maxCreationNanos.accumulateAndGet(elapsed, Math::max);
+    logger.debug("History provider created in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+    return new PooledProvider(provider, providerGeneration);
+  }
+
+  /**
+   * Discards the idle providers, the borrowed ones are discarded when they
+   * are returned.
+   */
+  public void clear() {
+    generation.incrementAndGet();
+    cleared.addAndGet(idle.size());
+    idle.clear();
+  }
+
+  /**
+   * @return the number of created, borrowed and discarded providers, and the
+   *         time spent creating and waiting for them (in milliseconds)
+   */
+  public Map<String, Long> getStatistics() {
+    final Map<String, Long> statistics = new LinkedHashMap<>();
+    statistics.put("idle", (long) idle.size());
+    statistics.put("created", created.get());
+    statistics.put("creationFailures", creationFailures.get());
+    statistics.put("creationTotalMillis", TimeUnit.NANOSECONDS.toMillis(creationNanos.get()));
+    statistics.put("creationMaxMillis", TimeUnit.NANOSECONDS.toMillis(maxCreationNanos.get()));
+    statistics.put("borrowed", borrowed.get());
+    statistics.put("borrowTotalMillis", TimeUnit.NANOSECONDS.toMillis(borrowNanos.get()));
+    statistics.put("borrowMaxMillis", TimeUnit.NANOSECONDS.toMillis(maxBorrowNanos.get()));
+    statistics.put("borrowTimeouts", borrowTimeouts.get());
+    statistics.put("invalidated", invalidated.get());
+    statistics.put("expired", expired.get());
+    statistics.put("cleared", cleared.get());
+    return statistics;
+  }
+
+  /**
+   * A borrowed provider. Closing the lease returns the provider to the pool,
+   * unless it was invalidated or the pool was cleared since its creation.
+   */
+  public final class Lease implements AutoCloseable {
+
+    private final PooledProvider provider;
+
+    private boolean valid = true;
+
+    private boolean closed = false;
+
+    private Lease(final PooledProvider provider) {
+      this.provider = provider;
+    }
+
+    /**
+     * @return the borrowed provider
+     */
+    public HistoryProvider getProvider() {
+      return provider.provider;
+    }
+
+    /**
+     * Marks the provider as broken, it is discarded instead of being
+     * returned to the pool.
+     */
+    public void invalidate() {
+      valid = false;
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (!valid) {
+        invalidated.incrementAndGet();
+        logger.debug("History provider discarded after a failed history load");
+        if (clearAfterFailures > 0 && consecutiveFailures.incrementAndGet() >= clearAfterFailures) {
+          consecutiveFailures.set(0);
+          logger.warn(clearAfterFailures + " history loads failed in a row, discarding all the history providers");
+          clear();
+        }
+      } else {
+        consecutiveFailures.set(0);
+        if (provider.isCleared()) {
+          cleared.incrementAndGet();
+        } else {
+          // checked again when borrowed, in case the pool is cleared meanwhile
+          idle.offerFirst(provider);
+        }
+      }
+      available.release();
+    }
+  }
+
+  /**
+   * A provider with its creation time and generation
+   */
+  private final class PooledProvider {
+
+    private final HistoryProvider provider;
+
+    private final long creationTime = System.currentTimeMillis();
+
+    private final long providerGeneration;
+
+    private PooledProvider(final HistoryProvider provider, final long providerGeneration) {
+      this.provider = provider;
+      this.providerGeneration = providerGeneration;
+    }
+
+    private boolean isCleared() {
+      return providerGeneration != generation.get();
+    }
+
+    private boolean isExpired() {
+      return System.currentTimeMillis() - creationTime > maxAge;
+    }
+  }
+}
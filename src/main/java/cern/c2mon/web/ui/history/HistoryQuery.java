@@ -0,0 +1,167 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.sql.Timestamp;
+
+/**
+ * Identifies a history request for a single tag: the tag id and a normalised
+ * description of the requested window (last records, last days, or a
+ * Start-End period). Used as key for caching history results.
+ */
+public final class HistoryQuery {
+
+  /**
+   * The kinds of history windows
+   */
+  public enum Type {
+    RECORDS, DAYS, RANGE
+  }
+
+  /** Precision of the Start-End periods (the query forms use minutes) */
+  private static final long RANGE_PRECISION = 1000L;
+
+  private final long tagId;
+
+  private final Type type;
+
+  /** Number of records or days, depending on the type */
+  private final int amount;
+
+  /** Start and end of the period (epoch milliseconds), for RANGE queries */
+  private final long startTime;
+
+  private final long endTime;
+
+  private HistoryQuery(final long tagId, final Type type, final int amount, final long startTime, final long endTime) {
+    this.tagId = tagId;
+    this.type = type;
+    this.amount = amount;
+    this.startTime = startTime;
+    this.endTime = endTime;
+  }
+
+  /**
+   * @return a query for the last <code>records</code> records of a tag
+   */
+  public static HistoryQuery lastRecords(final long tagId, final int records) {
+    return new HistoryQuery(tagId, Type.RECORDS, records, 0, 0);
+  }
+
+  /**
+   * @return a query for the last <code>days</code> days of a tag
+   */
+  public static HistoryQuery lastDays(final long tagId, final int days) {
+    return new HistoryQuery(tagId, Type.DAYS, days, 0, 0);
+  }
+
+  /**
+   * @return a query for the history of a tag between two dates. The dates are
+   *         truncated to the second.
+   */
+  public static HistoryQuery range(final long tagId, final Timestamp startTime, final Timestamp endTime) {
+    return new HistoryQuery(tagId, Type.RANGE, 0, truncate(startTime.getTime()), truncate(endTime.getTime()));
+  }
+
+  private static long truncate(final long time) {
+    return time - Math.floorMod(time, RANGE_PRECISION);
+  }
+
+  public long getTagId() {
+    return tagId;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * @return the number of records or days, depending on the type
+   */
+  public int getAmount() {
+    return amount;
+  }
+
+  public long getStartTime() {
+    return startTime;
+  }
+
+  public long getEndTime() {
+    return endTime;
+  }
+
+  /**
+   * @return true if the result of this query can no longer change, i.e. it is
+   *         a Start-End period which ended before the given time by more
+   *         than <code>closeDelay</code> milliseconds. The values of a period
+   *         which just ended may still be on their way to the history.
+   */
+  public boolean isClosed(final long now, final long closeDelay) {
+    return type == Type.RANGE && endTime < now - closeDelay;
+  }
+
+  /**
+   * @return the end of the requested period at the given time, until which
+   *         the last value of the history stands: the end of a Start-End
+   *         period (at most now), now for the last days, and
+   *         <code>Long.MIN_VALUE</code> for the last records, which have no
+   *         end beyond their last point
+   */
+  public long getPeriodEnd(final long now) {
+    switch (type) {
+      case RANGE:
+        return Math.min(endTime, now);
+      case DAYS:
+        return now;
+      default:
+        return Long.MIN_VALUE;
+    }
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof HistoryQuery)) {
+      return false;
+    }
+    final HistoryQuery other = (HistoryQuery) o;
+    return tagId == other.tagId && type == other.type && amount == other.amount
+        && startTime == other.startTime && endTime == other.endTime;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = Long.hashCode(tagId);
+    result = 31 * result + type.hashCode();
+    result = 31 * result + amount;
+    result = 31 * result + Long.hashCode(startTime);
+    result = 31 * result + Long.hashCode(endTime);
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    switch (type) {
+      case RANGE:
+        return "tag " + tagId + " from " + new Timestamp(startTime) + " to " + new Timestamp(endTime);
+      default:
+        return "tag " + tagId + " last " + amount + " " + type.name().toLowerCase();
+    }
+  }
+}
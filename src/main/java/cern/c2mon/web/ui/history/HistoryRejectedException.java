@@ -0,0 +1,41 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Exception representing a history request rejected because it would load
+ * more history points than a user is allowed to at once. Answered with a
+ * 400 (Bad Request), as the same request would be rejected again.
+ */
+@ResponseStatus(value = HttpStatus.BAD_REQUEST, reason = "The requested history is too large, please request a shorter period or fewer records")
+public class HistoryRejectedException extends RuntimeException {
+
+  /**
+   *
+   */
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Constructs the exception with a default message
+   */
+  public HistoryRejectedException() {
+    super("The requested history is too large, please request a shorter period or fewer records");
+  }
+}
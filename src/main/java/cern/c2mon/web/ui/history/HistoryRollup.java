@@ -0,0 +1,220 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.util.Arrays;
+
+/**
+ * Aggregation of a tag history into fixed-width time buckets. Each bucket
+ * holds the minimum, maximum, mean, count, first and last value of the points
+ * it contains. Only buckets containing at least one point are kept.
+ *
+ * The rollup is filled in a single pass with {@link #add(long, double)}, the
+ * points being given in ascending time order. Values are kept in primitive
+ * arrays, which are serialised as is to JSON.
+ */
+public class HistoryRollup {
+
+  /**
+   * Supported bucket widths
+   */
+  public enum Interval {
+    MINUTE(60 * 1000L),
+    HOUR(60 * 60 * 1000L),
+    DAY(24 * 60 * 60 * 1000L);
+
+    /** Width of the bucket in milliseconds */
+    private final long millis;
+
+    Interval(final long millis) {
+      this.millis = millis;
+    }
+
+    /**
+     * @return width of the bucket in milliseconds
+     */
+    public long getMillis() {
+      return millis;
+    }
+  }
+
+  /** Initial number of buckets allocated if no estimate is given */
+  private static final int DEFAULT_CAPACITY = 64;
+
+  /** Bucket width */
+  private final Interval interval;
+
+  /** Start time of each bucket (epoch milliseconds, aligned to the width) */
+  private long[] timestamps;
+
+  private double[] min;
+
+  private double[] max;
+
+  /** Sum of the values, turned into the mean on retrieval */
+  private double[] sum;
+
+  private int[] count;
+
+  private double[] first;
+
+  private double[] last;
+
+  /** Number of buckets in use */
+  private int size = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param interval the bucket width
+   * @param expectedBuckets estimated number of buckets, used to size the
+   *          arrays up front (0 if unknown)
+   */
+  public HistoryRollup(final Interval interval, final int expectedBuckets) {
+    this.interval = interval;
+
+    final int capacity = expectedBuckets > 0 ? expectedBuckets : DEFAULT_CAPACITY;
+    timestamps = new long[capacity];
+    min = new double[capacity];
+    max = new double[capacity];
+    sum = new double[capacity];
+    count = new int[capacity];
+    first = new double[capacity];
+    last = new double[capacity];
+  }
+
+  /**
+   * Adds a point to the rollup. Points must be added in ascending time order.
+   *
+   * @param timestamp time of the point (epoch milliseconds)
+   * @param value value of the point. NaN values are ignored.
+   */
+  public void add(final long timestamp, final double value) {
+    if (Double.isNaN(value)) {
+      return;
+    }
+
+    final long bucket = timestamp - Math.floorMod(timestamp, interval.getMillis());
+    final int i = size - 1;
+
+    if (size > 0 && timestamps[i] == bucket) {
+      if (value < min[i]) {
+        min[i] = value;
+      }
+      if (value > max[i]) {
+        max[i] = value;
+      }
+      sum[i] += value;
+      count[i]++;
+      last[i] = value;
+      return;
+    }
+
+    if (size == timestamps.length) {
+      grow();
+    }
+    timestamps[size] = bucket;
+    min[size] = value;
+    max[size] = value;
+    sum[size] = value;
+    count[size] = 1;
+    first[size] = value;
+    last[size] = value;
+    size++;
+  }
+
+  /**
+   * Doubles the capacity of all the bucket arrays.
+   */
+  private void grow() {
+    final int capacity = timestamps.length * 2;
+    timestamps = Arrays.copyOf(timestamps, capacity);
+    min = Arrays.copyOf(min, capacity);
+    max = Arrays.copyOf(max, capacity);
+    sum = Arrays.copyOf(sum, capacity);
+    count = Arrays.copyOf(count, capacity);
+    first = Arrays.copyOf(first, capacity);
+    last = Arrays.copyOf(last, capacity);
+  }
+
+  /**
+   * @return the bucket width
+   */
+  public Interval getInterval() {
+    return interval;
+  }
+
+  /**
+   * @return the number of (non-empty) buckets
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @return the start time of each bucket
+   */
+  public long[] getTimestamps() {
+    return Arrays.copyOf(timestamps, size);
+  }
+
+  /**
+   * @return the minimum value of each bucket
+   */
+  public double[] getMin() {
+    return Arrays.copyOf(min, size);
+  }
+
+  /**
+   * @return the maximum value of each bucket
+   */
+  public double[] getMax() {
+    return Arrays.copyOf(max, size);
+  }
+
+  /**
+   * @return the mean value of each bucket
+   */
+  public double[] getMean() {
+    final double[] mean = new double[size];
+    for (int i = 0; i < size; i++) {
+      mean[i] = sum[i] / count[i];
+    }
+    return mean;
+  }
+
+  /**
+   * @return the number of points in each bucket
+   */
+  public int[] getCount() {
+    return Arrays.copyOf(count, size);
+  }
+
+  /**
+   * @return the first value of each bucket
+   */
+  public double[] getFirst() {
+    return Arrays.copyOf(first, size);
+  }
+
+  /**
+   * @return the last value of each bucket
+   */
+  public double[] getLast() {
+    return Arrays.copyOf(last, size);
+  }
+}
@@ -0,0 +1,342 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/**
+ * Binary file format of a {@link HistorySeries}, used by the on-disk history
+ * cache. A segment file is written once and never modified.
+ *
+ * Each column is stored on its own, in point order:
+ * <ul>
+ * <li>server timestamps, as the first timestamp followed by the deltas
+ * between consecutive points (variable length integers)</li>
+ * <li>source timestamps, as their distance to the server timestamp</li>
+ * <li>values, as raw doubles, and the exact integral values if any, as
+ * variable length integers</li>
+ * <li>quality validity, presence of alarms and missing source timestamps,
+ * as bit sets</li>
+ * <li>quality descriptions, value descriptions and non-numeric values, as
+ * dictionary codes (variable length integers) following the
+ * dictionaries</li>
+ * </ul>
+ *
+ * The header holds the version of the format and the time the segment was
+ * written, so that the segments of an older format, or written too early
+ * or too long ago, can be recognised and discarded.
+ *
+ * Segments are read whole and decoded into a new series: the columns are
+ * delta and variable length encoded, so a series cannot be served from a
+ * memory-mapped file without decoding it first anyway.
+ */
+public final class HistorySegment {
+
+  /** First bytes of a segment file */
+  private static final int MAGIC = 0x43324853;
+
+  /** Version of the format, to be increased on every change of the format */
+  private static final int VERSION = 3;
+
+  /** Length of the header: magic, version and write time */
+  private static final int HEADER_LENGTH = 16;
+
+  private HistorySegment() {
+  }
+
+  /**
+   * Writes a series to a file, replacing the file if it exists.
+   *
+   * @param series the series to write
+   * @param file the segment file
+   * @throws IOException in case the file cannot be written
+   */
+  public static void write(final HistorySeries series, final Path file) throws IOException {
+    write(series, file, System.currentTimeMillis());
+  }
+
+  /**
+   * Same as {@link #write(HistorySeries, Path)}, with the write time recorded
+   * in the header.
+   */
+  static void write(final HistorySeries series, final Path file, final long writeTime) throws IOException {
+    try (OutputStream fileOut = Files.newOutputStream(file);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+      final int size = series.size();
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(writeTime);
+      out.writeInt(size);
+      writeString(out, series.getValueClassName());
+
+      long previous = 0;
+      final BitSet noSource = new BitSet(size);
+      for (int i = 0; i < size; i++) {
+        final long timestamp = series.getServerTimestamp(i);
+        writeVarLong(out, zigZag(timestamp - previous));
+        previous = timestamp;
+      }
+      for (int i = 0; i < size; i++) {
+        final long source = series.getSourceTimestamp(i);
+        if (source == HistorySeries.NO_TIMESTAMP) {
+          noSource.set(i);
+          writeVarLong(out, 0);
+        } else {
+          writeVarLong(out, zigZag(series.getServerTimestamp(i) - source));
+        }
+      }
+      for (final double value : series.getValues()) {
+        out.writeDouble(value);
+      }
+      final long[] longValues = series.getLongValues();
+      out.writeBoolean(longValues != null);
+      if (longValues != null) {
+        for (final long value : longValues) {
+          writeVarLong(out, zigZag(value));
+        }
+      }
+
+      writeBitSet(out, series.getInvalid());
+      writeBitSet(out, series.getAlarms());
+      writeBitSet(out, noSource);
+
+      writeDictionary(out, series.getQualityDescriptions(), series.getQualityCodes());
+      writeDictionary(out, series.getValueDescriptions(), series.getValueDescriptionCodes());
+      final int[] textCodes = series.getTextCodes();
+      out.writeBoolean(textCodes != null);
+      if (textCodes != null) {
+        // shifted so that NO_TEXT is stored as 0
+        final int[] shiftedCodes = new int[size];
+        for (int i = 0; i < size; i++) {
+          shiftedCodes[i] = textCodes[i] + 1;
+        }
+        writeDictionary(out, series.getTexts(), shiftedCodes);
+      }
+    }
+  }
+
+  /**
+   * Reads a series from a file.
+   *
+   * @param file the segment file
+   * @return the series stored in the file
+   * @throws IOException in case the file cannot be read or is not a valid
+   *           segment file
+   */
+  public static HistorySeries read(final Path file) throws IOException {
+    final ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+
+    try {
+      if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+        throw new IOException("Not a history segment of version " + VERSION + ": " + file);
+      }
+      in.getLong();
+      final int size = readLength(in, 1);
+      final String valueClassName = readString(in);
+
+      final long[] serverTimestamps = new long[size];
+      long previous = 0;
+      for (int i = 0; i < size; i++) {
+        previous += unZigZag(readVarLong(in));
+        serverTimestamps[i] = previous;
+      }
+      final long[] sourceTimestamps = new long[size];
+      for (int i = 0; i < size; i++) {
+        sourceTimestamps[i] = serverTimestamps[i] - unZigZag(readVarLong(in));
+      }
+      final double[] values = new double[size];
+      in.asDoubleBuffer().get(values);
+      in.position(in.position() + size * Double.BYTES);
+      long[] longValues = null;
+      if (in.get() != 0) {
+        longValues = new long[size];
+        for (int i = 0; i < size; i++) {
+          longValues[i] = unZigZag(readVarLong(in));
+        }
+      }
+
+      final BitSet invalid = readBitSet(in);
+      final BitSet alarms = readBitSet(in);
+      final BitSet noSource = readBitSet(in);
+      for (int i = noSource.nextSetBit(0); i >= 0; i = noSource.nextSetBit(i + 1)) {
+        sourceTimestamps[i] = HistorySeries.NO_TIMESTAMP;
+      }
+
+      final String[] qualities = readDictionary(in);
+      final int[] qualityCodes = readCodes(in, size);
+      final String[] descriptions = readDictionary(in);
+      final int[] descriptionCodes = readCodes(in, size);
+      String[] texts = new String[0];
+      int[] textCodes = null;
+      if (in.get() != 0) {
+        texts = readDictionary(in);
+        textCodes = readCodes(in, size);
+        for (int i = 0; i < size; i++) {
+          textCodes[i]--;
+        }
+      }
+
+      return new HistorySeries(valueClassName, size, serverTimestamps, sourceTimestamps, values, longValues, invalid,
+          alarms, qualityCodes, qualities, descriptionCodes, descriptions, textCodes, texts);
+
+    } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+      throw new IOException("Truncated or corrupted history segment: " + file, e);
+    }
+  }
+
+  /**
+   * Reads the header of a segment file only.
+   *
+   * @param file the segment file
+   * @return the time the segment was written, in epoch milliseconds
+   * @throws IOException in case the file cannot be read, or is not a segment
+   *           file of the current version
+   */
+  public static long readWriteTime(final Path file) throws IOException {
+    final ByteBuffer in = ByteBuffer.allocate(HEADER_LENGTH);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      while (in.hasRemaining() && channel.read(in) >= 0) {
+        // until the header is read or the file ends
+      }
+    }
+    in.flip();
+    if (in.remaining() < HEADER_LENGTH || in.getInt() != MAGIC || in.getInt() != VERSION) {
+      throw new IOException("Not a history segment of version " + VERSION + ": " + file);
+    }
+    return in.getLong();
+  }
+
+  private static long zigZag(final long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(final long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static void writeVarLong(final DataOutputStream out, final long value) throws IOException {
+    long v = value;
+    while ((v & ~0x7FL) != 0) {
+      out.writeByte((int) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.writeByte((int) v);
+  }
+
+  private static long readVarLong(final ByteBuffer in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final byte b = in.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed variable length integer");
+  }
+
+  private static void writeString(final DataOutputStream out, final String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Reads the number of items of a column, checking it against the rest of
+   * the file before anything is allocated for them.
+   *
+   * @param bytesPerItem the minimum length of an item, in bytes
+   * @throws IOException in case the file is too short for that many items
+   */
+  private static int readLength(final ByteBuffer in, final int bytesPerItem) throws IOException {
+    return checkLength(in, in.getInt(), bytesPerItem);
+  }
+
+  private static int checkLength(final ByteBuffer in, final int length, final int bytesPerItem) throws IOException {
+    if (length < 0 || length > in.remaining() / bytesPerItem) {
+      throw new IOException("Invalid length " + length + " before position " + in.position());
+    }
+    return length;
+  }
+
+  private static String readString(final ByteBuffer in) throws IOException {
+    final int length = in.getInt();
+    if (length < 0) {
+      return null;
+    }
+    final byte[] bytes = new byte[checkLength(in, length, 1)];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeBitSet(final DataOutputStream out, final BitSet bits) throws IOException {
+    final long[] words = bits.toLongArray();
+    out.writeInt(words.length);
+    for (final long word : words) {
+      out.writeLong(word);
+    }
+  }
+
+  private static BitSet readBitSet(final ByteBuffer in) throws IOException {
+    final long[] words = new long[readLength(in, Long.BYTES)];
+    in.asLongBuffer().get(words);
+    in.position(in.position() + words.length * Long.BYTES);
+    return BitSet.valueOf(words);
+  }
+
+  private static void writeDictionary(final DataOutputStream out, final String[] words, final int[] codes)
+      throws IOException {
+    out.writeInt(words.length);
+    for (final String word : words) {
+      writeString(out, word);
+    }
+    for (final int code : codes) {
+      writeVarLong(out, code);
+    }
+  }
+
+  private static String[] readDictionary(final ByteBuffer in) throws IOException {
+    final String[] words = new String[readLength(in, Integer.BYTES)];
+    for (int i = 0; i < words.length; i++) {
+      words[i] = readString(in);
+    }
+    return words;
+  }
+
+  private static int[] readCodes(final ByteBuffer in, final int size) throws IOException {
+    final int[] codes = new int[size];
+    for (int i = 0; i < size; i++) {
+      codes[i] = (int) readVarLong(in);
+    }
+    return codes;
+  }
+}
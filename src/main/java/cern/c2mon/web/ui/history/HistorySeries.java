@@ -0,0 +1,535 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.client.ext.history.updates.HistoryTagValueUpdateImpl;
+
+/**
+ * Compact, column oriented copy of a tag history, used by the trend views and
+ * the exports.
+ *
+ * Every history point is stored in primitive arrays (timestamps, numeric
+ * value, exact integral value) and bit sets (quality validity, presence of alarms). The quality
+ * descriptions, value descriptions and non-numeric values only take a few
+ * distinct values over a history, so they are dictionary encoded: each point
+ * holds the index of its string in a per-series dictionary.
+ *
+ * A series is immutable once built and can therefore be shared between
+ * requests.
+ */
+public final class HistorySeries {
+
+  /** Source timestamp of the points which do not have one */
+  public static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+  /** Dictionary code of the points without text value */
+  static final int NO_TEXT = -1;
+
+  /** Class name of the tag values, as given by the first point */
+  private final String valueClassName;
+
+  private final int size;
+
+  /** Server timestamps, epoch milliseconds */
+  private final long[] serverTimestamps;
+
+  /** Source timestamps, epoch milliseconds, or {@link #NO_TIMESTAMP} */
+  private final long[] sourceTimestamps;
+
+  /**
+   * Values as numbers (booleans as 0 or 1, numeric strings parsed), NaN for
+   * missing and non-numeric values
+   */
+  private final double[] values;
+
+  /**
+   * Exact values of the integral points (Long, Integer, Short, Byte), which a
+   * double cannot hold above 2^53, or <code>null</code> if the series has
+   * none
+   */
+  private final long[] longValues;
+
+  /** Points with an invalid quality */
+  private final BitSet invalid;
+
+  /** Points carrying alarms */
+  private final BitSet alarms;
+
+  private final int[] qualityCodes;
+
+  private final String[] qualities;
+
+  private final int[] descriptionCodes;
+
+  private final String[] descriptions;
+
+  /**
+   * Dictionary codes of the non-numeric values ({@link #NO_TEXT} for the
+   * others), or <code>null</code> if the series is entirely numeric
+   */
+  private final int[] textCodes;
+
+  private final String[] texts;
+
+  HistorySeries(final String valueClassName, final int size, final long[] serverTimestamps,
+      final long[] sourceTimestamps, final double[] values, final long[] longValues, final BitSet invalid, final BitSet alarms,
+      final int[] qualityCodes, final String[] qualities, final int[] descriptionCodes, final String[] descriptions,
+      final int[] textCodes, final String[] texts) {
+    this.valueClassName = valueClassName;
+    this.size = size;
+    this.serverTimestamps = serverTimestamps;
+    this.sourceTimestamps = sourceTimestamps;
+    this.values = values;
+    this.longValues = longValues;
+    this.invalid = invalid;
+    this.alarms = alarms;
+    this.qualityCodes = qualityCodes;
+    this.qualities = qualities;
+    this.descriptionCodes = descriptionCodes;
+    this.descriptions = descriptions;
+    this.textCodes = textCodes;
+    this.texts = texts;
+  }
+
+  /**
+   * Builds the columnar copy of a history in a single pass. The given list
+   * is not referenced by the series, and can be released afterwards.
+   *
+   * @param historyValues the history points, sorted by server timestamp
+   * @return the series holding the same points
+   */
+  public static HistorySeries of(final List<HistoryTagValueUpdate> historyValues) {
+    final int size = historyValues.size();
+    final long[] serverTimestamps = new long[size];
+    final long[] sourceTimestamps = new long[size];
+    final double[] values = new double[size];
+    final BitSet invalid = new BitSet(size);
+    final BitSet alarms = new BitSet(size);
+    final int[] qualityCodes = new int[size];
+    final int[] descriptionCodes = new int[size];
+    long[] longValues = null;
+    int[] textCodes = null;
+
+    final Dictionary qualities = new Dictionary();
+    final Dictionary descriptions = new Dictionary();
+    final Dictionary texts = new Dictionary();
+
+    for (int i = 0; i < size; i++) {
+      final HistoryTagValueUpdate h = historyValues.get(i);
+      serverTimestamps[i] = h.getServerTimestamp().getTime();
+      sourceTimestamps[i] = h.getSourceTimestamp() != null ? h.getSourceTimestamp().getTime() : NO_TIMESTAMP;
+
+      final Object value = h.getValue();
+      if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+        values[i] = ((Number) value).doubleValue();
+        if (longValues == null) {
+          longValues = new long[size];
+        }
+        longValues[i] = ((Number) value).longValue();
+      } else if (value instanceof Number) {
+        values[i] = ((Number) value).doubleValue();
+      } else if (value instanceof Boolean) {
+        values[i] = ((Boolean) value) ? 1 : 0;
+      } else if (value == null) {
+        values[i] = Double.NaN;
+      } else {
+        final String text = value.toString();
+        values[i] = parseDouble(text);
+        if (textCodes == null) {
+          textCodes = new int[size];
+          Arrays.fill(textCodes, NO_TEXT);
+        }
+        textCodes[i] = texts.encode(text);
+      }
+
+      if (!h.getDataTagQuality().isValid()) {
+        invalid.set(i);
+      }
+      qualityCodes[i] = qualities.encode(h.getDataTagQuality().getDescription());
+      descriptionCodes[i] = descriptions.encode(h.getValueDescription());
+
+      if (h instanceof HistoryTagValueUpdateImpl) {
+        final Collection<?> pointAlarms = ((HistoryTagValueUpdateImpl) h).getAlarms();
+        if (pointAlarms != null && !pointAlarms.isEmpty()) {
+          alarms.set(i);
+        }
+      }
+    }
+
+    final String valueClassName = size > 0 ? historyValues.get(0).getValueClassName() : null;
+    return new HistorySeries(valueClassName, size, serverTimestamps, sourceTimestamps, values, longValues, invalid,
+        alarms, qualityCodes, qualities.toArray(), descriptionCodes, descriptions.toArray(),
+        textCodes, texts.toArray());
+  }
+
+  /**
+   * @return the number represented by the given string, or NaN if it is not
+   *         numeric
+   */
+  private static double parseDouble(final String text) {
+    try {
+      return Double.parseDouble(text);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  /**
+   * @return a new series holding the points at the given indices, which
+   *         must be sorted in ascending order. The dictionaries are shared.
+   */
+  public HistorySeries select(final int[] indices) {
+    final int n = indices.length;
+    final long[] selectedServerTimestamps = new long[n];
+    final long[] selectedSourceTimestamps = new long[n];
+    final double[] selectedValues = new double[n];
+    final long[] selectedLongValues = longValues != null ? new long[n] : null;
+    final BitSet selectedInvalid = new BitSet(n);
+    final BitSet selectedAlarms = new BitSet(n);
+    final int[] selectedQualityCodes = new int[n];
+    final int[] selectedDescriptionCodes = new int[n];
+    final int[] selectedTextCodes = textCodes != null ? new int[n] : null;
+
+    for (int i = 0; i < n; i++) {
+      final int index = indices[i];
+      selectedServerTimestamps[i] = serverTimestamps[index];
+      selectedSourceTimestamps[i] = sourceTimestamps[index];
+      selectedValues[i] = values[index];
+      if (selectedLongValues != null) {
+        selectedLongValues[i] = longValues[index];
+      }
+      selectedInvalid.set(i, invalid.get(index));
+      selectedAlarms.set(i, alarms.get(index));
+      selectedQualityCodes[i] = qualityCodes[index];
+      selectedDescriptionCodes[i] = descriptionCodes[index];
+      if (selectedTextCodes != null) {
+        selectedTextCodes[i] = textCodes[index];
+      }
+    }
+
+    return new HistorySeries(valueClassName, n, selectedServerTimestamps, selectedSourceTimestamps, selectedValues,
+        selectedLongValues, selectedInvalid, selectedAlarms, selectedQualityCodes, qualities, selectedDescriptionCodes, descriptions,
+        selectedTextCodes, texts);
+  }
+
+  /**
+   * @return a new series holding the points from index <code>from</code>
+   *         (inclusive) to <code>to</code> (exclusive). The dictionaries are
+   *         shared.
+   */
+  public HistorySeries slice(final int from, final int to) {
+    final int[] indices = new int[to - from];
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = from + i;
+    }
+    return select(indices);
+  }
+
+  /**
+   * @return a new series holding the points of the given series one after the
+   *         other, which must follow each other in time. The dictionaries are
+   *         merged.
+   */
+  public static HistorySeries concat(final List<HistorySeries> parts) {
+    int size = 0;
+    String valueClassName = null;
+    boolean hasLongValues = false;
+    boolean hasTexts = false;
+    for (final HistorySeries part : parts) {
+      size += part.size;
+      if (valueClassName == null) {
+        valueClassName = part.valueClassName;
+      }
+      hasLongValues |= part.longValues != null;
+      hasTexts |= part.textCodes != null;
+    }
+
+    final long[] serverTimestamps = new long[size];
+    final long[] sourceTimestamps = new long[size];
+    final double[] values = new double[size];
+    final long[] longValues = hasLongValues ? new long[size] : null;
+    final BitSet invalid = new BitSet(size);
+    final BitSet alarms = new BitSet(size);
+    final int[] qualityCodes = new int[size];
+    final int[] descriptionCodes = new int[size];
+    final int[] textCodes = hasTexts ? new int[size] : null;
+
+    final Dictionary qualities = new Dictionary();
+    final Dictionary descriptions = new Dictionary();
+    final Dictionary texts = new Dictionary();
+
+    int offset = 0;
+    for (final HistorySeries part : parts) {
+      System.arraycopy(part.serverTimestamps, 0, serverTimestamps, offset, part.size);
+      System.arraycopy(part.sourceTimestamps, 0, sourceTimestamps, offset, part.size);
+      System.arraycopy(part.values, 0, values, offset, part.size);
+      if (part.longValues != null) {
+        System.arraycopy(part.longValues, 0, longValues, offset, part.size);
+      }
+      for (int i = 0; i < part.size; i++) {
+        invalid.set(offset + i, part.invalid.get(i));
+        alarms.set(offset + i, part.alarms.get(i));
+        qualityCodes[offset + i] = qualities.encode(part.qualities[part.qualityCodes[i]]);
+        descriptionCodes[offset + i] = descriptions.encode(part.descriptions[part.descriptionCodes[i]]);
+        if (textCodes != null) {
+          final int code = part.textCodes != null ? part.textCodes[i] : NO_TEXT;
+          textCodes[offset + i] = code != NO_TEXT ? texts.encode(part.texts[code]) : NO_TEXT;
+        }
+      }
+      offset += part.size;
+    }
+
+    return new HistorySeries(valueClassName, size, serverTimestamps, sourceTimestamps, values, longValues, invalid,
+        alarms, qualityCodes, qualities.toArray(), descriptionCodes, descriptions.toArray(),
+        textCodes, texts.toArray());
+  }
+
+  /**
+   * @return the index of the first point whose server timestamp is not before
+   *         the given time, or the size of the series if there is none
+   */
+  public int indexOf(final long time) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (serverTimestamps[middle] < time) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return the number of points
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the class name of the tag values, or <code>null</code> if the
+   *         series is empty
+   */
+  public String getValueClassName() {
+    return valueClassName;
+  }
+
+  /**
+   * @return True if the series represents Boolean Data
+   */
+  public boolean isBooleanData() {
+    return valueClassName != null && valueClassName.contains("Boolean");
+  }
+
+  /**
+   * @return the server timestamps of all points. The array is shared and must
+   *         not be modified.
+   */
+  public long[] getServerTimestamps() {
+    return serverTimestamps;
+  }
+
+  /**
+   * @return the server timestamp of a point, in epoch milliseconds
+   */
+  public long getServerTimestamp(final int i) {
+    return serverTimestamps[i];
+  }
+
+  /**
+   * @return the source timestamp of a point, in epoch milliseconds, or
+   *         {@link #NO_TIMESTAMP}
+   */
+  public long getSourceTimestamp(final int i) {
+    return sourceTimestamps[i];
+  }
+
+  /**
+   * @return the value of a point as a number (booleans as 0 or 1), or NaN if
+   *         it is missing or not numeric
+   */
+  public double getValue(final int i) {
+    return values[i];
+  }
+
+  /**
+   * @return the value of a point as it was given by the server: a Number, a
+   *         Boolean, a String or <code>null</code>. Integral values are
+   *         returned exactly, as Long.
+   */
+  public Object getValueObject(final int i) {
+    if (textCodes != null && textCodes[i] != NO_TEXT) {
+      return texts[textCodes[i]];
+    }
+
+    final double value = values[i];
+    if (Double.isNaN(value) || valueClassName == null) {
+      return null;
+    } else if (isBooleanData()) {
+      return value != 0;
+    } else if (valueClassName.endsWith("Float")) {
+      return (float) value;
+    } else if (valueClassName.endsWith("Long") || valueClassName.endsWith("Integer")
+        || valueClassName.endsWith("Short") || valueClassName.endsWith("Byte")) {
+      return longValues != null ? longValues[i] : (long) value;
+    }
+    return value;
+  }
+
+  /**
+   * @return True if the quality of a point is valid
+   */
+  public boolean isValid(final int i) {
+    return !invalid.get(i);
+  }
+
+  /**
+   * @return the points with an invalid quality. The bit set is shared and
+   *         must not be modified.
+   */
+  public BitSet getInvalid() {
+    return invalid;
+  }
+
+  /**
+   * @return the quality description of a point
+   */
+  public String getQualityDescription(final int i) {
+    return qualities[qualityCodes[i]];
+  }
+
+  /**
+   * @return the value description of a point
+   */
+  public String getValueDescription(final int i) {
+    return descriptions[descriptionCodes[i]];
+  }
+
+  /**
+   * @return the dictionary code of the quality description of each point,
+   *         an index in {@link #getQualityDescriptions()}. The array is
+   *         shared and must not be modified.
+   */
+  public int[] getQualityCodes() {
+    return qualityCodes;
+  }
+
+  /**
+   * @return the distinct quality descriptions of the series. The array is
+   *         shared and must not be modified.
+   */
+  public String[] getQualityDescriptions() {
+    return qualities;
+  }
+
+  /**
+   * @return the dictionary code of the value description of each point, an
+   *         index in {@link #getValueDescriptions()}. The array is shared and
+   *         must not be modified.
+   */
+  public int[] getValueDescriptionCodes() {
+    return descriptionCodes;
+  }
+
+  /**
+   * @return the distinct value descriptions of the series. The array is
+   *         shared and must not be modified.
+   */
+  public String[] getValueDescriptions() {
+    return descriptions;
+  }
+
+  /**
+   * @return True if alarms were attached to a point
+   */
+  public boolean hasAlarms(final int i) {
+    return alarms.get(i);
+  }
+
+  /*
+   * Raw columns, used to store the series in a segment file
+   */
+
+  long[] getSourceTimestamps() {
+    return sourceTimestamps;
+  }
+
+  double[] getValues() {
+    return values;
+  }
+
+  /**
+   * @return the exact values of the integral points, or <code>null</code> if
+   *         the series has none
+   */
+  long[] getLongValues() {
+    return longValues;
+  }
+
+  BitSet getAlarms() {
+    return alarms;
+  }
+
+  /**
+   * @return the dictionary codes of the non-numeric values, or
+   *         <code>null</code> if the series is entirely numeric
+   */
+  int[] getTextCodes() {
+    return textCodes;
+  }
+
+  String[] getTexts() {
+    return texts;
+  }
+
+  /**
+   * Assigns consecutive codes to distinct strings, <code>null</code> being a
+   * string of its own.
+   */
+  private static final class Dictionary {
+
+    private final Map<String, Integer> codes = new HashMap<>();
+
+    private final List<String> words = new ArrayList<>();
+
+    private int encode(final String word) {
+      Integer code = codes.get(word);
+      if (code == null) {
+        code = words.size();
+        codes.put(word, code);
+        words.add(word);
+      }
+      return code;
+    }
+
+    private String[] toArray() {
+      return words.toArray(new String[words.size()]);
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import cern.c2mon.client.ext.history.common.exception.HistoryProviderException;
+import cern.c2mon.client.ext.history.common.exception.LoadingParameterException;
+
+/**
+ * Serves loaded tag histories of one representation from two cache tiers:
+ * one for the windows relative to now, and one for the periods which ended
+ * in the past (whose result cannot change any more).
+ *
+ * Identical queries arriving concurrently are coalesced: a tag whose history
+ * is already being loaded by another request is not loaded again, the result
+ * of the other request is awaited instead.
+ *
+ * @param <V> the representation of the histories
+ */
+public class HistoryStore<V> {
+
+  /**
+   * Loads the history of several tags with a single round trip
+   */
+  @FunctionalInterface
+  public interface Loader<V> {
+
+    /**
+     * @return the history of every given tag
+     * @throws HistoryProviderException in case a HistoryProvider cannot be created
+     * @throws LoadingParameterException in case of an invalid configurations
+     */
+    Map<Long, V> load(Collection<Long> tagIds) throws HistoryProviderException, LoadingParameterException;
+  }
+
+  /** Cache of the recently loaded histories, for windows relative to now */
+  private final HistoryCache<V> recentCache;
+
+  /** Cache of the histories of periods which ended in the past */
+  private final HistoryCache<V> closedCache;
+
+  /** History loads in progress, shared by identical concurrent queries */
+  private final ConcurrentMap<HistoryQuery, CompletableFuture<V>> inFlightLoads = new ConcurrentHashMap<>();
+
+  /** Number of queries answered by a load started by another request */
+  private final AtomicLong coalescedLoads = new AtomicLong();
+
+  /** Time after its end before a period is closed, in milliseconds */
+  private final long closeDelay;
+
+  /**
+   * Constructor.
+   *
+   * @param recentCache cache of the windows relative to now
+   * @param closedCache cache of the periods which ended in the past
+   * @param closeDelay time after its end before a period is closed, in
+   *          milliseconds, see {@link HistoryQuery#isClosed(long, long)}
+   */
+  public HistoryStore(final HistoryCache<V> recentCache, final HistoryCache<V> closedCache, final long closeDelay) {
+    this.recentCache = recentCache;
+    this.closedCache = closedCache;
+    this.closeDelay = closeDelay;
+  }
+
+  /**
+   * Returns the history of the given tags from the caches, loading the tags
+   * which are not cached with a single call to the loader.
+   *
+   * @param tagIds The tag ids whose history we are looking for
+   * @param queryOf gives the cache key of each tag
+   * @param loader loads the tags which are neither cached nor being loaded
+   *
+   * @throws HistoryProviderException in case a HistoryProvider cannot be created
+   * @throws LoadingParameterException in case of an invalid configurations
+   * @return the history of every requested tag, in the order of the given ids
+   */
+  public Map<Long, V> get(final Collection<Long> tagIds, final Function<Long, HistoryQuery> queryOf,
+      final Loader<V> loader) throws HistoryProviderException, LoadingParameterException {
+
+    final Map<Long, V> historyValues = new LinkedHashMap<>();
+
+    // Tags to be loaded by this request, and tags already being loaded by a
+    // concurrent request with identical parameters
+    final Map<Long, CompletableFuture<V>> ownLoads = new LinkedHashMap<>();
+    final Map<Long, CompletableFuture<V>> sharedLoads = new LinkedHashMap<>();
+
+    for (final Long tagId : tagIds) {
+      final HistoryQuery query = queryOf.apply(tagId);
+      V cached = getCache(query).get(query);
+      if (cached == null) {
+        final CompletableFuture<V> load = new CompletableFuture<>();
+        final CompletableFuture<V> inFlight = inFlightLoads.putIfAbsent(query, load);
+        if (inFlight != null) {
+          sharedLoads.put(tagId, inFlight);
+          coalescedLoads.incrementAndGet();
+        } else {
+          // the previous load may have completed since the cache was checked,
+          // this second look is not counted in the cache statistics
+          cached = getCache(query).peek(query);
+          if (cached != null) {
+            load.complete(cached);
+            inFlightLoads.remove(query, load);
+          } else {
+            ownLoads.put(tagId, load);
+          }
+        }
+      }
+      historyValues.put(tagId, cached);
+    }
+
+    if (!ownLoads.isEmpty()) {
+      try {
+        final Map<Long, V> loaded = loader.load(ownLoads.keySet());
+        for (final Long tagId : ownLoads.keySet()) {
+          final HistoryQuery query = queryOf.apply(tagId);
+          final V values = getCache(query).put(query, loaded.get(tagId));
+          historyValues.put(tagId, values);
+          ownLoads.get(tagId).complete(values);
+        }
+      } catch (Throwable e) {
+        // any failure, errors included, must release the requests waiting
+        // for these loads
+        ownLoads.values().forEach(load -> load.completeExceptionally(e));
+        throw e;
+      } finally {
+        for (final Long tagId : ownLoads.keySet()) {
+          inFlightLoads.remove(queryOf.apply(tagId), ownLoads.get(tagId));
+        }
+      }
+    }
+
+    for (final Long tagId : sharedLoads.keySet()) {
+      historyValues.put(tagId, awaitLoad(sharedLoads.get(tagId)));
+    }
+    return historyValues;
+  }
+
+  /**
+   * Waits for a history load started by another request.
+   *
+   * @return the history loaded by the other request
+   * @throws HistoryProviderException in case the other request failed to get
+   *           a HistoryProvider, or the wait was interrupted
+   * @throws LoadingParameterException in case the other request had an invalid
+   *           configuration
+   */
+  private static <V> V awaitLoad(final CompletableFuture<V> load)
+      throws HistoryProviderException, LoadingParameterException {
+    try {
+      return load.get();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HistoryProviderException("Interrupted while waiting for the history to be loaded.");
+    }
+    catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof HistoryProviderException) {
+        throw (HistoryProviderException) cause;
+      } else if (cause instanceof LoadingParameterException) {
+        throw (LoadingParameterException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new HistoryProviderException("The history could not be loaded: " + cause.getMessage());
+    }
+  }
+
+  /**
+   * @return the cache tier holding the result of the given query
+   */
+  private HistoryCache<V> getCache(final HistoryQuery query) {
+    return query.isClosed(System.currentTimeMillis(), closeDelay) ? closedCache : recentCache;
+  }
+
+  /**
+   * @return the hit, miss and eviction counters of both cache tiers, and the
+   *         number of coalesced loads
+   */
+  public Map<String, Map<String, Long>> getStatistics() {
+    final Map<String, Map<String, Long>> statistics = new LinkedHashMap<>();
+    statistics.put("recent", recentCache.getStatistics());
+    statistics.put("closed", closedCache.getStatistics());
+
+    final Map<String, Long> loads = new LinkedHashMap<>();
+    loads.put("inFlight", (long) inFlightLoads.size());
+    loads.put("coalesced", coalescedLoads.get());
+    statistics.put("loads", loads);
+    return statistics;
+  }
+}
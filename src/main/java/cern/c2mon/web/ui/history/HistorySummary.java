@@ -0,0 +1,220 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Statistical summary of a tag history, computed in a single pass over its
+ * points with {@link #add(long, double, boolean)}: count, minimum, maximum,
+ * mean, standard deviation, time-weighted average and approximate
+ * percentiles (from a {@link QuantileSketch}).
+ *
+ * Only the valid numeric values are summarised. In the time-weighted
+ * average, a value stands until the next point of the history (valid or
+ * not), and the last one until the end of the period.
+ */
+public class HistorySummary {
+
+  /** Percentiles given by {@link #getPercentiles()} */
+  private static final double[] PERCENTILES = { 0.01, 0.05, 0.25, 0.5, 0.75, 0.95, 0.99 };
+
+  private final QuantileSketch sketch = new QuantileSketch();
+
+  /** Number of points, including the invalid and non-numeric ones */
+  private long points = 0;
+
+  private long invalid = 0;
+
+  private long count = 0;
+
+  private double min = Double.NaN;
+
+  private double max = Double.NaN;
+
+  /** Running mean and sum of squared deviations (Welford) */
+  private double mean = 0;
+
+  private double squaredDeviations = 0;
+
+  /** Sum of the values multiplied by the time they stand, and of the times */
+  private double weightedSum = 0;
+
+  private long weightedTime = 0;
+
+  private long firstTimestamp = Long.MIN_VALUE;
+
+  /** Timestamp and value of the previous point, NaN if it is not summarised */
+  private long previousTimestamp = Long.MIN_VALUE;
+
+  private double previousValue = Double.NaN;
+
+  private long lastTimestamp = Long.MIN_VALUE;
+
+  /**
+   * Adds a point, the points being given in ascending time order.
+   *
+   * @param timestamp server timestamp of the point
+   * @param value value of the point, NaN if it is not numeric
+   * @param valid True if the quality of the point is valid
+   */
+  public void add(final long timestamp, final double value, final boolean valid) {
+    standUntil(timestamp);
+    points++;
+    if (firstTimestamp == Long.MIN_VALUE) {
+      firstTimestamp = timestamp;
+    }
+    lastTimestamp = timestamp;
+    previousTimestamp = timestamp;
+    previousValue = valid ? value : Double.NaN;
+
+    if (!valid) {
+      invalid++;
+      return;
+    }
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return;
+    }
+
+    count++;
+    min = count == 1 ? value : Math.min(min, value);
+    max = count == 1 ? value : Math.max(max, value);
+    final double delta = value - mean;
+    mean += delta / count;
+    squaredDeviations += delta * (value - mean);
+    sketch.add(value);
+  }
+
+  /**
+   * Ends the period of the history: the last value stands until then.
+   *
+   * @param endTime end of the period, in epoch milliseconds. Ignored if it is
+   *          before the last point.
+   */
+  public void finish(final long endTime) {
+    standUntil(endTime);
+    previousValue = Double.NaN;
+  }
+
+  /**
+   * Weights the previous value by the time it stood.
+   */
+  private void standUntil(final long timestamp) {
+    if (!Double.isNaN(previousValue) && !Double.isInfinite(previousValue) && timestamp > previousTimestamp) {
+      final long duration = timestamp - previousTimestamp;
+      weightedSum += previousValue * duration;
+      weightedTime += duration;
+      previousTimestamp = timestamp;
+    }
+  }
+
+  /**
+   * @return the number of points of the history
+   */
+  public long getPoints() {
+    return points;
+  }
+
+  /**
+   * @return the number of points with an invalid quality
+   */
+  public long getInvalid() {
+    return invalid;
+  }
+
+  /**
+   * @return the number of summarised (valid and numeric) values
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return the server timestamp of the first point, or <code>null</code> if
+   *         the history is empty
+   */
+  public Long getStart() {
+    return points > 0 ? firstTimestamp : null;
+  }
+
+  /**
+   * @return the server timestamp of the last point, or <code>null</code> if
+   *         the history is empty
+   */
+  public Long getEnd() {
+    return points > 0 ? lastTimestamp : null;
+  }
+
+  /**
+   * @return the smallest value, or <code>null</code> if there is none
+   */
+  public Double getMin() {
+    return count > 0 ? min : null;
+  }
+
+  /**
+   * @return the largest value, or <code>null</code> if there is none
+   */
+  public Double getMax() {
+    return count > 0 ? max : null;
+  }
+
+  /**
+   * @return the mean of the values, or <code>null</code> if there is none
+   */
+  public Double getMean() {
+    return count > 0 ? mean : null;
+  }
+
+  /**
+   * @return the (population) standard deviation of the values, or
+   *         <code>null</code> if there is none
+   */
+  public Double getStddev() {
+    return count > 0 ? Math.sqrt(squaredDeviations / count) : null;
+  }
+
+  /**
+   * @return the average of the values weighted by the time they stood, or
+   *         <code>null</code> if no value stood for any time
+   */
+  public Double getTimeWeightedAverage() {
+    return weightedTime > 0 ? weightedSum / weightedTime : null;
+  }
+
+  /**
+   * @return the approximate percentiles of the values (p1, p5, p25, p50, p75,
+   *         p95, p99), empty if there is no value
+   */
+  public Map<String, Double> getPercentiles() {
+    final Map<String, Double> percentiles = new LinkedHashMap<>();
+    if (count > 0) {
+      for (final double q : PERCENTILES) {
+        percentiles.put("p" + Math.round(q * 100), sketch.getQuantile(q));
+      }
+    }
+    return percentiles;
+  }
+
+  /**
+   * @return the relative accuracy of the percentiles
+   */
+  public double getPercentileAccuracy() {
+    return sketch.getAccuracy();
+  }
+}
@@ -0,0 +1,167 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Bounded thread pool running the history requests outside of the servlet
+ * container threads, so that slow history queries cannot starve the other
+ * pages of the web application.
+ *
+ * When all threads are busy and the queue is full, new tasks are rejected
+ * with a {@link HistoryOverloadedException} instead of piling up. The tasks
+ * loading a history first go through the {@link HistoryAdmissionController},
+ * so that a few expensive queries cannot take all the threads and memory.
+ */
+public class HistoryTaskExecutor {
+
+  private static Logger logger = LoggerFactory.getLogger(HistoryTaskExecutor.class);
+
+  /** Idle time after which a pool thread is stopped */
+  private static final long KEEP_ALIVE_SECONDS = 60;
+
+  private final ThreadPoolExecutor executor;
+
+  private final HistoryAdmissionController admissionController;
+
+  /** Number of tasks rejected since startup */
+  private final AtomicLong rejectedTasks = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param threads maximum number of history requests processed concurrently
+   * @param queueCapacity maximum number of history requests waiting for a
+   *          thread
+   * @param admissionController budgets of the history loads
+   */
+  public HistoryTaskExecutor(final int threads, final int queueCapacity,
+      final HistoryAdmissionController admissionController) {
+    this.admissionController = admissionController;
+    executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity), new CustomizableThreadFactory("history-"),
+        new ThreadPoolExecutor.AbortPolicy());
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Runs a task on the history thread pool.
+   *
+   * @param task the task to run
+   * @return the result of the task. If the pool is saturated, the result is
+   *         completed straight away with a {@link HistoryOverloadedException}.
+   */
+  public <T> CompletableFuture<T> submit(final Callable<T> task) {
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+        try {
+          result.complete(task.call());
+        } catch (Throwable e) {
+          result.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      final long rejected = rejectedTasks.incrementAndGet();
+      logger.warn("History request rejected, " + executor.getActiveCount() + " requests running and "
+          + executor.getQueue().size() + " waiting (" + rejected + " rejected since startup)");
+      result.completeExceptionally(new HistoryOverloadedException());
+    }
+    return result;
+  }
+
+  /**
+   * Runs a task loading a history on the history thread pool, once the
+   * estimated cost of the history fits in the budgets of the admission
+   * controller. The task does not hold a thread while waiting for budget.
+   *
+   * @param query the history loaded by the task, or <code>null</code> if it
+   *          cannot be estimated (the task then fails by itself on the
+   *          invalid parameters)
+   * @param task the task to run
+   * @return the result of the task, completed with a
+   *         {@link HistoryRejectedException} or a
+   *         {@link HistoryOverloadedException} if the task is not admitted
+   */
+  public <T> CompletableFuture<T> submit(final HistoryQuery query, final Callable<T> task) {
+    return submit(query != null ? Collections.singletonList(query) : Collections.<HistoryQuery>emptyList(), task);
+  }
+
+  /**
+   * Same as {@link #submit(HistoryQuery, Callable)}, for a task loading the
+   * history of several tags. Its cost is the sum of the costs of the
+   * queries.
+   */
+  public <T> CompletableFuture<T> submit(final Collection<HistoryQuery> queries, final Callable<T> task) {
+    long cost = 0;
+    for (final HistoryQuery query : queries) {
+      cost += admissionController.estimateCost(query);
+    }
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    admissionController.admit(HistoryAdmissionController.getRequester(), cost).whenComplete((admission, rejection) -> {
+      if (rejection != null) {
+        result.completeExceptionally(rejection);
+      } else {
+        submit(task).whenComplete((value, e) -> {
+          admission.close();
+          if (e != null) {
+            result.completeExceptionally(e);
+          } else {
+            result.complete(value);
+          }
+        });
+      }
+    });
+    return result;
+  }
+
+  /**
+   * @return the number of running, queued, completed and rejected tasks
+   */
+  public Map<String, Long> getStatistics() {
+    final Map<String, Long> statistics = new LinkedHashMap<>();
+    statistics.put("threads", (long) executor.getMaximumPoolSize());
+    statistics.put("active", (long) executor.getActiveCount());
+    statistics.put("queued", (long) executor.getQueue().size());
+    statistics.put("queueCapacity", (long) (executor.getQueue().size() + executor.getQueue().remainingCapacity()));
+    statistics.put("completed", executor.getCompletedTaskCount());
+    statistics.put("rejected", rejectedTasks.get());
+    return statistics;
+  }
+
+  /**
+   * Stops the pool, letting the running tasks finish.
+   */
+  public void shutdown() {
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,114 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+/**
+ * Chart data of a trend view: the (possibly downsampled) points of a tag
+ * history as parallel arrays, serialised as is to JSON.
+ *
+ * The value and quality descriptions are dictionary encoded: each point
+ * holds the index of its description in {@link #getValueDescriptions()} and
+ * {@link #getQualities()}.
+ */
+public class HistoryTrend {
+
+  /** The points of the chart */
+  private final HistorySeries chart;
+
+  /** Value of each point, as represented in the chart */
+  private final double[] values;
+
+  /** True if points of the history were left out of the chart */
+  private final boolean downsampled;
+
+  /**
+   * Constructor.
+   *
+   * @param chart the points of the chart
+   * @param values value of each point, as represented in the chart
+   * @param downsampled true if points of the history were left out
+   */
+  public HistoryTrend(final HistorySeries chart, final double[] values, final boolean downsampled) {
+    this.chart = chart;
+    this.values = values;
+    this.downsampled = downsampled;
+  }
+
+  /**
+   * @return True if the history represents Boolean Data
+   */
+  public boolean isBooleanData() {
+    return chart.isBooleanData();
+  }
+
+  /**
+   * @return True if points of the history were left out of the chart. More
+   *         details can then be requested for a shorter period.
+   */
+  public boolean isDownsampled() {
+    return downsampled;
+  }
+
+  /**
+   * @return the server timestamp of each point, in epoch milliseconds
+   */
+  public long[] getTimestamps() {
+    return chart.getServerTimestamps();
+  }
+
+  /**
+   * @return the value of each point, as represented in the chart
+   */
+  public double[] getValues() {
+    return values;
+  }
+
+  /**
+   * @return the indices of the points with an invalid quality
+   */
+  public int[] getInvalid() {
+    return chart.getInvalid().stream().toArray();
+  }
+
+  /**
+   * @return the distinct value descriptions
+   */
+  public String[] getValueDescriptions() {
+    return chart.getValueDescriptions();
+  }
+
+  /**
+   * @return the index of the value description of each point
+   */
+  public int[] getValueDescriptionCodes() {
+    return chart.getValueDescriptionCodes();
+  }
+
+  /**
+   * @return the distinct quality descriptions
+   */
+  public String[] getQualities() {
+    return chart.getQualityDescriptions();
+  }
+
+  /**
+   * @return the index of the quality description of each point
+   */
+  public int[] getQualityCodes() {
+    return chart.getQualityCodes();
+  }
+}
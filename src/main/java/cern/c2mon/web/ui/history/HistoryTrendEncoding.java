@@ -0,0 +1,212 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of a {@link HistoryTrend}, sent to the trend views
+ * instead of JSON (see <code>TrendView.decodeHistory</code> in
+ * <code>trend-view.js</code>).
+ *
+ * The trend is written column by column:
+ * <ul>
+ * <li>a header: version, flags (boolean data, downsampled) and number of
+ * points</li>
+ * <li>timestamps, as the first timestamp followed by the deltas between
+ * consecutive points (zig-zag encoded variable length integers)</li>
+ * <li>values, XOR-compressed as in Facebook's Gorilla: a value equal to the
+ * previous one takes a single bit, the others only their meaningful bits
+ * (padded to a byte at the end)</li>
+ * <li>quality validity, as a bitmap of one bit per point</li>
+ * <li>value descriptions and quality descriptions, as dictionaries followed
+ * by the dictionary code (variable length integer) of every point</li>
+ * </ul>
+ *
+ * The variable length integers hold 7 bits per byte, low bits first. Strings
+ * are written as their UTF-8 length plus one (0 for <code>null</code>)
+ * followed by their UTF-8 bytes.
+ */
+public final class HistoryTrendEncoding {
+
+  /** Version of the format, to be increased on every change of the format */
+  public static final int VERSION = 1;
+
+  private static final int BOOLEAN_DATA = 1;
+
+  private static final int DOWNSAMPLED = 2;
+
+  private HistoryTrendEncoding() {
+  }
+
+  /**
+   * Writes a trend to a stream.
+   *
+   * @param trend the trend to write
+   * @param stream where the trend is written. It is flushed, but not closed.
+   * @throws IOException in case the stream cannot be written to
+   */
+  public static void write(final HistoryTrend trend, final OutputStream stream) throws IOException {
+    final OutputStream out = new BufferedOutputStream(stream);
+    final long[] timestamps = trend.getTimestamps();
+    final int size = timestamps.length;
+
+    out.write(VERSION);
+    out.write((trend.isBooleanData() ? BOOLEAN_DATA : 0) | (trend.isDownsampled() ? DOWNSAMPLED : 0));
+    writeVarLong(out, size);
+
+    long previous = 0;
+    for (final long timestamp : timestamps) {
+      writeVarLong(out, zigZag(timestamp - previous));
+      previous = timestamp;
+    }
+
+    writeValues(out, trend.getValues());
+
+    final byte[] invalid = new byte[(size + 7) / 8];
+    for (final int i : trend.getInvalid()) {
+      invalid[i >> 3] |= 1 << (i & 7);
+    }
+    out.write(invalid);
+
+    writeDictionary(out, trend.getValueDescriptions(), trend.getValueDescriptionCodes());
+    writeDictionary(out, trend.getQualities(), trend.getQualityCodes());
+    out.flush();
+  }
+
+  /**
+   * Writes the values XOR-compressed. The first value is written in full.
+   * Each following value is XORed with the previous one:
+   * <ul>
+   * <li>'0' if the XOR is zero (same value)</li>
+   * <li>'10' followed by the meaningful bits of the XOR, if they fit in the
+   * window of meaningful bits of the previous XOR</li>
+   * <li>'11' followed by the number of leading zeros (5 bits), the number of
+   * meaningful bits (6 bits, 0 meaning 64) and the meaningful bits</li>
+   * </ul>
+   */
+  private static void writeValues(final OutputStream out, final double[] values) throws IOException {
+    final BitWriter bits = new BitWriter(out);
+    long previous = 0;
+    int leading = -1;
+    int trailing = 0;
+
+    for (int i = 0; i < values.length; i++) {
+      final long value = Double.doubleToLongBits(values[i]);
+      if (i == 0) {
+        bits.write(value, 64);
+      } else {
+        final long xor = value ^ previous;
+        if (xor == 0) {
+          bits.write(0, 1);
+        } else {
+          final int xorLeading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+          final int xorTrailing = Long.numberOfTrailingZeros(xor);
+          if (leading >= 0 && xorLeading >= leading && xorTrailing >= trailing) {
+            bits.write(0b10, 2);
+            bits.write(xor >>> trailing, 64 - leading - trailing);
+          } else {
+            leading = xorLeading;
+            trailing = xorTrailing;
+            final int meaningful = 64 - leading - trailing;
+            bits.write(0b11, 2);
+            bits.write(leading, 5);
+            bits.write(meaningful & 63, 6);
+            bits.write(xor >>> trailing, meaningful);
+          }
+        }
+      }
+      previous = value;
+    }
+    bits.flush();
+  }
+
+  private static long zigZag(final long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static void writeVarLong(final OutputStream out, final long value) throws IOException {
+    long v = value;
+    while ((v & ~0x7FL) != 0) {
+      out.write((int) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.write((int) v);
+  }
+
+  private static void writeDictionary(final OutputStream out, final String[] words, final int[] codes)
+      throws IOException {
+    writeVarLong(out, words.length);
+    for (final String word : words) {
+      if (word == null) {
+        writeVarLong(out, 0);
+      } else {
+        final byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes);
+      }
+    }
+    for (final int code : codes) {
+      writeVarLong(out, code);
+    }
+  }
+
+  /**
+   * Writes bits to a stream, most significant bit first.
+   */
+  private static final class BitWriter {
+
+    private final OutputStream out;
+
+    /** Bits not written yet, in the low bits */
+    private int buffer = 0;
+
+    private int bufferSize = 0;
+
+    private BitWriter(final OutputStream out) {
+      this.out = out;
+    }
+
+    /**
+     * Writes the <code>count</code> low bits of a value.
+     */
+    private void write(final long value, final int count) throws IOException {
+      for (int i = count - 1; i >= 0; i--) {
+        buffer = (buffer << 1) | (int) ((value >>> i) & 1);
+        if (++bufferSize == 8) {
+          out.write(buffer);
+          buffer = 0;
+          bufferSize = 0;
+        }
+      }
+    }
+
+    /**
+     * Writes the remaining bits, padded with zeros to a full byte.
+     */
+    private void flush() throws IOException {
+      if (bufferSize > 0) {
+        out.write(buffer << (8 - bufferSize));
+        buffer = 0;
+        bufferSize = 0;
+      }
+    }
+  }
+}
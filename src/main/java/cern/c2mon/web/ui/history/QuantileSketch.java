@@ -0,0 +1,245 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+/**
+ * Mergeable sketch of the distribution of a stream of values, giving
+ * approximate quantiles with a bounded relative error (DDSketch, Masson et
+ * al. 2019).
+ *
+ * Values are counted in logarithmic buckets: bucket <code>i</code> holds the
+ * values between <code>gamma^(i-1)</code> and <code>gamma^i</code>, with
+ * <code>gamma = (1 + accuracy) / (1 - accuracy)</code>. A quantile is
+ * estimated by the middle of the bucket holding its rank, so it is within
+ * <code>accuracy</code> of the exact value (relatively). Negative values
+ * are counted by their magnitude in separate buckets. Two sketches with the
+ * same accuracy are merged by adding their bucket counts.
+ *
+ * The number of buckets of each sign is bounded: when it is exceeded, the
+ * buckets of the values closest to zero are collapsed, degrading only the
+ * accuracy of the lowest quantiles of magnitude.
+ */
+public class QuantileSketch {
+
+  /** Relative accuracy used if none is given */
+  public static final double DEFAULT_ACCURACY = 0.01;
+
+  /** Maximum number of buckets of each sign */
+  private static final int MAX_BUCKETS = 2048;
+
+  /** Values below this magnitude are counted as zero */
+  private static final double MIN_MAGNITUDE = 1e-300;
+
+  private final double accuracy;
+
+  private final double gamma;
+
+  private final double logGamma;
+
+  private final Buckets positive = new Buckets();
+
+  private final Buckets negative = new Buckets();
+
+  private long zeroCount = 0;
+
+  private long count = 0;
+
+  private double min = Double.POSITIVE_INFINITY;
+
+  private double max = Double.NEGATIVE_INFINITY;
+
+  /**
+   * Creates a sketch with the {@link #DEFAULT_ACCURACY}.
+   */
+  public QuantileSketch() {
+    this(DEFAULT_ACCURACY);
+  }
+
+  /**
+   * Creates a sketch.
+   *
+   * @param accuracy relative accuracy of the quantiles, between 0 and 1
+   */
+  public QuantileSketch(final double accuracy) {
+    if (!(accuracy > 0 && accuracy < 1)) {
+      throw new IllegalArgumentException("The accuracy must be between 0 and 1: " + accuracy);
+    }
+    this.accuracy = accuracy;
+    this.gamma = (1 + accuracy) / (1 - accuracy);
+    this.logGamma = Math.log(gamma);
+  }
+
+  /**
+   * Counts a value. NaN and infinite values are ignored.
+   */
+  public void add(final double value) {
+    if (Double.isNaN(value) || Double.isInfinite(value)) {
+      return;
+    }
+
+    if (value >= MIN_MAGNITUDE) {
+      positive.increment(index(value), 1);
+    } else if (value <= -MIN_MAGNITUDE) {
+      negative.increment(index(-value), 1);
+    } else {
+      zeroCount++;
+    }
+    count++;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+
+  /**
+   * Adds the values counted by another sketch to this one.
+   *
+   * @param other a sketch with the same accuracy
+   */
+  public void merge(final QuantileSketch other) {
+    if (other.accuracy != accuracy) {
+      throw new IllegalArgumentException("Sketches of different accuracies cannot be merged");
+    }
+    positive.merge(other.positive);
+    negative.merge(other.negative);
+    zeroCount += other.zeroCount;
+    count += other.count;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * @return the number of counted values
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return the relative accuracy of the quantiles
+   */
+  public double getAccuracy() {
+    return accuracy;
+  }
+
+  /**
+   * @param q the quantile, between 0 and 1 (0.5 for the median)
+   * @return the approximate value at the quantile, or NaN if no value was
+   *         counted. The minimum and maximum are exact.
+   */
+  public double getQuantile(final double q) {
+    if (count == 0 || q < 0 || q > 1) {
+      return Double.NaN;
+    }
+    if (q == 0) {
+      return min;
+    }
+    if (q == 1) {
+      return max;
+    }
+
+    final long rank = (long) (q * (count - 1));
+    long seen = 0;
+
+    // negative values, from the largest magnitude down
+    for (int i = negative.counts.length - 1; i >= 0; i--) {
+      seen += negative.counts[i];
+      if (seen > rank) {
+        return clamp(-value(negative.offset + i));
+      }
+    }
+    seen += zeroCount;
+    if (seen > rank) {
+      return 0;
+    }
+    for (int i = 0; i < positive.counts.length; i++) {
+      seen += positive.counts[i];
+      if (seen > rank) {
+        return clamp(value(positive.offset + i));
+      }
+    }
+    return max;
+  }
+
+  /**
+   * @return the bucket of a positive value
+   */
+  private int index(final double value) {
+    return (int) Math.ceil(Math.log(value) / logGamma);
+  }
+
+  /**
+   * @return the value representing a bucket, whose relative distance to all
+   *         values of the bucket is at most the accuracy
+   */
+  private double value(final int index) {
+    return 2 * Math.pow(gamma, index) / (gamma + 1);
+  }
+
+  private double clamp(final double value) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  /**
+   * Counts of contiguous buckets, starting at bucket <code>offset</code>
+   */
+  private static final class Buckets {
+
+    private long[] counts = new long[0];
+
+    private int offset = 0;
+
+    private void increment(final int index, final long n) {
+      if (counts.length == 0) {
+        counts = new long[16];
+        offset = index - 8;
+      }
+
+      int i = index - offset;
+      if (i < 0 || i >= counts.length) {
+        extend(Math.min(index, offset), Math.max(index, offset + counts.length - 1));
+        i = Math.max(index, offset) - offset;
+      }
+      counts[i] += n;
+    }
+
+    /**
+     * Makes room for the buckets between <code>low</code> and
+     * <code>high</code>, collapsing the lowest ones if there would be too
+     * many.
+     */
+    private void extend(final int low, final int high) {
+      final int newOffset = Math.max(low, high - MAX_BUCKETS + 1);
+      final int length = Math.min(MAX_BUCKETS, Math.max(high - newOffset + 1, counts.length * 2));
+      final long[] extended = new long[length];
+      for (int i = 0; i < counts.length; i++) {
+        final int target = Math.max(offset + i, newOffset) - newOffset;
+        if (target < length) {
+          extended[target] += counts[i];
+        }
+      }
+      counts = extended;
+      offset = newOffset;
+    }
+
+    private void merge(final Buckets other) {
+      for (int i = 0; i < other.counts.length; i++) {
+        if (other.counts[i] != 0) {
+          increment(other.offset + i, other.counts[i]);
+        }
+      }
+    }
+  }
+}
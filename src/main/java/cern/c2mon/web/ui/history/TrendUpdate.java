@@ -0,0 +1,104 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import cern.c2mon.client.common.tag.Tag;
+
+/**
+ * A new value of a tag, as pushed to the trend views displaying it.
+ */
+public class TrendUpdate {
+
+  /** Server timestamp, in epoch milliseconds */
+  private final long timestamp;
+
+  /** The value, as represented in the chart */
+  private final double value;
+
+  private final String valueDescription;
+
+  private final String quality;
+
+  private final boolean valid;
+
+  /**
+   * Creates the update of a trend view from a tag update.
+   *
+   * @param tag the tag update received from the server
+   */
+  public TrendUpdate(final Tag tag) {
+    this.timestamp = tag.getServerTimestamp().getTime();
+    this.value = toChartValue(tag.getValue());
+    this.valueDescription = tag.getValueDescription();
+    this.quality = tag.getDataTagQuality().getDescription();
+    this.valid = tag.getDataTagQuality().isValid();
+  }
+
+  /**
+   * @return the value as represented in the chart: booleans as 0 or 1,
+   *         numeric strings parsed, 0 for the values which cannot be plotted
+   */
+  private static double toChartValue(final Object value) {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    } else if (value instanceof Boolean) {
+      return ((Boolean) value) ? 1 : 0;
+    } else if (value != null) {
+      try {
+        return Double.parseDouble(value.toString());
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return the server timestamp, in epoch milliseconds
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return the value, as represented in the chart
+   */
+  public double getValue() {
+    return value;
+  }
+
+  /**
+   * @return the value description
+   */
+  public String getValueDescription() {
+    return valueDescription;
+  }
+
+  /**
+   * @return the quality description
+   */
+  public String getQuality() {
+    return quality;
+  }
+
+  /**
+   * @return True if the quality is valid
+   */
+  public boolean isValid() {
+    return valid;
+  }
+}
@@ -0,0 +1,98 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.serialization;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.util.StringUtils;
+
+import cern.c2mon.web.ui.history.HistoryTrend;
+import cern.c2mon.web.ui.history.HistoryTrendEncoding;
+
+/**
+ * Writes the trend view data in its compact binary encoding, see
+ * {@link HistoryTrendEncoding}. Used when a request accepts
+ * {@link #MEDIA_TYPE}, the trend data being written as JSON otherwise.
+ */
+public class HistoryTrendMessageConverter extends AbstractHttpMessageConverter<HistoryTrend> {
+
+  /** Media type of the binary trend data */
+  public static final MediaType MEDIA_TYPE = new MediaType("application", "vnd.c2mon.trend");
+
+  public HistoryTrendMessageConverter() {
+    super(MEDIA_TYPE);
+  }
+
+  /**
+   * Anticipates the content negotiation of a trend data request, so that
+   * the two representations get distinct ETags. As this converter is
+   * registered after the JSON one, JSON is chosen unless the binary encoding
+   * is preferred.
+   *
+   * @param accept the Accept header of the request, or <code>null</code>
+   * @return the media type the trend data will be written as, either
+   *         {@link #MEDIA_TYPE} or JSON
+   */
+  public static MediaType getResponseMediaType(final String accept) {
+    if (!StringUtils.hasText(accept)) {
+      return MediaType.APPLICATION_JSON;
+    }
+
+    final List<MediaType> accepted;
+    try {
+      accepted = MediaType.parseMediaTypes(accept);
+    } catch (IllegalArgumentException e) {
+      return MediaType.APPLICATION_JSON;
+    }
+    MediaType.sortBySpecificityAndQuality(accepted);
+    for (final MediaType mediaType : accepted) {
+      if (mediaType.includes(MediaType.APPLICATION_JSON)) {
+        return MediaType.APPLICATION_JSON;
+      } else if (mediaType.includes(MEDIA_TYPE)) {
+        return MEDIA_TYPE;
+      }
+    }
+    return MediaType.APPLICATION_JSON;
+  }
+
+  @Override
+  protected boolean supports(final Class<?> clazz) {
+    return HistoryTrend.class.isAssignableFrom(clazz);
+  }
+
+  @Override
+  protected boolean canRead(final MediaType mediaType) {
+    return false;
+  }
+
+  @Override
+  protected HistoryTrend readInternal(final Class<? extends HistoryTrend> clazz, final HttpInputMessage inputMessage)
+      throws IOException, HttpMessageNotReadableException {
+    throw new HttpMessageNotReadableException("The trend data cannot be read");
+  }
+
+  @Override
+  protected void writeInternal(final HistoryTrend trend, final HttpOutputMessage outputMessage) throws IOException {
+    HistoryTrendEncoding.write(trend, outputMessage.getBody());
+  }
+}
@@ -17,7 +17,10 @@
 package cern.c2mon.web.ui.service;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.domain.PageRequest;
@@ -35,6 +38,13 @@ import cern.c2mon.client.ext.history.common.exception.LoadingParameterException;
 @Service
 public class HistoryAlarmService {
 
+  /**
+   * Periods searched back for the last state of an alarm before a given
+   * time, in days: each one is only searched if the previous one holds no
+   * state
+   */
+  private static final long[] LAST_STATE_LOOKBACK_DAYS = { 1, 7, 30, 365, 3650 };
+
   @Autowired
   private AlarmHistoryService alarmHistoryService;
 
@@ -50,6 +60,74 @@ public class HistoryAlarmService {
     return alarmHistoryService.findAllDistinctByIdAndTimestampBetweenOrderByTimestamp(alarmId, localStartTime, localEndTime);
   }
 
+  /**
+   * Batch variant of {@link #requestAlarmHistory(Long, LocalDateTime, LocalDateTime)},
+   * used to correlate all alarms of a tag with its history.
+   *
+   * @param alarmIds The alarm ids whose history we are looking for
+   * @param localStartTime The start time expressed in the local time zone
+   * @param localEndTime The end time expressed in the local time zone
+   * @return history of every requested alarm sorted by time, in the order of
+   *         the given ids
+   */
+  public final Map<Long, List<Alarm>> requestAlarmHistory(final Collection<Long> alarmIds,
+      final LocalDateTime localStartTime, final LocalDateTime localEndTime) {
+    final Map<Long, List<Alarm>> alarmHistories = new LinkedHashMap<>();
+    for (final Long alarmId : alarmIds) {
+      alarmHistories.put(alarmId, requestAlarmHistory(alarmId, localStartTime, localEndTime));
+    }
+    return alarmHistories;
+  }
+
+  /**
+   * @param alarmId The alarm id
+   * @param localTime The time expressed in the local time zone
+   * @return the last state of the alarm strictly before the given time, or
+   *         <code>null</code> if it has none in the last ten years before it
+   */
+  public final Alarm requestLastAlarmState(final Long alarmId, final LocalDateTime localTime) {
+    // the latest state, if it is older than the time (the alarm did not change since)
+    final List<Alarm> latest = requestAlarmHistory(alarmId, 1);
+    if (latest.isEmpty()) {
+      return null;
+    } else if (latest.get(0).getTimestamp().isBefore(localTime)) {
+      return latest.get(0);
+    }
+
+    // otherwise searched back over longer and longer periods
+    LocalDateTime to = localTime;
+    for (final long days : LAST_STATE_LOOKBACK_DAYS) {
+      final LocalDateTime from = localTime.minusDays(days);
+      final List<Alarm> states = alarmHistoryService.findAllDistinctByIdAndTimestampBetweenOrderByTimestamp(alarmId, from, to);
+      for (int i = states.size() - 1; i >= 0; i--) {
+        if (states.get(i).getTimestamp().isBefore(localTime)) {
+          return states.get(i);
+        }
+      }
+      to = from;
+    }
+    return null;
+  }
+
+  /**
+   * Batch variant of {@link #requestLastAlarmState(Long, LocalDateTime)}.
+   *
+   * @param alarmIds The alarm ids
+   * @param localTime The time expressed in the local time zone
+   * @return the last state of each alarm before the given time, by alarm id.
+   *         The alarms without state are left out.
+   */
+  public final Map<Long, Alarm> requestLastAlarmStates(final Collection<Long> alarmIds, final LocalDateTime localTime) {
+    final Map<Long, Alarm> lastStates = new LinkedHashMap<>();
+    for (final Long alarmId : alarmIds) {
+      final Alarm lastState = requestLastAlarmState(alarmId, localTime);
+      if (lastState != null) {
+        lastStates.put(alarmId, lastState);
+      }
+    }
+    return lastStates;
+  }
+
   /**
    * Used to make a request for HistoryData of an alarm.
    *
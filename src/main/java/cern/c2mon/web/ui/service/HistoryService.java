@@ -16,33 +16,66 @@
  *****************************************************************************/
 package cern.c2mon.web.ui.service;
 
-import java.sql.Date;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.sql.Timestamp;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
+import javax.annotation.PostConstruct;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
+import org.springframework.web.context.request.ServletWebRequest;
 
 import cern.c2mon.client.ext.history.HistoryManager;
 import cern.c2mon.client.ext.history.common.HistoryLoadingConfiguration;
 import cern.c2mon.client.ext.history.common.HistoryLoadingManager;
-import cern.c2mon.client.ext.history.common.HistoryProvider;
 import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
 import cern.c2mon.client.ext.history.common.exception.HistoryProviderException;
 import cern.c2mon.client.ext.history.common.exception.LoadingParameterException;
 import cern.c2mon.client.ext.history.updates.HistoryTagValueUpdateImpl;
 import cern.c2mon.web.ui.controller.TrendViewController;
-import cern.c2mon.web.ui.util.InvalidPoint;
+import cern.c2mon.web.ui.history.ChartDateFormat;
+import cern.c2mon.web.ui.history.HistoryAdmissionController;
+import cern.c2mon.web.ui.history.HistoryCache;
+import cern.c2mon.web.ui.history.HistoryChunkLoader;
+import cern.c2mon.web.ui.history.HistoryDiskCache;
+import cern.c2mon.web.ui.history.HistoryDownsampler;
+import cern.c2mon.web.ui.history.HistoryHistogram;
+import cern.c2mon.web.ui.history.HistoryOverlay;
+import cern.c2mon.web.ui.history.HistoryProviderPool;
+import cern.c2mon.web.ui.history.HistoryQuery;
+import cern.c2mon.web.ui.history.HistoryRollup;
+import cern.c2mon.web.ui.history.HistorySeries;
+import cern.c2mon.web.ui.history.HistoryStore;
+import cern.c2mon.web.ui.history.HistorySummary;
+import cern.c2mon.web.ui.history.HistoryTrend;
 
 
 /**
@@ -56,103 +89,270 @@ public class HistoryService {
    */
   private static Logger logger = LoggerFactory.getLogger(HistoryService.class);
 
-  /** Date format used in our trend views */
-  private static final String CHART_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS";
-
   /** App base url */
   private static final String BASE_URL = "../";
 
   /** Date format used in History Queries */
   private static final String DATE_FORMAT = "dd/MM/yyyy-HH:mm";
 
+  /**
+   * Parsers of {@link #DATE_FORMAT}, one per thread as a SimpleDateFormat is
+   * not thread-safe. The date parameters are still parsed by a non-lenient
+   * SimpleDateFormat, so that the same inputs are accepted as before (see
+   * DateParameterParsingTest).
+   */
+  private static final ThreadLocal<DateFormat> DATE_PARSER = ThreadLocal.withInitial(() -> {
+    final DateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
+    dateFormat.setLenient(false);
+    return dateFormat;
+  });
+
+  /** Factory for the generators used by the streaming JSON export */
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
   @Autowired
   private HistoryManager historyManager;
 
+  /** Long-lived history providers, shared by the requests */
+  @Autowired
+  private HistoryProviderPool providerPool;
+
+  /** Loads the long periods as several chunks in parallel */
+  @Autowired
+  private HistoryChunkLoader chunkLoader;
+
+  /** Learns the update rate of the tags from their loaded histories */
+  @Autowired
+  private HistoryAdmissionController admissionController;
+
+  /** Maximum number of history points kept in the history cache */
+  @Value("${c2mon.web.history.cache.maxPoints:2000000}")
+  private long cacheMaxPoints;
+
+  /** Time to live of the history cache entries, in seconds */
+  @Value("${c2mon.web.history.cache.timeToLive:60}")
+  private long cacheTimeToLive;
+
+  /** Maximum number of history points kept in the closed periods cache */
+  @Value("${c2mon.web.history.cache.closed.maxPoints:5000000}")
+  private long closedCacheMaxPoints;
+
+  /** Time to live of the closed periods cache entries, in seconds */
+  @Value("${c2mon.web.history.cache.closed.timeToLive:86400}")
+  private long closedCacheTimeToLive;
+
+  /**
+   * Time after its end before a Start-End period is considered closed, in
+   * seconds. Until then its history is neither kept in the closed periods
+   * caches nor answered with a stable ETag.
+   */
+  @Value("${c2mon.web.history.closeDelay:300}")
+  private long closeDelaySeconds;
+
+  /** Same as {@link #closeDelaySeconds}, in milliseconds */
+  private long closeDelay;
+
+  /**
+   * Directory of the on-disk cache of the closed periods. The disk cache is
+   * disabled if empty.
+   */
+  @Value("${c2mon.web.history.cache.disk.directory:}")
+  private String diskCacheDirectory;
+
+  /** Maximum size of the on-disk cache, in megabytes */
+  @Value("${c2mon.web.history.cache.disk.maxSize:10240}")
+  private long diskCacheMaxSize;
+
+  /** Time to live of the on-disk cache entries, in days */
+  @Value("${c2mon.web.history.cache.disk.timeToLive:30}")
+  private long diskCacheTimeToLive;
+
+  /**
+   * Loaded histories as given by the client, used by the history tables and
+   * the XML views, which need the client objects themselves (the original
+   * XML of each point, its alarms). They cannot be derived from the columnar
+   * form, so both forms are cached, within the same point budgets.
+   */
+  private HistoryStore<List<HistoryTagValueUpdate>> historyStore;
+
+  /**
+   * Loaded histories in their compact columnar form, used by the trend views
+   * and the exports
+   */
+  private HistoryStore<HistorySeries> seriesStore;
+
+  /**
+   * Histories of the closed periods in their compact form, kept on disk
+   * below the in-memory caches
+   */
+  private HistoryDiskCache diskCache;
+
+  /**
+   * Part of the ETags of closed periods, so that browsers do not keep pages
+   * of a previous deployment
+   */
+  private final String eTagVersion = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+  /**
+   * Creates the history caches once the configuration is injected. Both
+   * representations share the same point budgets, so that the caches never
+   * hold more than <code>c2mon.web.history.cache.maxPoints</code> recent and
+   * <code>c2mon.web.history.cache.closed.maxPoints</code> closed points
+   * altogether. Only the compact form is kept on disk.
+   */
+  @PostConstruct
+  public void init() {
+    final long timeToLive = TimeUnit.SECONDS.toMillis(cacheTimeToLive);
+    final long closedTimeToLive = TimeUnit.SECONDS.toMillis(closedCacheTimeToLive);
+    closeDelay = TimeUnit.SECONDS.toMillis(closeDelaySeconds);
+
+    final HistoryCache.Budget budget = new HistoryCache.Budget(cacheMaxPoints);
+    final HistoryCache.Budget closedBudget = new HistoryCache.Budget(closedCacheMaxPoints);
+    historyStore = new HistoryStore<>(
+        new HistoryCache<>(budget, timeToLive, List::size),
+        new HistoryCache<>(closedBudget, closedTimeToLive, List::size), closeDelay);
+    seriesStore = new HistoryStore<>(
+        new HistoryCache<>(budget, timeToLive, HistorySeries::size),
+        new HistoryCache<>(closedBudget, closedTimeToLive, HistorySeries::size), closeDelay);
+    diskCache = new HistoryDiskCache(diskCacheDirectory.isEmpty() ? null : Paths.get(diskCacheDirectory),
+        diskCacheMaxSize * 1024 * 1024, closeDelay, TimeUnit.DAYS.toMillis(diskCacheTimeToLive));
+  }
+
+  /**
+   * @return the hit, miss and eviction counters of the history caches, and
+   * the number of coalesced loads
+   */
+  public Map<String, Map<String, Long>> getCacheStatistics() {
+    final Map<String, Map<String, Long>> statistics = new LinkedHashMap<>(historyStore.getStatistics());
+    seriesStore.getStatistics().forEach((name, counters) -> statistics.put("series." + name, counters));
+    if (diskCache.isEnabled()) {
+      statistics.put("series.disk", diskCache.getStatistics());
+    }
+    return statistics;
+  }
+
+  /**
+   * Answers a conditional GET for the history of a closed period. Such a
+   * history never changes, so it is identified by a stable ETag, and the
+   * Last-Modified date is the end of the period.
+   *
+   * @param query the history query of the request
+   * @param request the current request. If the client already has the
+   *          result, a 304 Not Modified is set on its response.
+   * @return true if the client already has the result and the request
+   *         processing can stop, false otherwise (including for windows
+   *         which are not closed)
+   */
+  public final boolean checkNotModified(final HistoryQuery query, final ServletWebRequest request) {
+    return checkNotModified(query, null, request);
+  }
+
   /**
-   * @return XML representation of Tag's History
+   * Same as {@link #checkNotModified(HistoryQuery, ServletWebRequest)}, for
+   * a resource available in several representations: the ETag differs for
+   * each of them.
+   *
+   * @param query the history query of the request
+   * @param mediaType the media type of the response, or <code>null</code> if
+   *          it has a single representation
+   * @param request the current request
+   * @return true if the client already has the result
+   */
+  public final boolean checkNotModified(final HistoryQuery query, final MediaType mediaType,
+      final ServletWebRequest request) {
+    if (!query.isClosed(System.currentTimeMillis(), closeDelay)) {
+      return false;
+    }
+
+    // the browser must revalidate, but is then answered with a cheap 304
+    request.getResponse().setHeader(HttpHeaders.CACHE_CONTROL, "private, max-age=0, must-revalidate");
+
+    final String eTag = "\"" + query.getTagId() + "-" + query.getStartTime() + "-" + query.getEndTime()
+        + "-" + eTagVersion + (mediaType != null ? "-" + mediaType.getSubtype() : "") + "\"";
+    return request.checkNotModified(eTag, query.getEndTime());
+  }
+
+  /**
+   * Streams the XML representation of a Tag's History.
    *
    * @param dataTagId id of the datatag
    * @param numberOfRecords number of records to look back in the history
+   * @param out the stream to write the XML to, see {@link #writeXml}
    *
    * @throws HistoryProviderException in case a HistoryProvider cannot be created
    * @throws LoadingParameterException in case of an invalid configurations
-   *
-   * @throws Exception if tag was not found or a non-numeric id was requested
-   *  ({@link TagIdException}), or any other exception
-   * thrown by the underlying service gateway.
+   * @throws IOException in case the stream cannot be written to
    */
-  public final String getHistoryXml(final String dataTagId, final int numberOfRecords)
-      throws HistoryProviderException, LoadingParameterException  {
+  public final void writeHistoryXml(final String dataTagId, final int numberOfRecords, final OutputStream out)
+      throws HistoryProviderException, LoadingParameterException, IOException {
 
     final List<HistoryTagValueUpdate> historyValues = requestHistoryData(dataTagId, numberOfRecords);
     final String description = "(Last " + numberOfRecords + " records)";
     final String trendURL = "?" + TrendViewController.MAX_RECORDS_PARAMETER + "=" + numberOfRecords;
-    return toXml(historyValues, dataTagId, description, trendURL);
+    writeXml(historyValues, dataTagId, description, trendURL, out);
   }
 
 
   /**
-   * @return XML representation of Tag's History
+   * Streams the XML representation of a Tag's History.
    *
    * @param dataTagId id of the datatag
    * @param numberOfDays number of days to go back in History
+   * @param out the stream to write the XML to, see {@link #writeXml}
    *
    * @throws HistoryProviderException in case a HistoryProvider cannot be created
    * @throws LoadingParameterException in case of an invalid configurations
-   * @throws Exception if tag was not found or a non-numeric id was requested
-   *  ({@link TagIdException}), or any other exception
-   * thrown by the underlying service gateway.
+   * @throws IOException in case the stream cannot be written to
    */
-  public final String getHistoryXmlForLastDays(final String dataTagId, final int numberOfDays)
-      throws HistoryProviderException, LoadingParameterException  {
+  public final void writeHistoryXmlForLastDays(final String dataTagId, final int numberOfDays, final OutputStream out)
+      throws HistoryProviderException, LoadingParameterException, IOException {
 
     final List<HistoryTagValueUpdate> historyValues = requestHistoryDataForLastDays(dataTagId,
         numberOfDays);
     final String description = "(Last " + numberOfDays + " days)";
     final String trendURL = "?" + TrendViewController.LAST_DAYS_PARAMETER + "=" + numberOfDays;
-    return toXml(historyValues, dataTagId, description, trendURL);
+    writeXml(historyValues, dataTagId, description, trendURL, out);
   }
 
 
   /**
-   * @return XML representation of Tag's History
+   * Streams the XML representation of a Tag's History.
    *
    * @param dataTagId id of the datatag
    *
    * @param startTime
    * @param endTime StartTime -> EndTime = Period of History to return
+   * @param out the stream to write the XML to, see {@link #writeXml}
    *
    * @throws HistoryProviderException in case a HistoryProvider cannot be created
    * @throws LoadingParameterException in case of an invalid configurations
-   * @throws Exception if tag was not found or a non-numeric id was requested
-   *  ({@link TagIdException}), or any other exception
-   * thrown by the underlying service gateway.
+   * @throws IOException in case the stream cannot be written to
    */
-  public final String getHistoryXml(final String dataTagId,
+  public final void writeHistoryXml(final String dataTagId,
       final Timestamp startTime,
-      final Timestamp endTime)
-      throws HistoryProviderException, LoadingParameterException  {
+      final Timestamp endTime,
+      final OutputStream out)
+      throws HistoryProviderException, LoadingParameterException, IOException {
 
     final List<HistoryTagValueUpdate> historyValues = requestHistoryData(dataTagId, startTime, endTime);
 
     final String description = " (From " + startTime + " to " + endTime + ")";
     final String trendURL = "?" + TrendViewController.START_DATE_PARAMETER + "=" + startTime
         + "&amp;" + TrendViewController.END_DATE_PARAMETER + "=" + endTime;
-    return toXml(historyValues, dataTagId, description, trendURL);
+    writeXml(historyValues, dataTagId, description, trendURL, out);
   }
 
 
   /**
-   * @return XML representation of Tag's History
-   *
-   * Same as {@link #getHistoryXml(String, Timestamp, Timestamp)}
+   * Same as {@link #writeHistoryXml(String, Timestamp, Timestamp, OutputStream)}
    * but startTime and endTime are given as strings (should follow {@link #DATE_FORMAT})
    *
    */
-  public final String getHistoryXml(final String dataTagId,
+  public final void writeHistoryXml(final String dataTagId,
       final String startTime,
-      final String endTime)
-      throws HistoryProviderException, LoadingParameterException, ParseException  {
+      final String endTime,
+      final OutputStream out)
+      throws HistoryProviderException, LoadingParameterException, ParseException, IOException {
 
     final List<HistoryTagValueUpdate> historyValues =
         requestHistoryData(dataTagId,
@@ -162,314 +362,751 @@ public class HistoryService {
     final String description = " (From " + startTime + " to " + endTime + ")";
     final String trendURL = "?" + TrendViewController.START_DATE_PARAMETER + "=" + startTime
         + "&amp;" + TrendViewController.END_DATE_PARAMETER + "=" + endTime;
-    return toXml(historyValues, dataTagId, description, trendURL);
+    writeXml(historyValues, dataTagId, description, trendURL, out);
   }
 
 
   /**
-   * @return CSV representation of Tag's History
+   * Used to make a request for HistoryData.
+   * @param dataTagId The tag id whose history we are looking for
+   * @param numberOfRecords number of records to retrieve from history
    *
-   *  ({@link TagIdException}), or any other exception
-   * thrown by the underlying service gateway.
+   * @throws HistoryProviderException in case a HistoryProvider cannot be created
+   * @throws LoadingParameterException in case of an invalid configurations
+   * @return history as a List of HistoryTagValueUpdates
    */
-  public final String getHistoryCSV(final List<HistoryTagValueUpdate> historyValues,
-      final boolean isBooleanData) {
+  public final List<HistoryTagValueUpdate> requestHistoryData(final String dataTagId,
+      final int numberOfRecords)
+      throws HistoryProviderException, LoadingParameterException {
 
-    return toCSV(historyValues, isBooleanData);
+    final long id = Long.parseLong(dataTagId);
+    return requestHistoryData(Collections.singletonList(id), numberOfRecords).get(id);
   }
 
   /**
-   * @return CSV representation of Tag's History
-   *
-   * @param dataTagId id of the datatag
-   * @param numberOfRecords number of records to look back in the history
+   * Used to make a request for HistoryData.
+   * @param dataTagId The tag id whose history we are looking for
    *
    * @throws HistoryProviderException in case a HistoryProvider cannot be created
    * @throws LoadingParameterException in case of an invalid configurations
-   * @throws Exception if tag was not found or a non-numeric id was requested
-   *  ({@link TagIdException}), or any other exception
-   * thrown by the underlying service gateway.
+   * @return history as a List of HistoryTagValueUpdates
    */
-  public final String getHistoryCSV(final String dataTagId, final int numberOfRecords)
-      throws HistoryProviderException, LoadingParameterException  {
+  public final List<HistoryTagValueUpdate> requestHistoryData(final String dataTagId
+      , final Timestamp startTime
+      , final Timestamp endTime)
+      throws HistoryProviderException, LoadingParameterException {
 
-    final List<HistoryTagValueUpdate> historyValues = requestHistoryData(dataTagId, numberOfRecords);
-    final boolean isBooleanData = isBooleanData(historyValues);
-    return toCSV(historyValues, isBooleanData);
+    final long id = Long.parseLong(dataTagId);
+    return requestHistoryData(Collections.singletonList(id), startTime, endTime).get(id);
   }
 
   /**
    * Used to make a request for HistoryData.
+   *
    * @param dataTagId The tag id whose history we are looking for
-   * @param numberOfRecords number of records to retrieve from history
+   * @param numberOfDays number of days to go back in History
    *
    * @throws HistoryProviderException in case a HistoryProvider cannot be created
    * @throws LoadingParameterException in case of an invalid configurations
    * @return history as a List of HistoryTagValueUpdates
    */
-  public final List<HistoryTagValueUpdate> requestHistoryData(final String dataTagId,
+  public final List<HistoryTagValueUpdate> requestHistoryDataForLastDays(final String dataTagId,
+      final int numberOfDays)
+      throws HistoryProviderException, LoadingParameterException {
+
+    final long id = Long.parseLong(dataTagId);
+    return requestHistoryDataForLastDays(Collections.singletonList(id), numberOfDays).get(id);
+  }
+
+  /**
+   * Batch variant of {@link #requestHistoryData(String, int)}, loading the
+   * history of all given tags with a single loading manager.
+   *
+   * @param dataTagIds The tag ids whose history we are looking for
+   * @param numberOfRecords number of records to retrieve from history
+   *
+   * @throws HistoryProviderException in case a HistoryProvider cannot be created
+   * @throws LoadingParameterException in case of an invalid configurations
+   * @return history of every requested tag, in the order of the given ids
+   */
+  public final Map<Long, List<HistoryTagValueUpdate>> requestHistoryData(final Collection<Long> dataTagIds,
       final int numberOfRecords)
       throws HistoryProviderException, LoadingParameterException {
 
-    // other values that can be used //
-    Integer numberOfDays;
-    Date startDate;
-    Date endDate;
-    Timestamp startTime = null;
-    Timestamp endTime = null;
-    // other values that can be used //
+    return loadHistory(dataTagIds, getRecordsConfiguration(numberOfRecords),
+        id -> HistoryQuery.lastRecords(id, numberOfRecords));
+  }
 
+  /**
+   * Batch variant of {@link #requestHistoryData(String, Timestamp, Timestamp)},
+   * loading the history of all given tags with a single loading manager.
+   *
+   * @param dataTagIds The tag ids whose history we are looking for
+   * @param startTime
+   * @param endTime StartTime -> EndTime = Period of History to return
+   *
+   * @throws HistoryProviderException in case a HistoryProvider cannot be created
+   * @throws LoadingParameterException in case of an invalid configurations
+   * @return history of every requested tag, in the order of the given ids
+   */
+  public final Map<Long, List<HistoryTagValueUpdate>> requestHistoryData(final Collection<Long> dataTagIds
+      , final Timestamp startTime
+      , final Timestamp endTime)
+      throws HistoryProviderException, LoadingParameterException {
 
-    final long id = Long.parseLong(dataTagId);
-    Collection<Long> dataTagIds = new ArrayList<>();
-    dataTagIds.add(id);
-    final HistoryLoadingManager loadingManager = historyManager
-        .createHistoryLoadingManager(getHistoryProvider(), dataTagIds);
+    return loadHistory(dataTagIds, getRangeConfiguration(startTime, endTime),
+        id -> HistoryQuery.range(id, startTime, endTime));
+  }
 
-    final HistoryLoadingConfiguration configuration = new HistoryLoadingConfiguration();
-    configuration.setLoadInitialValues(true);
-    configuration.setMaximumRecords(numberOfRecords);
+  /**
+   * Batch variant of {@link #requestHistoryDataForLastDays(String, int)},
+   * loading the history of all given tags with a single loading manager.
+   *
+   * @param dataTagIds The tag ids whose history we are looking for
+   * @param numberOfDays number of days to go back in History
+   *
+   * @throws HistoryProviderException in case a HistoryProvider cannot be created
+   * @throws LoadingParameterException in case of an invalid configurations
+   * @return history of every requested tag, in the order of the given ids
+   */
+  public final Map<Long, List<HistoryTagValueUpdate>> requestHistoryDataForLastDays(final Collection<Long> dataTagIds,
+      final int numberOfDays)
+      throws HistoryProviderException, LoadingParameterException {
 
-    loadingManager.setConfiguration(configuration);
-    try {
-      loadingManager.beginLoading(false);
-    }
-    catch (LoadingParameterException e) {
-      logger.error("The configurations is invalid.", e);
-      throw new LoadingParameterException("The configuration is invalid", e);
-    }
+    return loadHistory(dataTagIds, getDaysConfiguration(numberOfDays),
+        id -> HistoryQuery.lastDays(id, numberOfDays));
+  }
 
-    final List<HistoryTagValueUpdate> historyValues = new ArrayList<>();
-    for (final Long tagId : dataTagIds) {
-      historyValues.addAll(loadingManager.getAllHistoryConverted(tagId));
-    }
-    return historyValues;
+  /**
+   * Used to make a request for the compact history of a tag.
+   *
+   * @param dataTagId The tag id whose history we are looking for
+   * @param numberOfRecords number of records to retrieve from history
+   *
+   * @throws HistoryProviderException in case a HistoryProvider cannot be created
+   * @throws LoadingParameterException in case of an invalid configurations
+   * @return history as a {@link HistorySeries}
+   */
+  public final HistorySeries requestHistorySeries(final String dataTagId, final int numberOfRecords)
+      throws HistoryProviderException, LoadingParameterException {
+
+    final long id = Long.parseLong(dataTagId);
+    return loadSeries(Collections.singletonList(id), getRecordsConfiguration(numberOfRecords),
+        tagId -> HistoryQuery.lastRecords(tagId, numberOfRecords)).get(id);
   }
 
   /**
-   * Used to make a request for HistoryData.
+   * Used to make a request for the compact history of a tag.
+   *
    * @param dataTagId The tag id whose history we are looking for
+   * @param startTime
+   * @param endTime StartTime -> EndTime = Period of History to return
    *
    * @throws HistoryProviderException in case a HistoryProvider cannot be created
    * @throws LoadingParameterException in case of an invalid configurations
-   * @return history as a List of HistoryTagValueUpdates
+   * @return history as a {@link HistorySeries}
    */
-  public final List<HistoryTagValueUpdate> requestHistoryData(final String dataTagId
-      , final Timestamp startTime
-      , final Timestamp endTime)
+  public final HistorySeries requestHistorySeries(final String dataTagId, final Timestamp startTime,
+      final Timestamp endTime)
+      throws HistoryProviderException, LoadingParameterException {
+
+    final long id = Long.parseLong(dataTagId);
+    return loadSeries(Collections.singletonList(id), getRangeConfiguration(startTime, endTime),
+        tagId -> HistoryQuery.range(tagId, startTime, endTime)).get(id);
+  }
+
+  /**
+   * Used to make a request for the compact history of a tag.
+   *
+   * @param dataTagId The tag id whose history we are looking for
+   * @param numberOfDays number of days to go back in History
+   *
+   * @throws HistoryProviderException in case a HistoryProvider cannot be created
+   * @throws LoadingParameterException in case of an invalid configurations
+   * @return history as a {@link HistorySeries}
+   */
+  public final HistorySeries requestHistorySeriesForLastDays(final String dataTagId, final int numberOfDays)
       throws HistoryProviderException, LoadingParameterException {
 
     final long id = Long.parseLong(dataTagId);
-    Collection<Long> dataTagIds = new ArrayList<>();
-    dataTagIds.add(id);
-    final HistoryLoadingManager loadingManager = historyManager
-        .createHistoryLoadingManager(getHistoryProvider(), dataTagIds);
+    return loadSeries(Collections.singletonList(id), getDaysConfiguration(numberOfDays),
+        tagId -> HistoryQuery.lastDays(tagId, numberOfDays)).get(id);
+  }
+
+  /**
+   * Batch variant of {@link #requestHistorySeries(String, int)}, loading
+   * the history of all given tags with a single round trip.
+   *
+   * @param dataTagIds The tag ids whose history we are looking for
+   * @param numberOfRecords number of records to retrieve from history
+   *
+   * @throws HistoryProviderException in case a HistoryProvider cannot be created
+   * @throws LoadingParameterException in case of an invalid configurations
+   * @return history of every requested tag, in the order of the given ids
+   */
+  public final Map<Long, HistorySeries> requestHistorySeries(final Collection<Long> dataTagIds,
+      final int numberOfRecords)
+      throws HistoryProviderException, LoadingParameterException {
 
+    return loadSeries(dataTagIds, getRecordsConfiguration(numberOfRecords),
+        tagId -> HistoryQuery.lastRecords(tagId, numberOfRecords));
+  }
+
+  /**
+   * Batch variant of {@link #requestHistorySeries(String, Timestamp, Timestamp)},
+   * loading the history of all given tags with a single round trip.
+   *
+   * @param dataTagIds The tag ids whose history we are looking for
+   * @param startTime
+   * @param endTime StartTime -> EndTime = Period of History to return
+   *
+   * @throws HistoryProviderException in case a HistoryProvider cannot be created
+   * @throws LoadingParameterException in case of an invalid configurations
+   * @return history of every requested tag, in the order of the given ids
+   */
+  public final Map<Long, HistorySeries> requestHistorySeries(final Collection<Long> dataTagIds,
+      final Timestamp startTime, final Timestamp endTime)
+      throws HistoryProviderException, LoadingParameterException {
+
+    return loadSeries(dataTagIds, getRangeConfiguration(startTime, endTime),
+        tagId -> HistoryQuery.range(tagId, startTime, endTime));
+  }
+
+  /**
+   * Batch variant of {@link #requestHistorySeriesForLastDays(String, int)},
+   * loading the history of all given tags with a single round trip.
+   *
+   * @param dataTagIds The tag ids whose history we are looking for
+   * @param numberOfDays number of days to go back in History
+   *
+   * @throws HistoryProviderException in case a HistoryProvider cannot be created
+   * @throws LoadingParameterException in case of an invalid configurations
+   * @return history of every requested tag, in the order of the given ids
+   */
+  public final Map<Long, HistorySeries> requestHistorySeriesForLastDays(final Collection<Long> dataTagIds,
+      final int numberOfDays)
+      throws HistoryProviderException, LoadingParameterException {
+
+    return loadSeries(dataTagIds, getDaysConfiguration(numberOfDays),
+        tagId -> HistoryQuery.lastDays(tagId, numberOfDays));
+  }
+
+  /**
+   * @return a configuration loading the last records of the tags
+   */
+  private static HistoryLoadingConfiguration getRecordsConfiguration(final int numberOfRecords) {
+    final HistoryLoadingConfiguration configuration = new HistoryLoadingConfiguration();
+    configuration.setLoadInitialValues(true);
+    configuration.setMaximumRecords(numberOfRecords);
+    return configuration;
+  }
+
+  /**
+   * @return a configuration loading the tags between two dates
+   */
+  private static HistoryLoadingConfiguration getRangeConfiguration(final Timestamp startTime,
+      final Timestamp endTime) {
     final HistoryLoadingConfiguration configuration = new HistoryLoadingConfiguration();
     configuration.setLoadInitialValues(true);
     configuration.setStartTime(startTime);
     configuration.setEndTime(endTime);
+    return configuration;
+  }
 
-    loadingManager.setConfiguration(configuration);
-    try {
-      loadingManager.beginLoading(false);
+  /**
+   * @return a configuration loading the last days of the tags
+   */
+  private static HistoryLoadingConfiguration getDaysConfiguration(final int numberOfDays) {
+    final HistoryLoadingConfiguration configuration = new HistoryLoadingConfiguration();
+    configuration.setLoadInitialValues(true);
+    configuration.setNumberOfDays(numberOfDays);
+    return configuration;
+  }
+
+  /**
+   * Returns the history of the given tags from the history caches, loading
+   * the tags which are not cached with a single round trip. Identical
+   * concurrent queries are coalesced, see {@link HistoryStore}.
+   *
+   * @param dataTagIds The tag ids whose history we are looking for
+   * @param configuration the loading configuration, shared by all tags
+   * @param queryOf gives the cache key of each tag for this configuration
+   *
+   * @throws HistoryProviderException in case a HistoryProvider cannot be created
+   * @throws LoadingParameterException in case of an invalid configurations
+   * @return read-only history of every requested tag, in the order of the
+   * given ids.
+   */
+  private Map<Long, List<HistoryTagValueUpdate>> loadHistory(final Collection<Long> dataTagIds,
+      final HistoryLoadingConfiguration configuration, final Function<Long, HistoryQuery> queryOf)
+      throws HistoryProviderException, LoadingParameterException {
+
+    return historyStore.get(dataTagIds, queryOf, tagIds -> {
+      final Map<Long, List<HistoryTagValueUpdate>> loaded = loadHistory(tagIds, configuration);
+      loaded.replaceAll((tagId, values) -> Collections.unmodifiableList(values));
+      return loaded;
+    });
+  }
+
+  /**
+   * Same as {@link #loadHistory(Collection, HistoryLoadingConfiguration, Function)},
+   * but the histories are kept in their columnar form. The loaded client
+   * objects are released as soon as they are converted.
+   *
+   * The Start-End periods missing from the in-memory caches are built from
+   * the daily blocks of the disk cache, if enabled: only the blocks which are
+   * not stored yet and the part of the period which is not closed are
+   * loaded, see {@link HistoryDiskCache#get(Collection, long, long, HistoryDiskCache.RangeLoader)}.
+   *
+   * @return history of every requested tag, in the order of the given ids.
+   */
+  private Map<Long, HistorySeries> loadSeries(final Collection<Long> dataTagIds,
+      final HistoryLoadingConfiguration configuration, final Function<Long, HistoryQuery> queryOf)
+      throws HistoryProviderException, LoadingParameterException {
+
+    return seriesStore.get(dataTagIds, queryOf, tagIds -> {
+      if (diskCache.isEnabled() && configuration.getStartTime() != null && configuration.getEndTime() != null) {
+        return diskCache.get(tagIds, configuration.getStartTime().getTime(), configuration.getEndTime().getTime(),
+            (rangeTagIds, startTime, endTime) ->
+                convertHistory(loadHistory(rangeTagIds, getRangeConfiguration(new Timestamp(startTime), new Timestamp(endTime)))));
+      }
+      return convertHistory(loadHistory(tagIds, configuration));
+    });
+  }
+
+  /**
+   * Converts loaded histories to their columnar form, releasing each client
+   * history as soon as it is converted.
+   *
+   * @return history of every given tag, in the same order
+   */
+  private static Map<Long, HistorySeries> convertHistory(final Map<Long, List<HistoryTagValueUpdate>> historyValues) {
+    final Map<Long, HistorySeries> series = new LinkedHashMap<>();
+    final Iterator<Map.Entry<Long, List<HistoryTagValueUpdate>>> loaded = historyValues.entrySet().iterator();
+    while (loaded.hasNext()) {
+      final Map.Entry<Long, List<HistoryTagValueUpdate>> entry = loaded.next();
+      series.put(entry.getKey(), HistorySeries.of(entry.getValue()));
+      loaded.remove();
     }
-    catch (LoadingParameterException e) {
-      logger.error("The configurations is invalid.", e);
-      throw new LoadingParameterException("The configuration is invalid", e);
+    return series;
+  }
+
+  /**
+   * Loads the history of the given tags with the given configuration. Periods
+   * longer than a chunk (given by dates or by a number of days) are split and
+   * loaded in parallel by the {@link HistoryChunkLoader}, the others with a
+   * single round trip.
+   *
+   * The update rate of every loaded tag is given to the
+   * {@link HistoryAdmissionController}, to estimate the cost of its next
+   * queries.
+   *
+   * @param dataTagIds The tag ids whose history we are looking for
+   * @param configuration the loading configuration, shared by all tags
+   *
+   * @throws HistoryProviderException in case a HistoryProvider cannot be created
+   * @throws LoadingParameterException in case of an invalid configurations
+   * @return history of every requested tag, in the order of the given ids.
+   * Tags without history are mapped to an empty list.
+   */
+  private Map<Long, List<HistoryTagValueUpdate>> loadHistory(final Collection<Long> dataTagIds,
+      final HistoryLoadingConfiguration configuration)
+      throws HistoryProviderException, LoadingParameterException {
+
+    if (dataTagIds.isEmpty()) {
+      return new LinkedHashMap<>();
+    }
+
+    Timestamp startTime = configuration.getStartTime();
+    Timestamp endTime = configuration.getEndTime();
+    if (configuration.getNumberOfDays() != null) {
+      endTime = new Timestamp(System.currentTimeMillis());
+      startTime = new Timestamp(endTime.getTime() - TimeUnit.DAYS.toMillis(configuration.getNumberOfDays()));
     }
 
-    final List<HistoryTagValueUpdate> historyValues = new ArrayList<>();
-    for (final Long tagId : dataTagIds) {
-      historyValues.addAll(loadingManager.getAllHistoryConverted(tagId));
+    final Map<Long, List<HistoryTagValueUpdate>> historyValues;
+    if (startTime != null && endTime != null && configuration.getMaximumRecords() == null
+        && chunkLoader.isSplit(startTime, endTime)) {
+      historyValues = chunkLoader.load(dataTagIds, startTime, endTime, configuration.isLoadInitialValues(),
+          this::queryHistory);
+    } else {
+      historyValues = queryHistory(dataTagIds, configuration);
+    }
+
+    for (final Map.Entry<Long, List<HistoryTagValueUpdate>> entry : historyValues.entrySet()) {
+      final List<HistoryTagValueUpdate> values = entry.getValue();
+      if (values.size() > 1) {
+        // the period of a number of records is the one covered by the records
+        final long period = startTime != null && endTime != null ? endTime.getTime() - startTime.getTime()
+            : values.get(values.size() - 1).getServerTimestamp().getTime() - values.get(0).getServerTimestamp().getTime();
+        admissionController.recordRate(entry.getKey(), values.size(), period);
+      }
     }
     return historyValues;
   }
 
   /**
-   * Used to make a request for HistoryData.
+   * Creates one {@link HistoryLoadingManager} for all the given tags and does
+   * a single (synchronous) loading round trip with the given configuration.
    *
-   * @param dataTagId The tag id whose history we are looking for
-   * @param numberOfDays number of days to go back in History
+   * @param dataTagIds The tag ids whose history we are looking for
+   * @param configuration the loading configuration, shared by all tags
    *
    * @throws HistoryProviderException in case a HistoryProvider cannot be created
    * @throws LoadingParameterException in case of an invalid configurations
-   * @return history as a List of HistoryTagValueUpdates
+   * @return history of every requested tag, in the order of the given ids.
+   * Tags without history are mapped to an empty list.
    */
-  public final List<HistoryTagValueUpdate> requestHistoryDataForLastDays(final String dataTagId,
-      final int numberOfDays)
+  private Map<Long, List<HistoryTagValueUpdate>> queryHistory(final Collection<Long> dataTagIds,
+      final HistoryLoadingConfiguration configuration)
       throws HistoryProviderException, LoadingParameterException {
 
-    final long id = Long.parseLong(dataTagId);
-    Collection<Long> dataTagIds = new ArrayList<>();
-    dataTagIds.add(id);
-    final HistoryLoadingManager loadingManager = historyManager
-        .createHistoryLoadingManager(getHistoryProvider(), dataTagIds);
+    final Map<Long, List<HistoryTagValueUpdate>> historyValues = new LinkedHashMap<>();
+    if (dataTagIds.isEmpty()) {
+      return historyValues;
+    }
 
-    final HistoryLoadingConfiguration configuration = new HistoryLoadingConfiguration();
-    configuration.setLoadInitialValues(true);
-    configuration.setNumberOfDays(numberOfDays);
+    try (HistoryProviderPool.Lease lease = getHistoryProvider()) {
+      final HistoryLoadingManager loadingManager = historyManager
+          .createHistoryLoadingManager(lease.getProvider(), new ArrayList<>(dataTagIds));
 
-    loadingManager.setConfiguration(configuration);
-    try {
-      loadingManager.beginLoading(false);
-    }
-    catch (LoadingParameterException e) {
-      logger.error("The configurations is invalid.", e);
-      throw new LoadingParameterException("The configuration is invalid", e);
-    }
+      loadingManager.setConfiguration(configuration);
+      try {
+        loadingManager.beginLoading(false);
+      }
+      catch (LoadingParameterException e) {
+        logger.error("The configurations is invalid.", e);
+        throw new LoadingParameterException("The configuration is invalid", e);
+      }
+      catch (RuntimeException e) {
+        // the provider may have lost its connection to the backend
+        lease.invalidate();
+        throw e;
+      }
 
-    final List<HistoryTagValueUpdate> historyValues = new ArrayList<>();
-    for (final Long tagId : dataTagIds) {
-      historyValues.addAll(loadingManager.getAllHistoryConverted(tagId));
+      for (final Long tagId : dataTagIds) {
+        historyValues.put(tagId, new ArrayList<>(loadingManager.getAllHistoryConverted(tagId)));
+      }
     }
     return historyValues;
   }
 
   /**
-   * @return History values of the specified TagId in XML format.
+   * Streams the history values of the specified TagId as an XML document to
+   * the given output stream. Each point is written as soon as it is reached,
+   * so no representation of the whole document is built in memory.
    *
-   * @param id The TagId whose history we are XML-ing
+   * The document is the one the raw XML view has always returned: the
+   * <code>history</code> element holding the XML representation of every
+   * point, as given by {@link HistoryTagValueUpdateImpl#getXml()}.
    *
+   * @param historyValues the history points to write
+   * @param id The TagId whose history we are XML-ing
    * @param historyDescription Description for the history values
    * (for example: Last 100 records)
-   *
    * @param trendURL a trend view showing the same historyValues
+   * @param out the stream to write the XML to. It is flushed, but not closed.
+   * @throws IOException in case the stream cannot be written to
    */
-  public final String toXml(final List<HistoryTagValueUpdate> historyValues, final String id
-      , final String historyDescription, final String trendURL) {
+  public final void writeXml(final List<HistoryTagValueUpdate> historyValues, final String id,
+      final String historyDescription, final String trendURL, final OutputStream out) throws IOException {
 
     // example: <history id="15685" historyDescription="Last 100 records" >
-    StringBuffer historyXml = new StringBuffer();
-    historyXml.append("<history");
-    historyXml.append(" id=\"" + id + "\"");
-    historyXml.append(" historyDescription=\"" + historyDescription + "\"");
-    historyXml.append(" trendURL=\"" + trendURL + "\"");
-    historyXml.append(" >");
-    for (HistoryTagValueUpdate h : historyValues) {
-      HistoryTagValueUpdateImpl q = (HistoryTagValueUpdateImpl) h;
-      historyXml.append(q.getXml());
+    final Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>");
+    writer.write("<history");
+    writer.write(" id=\"" + id + "\"");
+    writer.write(" historyDescription=\"" + historyDescription + "\"");
+    writer.write(" trendURL=\"" + trendURL + "\"");
+    writer.write(" >");
+    for (final HistoryTagValueUpdate h : historyValues) {
+      writer.write(((HistoryTagValueUpdateImpl) h).getXml());
     }
-    historyXml.append("</history>");
-    return historyXml.toString();
+    writer.write("</history>");
+    writer.flush();
   }
 
   /**
-   * @return True if the list of history values represent Boolean Data, false otherwise.
-   * This is useful when creating a Trend View, so that the data is represented in the best way.
+   * Streams the given history values as plain CSV (one line per point) to the
+   * given writer. Rows are written one by one, so no representation of the
+   * whole export is built in memory.
+   *
+   * Format: serverTimestamp,sourceTimestamp,value,valueDescription,valid,quality
+   *
+   * @param historyValues the history points to export
+   * @param writer the writer to stream the CSV to. It is flushed, but not closed.
+   * @throws IOException in case the writer cannot be written to
    */
-  public final boolean isBooleanData(final List<HistoryTagValueUpdate> historyValues) {
-
-    final int size = historyValues.size();
-    if (size > 0) {
-      final HistoryTagValueUpdate h = historyValues.iterator().next();
-      final String type = h.getValueClassName();
-      return type.contains("Boolean");
+  public final void writeCSV(final HistorySeries historyValues, final Writer writer)
+      throws IOException {
+
+    final ChartDateFormat dateFormat = ChartDateFormat.get();
+    final char[] date = new char[ChartDateFormat.LENGTH];
+
+    writer.write("serverTimestamp,sourceTimestamp,value,valueDescription,valid,quality\n");
+    for (int i = 0; i < historyValues.size(); i++) {
+      writer.write(date, 0, dateFormat.format(historyValues.getServerTimestamp(i), date, 0));
+      writer.write(',');
+      if (historyValues.getSourceTimestamp(i) != HistorySeries.NO_TIMESTAMP) {
+        writer.write(date, 0, dateFormat.format(historyValues.getSourceTimestamp(i), date, 0));
+      }
+      writer.write(',');
+      writer.write(escapeCSV(historyValues.getValueObject(i)));
+      writer.write(',');
+      writer.write(escapeCSV(historyValues.getValueDescription(i)));
+      writer.write(',');
+      writer.write(String.valueOf(historyValues.isValid(i)));
+      writer.write(',');
+      writer.write(escapeCSV(historyValues.getQualityDescription(i)));
+      writer.write('\n');
     }
-    return false;
+    writer.flush();
   }
 
   /**
-   * @return History values of the specified TagId in CSV format.
+   * Streams the given history values as a JSON array to the given output
+   * stream. Each point is written as soon as it is reached, so no
+   * representation of the whole export is built in memory. JSON has no
+   * number for the infinite values, they are written as the strings
+   * "Infinity" and "-Infinity", as in the CSV export. NaN values are missing
+   * values in a series and written as null.
    *
-   * @see http://dygraphs.com/data.html#csv
+   * @param historyValues the history points to export
+   * @param out the stream to write the JSON to. It is flushed, but not closed.
+   * @throws IOException in case the stream cannot be written to
    */
-  public final String toCSV(final List<HistoryTagValueUpdate> historyValues, final boolean isBooleanData) {
-
-    StringBuffer historyCSV = new StringBuffer();
-    final int size = historyValues.size();
-    for (int i = 0; i < size; i++) {
-
-      final HistoryTagValueUpdate h = historyValues.get(i);
-      HistoryTagValueUpdateImpl q = (HistoryTagValueUpdateImpl) h;
-      double value;
-
-      historyCSV.append("\"");
-
-      try {
-        if (isBooleanData) {
-          value = getChartCompatibleBooleanValue(q.getValue());
-        } else {
-          value = (new Double(q.getValue().toString())).doubleValue();
-        }
-      } catch (final Exception e) {
-        value = 0;
+  public final void writeJson(final HistorySeries historyValues, final OutputStream out)
+      throws IOException {
+
+    final JsonGenerator json = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8);
+    json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+    json.writeStartArray();
+    for (int i = 0; i < historyValues.size(); i++) {
+      json.writeStartObject();
+      json.writeNumberField("serverTimestamp", historyValues.getServerTimestamp(i));
+      if (historyValues.getSourceTimestamp(i) != HistorySeries.NO_TIMESTAMP) {
+        json.writeNumberField("sourceTimestamp", historyValues.getSourceTimestamp(i));
       }
 
-      historyCSV.append(
-          formatToDygraphCompatibleDate(q.getServerTimestamp())
-          + "," + value + "," + q.getValueDescription());
+      final Object value = historyValues.getValueObject(i);
+      json.writeFieldName("value");
+      if (value instanceof Number && !isFinite((Number) value)) {
+        json.writeString(value.toString());
+      } else if (value instanceof Number) {
+        json.writeNumber(value.toString());
+      } else if (value instanceof Boolean) {
+        json.writeBoolean((Boolean) value);
+      } else if (value == null) {
+        json.writeNull();
+      } else {
+        json.writeString(value.toString());
+      }
 
-      historyCSV.append("," + q.getDataTagQuality().getDescription().replace('\n', ' '));
+      json.writeStringField("valueDescription", historyValues.getValueDescription(i));
+      json.writeBooleanField("valid", historyValues.isValid(i));
+      json.writeStringField("quality", historyValues.getQualityDescription(i));
+      json.writeEndObject();
+    }
+    json.writeEndArray();
+    json.close();
+  }
 
-      historyCSV.append("\\n\"");
+  /**
+   * @return the string representation of the given field, quoted if it
+   * contains a separator, a quote or a line break.
+   */
+  private static String escapeCSV(final Object field) {
+    if (field == null) {
+      return "";
+    }
 
-      if (i != size - 1) {
-        historyCSV.append(" + ");
-      }
-      historyCSV.append("\n");
+    final String s = field.toString();
+    if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+      return s;
     }
-    return historyCSV.toString();
+    return '"' + s.replace("\"", "\"\"") + '"';
   }
 
+  /**
+   * @return False if the given number is an infinite or NaN floating point
+   *         value
+   */
+  private static boolean isFinite(final Number number) {
+    if (number instanceof Double || number instanceof Float) {
+      return Double.isFinite(number.doubleValue());
+    }
+    return true;
+  }
 
   /**
-   * @return A Date formated to be compatible with the Dygraph chart library.
-   * @see http://dygraphs.com/data.html#csv
+   * Prepares the histories of several tags for a multi-tag trend view. Each
+   * history is prepared as by {@link #analyse(HistorySeries, int)}, with an
+   * equal share of the chart points, and the results are aligned on their
+   * timestamps.
    *
-   * For example: 2009/07/12 12:34:56
+   * @param historyValues the history of each tag, sorted by server timestamp
+   * @param maxPoints the number of points the chart can usefully display
+   * @param alarmTimes the times at which the alarms of each tag were activated
+   *          or terminated. Tags without entry have no alarm point to keep.
    *
+   * @return the aligned chart data, in the order of the given histories
    */
-  private static String formatToDygraphCompatibleDate(final Timestamp timestamp) {
+  public final HistoryOverlay overlay(final Map<Long, HistorySeries> historyValues, final int maxPoints,
+      final Map<Long, long[]> alarmTimes) {
+    final int pointsPerTag = getPointsPerTag(historyValues, maxPoints);
+    final List<Long> tagIds = new ArrayList<>(historyValues.keySet());
+    final List<HistoryTrend> trends = new ArrayList<>(historyValues.size());
+    for (final Map.Entry<Long, HistorySeries> entry : historyValues.entrySet()) {
+      trends.add(analyse(entry.getValue(), pointsPerTag, alarmTimes.getOrDefault(entry.getKey(), new long[0])));
+    }
+    return HistoryOverlay.merge(tagIds, trends);
+  }
 
-    // 2009/07/12 12:34:56
-    SimpleDateFormat dateFormat = new SimpleDateFormat(CHART_DATE_FORMAT);
-    dateFormat.setLenient(false);
-    String outputDate = null;
-    outputDate = dateFormat.format(timestamp);
-    return outputDate;
+  /**
+   * @return the number of chart points given to each tag of a multi-tag trend
+   *         view
+   *
+   * @param historyValues the history of each tag
+   * @param maxPoints the number of points the chart can usefully display
+   */
+  public static int getPointsPerTag(final Map<Long, HistorySeries> historyValues, final int maxPoints) {
+    return Math.max(1, maxPoints / Math.max(1, historyValues.size()));
   }
 
   /**
-   * @return Scans the specified list of history points and returns a list
-   * of the invalid ones.
+   * Prepares a history for a trend view in a single pass over its points:
+   * the chart values and the points which must survive the downsampling are
+   * computed together. If the history has more than <code>maxPoints</code>
+   * points, it is then reduced with {@link HistoryDownsampler}. Points with
+   * an invalid quality are always kept, as well as the point following an
+   * invalid one, so that the invalid periods keep their extent.
    *
-   * @param historyValues A list of history points.
+   * @param historyValues the history points, sorted by server timestamp
+   * @param maxPoints the number of points the chart can usefully display
+   *
+   * @return the chart data
    */
-  public Collection<InvalidPoint> getInvalidPoints(final List<HistoryTagValueUpdate> historyValues) {
+  public final HistoryTrend analyse(final HistorySeries historyValues, final int maxPoints) {
+    return analyse(historyValues, maxPoints, new long[0]);
+  }
+
+  /**
+   * Prepares a history for a trend view like {@link #analyse(HistorySeries, int)},
+   * also keeping the points around the given alarm transitions.
+   *
+   * @param historyValues the history points, sorted by server timestamp
+   * @param maxPoints the number of points the chart can usefully display
+   * @param alarmTimes the times at which the alarms of the tag were activated
+   *          or terminated, as loaded from the alarm history
+   *
+   * @return the chart data
+   */
+  public final HistoryTrend analyse(final HistorySeries historyValues, final int maxPoints, final long[] alarmTimes) {
+
+    final boolean isBooleanData = historyValues.isBooleanData();
+    final int size = historyValues.size();
+    final double[] y = new double[size];
+    final boolean[] keep = new boolean[size];
+    for (int i = 0; i < size; i++) {
+      y[i] = getChartValue(historyValues, i, isBooleanData);
+
+      if (!historyValues.isValid(i)) {
+        keep[i] = true;
+        if (i + 1 < size) {
+          keep[i + 1] = true;
+        }
+      }
+    }
 
-    final Collection<InvalidPoint> invalidPoints = new ArrayList<>();
+    if (size <= maxPoints) {
+      return new HistoryTrend(historyValues, y, false);
+    }
+
+    HistoryDownsampler.keepAround(historyValues.getServerTimestamps(), alarmTimes, keep);
 
-    final Iterator<HistoryTagValueUpdate> i = historyValues.iterator();
+    final int[] indices = HistoryDownsampler.selectIndices(historyValues.getServerTimestamps(), y, keep, maxPoints);
+    final double[] chartValues = new double[indices.length];
+    for (int n = 0; n < indices.length; n++) {
+      chartValues[n] = y[indices[n]];
+    }
 
-    while (i.hasNext()) {
-      final HistoryTagValueUpdate h = i.next();
-      if (!h.getDataTagQuality().isValid()) {
+    logger.debug("History downsampled from " + size + " to " + indices.length + " points");
+    return new HistoryTrend(historyValues.select(indices), chartValues, true);
+  }
+
+  /**
+   * Aggregates the given history into fixed-width time buckets in a single
+   * pass. Points with an invalid quality or a non-numeric value are left out.
+   *
+   * @param historyValues the history points, sorted by server timestamp
+   * @param interval the width of the buckets
+   * @return the min/max/mean/count/first/last of each non-empty bucket
+   */
+  public final HistoryRollup rollup(final HistorySeries historyValues,
+      final HistoryRollup.Interval interval) {
 
-        final String time = formatToDygraphCompatibleDate(h.getServerTimestamp());
-        final String invalidationReason = h.getDataTagQuality().getDescription();
+    final int size = historyValues.size();
+    int expectedBuckets = 0;
+    if (size > 0) {
+      final long range = historyValues.getServerTimestamp(size - 1) - historyValues.getServerTimestamp(0);
+      expectedBuckets = (int) Math.min(size, range / interval.getMillis() + 1);
+    }
 
-        invalidPoints.add(new InvalidPoint(time, invalidationReason));
+    final HistoryRollup rollup = new HistoryRollup(interval, expectedBuckets);
+    for (int i = 0; i < size; i++) {
+      if (historyValues.isValid(i)) {
+        rollup.add(historyValues.getServerTimestamp(i), historyValues.getValue(i));
       }
     }
-    return invalidPoints;
+    return rollup;
   }
 
+  /**
+   * Computes the statistical summary of a history in a single pass over its
+   * points.
+   *
+   * @param historyValues the history points, sorted by server timestamp
+   * @param endTime end of the period of the history, until which the last
+   *          value stands (ignored if it is before the last point)
+   *
+   * @return the summary of the valid numeric values
+   */
+  public final HistorySummary summarise(final HistorySeries historyValues, final long endTime) {
+    final HistorySummary summary = new HistorySummary();
+    for (int i = 0; i < historyValues.size(); i++) {
+      summary.add(historyValues.getServerTimestamp(i), historyValues.getValue(i), historyValues.isValid(i));
+    }
+    summary.finish(endTime);
+    return summary;
+  }
 
   /**
-   * @return Boolean values should be replaced with 0 or 1
-   * to be represented in the chart.
+   * Computes the distribution of the values of a history.
+   *
+   * @param historyValues the history points, sorted by server timestamp
+   * @param weight how the points are counted
+   * @param maxBins maximum number of bins
+   * @param endTime end of the period of the history, until which the last
+   *          value stands (ignored if it is before the last point)
    *
-   * @param booleanValue The boolean value (as String).
+   * @return the histogram of the values
    */
-  private double getChartCompatibleBooleanValue(final Object booleanValue) {
+  public final HistoryHistogram histogram(final HistorySeries historyValues, final HistoryHistogram.Weight weight,
+      final int maxBins, final long endTime) {
+    return HistoryHistogram.of(historyValues, weight, maxBins, endTime);
+  }
 
-    if (booleanValue.toString().equals("true")) {
-      return 1;
-    }
-    else {
+  /**
+   * @return the value of a history point as it is represented in the chart
+   * (0 in case the value is not numeric).
+   */
+  private static double getChartValue(final HistorySeries historyValues, final int i, final boolean isBooleanData) {
+    final double value = historyValues.getValue(i);
+    if (Double.isNaN(value)) {
       return 0;
     }
+    return isBooleanData ? (value != 0 ? 1 : 0) : value;
   }
 
   /**
@@ -481,12 +1118,10 @@ public class HistoryService {
    * @throws ParseException in case of wrong Date Format
    */
   public static Timestamp stringToTimestamp(final String dateString) throws ParseException {
-
-    DateFormat dateFormat = new SimpleDateFormat(DATE_FORMAT);
-    dateFormat.setLenient(false);
-    java.util.Date date = dateFormat.parse(dateString);
-    final long time = date.getTime();
-    return new Timestamp(time);
+    final DateFormat dateFormat = DATE_PARSER.get();
+    // the default time zone may have changed since the parser was created
+    dateFormat.setTimeZone(TimeZone.getDefault());
+    return new Timestamp(dateFormat.parse(dateString).getTime());
   }
 
   /**
@@ -498,22 +1133,23 @@ public class HistoryService {
    * @throws ParseException in case of wrong Date Format
    */
   public static LocalDateTime stringToLocalDateTime(final String dateString) throws ParseException {
-    DateTimeFormatter formatter = DateTimeFormatter.ofPattern(DATE_FORMAT);
-    return LocalDateTime.parse(dateString, formatter);
+    return stringToTimestamp(dateString).toLocalDateTime();
   }
 
-  private HistoryProvider getHistoryProvider() throws HistoryProviderException {
-    HistoryProvider provider = null;
-
+  /**
+   * @return a provider borrowed from the pool, to be returned by closing the
+   *         lease
+   * @throws HistoryProviderException in case no HistoryProvider is available
+   */
+  private HistoryProviderPool.Lease getHistoryProvider() throws HistoryProviderException {
     try {
-      provider = historyManager.getHistoryProviderFactory().createHistoryProvider();
+      return providerPool.borrow();
     }
     catch (HistoryProviderException e) {
       logger.error("Can't load any history because a HistoryProvider cannot be created.", e);
       throw new HistoryProviderException("Cannot retrieve the data from the Short term log " +
           "because no history provider is accessible.");
     }
-
-    return provider;
   }
+
 }
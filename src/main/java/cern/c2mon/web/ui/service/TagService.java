@@ -27,6 +27,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import cern.c2mon.client.common.listener.BaseTagListener;
 import cern.c2mon.client.common.tag.Tag;
 import cern.c2mon.client.core.service.ConfigurationService;
 import cern.c2mon.shared.client.tag.TagConfig;
@@ -77,4 +78,22 @@ public class TagService {
     logger.debug("Datatag value fetch for tag " + dataTagId + ": " + (dataTag == null ? "NULL" : "SUCCESS"));
     return dataTag;
   }
+
+  /**
+   * Registers a listener for the updates of a datatag
+   * @param dataTagId id of the datatag
+   * @param listener notified of every update of the datatag
+   */
+  public void subscribe(final long dataTagId, final BaseTagListener listener) {
+    tagManager.subscribe(dataTagId, listener);
+  }
+
+  /**
+   * Removes a listener registered with {@link #subscribe(long, BaseTagListener)}
+   * @param dataTagId id of the datatag
+   * @param listener the listener to remove
+   */
+  public void unsubscribe(final long dataTagId, final BaseTagListener listener) {
+    tagManager.unsubscribe(dataTagId, listener);
+  }
 }
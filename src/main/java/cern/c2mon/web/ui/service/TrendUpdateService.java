@@ -0,0 +1,296 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import cern.c2mon.client.common.listener.BaseTagListener;
+import cern.c2mon.client.common.tag.Tag;
+import cern.c2mon.web.ui.history.TrendUpdate;
+
+/**
+ * Pushes the new values of tags to the trend views displaying them, as
+ * Server-Sent Events.
+ *
+ * A tag is subscribed once, when its first viewer connects, and unsubscribed
+ * when its last viewer leaves. Every update received from the server is then
+ * queued for all the viewers of the tag.
+ *
+ * The updates are written to the viewers by a small thread pool, never by
+ * the thread of the C2MON client delivering them: each viewer has a bounded
+ * queue, drained by one pool thread at a time. A viewer whose queue fills up
+ * (a stalled browser) is disconnected instead of delaying the others. The
+ * subscriptions to the C2MON client are made outside of the lock of this
+ * service.
+ */
+@Service
+public class TrendUpdateService {
+
+  /**
+   * TrendUpdateService logger
+   */
+  private static Logger logger = LoggerFactory.getLogger(TrendUpdateService.class);
+
+  /** Name of the events carrying a new value */
+  public static final String UPDATE_EVENT = "update";
+
+  /** Time after which a viewer has to reconnect, in milliseconds */
+  @Value("${c2mon.web.trend.live.timeout:3600000}")
+  private long emitterTimeout;
+
+  /** Number of threads writing the updates to the viewers */
+  @Value("${c2mon.web.trend.live.threads:4}")
+  private int senderThreads;
+
+  /** Maximum number of updates waiting to be written to a viewer */
+  @Value("${c2mon.web.trend.live.queueCapacity:100}")
+  private int viewerQueueCapacity;
+
+  @Autowired
+  private TagService tagService;
+
+  /** Subscriptions by tag id, guarded by <code>this</code> */
+  private final Map<Long, TagSubscription> subscriptions = new HashMap<>();
+
+  /** Writes the updates to the viewers */
+  private ExecutorService sender;
+
+  /**
+   * Creates the sender threads once the configuration is injected.
+   */
+  @PostConstruct
+  public void init() {
+    sender = new ThreadPoolExecutor(senderThreads, senderThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+        r -> {
+          final Thread thread = new Thread(r, "trend-live-sender");
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /**
+   * Registers a new viewer of a tag, subscribing to the tag if it is its
+   * first viewer.
+   *
+   * @param tagId the tag displayed by the viewer
+   * @return the event stream of the viewer
+   */
+  public SseEmitter subscribe(final long tagId) {
+    final SseEmitter emitter = new SseEmitter(emitterTimeout);
+    final Viewer viewer = new Viewer(tagId, emitter);
+    emitter.onCompletion(() -> removeViewer(viewer));
+    emitter.onTimeout(() -> removeViewer(viewer));
+
+    final TagSubscription created;
+    synchronized (this) {
+      TagSubscription subscription = subscriptions.get(tagId);
+      created = subscription == null ? new TagSubscription(tagId) : null;
+      if (created != null) {
+        subscription = created;
+        subscriptions.put(tagId, subscription);
+      }
+      subscription.viewers.add(viewer);
+    }
+
+    if (created != null) {
+      try {
+        tagService.subscribe(tagId, created);
+      } catch (RuntimeException e) {
+        synchronized (this) {
+          subscriptions.remove(tagId, created);
+        }
+        created.viewers.forEach(v -> v.emitter.complete());
+        throw e;
+      }
+      logger.debug("Subscribed to tag " + tagId + " for live trend updates");
+    }
+    return emitter;
+  }
+
+  private void removeViewer(final Viewer viewer) {
+    TagSubscription unsubscribed = null;
+    synchronized (this) {
+      final TagSubscription subscription = subscriptions.get(viewer.tagId);
+      if (subscription != null && subscription.viewers.remove(viewer) && subscription.viewers.isEmpty()) {
+        subscriptions.remove(viewer.tagId);
+        unsubscribed = subscription;
+      }
+    }
+
+    if (unsubscribed != null) {
+      tagService.unsubscribe(viewer.tagId, unsubscribed);
+      logger.debug("Unsubscribed from tag " + viewer.tagId + ", no more live trend viewers");
+    }
+  }
+
+  /**
+   * @return the number of subscribed tags and of connected viewers
+   */
+  public synchronized Map<String, Long> getStatistics() {
+    final Map<String, Long> statistics = new LinkedHashMap<>();
+    statistics.put("tags", (long) subscriptions.size());
+    statistics.put("viewers", subscriptions.values().stream().mapToLong(s -> s.viewers.size()).sum());
+    return statistics;
+  }
+
+  /**
+   * Unsubscribes from all tags and closes the event streams.
+   */
+  @PreDestroy
+  public void shutdown() {
+    final List<TagSubscription> removed;
+    synchronized (this) {
+      removed = new ArrayList<>(subscriptions.values());
+      subscriptions.clear();
+    }
+    for (final TagSubscription subscription : removed) {
+      tagService.unsubscribe(subscription.tagId, subscription);
+      subscription.viewers.forEach(viewer -> viewer.emitter.complete());
+    }
+    if (sender != null) {
+      sender.shutdownNow();
+    }
+  }
+
+  /**
+   * The subscription to a tag, shared by all its viewers.
+   */
+  private final class TagSubscription implements BaseTagListener {
+
+    private final long tagId;
+
+    private final List<Viewer> viewers = new CopyOnWriteArrayList<>();
+
+    private TagSubscription(final long tagId) {
+      this.tagId = tagId;
+    }
+
+    /**
+     * Called by the C2MON client: the update is only queued for the viewers.
+     */
+    @Override
+    public void onUpdate(final Tag tagUpdate) {
+      if (tagUpdate.getServerTimestamp() == null) {
+        return;
+      }
+
+      final TrendUpdate update = new TrendUpdate(tagUpdate);
+      for (final Viewer viewer : viewers) {
+        viewer.offer(update);
+      }
+    }
+  }
+
+  /**
+   * A connected trend view, with the updates waiting to be written to it.
+   */
+  private final class Viewer implements Runnable {
+
+    private final long tagId;
+
+    private final SseEmitter emitter;
+
+    private final BlockingQueue<TrendUpdate> updates = new ArrayBlockingQueue<>(viewerQueueCapacity);
+
+    /** True while a sender thread is draining the queue, or about to */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private volatile boolean closed = false;
+
+    private Viewer(final long tagId, final SseEmitter emitter) {
+      this.tagId = tagId;
+      this.emitter = emitter;
+    }
+
+    /**
+     * Queues an update without blocking, disconnecting the viewer if it does
+     * not keep up.
+     */
+    private void offer(final TrendUpdate update) {
+      if (closed) {
+        return;
+      }
+      if (!updates.offer(update)) {
+        logger.debug("Dropping a live trend viewer of tag " + tagId + ": too many pending updates");
+        closed = true;
+      }
+      if (scheduled.compareAndSet(false, true)) {
+        try {
+          sender.execute(this);
+        } catch (RuntimeException e) {
+          // the service is shutting down
+          scheduled.set(false);
+        }
+      }
+    }
+
+    /**
+     * Writes the queued updates, in order, or closes the viewer.
+     */
+    @Override
+    public void run() {
+      try {
+        TrendUpdate update;
+        while (!closed && (update = updates.poll()) != null) {
+          try {
+            emitter.send(SseEmitter.event().name(UPDATE_EVENT).data(update, MediaType.APPLICATION_JSON));
+          } catch (IOException | IllegalStateException e) {
+            // the viewer has gone away
+            logger.debug("Dropping a live trend viewer of tag " + tagId + ": " + e.getMessage());
+            closed = true;
+          }
+        }
+        if (closed) {
+          updates.clear();
+          removeViewer(this);
+          emitter.complete();
+        }
+      } finally {
+        scheduled.set(false);
+      }
+
+      // an update queued while the flag was still set must not wait for the next one
+      if (!closed && !updates.isEmpty() && scheduled.compareAndSet(false, true)) {
+        sender.execute(this);
+      }
+    }
+  }
+}
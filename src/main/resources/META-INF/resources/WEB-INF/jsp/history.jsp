@@ -4,17 +4,12 @@
 <%@ taglib prefix="c2mon" tagdir="/WEB-INF/tags"%>
 
 <!-- JSP variables -->
-<c:set var="tag" value="${history[0]}" />
-<c:set var="alarmflag" value="false" />
 <c:url var="home" value="../" />
 <c:url var="historyviewer" value="../historyviewer/form" />
-<c:url var="tagviewer" value="../tagviewer/${tag.id}" />
-<c:url var="trend" value="/trendviewer/${tag.id}" />
-<c:forEach var="tagitem" items="${history}">
-  <c:if test="${not empty tagitem.alarms}">
-    <c:set var="alarmflag" value="true" />
-  </c:if>
-</c:forEach>
+<c:url var="tagviewer" value="../tagviewer/${id}" />
+<c:url var="trend" value="/trendviewer/${id}" />
+<c:url var="export" value="/historyviewer/${id}/export" />
+<c:url var="page" value="/historyviewer/${id}/page" />
 
 <c2mon:template title="${title}">
 
@@ -42,7 +37,7 @@
           <a href="<c:url value="${historyviewer}"/>">Tag History</a>
           <span class="divider"></span>
         </li>
-        <li>${tag.id}</li>
+        <li>${id}</li>
       </ul>
     </div>
   </div>
@@ -51,7 +46,7 @@
     <div class="col-lg-12">
       <div class="page-header">
         <h2>
-          Tag History: ${tag.id} <small>${description}</small>
+          Tag History: ${id} <small>${description}</small>
         </h2>
       </div>
     </div>
@@ -68,6 +63,10 @@
           <span class="glyphicon glyphicon-stats"></span>
           View Trend
         </a>
+        <a href="${export}?${queryParameters}" class="btn btn-default btn-large">
+          <span class="glyphicon glyphicon-download-alt"></span>
+          Export CSV
+        </a>
       </p>
 
       <!-- Only show the HelpAlarm button if the property is defined. -->
@@ -84,7 +83,7 @@
 
   <div class="row">
     <div class="col-lg-12">
-      <table class="table table-striped table-bordered">
+      <table id="history-table" class="table table-striped table-bordered">
         <thead>
         <tr>
           <th>Server Timestamp</th>
@@ -100,72 +99,22 @@
         </thead>
 
         <tbody>
-        <c:forEach var="item" items="${history}">
-
-          <!-- Used to display a light-blue line in case of a datatag with invalid quality -->
-          <c:choose>
-            <c:when test="${item.dataTagQuality.valid == true}">
-              <c:set var="quality_status" value="ok" />
-            </c:when>
-            <c:otherwise>
-              <c:set var="quality_status" value="invalid" />
-            </c:otherwise>
-          </c:choose>
-
-          <tr class="${quality_status}">
-            <td>${item.serverTimestamp}</td>
-            <td>${item.value}</td>
-
-            <td>
-              <c:choose>
-                <c:when test="${item.dataTagQuality.valid == false}">
-                  <c:forEach var="entry" items="${item.dataTagQuality.invalidQualityStates}">
-                    <p>${entry.key}-${entry.value}</p>
-                  </c:forEach>
-                </c:when>
-                <c:otherwise>
-                  <p>OK</p>
-                </c:otherwise>
-              </c:choose>
-            </td>
-
-            <td>${item.description}</td>
-            <td>${item.sourceTimestamp}</td>
-            <td>${item.mode}</td>
-
-            <c:choose>
-              <c:when test="${alarmflag}">
-                <c:choose>
-                  <c:when test="${not empty item.alarms}">
-                    <c:if test="${item.alarms[0].active}">
-                      <td>
-                        <span class="label label-danger">
-                        <i class="fa fa-bell"></i> ACTIVE
-                        </span>
-                      </td>
-                    </c:if>
-                    <c:if test="${not item.alarms[0].active}">
-                      <td>
-                        <span class="label label-success">
-                        <i class="fa fa-bell"></i> TERMINATED
-                        </span>
-                      </td>
-                    </c:if>
-
-                  </c:when>
-                  <c:otherwise>
-                    <td></td>
-                  </c:otherwise>
-                </c:choose>
-              </c:when>
-              <c:otherwise>
-              </c:otherwise>
-            </c:choose>
-          </tr>
-        </c:forEach>
-
+        <!-- The rows are loaded page by page, see history-table.js -->
         </tbody>
       </table>
+
+      <p>
+        <span id="history-count" class="text-muted"></span>
+        <button id="load-more" class="btn btn-default btn-sm" style="display: none;">Load more</button>
+      </p>
     </div>
   </div>
 </c2mon:template>
+
+<script type="text/javascript" src="<c:url value="/js/history-table.js"/>"></script>
+
+<script type="text/javascript">
+  $(document).ready(function() {
+    var table = new HistoryTable("${page}?${queryParameters}", ${alarmflag});
+  });
+</script>
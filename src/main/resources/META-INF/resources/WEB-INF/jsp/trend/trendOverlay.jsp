@@ -0,0 +1,111 @@
+<%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c"%>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/functions" prefix="fn"%>
+<%@ taglib prefix="c2mon" tagdir="/WEB-INF/tags"%>
+
+<c:url var="home" value="/" />
+<c:url var="trendviewer" value="/trendviewer/form" />
+<c:url var="data" value="/trendviewer/overlay/data" />
+
+<c2mon:template title="${title}">
+
+<style type="text/css">
+#chart-toolbar {
+  margin-bottom: 0;
+  border-bottom-left-radius: 0px;
+  -webkit-border-bottom-left-radius: 0px;
+  -moz-border-bottom-left-radius: 0px;
+  border-bottom-right-radius: 0px;
+  -webkit-border-bottom-right-radius: 0px;
+  -moz-border-bottom-right-radius: 0px;
+  background-color: rgb(247, 247, 247);
+}
+
+#chart-container {
+  border-top-left-radius: 0px;
+  -webkit-border-top-left-radius: 0px;
+  -moz-border-top-left-radius: 0px;
+  border-top-right-radius: 0px;
+  -webkit-border-top-right-radius: 0px;
+  -moz-border-top-right-radius: 0px;
+  border-top: 0px;
+  background-color: #fff;
+  padding-bottom: 0;
+  padding-left: 0;
+}
+</style>
+
+
+  <div class="row">
+    <div class="col-lg-12">
+      <ul class="breadcrumb">
+        <li>
+          <a href="${home}">
+            Home
+          </a>
+          <span class="divider"></span>
+        </li>
+        <li>
+          <a href="${trendviewer}">${title}</a>
+          <span class="divider"></span>
+        </li>
+        <li>${fn:escapeXml(ids)}</li>
+      </ul>
+
+      <div id="page-title">
+        <div class="page-header">
+          <h1>${title}</h1>
+        </div>
+      </div>
+
+      <div id="page-body">
+        <nav id="chart-toolbar" class="navbar navbar-default" role="navigation">
+          <div>
+            <div class="navbar-header">
+              <span class="navbar-brand">
+                ${fn:length(tags)} tags <small>${fn:escapeXml(view_description)}</small>
+              </span>
+            </div>
+
+            <ul class="nav navbar-nav navbar-right">
+              <li>
+                <button id="reset-zoom" class="btn btn-default navbar-btn">
+                  <i class="glyphicon glyphicon-zoom-out"></i>
+                  &nbsp;Reset Zoom
+                </button>
+              </li>
+            </ul>
+          </div>
+        </nav>
+
+        <div id="chart-container" class="well">
+          <div id="chart" style="margin: 0 auto;"></div>
+        </div>
+
+        <!-- The tags of the chart, in the order of the series -->
+        <ul id="overlay-tags" class="list-inline">
+          <c:forEach var="tag" items="${tags}">
+            <li data-id="${tag.id}" data-name="${fn:escapeXml(tag.name)}" data-unit="${fn:escapeXml(tag.unit)}">
+              <a href="<c:url value="/trendviewer/${tag.id}"/>">[${tag.id}] ${fn:escapeXml(tag.name)}</a>
+            </li>
+          </c:forEach>
+        </ul>
+      </div>
+    </div>
+  </div>
+</c2mon:template>
+
+<script type="text/javascript" src="<c:url value="/js/highcharts.js"/>"></script>
+<script type="text/javascript" src="<c:url value="/js/trend-overlay.js"/>"></script>
+
+<script type="text/javascript">
+
+  /**
+   * Called when the document is ready to be safely manipulated.
+   */
+  $(document).ready(function() {
+    var tags = $('#overlay-tags li').map(function() {
+      return { id : $(this).data('id'), name : String($(this).data('name')), unit : String($(this).data('unit')) };
+    }).get();
+    var trendOverlay = new TrendOverlay(tags, "${data}?${queryParameters}");
+  });
+</script>
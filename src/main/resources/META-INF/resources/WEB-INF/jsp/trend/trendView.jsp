@@ -2,12 +2,12 @@
 <%@ taglib uri="http://java.sun.com/jsp/jstl/functions" prefix="fn"%>
 <%@ taglib prefix="c2mon" tagdir="/WEB-INF/tags"%>
 
-<%@page import="cern.c2mon.web.ui.service.HistoryService"%>
-<%@page import="cern.c2mon.client.ext.history.common.HistoryTagValueUpdate"%>
-<%@page import="java.util.List"%>
-
 <c:url var="home" value="../" />
 <c:url var="trendviewer" value="../trendviewer/form" />
+<c:url var="data" value="/trendviewer/${id}/data" />
+<c:url var="live" value="/trendviewer/${id}/live" />
+<c:url var="windowData" value="/trendviewer/${id}/window" />
+<c:url var="histogram" value="/trendviewer/${id}/histogram" />
 
 <c2mon:template title="${title}">
 
@@ -36,6 +36,11 @@
   padding-left: 0;
 }
 
+#histogram-container {
+  display: none;
+  background-color: #fff;
+}
+
 .btn-danger {
   margin-left: 8px;
 }
@@ -93,6 +98,11 @@
                       <input type="checkbox" autocomplete="off">
                       Toggle Invalid
                     </label>
+                    <label id="toggle-histogram" class="btn btn-default navbar-btn">
+                      <input type="checkbox" autocomplete="off">
+                      <i class="glyphicon glyphicon-stats"></i>
+                      &nbsp;Distribution
+                    </label>
                   </div>
                 </li>
 
@@ -111,6 +121,10 @@
                     <br />
                     <br />
                     Invalid tag indicators can be shown/hidden with the 'Toggle Invalid' button.
+                    <br />
+                    <br />
+                    The 'Distribution' button shows how the values of the history are spread, counting either each
+                    record once or each value by how long it stood. Values with an invalid quality are stacked apart.
                   </div>
                 </li>
 
@@ -148,6 +162,20 @@
         <div id="chart-container" class="well">
           <div id="chart" style="margin: 0 auto;"></div>
         </div>
+
+        <div id="histogram-container" class="well">
+          <div class="btn-group" data-toggle="buttons">
+            <label class="btn btn-default btn-sm active">
+              <input type="radio" name="histogram-weight" value="SAMPLES" autocomplete="off" checked>
+              Count records
+            </label>
+            <label class="btn btn-default btn-sm">
+              <input type="radio" name="histogram-weight" value="TIME" autocomplete="off">
+              Weight by time
+            </label>
+          </div>
+          <div id="histogram" style="margin: 0 auto; height: 300px;"></div>
+        </div>
       </div>
     </div>
   </div>
@@ -162,17 +190,12 @@
    * Called when the document is ready to be safely manipulated.
    */
   $(document).ready(function() {
-    var data = ${CSV};
-
-    // Parse the invalid points into an array
-    // TODO: merge this into main CSV file via 'valid' column
-    var invalid = new Array();
-    <c:forEach items="${invalidPoints}" var="invalidPoint" varStatus="status">
-      invalid[${status.index}] = ["${invalidPoint.time}", "${invalidPoint.invalidationReason}"];
-    </c:forEach>
+    // Create and show the chart, the history is loaded by the chart itself.
+    // Windows relative to now are kept up to date with the new tag values.
+    var trendView = new TrendView(${id}, "${data}?${queryParameters}", "${liveUpdates ? live : ''}", "${windowData}", "Date", "${ylabel}");
 
-    // Create and show the chart
-    var trendView = new TrendView(${id}, ${CSV}, invalid, "Date", "${ylabel}");
+    // The value distribution is only loaded once it is shown
+    var histogram = new TrendHistogram(${id}, "${histogram}?${queryParameters}", "${ylabel}");
   });
 </script>
 
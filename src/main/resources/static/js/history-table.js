@@ -0,0 +1,101 @@
+/**
+ * Table of a tag history, filled page by page as it is scrolled instead of
+ * being rendered at once by the server.
+ *
+ * Each page gives the cursor of the next one, the server timestamp of its
+ * last row (see HistoryPage), so the pages follow each other even if the
+ * history of the last records or days moves on in between.
+ *
+ * @param pageUrl: URL of the JSON pages of the history, with the parameters
+ *                 of the history
+ * @param alarmColumn: true if the table has an alarm status column
+ */
+function HistoryTable(pageUrl, alarmColumn) {
+  this.pageUrl = pageUrl;
+  this.alarmColumn = alarmColumn;
+  this.next = null;
+  this.loading = false;
+  this.rows = 0;
+
+  $('#load-more').click(function() {
+    this.loadPage();
+  }.bind(this));
+
+  // Load the next page when the bottom of the table comes into view
+  $(window).scroll(function() {
+    if (this.next !== null && $(window).scrollTop() + $(window).height() > $(document).height() - 200) {
+      this.loadPage();
+    }
+  }.bind(this));
+
+  this.loadPage();
+}
+
+/**
+ * Load the next page of the history from the server and append its rows.
+ */
+HistoryTable.prototype.loadPage = function() {
+  if (this.loading) {
+    return;
+  }
+  this.loading = true;
+  $('#load-more').prop('disabled', true);
+
+  var url = this.pageUrl;
+  if (this.next !== null) {
+    url += (url.indexOf('?') < 0 ? '?' : '&') + 'AFTER=' + encodeURIComponent(this.next);
+  }
+
+  $.getJSON(url).done(function(page) {
+    var tbody = $('#history-table tbody');
+    for (var i = 0; i < page.rows.length; i++) {
+      tbody.append(this.createRow(page.rows[i]));
+    }
+    this.rows += page.rows.length;
+    this.next = page.next;
+
+    $('#history-count').text(this.rows + ' of ' + page.total + ' records');
+    $('#load-more').toggle(this.next !== null);
+  }.bind(this)).fail(function() {
+    $('#history-count').text('Cannot load the history');
+  }).always(function() {
+    this.loading = false;
+    $('#load-more').prop('disabled', false);
+  }.bind(this));
+}
+
+/**
+ * @return the table row of a history point. The values are inserted as text.
+ */
+HistoryTable.prototype.createRow = function(row) {
+  // Rows with an invalid quality are highlighted in light blue
+  var tr = $('<tr>').addClass(row.valid ? 'ok' : 'invalid');
+
+  tr.append($('<td>').text(row.serverTimestamp));
+  tr.append($('<td>').text(row.value === null ? '' : String(row.value)));
+
+  var quality = $('<td>');
+  if (row.valid) {
+    quality.append($('<p>').text('OK'));
+  } else {
+    for (var i = 0; i < row.invalidQualityStates.length; i++) {
+      quality.append($('<p>').text(row.invalidQualityStates[i]));
+    }
+  }
+  tr.append(quality);
+
+  tr.append($('<td>').text(row.description || ''));
+  tr.append($('<td>').text(row.sourceTimestamp || ''));
+  tr.append($('<td>').text(row.mode || ''));
+
+  if (this.alarmColumn) {
+    var alarm = $('<td>');
+    if (row.alarmActive !== null) {
+      alarm.append($('<span>').addClass('label ' + (row.alarmActive ? 'label-danger' : 'label-success'))
+          .append($('<i>').addClass('fa fa-bell'))
+          .append(document.createTextNode(row.alarmActive ? ' ACTIVE' : ' TERMINATED')));
+    }
+    tr.append(alarm);
+  }
+  return tr;
+}
@@ -0,0 +1,162 @@
+/**
+ * Chart of a multi-tag trend view, overlaying the history of several tags.
+ *
+ * The server aligns the histories on the union of their timestamps: each
+ * series holds the value of its tag in every row from its first point on, so
+ * the series are drawn as steps.
+ *
+ * @param tags: the tags of the chart (id, name and unit), in the order of the
+ *              series
+ * @param dataUrl: URL of the JSON history of the tags
+ */
+function TrendOverlay(tags, dataUrl) {
+  this.tags = tags;
+  this.chart = this.createChart();
+
+  $('#reset-zoom').prop('disabled', true);
+  $('#reset-zoom').click(function() {
+    this.chart.zoomOut();
+    $('#reset-zoom').prop('disabled', true);
+  }.bind(this));
+
+  this.loadData(dataUrl);
+}
+
+/**
+ * Load the aligned history of the tags from the server and plot it.
+ *
+ * @param dataUrl the URL of the JSON history
+ */
+TrendOverlay.prototype.loadData = function(dataUrl) {
+  this.chart.showLoading();
+  var url = dataUrl + '&WIDTH=' + Math.round(this.chart.chartWidth);
+
+  $.getJSON(url).done(function(overlay) {
+    for (var s = 0; s < overlay.series.length; s++) {
+      this.chart.series[s].setData(this.parseSeries(overlay.timestamps, overlay.series[s]), false);
+    }
+    this.chart.redraw();
+    this.chart.hideLoading();
+  }.bind(this)).fail(function(xhr) {
+    var message = xhr.responseJSON && xhr.responseJSON.message;
+    this.chart.showLoading(message || 'Cannot load the history of the tags');
+  }.bind(this));
+}
+
+/**
+ * Convert the values of one tag into Highcharts points.
+ *
+ * @param timestamps the timestamp of each row of the overlay
+ * @param series the values of the tag, starting at row series.first
+ */
+TrendOverlay.prototype.parseSeries = function(timestamps, series) {
+  var points = new Array(series.values.length);
+  for (var i = 0; i < points.length; i++) {
+    points[i] = {
+      x : timestamps[series.first + i],
+      y : series.values[i],
+      invalid : false
+    };
+  }
+  // Invalid values are marked in red
+  for (var j = 0; j < series.invalid.length; j++) {
+    var point = points[series.invalid[j] - series.first];
+    point.invalid = true;
+    point.marker = {
+      enabled : true,
+      fillColor : '#D9534F'
+    };
+  }
+  return points;
+}
+
+/**
+ * Create and return a Highcharts chart with one series per tag, and one Y
+ * axis per unit.
+ */
+TrendOverlay.prototype.createChart = function() {
+  Highcharts.setOptions({
+    global : {
+      useUTC : false
+    }
+  });
+
+  var units = [];
+  var series = this.tags.map(function(tag) {
+    var unit = tag.unit !== 'null' ? tag.unit : '';
+    var axis = units.indexOf(unit);
+    if (axis < 0) {
+      axis = units.push(unit) - 1;
+    }
+    return {
+      name : '[' + tag.id + '] ' + tag.name,
+      yAxis : axis,
+      step : 'left',
+      data : []
+    };
+  });
+
+  var yAxis = units.map(function(unit, i) {
+    return {
+      title : {
+        text : unit
+      },
+      opposite : i % 2 === 1
+    };
+  });
+
+  return new Highcharts.Chart({
+    chart : {
+      renderTo : 'chart',
+      type : 'line',
+      zoomType : 'x',
+      panning : true,
+      panKey : 'shift',
+      height : 400
+    },
+    title : {
+      text : null
+    },
+    credits : false,
+    xAxis : {
+      type : 'datetime',
+      gridLineWidth : 1,
+      title : {
+        text : 'Date'
+      },
+      events : {
+        setExtremes : function() {
+          $('#reset-zoom').prop('disabled', false);
+        }
+      }
+    },
+    yAxis : yAxis,
+    tooltip : {
+      shared : true,
+      crosshairs : true,
+      formatter : function() {
+        var s = '<b>' + Highcharts.dateFormat('%Y-%m-%d %H:%M:%S.%L', this.x) + '</b>';
+        $.each(this.points, function(i, point) {
+          s += '<br/><span style="color:' + point.series.color + '">' + point.series.name + '</span>: '
+              + Highcharts.numberFormat(point.y, 2) + (point.point.invalid ? ' (invalid)' : '');
+        });
+        return s;
+      }
+    },
+    legend : {
+      enabled : true
+    },
+    exporting : {
+      enabled : false
+    },
+    plotOptions : {
+      series : {
+        turboThreshold : 0,
+        marker : {
+          enabled : false
+        }
+      }
+    },
+    series : series
+  });
+}
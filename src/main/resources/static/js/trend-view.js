@@ -19,17 +19,31 @@
 /**
  * This object is the main trend view chart.
  *
- * @param data: CSV data of the data points to plot.
- * @param invalidPoints: array of invalid points.
+ * @param dataUrl: URL of the history of the data points to plot.
+ * @param liveUrl: URL of the event stream of the new values of the tag, or an
+ *                 empty string if the chart is not updated.
+ * @param windowUrl: URL of the history of a period, used to show more details
+ *                   when zooming.
+ *
+ * The histories are requested in the compact binary encoding of the server
+ * (see TrendView.decodeHistory), JSON being accepted as well.
  *
  * @author Justin Lewis Salmon
  */
-function TrendView(id, csv, invalidPoints, xlabel, ylabel) {
+function TrendView(id, dataUrl, liveUrl, windowUrl, xlabel, ylabel) {
 
   this.id = id;
-  this.data = this.parseCSV(csv);
 
-  this.invalidPoints = invalidPoints;
+  // The points of the whole history (possibly downsampled), and the points
+  // currently plotted, which are more detailed inside the zoomed period
+  this.overview = [];
+  this.data = [];
+  this.downsampled = false;
+
+  this.windowUrl = windowUrl;
+  this.windowRequest = 0;
+  this.windowTimer = null;
+
   this.showInvalidPoints = true;
 
   this.xlabel = xlabel;
@@ -37,6 +51,7 @@ function TrendView(id, csv, invalidPoints, xlabel, ylabel) {
   this.chart = this.createChart();
 
   this.init();
+  this.loadData(dataUrl, liveUrl);
 }
 
 /**
@@ -59,14 +74,6 @@ TrendView.prototype.init = function() {
     $('#reset-zoom').prop('disabled', true);
   }.bind(this));
 
-  // Show invalid points by default
-  this.toggleInvalidPoints();
-
-  // Register a click handler for the invalid points toggle
-  $('#toggle-invalid').click(function() {
-    this.toggleInvalidPoints();
-  }.bind(this));
-
   // Check if we should hide the menu/title. If the URL contains the parameters
   // MENU=false and TITLE=false, then the toolbar and page title will be hidden
   // respectively. This is to enable embedding a chart in another page.
@@ -103,27 +110,348 @@ TrendView.prototype.init = function() {
 }
 
 /**
- * Parse the CSV returned by the server into objects that Highcharts can
- * understand and plot. The current format is the following:
+ * Load the history from the server and plot it. The history is downsampled by
+ * the server to the width of the chart.
+ *
+ * @param dataUrl the URL of the history
+ * @param liveUrl the URL of the new values, subscribed once the history is
+ *          plotted
+ */
+TrendView.prototype.loadData = function(dataUrl, liveUrl) {
+  this.chart.showLoading();
+
+  var separator = dataUrl.indexOf('?') < 0 ? '?' : '&';
+  var url = dataUrl + separator + 'WIDTH=' + Math.round(this.chart.chartWidth);
+
+  this.fetchHistory(url).done(function(history) {
+    this.overview = this.parseHistory(history);
+    this.data = this.overview;
+    this.downsampled = history.downsampled;
+    this.chart.series[0].setData(this.data, true);
+    this.chart.hideLoading();
+
+    // Show invalid points by default
+    this.toggleInvalidPoints();
+
+    // Register a click handler for the invalid points toggle
+    $('#toggle-invalid').click(function() {
+      this.toggleInvalidPoints();
+    }.bind(this));
+
+    if (liveUrl) {
+      this.subscribe(liveUrl);
+    }
+  }.bind(this)).fail(function(message) {
+    // Requests over the history budgets are answered with an explanation
+    this.chart.showLoading(message || 'Cannot load the history of tag ' + this.id);
+  }.bind(this));
+}
+
+/**
+ * Media type of the binary histories
+ */
+TrendView.BINARY_TYPE = 'application/vnd.c2mon.trend';
+
+/**
+ * Request a history from the server, preferably in its binary encoding.
+ *
+ * @param url the URL of the history
+ * @return a promise of the history, in the same form as the JSON history.
+ *         It is rejected with the error message of the server, if any.
+ */
+TrendView.prototype.fetchHistory = function(url) {
+  var deferred = $.Deferred();
+  var xhr = new XMLHttpRequest();
+  xhr.open('GET', url);
+  xhr.responseType = 'arraybuffer';
+  xhr.setRequestHeader('Accept', TrendView.BINARY_TYPE + ', application/json;q=0.5');
+
+  xhr.onload = function() {
+    var type = xhr.getResponseHeader('Content-Type') || '';
+    var json = null;
+    if (type.indexOf('json') >= 0) {
+      try {
+        json = JSON.parse(new TextDecoder('utf-8').decode(xhr.response));
+      } catch (e) {
+        json = null;
+      }
+    }
+
+    if (xhr.status !== 200) {
+      deferred.reject(json && json.message);
+    } else if (json) {
+      deferred.resolve(json);
+    } else {
+      deferred.resolve(TrendView.decodeHistory(xhr.response));
+    }
+  };
+  xhr.onerror = function() {
+    deferred.reject(null);
+  };
+  xhr.send();
+  return deferred.promise();
+}
+
+/**
+ * Decode a binary history (see HistoryTrendEncoding on the server side) into
+ * the same form as the JSON history.
  *
- * timestamp,value,valueDescription,quality
+ * @param buffer the ArrayBuffer received from the server
+ */
+TrendView.decodeHistory = function(buffer) {
+  var bytes = new Uint8Array(buffer);
+  var position = 0;
+  var utf8 = new TextDecoder('utf-8');
+
+  // Variable length integers hold 7 bits per byte, low bits first. They are
+  // accumulated with multiplications, as timestamps do not fit in 32 bits.
+  function readVarLong() {
+    var value = 0;
+    var factor = 1;
+    var b;
+    do {
+      b = bytes[position++];
+      value += (b & 0x7f) * factor;
+      factor *= 128;
+    } while (b & 0x80);
+    return value;
+  }
+
+  function readZigZag() {
+    var value = readVarLong();
+    return value % 2 === 0 ? value / 2 : -(value + 1) / 2;
+  }
+
+  // Bits are read most significant first, up to 32 at a time
+  var bit = 0;
+  function readBits(count) {
+    var value = 0;
+    for (var i = 0; i < count; i++) {
+      value = value * 2 + ((bytes[position] >> (7 - bit)) & 1);
+      if (++bit === 8) {
+        bit = 0;
+        position++;
+      }
+    }
+    return value;
+  }
+
+  function readDictionary(size) {
+    var words = new Array(readVarLong());
+    for (var i = 0; i < words.length; i++) {
+      var length = readVarLong();
+      words[i] = length === 0 ? null : utf8.decode(bytes.subarray(position, position + length - 1));
+      position += Math.max(length - 1, 0);
+    }
+    var codes = new Array(size);
+    for (var j = 0; j < size; j++) {
+      codes[j] = readVarLong();
+    }
+    return { words : words, codes : codes };
+  }
+
+  var version = bytes[position++];
+  if (version !== 1) {
+    throw new Error('Unsupported history encoding: ' + version);
+  }
+  var flags = bytes[position++];
+  var size = readVarLong();
+
+  var timestamps = new Array(size);
+  var timestamp = 0;
+  for (var i = 0; i < size; i++) {
+    timestamp += readZigZag();
+    timestamps[i] = timestamp;
+  }
+
+  // XOR-compressed values, handled as two 32 bits halves
+  var values = new Array(size);
+  var view = new DataView(new ArrayBuffer(8));
+  var high = 0, low = 0, leading = 0, trailing = 0;
+  for (var k = 0; k < size; k++) {
+    if (k === 0) {
+      high = readBits(32);
+      low = readBits(32);
+    } else if (readBits(1) === 1) {
+      if (readBits(1) === 1) {
+        leading = readBits(5);
+        var meaningful = readBits(6) || 64;
+        trailing = 64 - leading - meaningful;
+      }
+      var count = 64 - leading - trailing;
+      var xorHigh = count > 32 ? readBits(count - 32) : 0;
+      var xorLow = readBits(Math.min(count, 32));
+      if (trailing >= 32) {
+        xorHigh = xorLow * Math.pow(2, trailing - 32);
+        xorLow = 0;
+      } else if (trailing > 0) {
+        xorHigh = ((xorHigh << trailing) | (xorLow >>> (32 - trailing))) >>> 0;
+        xorLow = (xorLow << trailing) >>> 0;
+      }
+      high = (high ^ xorHigh) >>> 0;
+      low = (low ^ xorLow) >>> 0;
+    }
+    view.setUint32(0, high);
+    view.setUint32(4, low);
+    values[k] = view.getFloat64(0);
+  }
+  if (bit > 0) {
+    bit = 0;
+    position++;
+  }
+
+  var invalid = [];
+  for (var n = 0; n < size; n++) {
+    if (bytes[position + (n >> 3)] & (1 << (n & 7))) {
+      invalid.push(n);
+    }
+  }
+  position += (size + 7) >> 3;
+
+  var valueDescriptions = readDictionary(size);
+  var qualities = readDictionary(size);
+
+  return {
+    booleanData : (flags & 1) !== 0,
+    downsampled : (flags & 2) !== 0,
+    timestamps : timestamps,
+    values : values,
+    invalid : invalid,
+    valueDescriptions : valueDescriptions.words,
+    valueDescriptionCodes : valueDescriptions.codes,
+    qualities : qualities.words,
+    qualityCodes : qualities.codes
+  };
+}
+
+/**
+ * Receive the new values of the tag from the server and append them to the
+ * chart, instead of reloading the whole history.
  *
- * @param csv the history CSV returned by the server
+ * @param liveUrl the URL of the event stream
  */
-TrendView.prototype.parseCSV = function(csv) {
-  var array = csv.split("\n")
-  array.pop();
-  var values = new Array();
-
-  for (var i = 0; i < array.length; i++) {
-    var value = array[i].split(',');
-    value = {
-      x : Date.parse(value[0]),
-      y : parseFloat(value[1]),
-      valueDescription : value[2],
-      quality : value[3]
+TrendView.prototype.subscribe = function(liveUrl) {
+  if (typeof EventSource === 'undefined') {
+    return;
+  }
+
+  var source = new EventSource(liveUrl);
+  source.addEventListener('update', function(event) {
+    var update = JSON.parse(event.data);
+    var last = this.data.length > 0 ? this.data[this.data.length - 1].x : null;
+
+    // The first event may repeat the latest value of the history
+    if (last != null && update.timestamp <= last) {
+      return;
+    }
+
+    var point = {
+      x : update.timestamp,
+      y : update.value,
+      valueDescription : update.valueDescription != null ? update.valueDescription : "",
+      quality : update.quality,
+      invalid : !update.valid
     };
-    values[i] = value;
+    // New points come after the zoomed period, if any
+    this.overview.push(point);
+    if (this.data !== this.overview) {
+      this.data.push(point);
+    }
+    this.chart.series[0].addPoint(point, true, false);
+
+    // An invalid point is highlighted until the next point, so the band of
+    // the previous point can only be drawn now (if the bands are displayed)
+    if (this.showInvalidPoints === false && this.data.length > 1 && this.data[this.data.length - 2].invalid) {
+      this.addInvalidPlotBand(this.data.length - 2);
+    }
+  }.bind(this));
+
+  $(window).on('beforeunload', function() {
+    source.close();
+  });
+}
+
+/**
+ * Called when the chart is zoomed or panned. If the history was downsampled,
+ * the points of the visible period are replaced with more detailed ones,
+ * loaded from the server once the user stops zooming.
+ *
+ * @param min start of the visible period, undefined when zooming out
+ * @param max end of the visible period, undefined when zooming out
+ */
+TrendView.prototype.onZoom = function(min, max) {
+  if (!this.downsampled) {
+    return;
+  }
+
+  clearTimeout(this.windowTimer);
+  var request = ++this.windowRequest;
+
+  if (typeof min === 'undefined' || typeof max === 'undefined') {
+    this.plot(this.overview);
+    return;
+  }
+
+  this.windowTimer = setTimeout(function() {
+    var from = Math.floor(min);
+    var to = Math.ceil(max);
+    var url = this.windowUrl + '?FROM=' + from + '&TO=' + to + '&WIDTH=' + Math.round(this.chart.chartWidth);
+
+    this.fetchHistory(url).done(function(history) {
+      // A more recent zoom has been requested meanwhile
+      if (request !== this.windowRequest) {
+        return;
+      }
+
+      var before = this.overview.filter(function(point) {
+        return point.x < from;
+      });
+      var after = this.overview.filter(function(point) {
+        return point.x > to;
+      });
+      this.plot(before.concat(this.parseHistory(history), after));
+    }.bind(this));
+  }.bind(this), 300);
+}
+
+/**
+ * Replace the plotted points, keeping the current zoom.
+ *
+ * @param data the points to plot
+ */
+TrendView.prototype.plot = function(data) {
+  this.data = data;
+  this.chart.series[0].setData(this.data, true);
+
+  if (this.showInvalidPoints === false) {
+    this.chart.xAxis[0].removePlotBand('plotband');
+    this.showInvalidPlotBands();
+  }
+}
+
+/**
+ * Convert the history returned by the server into objects that Highcharts can
+ * understand and plot. The history holds one array per field (timestamps,
+ * values, ...), the descriptions being given as indices in a list of distinct
+ * descriptions.
+ *
+ * @param history the history returned by the server
+ */
+TrendView.prototype.parseHistory = function(history) {
+  var values = new Array(history.timestamps.length);
+
+  for (var i = 0; i < values.length; i++) {
+    var valueDescription = history.valueDescriptions[history.valueDescriptionCodes[i]];
+    values[i] = {
+      x : history.timestamps[i],
+      y : history.values[i],
+      valueDescription : valueDescription != null ? valueDescription : "",
+      quality : history.qualities[history.qualityCodes[i]],
+      invalid : false
+    };
+  }
+  for (var j = 0; j < history.invalid.length; j++) {
+    values[history.invalid[j]].invalid = true;
   }
 
   return values;
@@ -133,6 +461,7 @@ TrendView.prototype.parseCSV = function(csv) {
  * Create and return a Highcharts chart.
  */
 TrendView.prototype.createChart = function() {
+  var trendView = this;
 
   // Global options for Highcharts
   Highcharts.setOptions({
@@ -180,8 +509,9 @@ TrendView.prototype.createChart = function() {
         text : 'Date'
       },
       events : {
-        setExtremes : function() {
+        setExtremes : function(e) {
           $('#reset-zoom').prop('disabled', false);
+          trendView.onZoom(e.min, e.max);
         }
       },
     },
@@ -298,65 +628,30 @@ TrendView.prototype.toggleInvalidPoints = function() {
  * points.
  */
 TrendView.prototype.showInvalidPlotBands = function() {
-  if (this.invalidPoints.length == 0) {
-    return;
-  }
-
-  var cpt = 0;
-
-  // 1st value of the graph
-  var min_data_x = this.chart.series[0].xData[0];
-  var max_data_x = this.chart.series[0].xData[this.chart.series[0].xData.length - 1];
-
-  // get the first invalid date and convert the string to a date
-  var w = Date.parse(this.invalidPoints[cpt][0]);
-
-  while (w < max_data_x) {
-    // Save the index of the invalid date who is located in the all date table
-    var savecpt;
-    var end;
-    var start_x_highlight = w;
-
-    // i search the invalid date in the all date table, the next one is the end
-    for (var j = 0; j < this.data.length; j++) {
-      end = this.data[j].x;
-      if (start_x_highlight <= end) {
-        savecpt = j + 1;
-        break;
-      }
+  for (var i = 0; i < this.data.length; i++) {
+    if (this.data[i].invalid) {
+      this.addInvalidPlotBand(i);
     }
-
-    if (savecpt >= this.data.length) {
-      savecpt = this.data.length - 1;
-    }
-    var end_x_highlight = this.data[savecpt].x;
-    // make sure we don't try to plot outside the graph
-    if (start_x_highlight < min_data_x) {
-      start_x_highlight = min_data_x;
-    }
-    if (end_x_highlight > max_data_x) {
-      end_x_highlight = max_data_x;
-    }
-
-    this.chart.xAxis[0].addPlotBand({
-      from : start_x_highlight,
-      to : end_x_highlight,
-      color : '#D9EDF7', // 'rgba(102, 225, 235, 0.4)',
-      id : 'plotband'
-    });
-
-    // get the next invalid point
-    cpt++;
-    if (cpt >= this.invalidPoints.length) {
-      // cpt = invalid.length - 1;
-      return;
-    }
-
-    nextDate = Date.parse(this.invalidPoints[cpt][0]);
-    w = nextDate;
   }
 }
 
+/**
+ * Display the plot band of an invalid point, which is highlighted until the
+ * next point of the chart.
+ *
+ * @param j the index of the invalid point
+ */
+TrendView.prototype.addInvalidPlotBand = function(j) {
+  var end = Math.min(j + 1, this.data.length - 1);
+
+  this.chart.xAxis[0].addPlotBand({
+    from : this.data[j].x,
+    to : this.data[end].x,
+    color : '#D9EDF7', // 'rgba(102, 225, 235, 0.4)',
+    id : 'plotband'
+  });
+}
+
 /**
  * Inspect the URL parameters to see if we should hide the toolbar. If the
  * parameters contain MENU=false, then we hide the toolbar, otherwise not.
@@ -403,3 +698,139 @@ TrendView.prototype.getUrlVars = function() {
   }
   return vars;
 }
+
+/**
+ * Column chart of the distribution of the values of the history, shown under
+ * the trend view by the 'Distribution' button. The values with an invalid
+ * quality are stacked with the valid ones, in a series of their own.
+ *
+ * @param id the tag id
+ * @param histogramUrl URL of the distribution, with the parameters of the
+ *          history
+ * @param unit the unit of the tag values
+ */
+function TrendHistogram(id, histogramUrl, unit) {
+  this.id = id;
+  this.histogramUrl = histogramUrl;
+  this.unit = unit;
+  this.chart = null;
+  this.weight = 'SAMPLES';
+
+  $('#toggle-histogram').click(function() {
+    $('#histogram-container').toggle();
+    if ($('#histogram-container').is(':visible') && this.chart === null) {
+      this.load();
+    }
+  }.bind(this));
+
+  $('input[name="histogram-weight"]').change(function(event) {
+    this.weight = event.target.value;
+    this.load();
+  }.bind(this));
+}
+
+/**
+ * Load the distribution of the current weight from the server and plot it.
+ */
+TrendHistogram.prototype.load = function() {
+  if (this.chart !== null) {
+    this.chart.destroy();
+  }
+  this.chart = this.createChart();
+  this.chart.showLoading();
+
+  $.getJSON(this.histogramUrl + '&WEIGHT=' + this.weight).done(function(histogram) {
+    this.plot(histogram);
+    this.chart.hideLoading();
+  }.bind(this)).fail(function() {
+    this.chart.showLoading('Cannot load the distribution of tag ' + this.id);
+  }.bind(this));
+}
+
+/**
+ * Plot a distribution as received from the server, each bin as its share of
+ * all the numeric values.
+ */
+TrendHistogram.prototype.plot = function(histogram) {
+  var edges = histogram.edges;
+  var total = 0;
+  for (var i = 0; i < histogram.counts.length; i++) {
+    total += histogram.counts[i] + histogram.invalidCounts[i];
+  }
+  if (total === 0) {
+    this.chart.showLoading('No numeric value in this period');
+    return;
+  }
+
+  var valid = [], invalid = [];
+  for (var j = 0; j < histogram.counts.length; j++) {
+    var x = (edges[j] + edges[j + 1]) / 2;
+    valid.push({ x : x, y : 100 * histogram.counts[j] / total, from : edges[j], to : edges[j + 1], count : histogram.counts[j] });
+    invalid.push({ x : x, y : 100 * histogram.invalidCounts[j] / total, from : edges[j], to : edges[j + 1], count : histogram.invalidCounts[j] });
+  }
+
+  var width = edges[1] - edges[0];
+  this.chart.series[0].update({ pointRange : width }, false);
+  this.chart.series[1].update({ pointRange : width }, false);
+  this.chart.series[0].setData(valid, false);
+  this.chart.series[1].setData(invalid, false);
+  this.chart.redraw();
+}
+
+/**
+ * Create and return the Highcharts column chart of the distribution.
+ */
+TrendHistogram.prototype.createChart = function() {
+  var histogram = this;
+
+  return new Highcharts.Chart({
+    chart : {
+      renderTo : 'histogram',
+      type : 'column'
+    },
+    title : {
+      text : null
+    },
+    credits : {
+      enabled : false
+    },
+    xAxis : {
+      title : {
+        text : this.unit
+      }
+    },
+    yAxis : {
+      min : 0,
+      title : {
+        text : this.weight === 'TIME' ? '% of the time' : '% of the records'
+      }
+    },
+    plotOptions : {
+      column : {
+        stacking : 'normal',
+        pointPadding : 0,
+        groupPadding : 0,
+        borderWidth : 0.5
+      }
+    },
+    tooltip : {
+      formatter : function() {
+        var count = histogram.weight === 'TIME'
+            ? (this.point.count / 3600000).toFixed(2) + ' h'
+            : this.point.count + ' records';
+        return '<b>' + this.series.name + '</b><br/>'
+            + Highcharts.numberFormat(this.point.from, 3) + ' to ' + Highcharts.numberFormat(this.point.to, 3) + '<br/>'
+            + count + ' (' + this.y.toFixed(1) + '%)';
+      }
+    },
+    series : [ {
+      name : 'Valid',
+      color : '#7CB5EC',
+      data : []
+    }, {
+      name : 'Invalid quality',
+      color : '#D9534F',
+      data : []
+    } ]
+  });
+}
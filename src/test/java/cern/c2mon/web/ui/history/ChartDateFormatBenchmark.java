@@ -0,0 +1,86 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.function.IntSupplier;
+
+/**
+ * Compares the formatting of the timestamps of a 1M point history with a
+ * SimpleDateFormat created for every point (the former trend view code), a
+ * single SimpleDateFormat, and {@link ChartDateFormat}.
+ *
+ * Not a unit test: run its main method to get the timings.
+ */
+public class ChartDateFormatBenchmark {
+
+  private static final int POINTS = 1000000;
+
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) {
+    long[] timestamps = new long[POINTS];
+    long start = System.currentTimeMillis() - 30 * 24 * 3600 * 1000L;
+    for (int i = 0; i < POINTS; i++) {
+      // about one point every 2.6 seconds, over a month
+      timestamps[i] = start + i * 2592L + i % 1000;
+    }
+
+    for (int round = 0; round < ROUNDS; round++) {
+      long perPoint = time(() -> {
+        StringBuilder sb = new StringBuilder(POINTS * 24);
+        for (long t : timestamps) {
+          SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+          dateFormat.setLenient(false);
+          sb.append(dateFormat.format(new Date(t))).append('\n');
+        }
+        return sb.length();
+      });
+
+      long shared = time(() -> {
+        StringBuilder sb = new StringBuilder(POINTS * 24);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS");
+        for (long t : timestamps) {
+          sb.append(dateFormat.format(new Date(t))).append('\n');
+        }
+        return sb.length();
+      });
+
+      long chart = time(() -> {
+        StringBuilder sb = new StringBuilder(POINTS * 24);
+        ChartDateFormat dateFormat = ChartDateFormat.get();
+        for (long t : timestamps) {
+          dateFormat.append(t, sb);
+          sb.append('\n');
+        }
+        return sb.length();
+      });
+
+      System.out.println(String.format("round %d: SimpleDateFormat per point %d ms, shared SimpleDateFormat %d ms, "
+          + "ChartDateFormat %d ms", round + 1, perPoint, shared, chart));
+    }
+  }
+
+  private static long time(IntSupplier task) {
+    long start = System.nanoTime();
+    if (task.getAsInt() == 0) {
+      throw new IllegalStateException();
+    }
+    return (System.nanoTime() - start) / 1000000;
+  }
+}
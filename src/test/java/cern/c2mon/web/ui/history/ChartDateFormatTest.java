@@ -0,0 +1,74 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertEquals;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class ChartDateFormatTest {
+
+  private static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSS";
+
+  @Test
+  public void testSameOutputAsSimpleDateFormat() {
+    for (String zone : new String[] { "UTC", "Europe/Zurich", "America/New_York", "Asia/Kolkata" }) {
+      TimeZone timeZone = TimeZone.getTimeZone(zone);
+      SimpleDateFormat expected = new SimpleDateFormat(PATTERN);
+      expected.setTimeZone(timeZone);
+      ChartDateFormat format = new ChartDateFormat(timeZone);
+
+      Random random = new Random(42);
+      for (int i = 0; i < 100000; i++) {
+        long millis = (long) (random.nextDouble() * 4102444800000L);
+        assertEquals(zone, expected.format(new Date(millis)), format.format(millis));
+      }
+    }
+  }
+
+  @Test
+  public void testDaylightSavingTimeChange() {
+    TimeZone timeZone = TimeZone.getTimeZone("Europe/Zurich");
+    SimpleDateFormat expected = new SimpleDateFormat(PATTERN);
+    expected.setTimeZone(timeZone);
+    ChartDateFormat format = new ChartDateFormat(timeZone);
+
+    // 2016-10-30 01:00 UTC, when the clocks go back from 03:00 to 02:00
+    long change = 1477789200000L;
+    for (long millis = change - 2 * 3600 * 1000L; millis < change + 2 * 3600 * 1000L; millis += 61 * 1000L + 7) {
+      assertEquals(expected.format(new Date(millis)), format.format(millis));
+    }
+  }
+
+  @Test
+  public void testFormatIntoBuffer() {
+    ChartDateFormat format = new ChartDateFormat(TimeZone.getTimeZone("UTC"));
+    char[] buffer = new char[2 + ChartDateFormat.LENGTH];
+    buffer[0] = '[';
+
+    int end = format.format(0L, buffer, 1);
+    buffer[end] = ']';
+
+    assertEquals(1 + ChartDateFormat.LENGTH, end);
+    assertEquals("[1970-01-01T00:00:00.000]", new String(buffer));
+  }
+}
@@ -0,0 +1,120 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import cern.c2mon.web.ui.service.HistoryService;
+
+/**
+ * Pins the date parameters accepted by {@link HistoryService#stringToTimestamp}
+ * to those accepted by the non-lenient <code>dd/MM/yyyy-HH:mm</code>
+ * SimpleDateFormat the start and end dates were always parsed with.
+ */
+public class DateParameterParsingTest {
+
+  private static final String[] ACCEPTED = {
+      "01/02/2016-10:30",
+      "1/2/2016-9:5",
+      "31/12/2016-23:59",
+      "29/02/2016-10:30",
+      "001/02/2016-10:030",
+      "01/02/16-10:30",
+      "  01/02/2016-10:30",
+      "01/02/2016-10:30:15",
+      "01/02/2016-10:30 xyz",
+      // the second 02:30 of the day the clocks go back
+      "30/10/2016-02:30" };
+
+  private static final String[] REJECTED = {
+      "",
+      "30/02/2016-10:30",
+      "29/02/2015-10:30",
+      "32/01/2016-10:30",
+      "01/13/2016-10:30",
+      "01/02/2016-24:00",
+      "01/02/2016-10:60",
+      "01/02/0000-10:30",
+      "01/02/-2016-10:30",
+      "+1/02/2016-10:30",
+      "01/02/2016 10:30",
+      "01/02/2016-10",
+      "2016-02-01T10:30",
+      // skipped when the clocks go forward
+      "27/03/2016-02:30" };
+
+  private TimeZone defaultTimeZone;
+
+  @Before
+  public void setTimeZone() {
+    defaultTimeZone = TimeZone.getDefault();
+    TimeZone.setDefault(TimeZone.getTimeZone("Europe/Zurich"));
+  }
+
+  @After
+  public void restoreTimeZone() {
+    TimeZone.setDefault(defaultTimeZone);
+  }
+
+  private static Timestamp parseWithSimpleDateFormat(final String date) throws ParseException {
+    SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy-HH:mm");
+    dateFormat.setLenient(false);
+    return new Timestamp(dateFormat.parse(date).getTime());
+  }
+
+  @Test
+  public void testAcceptedDates() throws ParseException {
+    for (String date : ACCEPTED) {
+      assertEquals(date, parseWithSimpleDateFormat(date), HistoryService.stringToTimestamp(date));
+    }
+    assertEquals(Timestamp.valueOf("2016-02-01 09:05:00"), HistoryService.stringToTimestamp("1/2/2016-9:5"));
+  }
+
+  @Test
+  public void testRejectedDates() {
+    for (String date : REJECTED) {
+      try {
+        parseWithSimpleDateFormat(date);
+        fail("Accepted by SimpleDateFormat: " + date);
+      } catch (ParseException e) {
+        // expected
+      }
+      try {
+        HistoryService.stringToTimestamp(date);
+        fail("Accepted: " + date);
+      } catch (ParseException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testLocalDateTime() throws ParseException {
+    assertEquals(parseWithSimpleDateFormat("01/02/2016-10:30").toLocalDateTime(),
+        HistoryService.stringToLocalDateTime("01/02/2016-10:30"));
+  }
+}
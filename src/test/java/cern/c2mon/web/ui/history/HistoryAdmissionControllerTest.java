@@ -0,0 +1,136 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cern.c2mon.web.ui.history.HistoryAdmissionController.Admission;
+
+public class HistoryAdmissionControllerTest {
+
+  private HistoryAdmissionController controller;
+
+  @After
+  public void shutdown() {
+    controller.shutdown();
+  }
+
+  private void create(final long globalBudget, final long requesterBudget, final int queueCapacity,
+      final long queueTimeout) {
+    controller = new HistoryAdmissionController(globalBudget, requesterBudget, queueCapacity, queueTimeout, 3600);
+  }
+
+  private static boolean isStarted(final CompletableFuture<Admission> admission) {
+    return admission.isDone() && !admission.isCompletedExceptionally();
+  }
+
+  private static Throwable getFailure(final CompletableFuture<Admission> admission) throws InterruptedException {
+    try {
+      admission.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      return e.getCause();
+    } catch (TimeoutException e) {
+      return e;
+    }
+    return null;
+  }
+
+  @Test
+  public void testWaitsForBudget() {
+    create(10, 10, 10, 60000);
+    Admission first = controller.admit("a", 8).join();
+    CompletableFuture<Admission> second = controller.admit("b", 5);
+    assertFalse(second.isDone());
+
+    first.close();
+    assertTrue(isStarted(second));
+    assertEquals(5L, (long) controller.getStatistics().get("used"));
+  }
+
+  @Test
+  public void testStartsInArrivalOrder() {
+    create(10, 10, 10, 60000);
+    Admission running = controller.admit("a", 6).join();
+    Admission small = controller.admit("d", 2).join();
+    CompletableFuture<Admission> large = controller.admit("b", 6);
+    CompletableFuture<Admission> later = controller.admit("c", 1);
+    assertFalse(large.isDone());
+    // would fit in the global budget, but arrived after the large request
+    assertFalse(later.isDone());
+
+    small.close();
+    assertFalse(large.isDone());
+    assertFalse(later.isDone());
+
+    running.close();
+    assertTrue(isStarted(large));
+    assertTrue(isStarted(later));
+  }
+
+  @Test
+  public void testRequesterBudgetOnlyHoldsItsOwnRequests() {
+    create(20, 5, 10, 60000);
+    Admission running = controller.admit("a", 4).join();
+    CompletableFuture<Admission> overBudget = controller.admit("a", 3);
+    CompletableFuture<Admission> sameRequester = controller.admit("a", 1);
+    CompletableFuture<Admission> otherRequester = controller.admit("b", 3);
+
+    assertFalse(overBudget.isDone());
+    assertFalse(sameRequester.isDone());
+    assertTrue(isStarted(otherRequester));
+
+    running.close();
+    assertTrue(isStarted(overBudget));
+    assertTrue(isStarted(sameRequester));
+  }
+
+  @Test
+  public void testRejections() throws InterruptedException {
+    create(10, 5, 1, 60000);
+    assertTrue(getFailure(controller.admit("a", 6)) instanceof HistoryRejectedException);
+
+    controller.admit("a", 5).join();
+    CompletableFuture<Admission> queued = controller.admit("a", 5);
+    assertFalse(queued.isDone());
+    assertTrue(getFailure(controller.admit("b", 6)) instanceof HistoryRejectedException);
+    assertTrue(getFailure(controller.admit("a", 1)) instanceof HistoryOverloadedException);
+    assertEquals(3L, (long) controller.getStatistics().get("rejected"));
+  }
+
+  @Test
+  public void testTimeoutStartsTheFollowingRequests() throws Exception {
+    create(10, 10, 10, 100);
+    controller.admit("a", 6).join();
+    CompletableFuture<Admission> large = controller.admit("b", 6);
+    CompletableFuture<Admission> later = controller.admit("c", 3);
+
+    assertTrue(getFailure(large) instanceof HistoryOverloadedException);
+    // completed by the timer thread, once the large request is rejected
+    later.get(5, TimeUnit.SECONDS);
+    assertEquals(1L, (long) controller.getStatistics().get("timedOut"));
+  }
+}
@@ -0,0 +1,112 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.alarm.Alarm;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+
+public class HistoryAlarmCorrelatorTest {
+
+  private static HistoryTagValueUpdate point(final long time) {
+    HistoryTagValueUpdate update = mock(HistoryTagValueUpdate.class);
+    when(update.getServerTimestamp()).thenReturn(new Timestamp(time));
+    return update;
+  }
+
+  private static Alarm alarm(final long id, final boolean active, final long time) {
+    Alarm alarm = mock(Alarm.class);
+    when(alarm.getId()).thenReturn(id);
+    when(alarm.isActive()).thenReturn(active);
+    when(alarm.getFaultCode()).thenReturn((int) time);
+    return alarm;
+  }
+
+  /**
+   * @return the alarm states attached to each value, as "id:time:A|T"
+   */
+  private static List<List<String>> correlate(final List<HistoryTagValueUpdate> history, final long endTime,
+      final List<List<Alarm>> alarmHistories) {
+    final List<List<String>> attached = new ArrayList<>();
+    history.forEach(h -> attached.add(new ArrayList<>()));
+    // the time of the test alarms is held in their fault code
+    HistoryAlarmCorrelator.correlate(history, endTime, alarmHistories, Alarm::getFaultCode,
+        (alarm, index) -> attached.get(index).add(alarm.getId() + ":" + alarm.getFaultCode() + ":" + (alarm.isActive() ? "A" : "T")));
+    return attached;
+  }
+
+  @Test
+  public void alarmStatesAreAttachedToTheValuesTheyOverlap() {
+    List<HistoryTagValueUpdate> history = Arrays.asList(point(0), point(10), point(20), point(30));
+    List<List<Alarm>> alarmHistories = Arrays.asList(
+        Arrays.asList(alarm(1, true, 5), alarm(1, false, 25)),
+        Arrays.asList(alarm(2, true, 10)));
+
+    List<List<String>> attached = correlate(history, 40, alarmHistories);
+    assertEquals(Arrays.asList("1:5:A"), attached.get(0));
+    assertEquals(Arrays.asList("1:5:A", "2:10:A"), attached.get(1));
+    assertEquals(Arrays.asList("1:5:A", "2:10:A", "1:25:T"), attached.get(2));
+    assertEquals(Arrays.asList("2:10:A"), attached.get(3));
+  }
+
+  @Test
+  public void alarmActivatedBeforeTheWindowIsAttached() {
+    List<HistoryTagValueUpdate> history = Arrays.asList(point(10), point(20), point(30));
+    // each history starts with the last state of the alarm before the window
+    List<List<Alarm>> alarmHistories = Arrays.asList(
+        Arrays.asList(alarm(1, true, 5), alarm(1, false, 25)),
+        Arrays.asList(alarm(2, false, 3)),
+        Arrays.asList(alarm(3, true, 1), alarm(3, true, 15)));
+
+    List<List<String>> attached = correlate(history, 40, alarmHistories);
+    assertEquals(Arrays.asList("3:1:A", "1:5:A", "3:15:A"), attached.get(0));
+    assertEquals(Arrays.asList("3:15:A", "1:5:A", "1:25:T"), attached.get(1));
+    assertEquals(Arrays.asList("3:15:A"), attached.get(2));
+  }
+
+  @Test
+  public void alarmTerminatedBeforeTheWindowIsNotAttached() {
+    List<HistoryTagValueUpdate> history = Arrays.asList(point(10), point(20));
+    List<List<Alarm>> alarmHistories = Collections.singletonList(Arrays.asList(alarm(1, false, 5)));
+
+    List<List<String>> attached = correlate(history, 30, alarmHistories);
+    assertEquals(Collections.emptyList(), attached.get(0));
+    assertEquals(Collections.emptyList(), attached.get(1));
+  }
+
+  @Test
+  public void statesAtTheTimeOfTheLastValueBelongToIt() {
+    List<HistoryTagValueUpdate> history = Arrays.asList(point(0), point(10));
+    List<List<Alarm>> alarmHistories = Collections.singletonList(Arrays.asList(alarm(1, true, 10), alarm(1, false, 10)));
+
+    // the last value stands until itself only, as for the last records
+    List<List<String>> attached = correlate(history, 10, alarmHistories);
+    assertEquals(Collections.emptyList(), attached.get(0));
+    assertEquals(Arrays.asList("1:10:A", "1:10:T"), attached.get(1));
+  }
+}
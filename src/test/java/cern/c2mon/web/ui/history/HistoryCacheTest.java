@@ -0,0 +1,100 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HistoryCacheTest {
+
+  @Test
+  public void leastRecentlyUsedEntriesAreEvictedByPoints() {
+    HistoryCache<List<Integer>> cache = new HistoryCache<>(5, 60000, List::size);
+    cache.put(HistoryQuery.lastRecords(1, 2), Arrays.asList(1, 2));
+    cache.put(HistoryQuery.lastRecords(2, 2), Arrays.asList(1, 2));
+    cache.get(HistoryQuery.lastRecords(1, 2));
+
+    // 2 + 2 + 3 points do not fit: tag 2 was used least recently
+    cache.put(HistoryQuery.lastRecords(3, 3), Arrays.asList(1, 2, 3));
+    assertNull(cache.peek(HistoryQuery.lastRecords(2, 2)));
+    assertEquals(Arrays.asList(1, 2), cache.peek(HistoryQuery.lastRecords(1, 2)));
+    assertEquals(1L, (long) cache.getStatistics().get("evictions"));
+    assertEquals(5L, (long) cache.getStatistics().get("points"));
+  }
+
+  @Test
+  public void historiesBiggerThanTheCacheAreNotCached() {
+    HistoryCache<List<Integer>> cache = new HistoryCache<>(2, 60000, List::size);
+    List<Integer> values = Arrays.asList(1, 2, 3);
+    assertSame(values, cache.put(HistoryQuery.lastRecords(1, 3), values));
+    assertNull(cache.peek(HistoryQuery.lastRecords(1, 3)));
+  }
+
+  @Test
+  public void expiredEntriesAreMisses() throws InterruptedException {
+    HistoryCache<List<Integer>> cache = new HistoryCache<>(10, 1, List::size);
+    cache.put(HistoryQuery.lastDays(1, 1), Arrays.asList(1));
+    Thread.sleep(5);
+    assertNull(cache.get(HistoryQuery.lastDays(1, 1)));
+    assertEquals(0L, (long) cache.getStatistics().get("points"));
+  }
+
+  @Test
+  public void peekIsNotCounted() {
+    HistoryCache<List<Integer>> cache = new HistoryCache<>(10, 60000, List::size);
+    HistoryQuery query = HistoryQuery.lastRecords(1, 1);
+    cache.get(query);
+    cache.peek(query);
+    cache.put(query, Arrays.asList(1));
+    cache.peek(query);
+    cache.get(query);
+
+    Map<String, Long> statistics = cache.getStatistics();
+    assertEquals(1L, (long) statistics.get("misses"));
+    assertEquals(1L, (long) statistics.get("hits"));
+  }
+
+  @Test
+  public void sharedBudgetEvictsTheLeastRecentlyUsedEntryOfAllCaches() {
+    HistoryCache.Budget budget = new HistoryCache.Budget(5);
+    HistoryCache<List<Integer>> lists = new HistoryCache<>(budget, 60000, List::size);
+    HistoryCache<int[]> arrays = new HistoryCache<>(budget, 60000, values -> values.length);
+    lists.put(HistoryQuery.lastRecords(1, 2), Arrays.asList(1, 2));
+    arrays.put(HistoryQuery.lastRecords(1, 2), new int[] { 1, 2 });
+    lists.get(HistoryQuery.lastRecords(1, 2));
+
+    // 2 + 2 + 2 points do not fit: the array was used least recently
+    lists.put(HistoryQuery.lastRecords(2, 2), Arrays.asList(1, 2));
+    assertNull(arrays.peek(HistoryQuery.lastRecords(1, 2)));
+    assertEquals(Arrays.asList(1, 2), lists.peek(HistoryQuery.lastRecords(1, 2)));
+    assertEquals(1L, (long) arrays.getStatistics().get("evictions"));
+    assertEquals(4L, (long) lists.getStatistics().get("points"));
+    assertEquals(0L, (long) arrays.getStatistics().get("points"));
+
+    // the budget is freed by the other cache too
+    lists.clear();
+    arrays.put(HistoryQuery.lastRecords(1, 5), new int[5]);
+    assertEquals(5L, (long) arrays.getStatistics().get("points"));
+  }
+}
@@ -0,0 +1,150 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.common.HistoryLoadingConfiguration;
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+
+public class HistoryChunkLoaderTest {
+
+  private static final long CHUNK = 1000;
+
+  private HistoryChunkLoader loader = new HistoryChunkLoader(4, CHUNK);
+
+  /** Configurations of the loaded chunks */
+  private final List<HistoryLoadingConfiguration> chunks = new CopyOnWriteArrayList<>();
+
+  /** Threads which loaded the chunks */
+  private final List<Thread> threads = new CopyOnWriteArrayList<>();
+
+  @After
+  public void shutdown() {
+    loader.shutdown();
+  }
+
+  private static HistoryTagValueUpdate point(final long time) {
+    HistoryTagValueUpdate update = mock(HistoryTagValueUpdate.class);
+    when(update.getServerTimestamp()).thenReturn(new Timestamp(time));
+    return update;
+  }
+
+  /**
+   * A fake history with a point every 250 ms, including both ends of each
+   * chunk. The earlier chunks take longer, so that they complete last.
+   */
+  private Map<Long, List<HistoryTagValueUpdate>> load(final Collection<Long> tagIds,
+      final HistoryLoadingConfiguration configuration) {
+    chunks.add(configuration);
+    threads.add(Thread.currentThread());
+    long start = configuration.getStartTime().getTime();
+    long end = configuration.getEndTime().getTime();
+    try {
+      Thread.sleep(Math.max(0, 40 - start / CHUNK * 10));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    Map<Long, List<HistoryTagValueUpdate>> history = new LinkedHashMap<>();
+    for (Long tagId : tagIds) {
+      List<HistoryTagValueUpdate> points = new ArrayList<>();
+      for (long time = start; time <= end; time += 250) {
+        points.add(point(time));
+      }
+      history.put(tagId, points);
+    }
+    return history;
+  }
+
+  private Map<Long, List<HistoryTagValueUpdate>> load(final long endTime, final boolean loadInitialValues)
+      throws Exception {
+    return loader.load(Arrays.asList(1L, 2L), new Timestamp(0), new Timestamp(endTime), loadInitialValues,
+        this::load);
+  }
+
+  @Test
+  public void onlyTheFirstChunkLoadsTheInitialValues() throws Exception {
+    load(3500, true);
+
+    assertEquals(4, chunks.size());
+    for (HistoryLoadingConfiguration chunk : chunks) {
+      assertEquals(chunk.getStartTime().getTime() == 0, chunk.isLoadInitialValues());
+    }
+    assertEquals(3500, chunks.stream().mapToLong(chunk -> chunk.getEndTime().getTime()).max().getAsLong());
+
+    chunks.clear();
+    load(3500, false);
+    for (HistoryLoadingConfiguration chunk : chunks) {
+      assertFalse(chunk.isLoadInitialValues());
+    }
+  }
+
+  @Test
+  public void chunksAreMergedInTimestampOrderAndBoundariesKeptOnce() throws Exception {
+    Map<Long, List<HistoryTagValueUpdate>> history = load(3500, true);
+
+    assertEquals(Arrays.asList(1L, 2L), new ArrayList<>(history.keySet()));
+    for (List<HistoryTagValueUpdate> points : history.values()) {
+      // every 250 ms from 0 to 3500, each once
+      assertEquals(15, points.size());
+      for (int i = 0; i < points.size(); i++) {
+        assertEquals(i * 250L, points.get(i).getServerTimestamp().getTime());
+      }
+    }
+  }
+
+  @Test
+  public void chunksRunInTheCallerWhenThePoolIsSaturated() throws Exception {
+    loader.shutdown();
+    loader = new HistoryChunkLoader(1, CHUNK);
+
+    Map<Long, List<HistoryTagValueUpdate>> history = load(20 * CHUNK, true);
+
+    // one thread and four queued chunks: the other chunks ran in the caller
+    assertEquals(20, chunks.size());
+    assertTrue(threads.contains(Thread.currentThread()));
+    assertEquals(81, history.get(1L).size());
+    assertEquals(20 * CHUNK, history.get(2L).get(80).getServerTimestamp().getTime());
+  }
+
+  @Test
+  public void chunksRunInTheCallerOnceShutDown() throws Exception {
+    loader.shutdown();
+
+    load(2500, true);
+
+    assertEquals(Collections.nCopies(3, Thread.currentThread()), threads);
+  }
+}
@@ -0,0 +1,187 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.shared.common.datatag.DataTagQuality;
+
+public class HistoryDiskCacheTest {
+
+  private static final long CLOSE_DELAY = TimeUnit.MINUTES.toMillis(5);
+
+  private static final long TIME_TO_LIVE = TimeUnit.DAYS.toMillis(30);
+
+  private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+  private static final long DAY = HistoryDiskCache.BLOCK_DURATION;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final HistorySeries series = HistorySeries.of(new ArrayList<>());
+
+  /** Periods loaded by the fake history, as {start, end} */
+  private final List<List<Long>> loads = new ArrayList<>();
+
+  private HistoryDiskCache newCache() {
+    return new HistoryDiskCache(folder.getRoot().toPath(), 1024 * 1024, CLOSE_DELAY, TIME_TO_LIVE);
+  }
+
+  private static HistoryTagValueUpdate point(final long time) {
+    DataTagQuality dataTagQuality = mock(DataTagQuality.class);
+    when(dataTagQuality.isValid()).thenReturn(true);
+
+    HistoryTagValueUpdate update = mock(HistoryTagValueUpdate.class);
+    when(update.getServerTimestamp()).thenReturn(new Timestamp(time));
+    when(update.getValue()).thenReturn((double) time);
+    when(update.getDataTagQuality()).thenReturn(dataTagQuality);
+    when(update.getValueClassName()).thenReturn("java.lang.Double");
+    return update;
+  }
+
+  /**
+   * A history with one point every hour, on the hour, loaded with the last
+   * point before the start of the period
+   */
+  private Map<Long, HistorySeries> load(final Collection<Long> tagIds, final long startTime, final long endTime) {
+    loads.add(Arrays.asList(startTime, endTime));
+    List<HistoryTagValueUpdate> points = new ArrayList<>();
+    for (long time = Math.floorDiv(startTime - 1, HOUR) * HOUR; time <= endTime; time += HOUR) {
+      points.add(point(time));
+    }
+    Map<Long, HistorySeries> historyValues = new LinkedHashMap<>();
+    for (Long tagId : tagIds) {
+      historyValues.put(tagId, HistorySeries.of(points));
+    }
+    return historyValues;
+  }
+
+  private HistorySeries get(final HistoryDiskCache cache, final long startTime, final long endTime) throws Exception {
+    return cache.get(Collections.singletonList(1L), startTime, endTime, this::load).get(1L);
+  }
+
+  private static void assertHourly(final HistorySeries history, final long first, final long last) {
+    assertEquals((last - first) / HOUR + 1, history.size());
+    for (int i = 0; i < history.size(); i++) {
+      assertEquals(first + i * HOUR, history.getServerTimestamp(i));
+    }
+  }
+
+  private Path getFile(final long blockStart) {
+    return folder.getRoot().toPath().resolve("1").resolve(blockStart + ".seg");
+  }
+
+  @Test
+  public void closedBlocksAreReusedAcrossQueriesAndRestarts() throws Exception {
+    long day = HistoryDiskCache.getBlockStart(System.currentTimeMillis()) - 5 * DAY;
+
+    assertHourly(get(newCache(), day + 2 * HOUR, day + 5 * HOUR), day + HOUR, day + 5 * HOUR);
+    assertEquals(Arrays.asList(Arrays.asList(day, day + DAY)), loads);
+    assertTrue(Files.exists(getFile(day)));
+
+    // a zoom within the stored day loads nothing
+    assertHourly(get(newCache(), day + 10 * HOUR + 1, day + 12 * HOUR), day + 10 * HOUR, day + 12 * HOUR);
+    assertEquals(1, loads.size());
+  }
+
+  @Test
+  public void onlyTheOpenPartIsLoadedAgain() throws Exception {
+    long now = System.currentTimeMillis();
+    long start = HistoryDiskCache.getBlockStart(now) - 2 * DAY + HOUR;
+    HistoryDiskCache cache = newCache();
+
+    HistorySeries first = get(cache, start, now);
+    assertEquals(1, loads.size());
+    assertEquals(start - HOUR, (long) loads.get(0).get(0));
+
+    HistorySeries second = get(cache, start, now);
+    assertEquals(2, loads.size());
+    assertTrue(loads.get(1).get(0) >= HistoryDiskCache.getBlockStart(now) - DAY);
+    assertEquals(now, (long) loads.get(1).get(1));
+    assertHourly(second, first.getServerTimestamp(0), first.getServerTimestamp(first.size() - 1));
+  }
+
+  @Test
+  public void missingBlocksAreLoadedTogetherAndBoundariesKeptOnce() throws Exception {
+    long day = HistoryDiskCache.getBlockStart(System.currentTimeMillis()) - 10 * DAY;
+    HistoryDiskCache cache = newCache();
+    get(cache, day + DAY, day + DAY + HOUR);
+    get(cache, day + 4 * DAY, day + 4 * DAY + HOUR);
+    loads.clear();
+
+    assertHourly(get(cache, day + HOUR, day + 6 * DAY - HOUR), day, day + 6 * DAY - HOUR);
+    assertEquals(Arrays.asList(Arrays.asList(day, day + DAY), Arrays.asList(day + 2 * DAY, day + 4 * DAY),
+        Arrays.asList(day + 5 * DAY, day + 6 * DAY)), loads);
+  }
+
+  @Test
+  public void prematureAndExpiredSegmentsAreDiscardedAtStartup() throws IOException {
+    long now = System.currentTimeMillis();
+    long premature = HistoryDiskCache.getBlockStart(now) - 2 * DAY;
+    long expired = HistoryDiskCache.getBlockStart(now) - 40 * DAY;
+    Files.createDirectories(getFile(premature).getParent());
+    // written one second after the end of its block
+    HistorySegment.write(series, getFile(premature), premature + DAY + 1000);
+    HistorySegment.write(series, getFile(expired), now - TIME_TO_LIVE - 1000);
+
+    HistoryDiskCache cache = newCache();
+    assertEquals(0L, (long) cache.getStatistics().get("segments"));
+    assertFalse(Files.exists(getFile(premature)));
+    assertFalse(Files.exists(getFile(expired)));
+  }
+
+  @Test
+  public void segmentsOfAnOlderFormatAreDiscardedAtStartup() throws Exception {
+    long day = HistoryDiskCache.getBlockStart(System.currentTimeMillis()) - 2 * DAY;
+    Files.createDirectories(getFile(day).getParent());
+    try (OutputStream out = Files.newOutputStream(getFile(day)); DataOutputStream data = new DataOutputStream(out)) {
+      data.writeInt(0x43324853);
+      data.writeInt(1);
+      data.writeInt(0);
+    }
+
+    HistoryDiskCache cache = newCache();
+    assertEquals(0L, (long) cache.getStatistics().get("segments"));
+    get(cache, day, day + HOUR);
+    assertEquals(1, loads.size());
+  }
+}
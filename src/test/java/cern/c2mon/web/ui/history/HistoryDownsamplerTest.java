@@ -0,0 +1,134 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistoryDownsamplerTest {
+
+  @Test
+  public void testSmallSeriesIsKept() {
+    long[] x = { 1, 2, 3, 4 };
+    double[] y = { 1, 5, 2, 3 };
+
+    assertArrayEquals(new int[] { 0, 1, 2, 3 }, HistoryDownsampler.selectIndices(x, y, null, 10));
+  }
+
+  @Test
+  public void testThresholdIsRespected() {
+    int size = 10000;
+    long[] x = new long[size];
+    double[] y = new double[size];
+    for (int i = 0; i < size; i++) {
+      x[i] = i * 1000L;
+      y[i] = Math.sin(i / 100.0);
+    }
+
+    int[] indices = HistoryDownsampler.selectIndices(x, y, null, 500);
+
+    assertEquals(500, indices.length);
+    assertEquals(0, indices[0]);
+    assertEquals(size - 1, indices[indices.length - 1]);
+    for (int i = 1; i < indices.length; i++) {
+      assertTrue(indices[i] > indices[i - 1]);
+    }
+  }
+
+  @Test
+  public void testPeakIsSelected() {
+    int size = 1000;
+    long[] x = new long[size];
+    double[] y = new double[size];
+    for (int i = 0; i < size; i++) {
+      x[i] = i;
+    }
+    y[421] = 100;
+
+    int[] indices = HistoryDownsampler.selectIndices(x, y, null, 20);
+
+    boolean found = false;
+    for (int index : indices) {
+      found |= index == 421;
+    }
+    assertTrue(found);
+  }
+
+  @Test
+  public void testKeptPointsAreAlwaysSelected() {
+    int size = 1000;
+    long[] x = new long[size];
+    double[] y = new double[size];
+    boolean[] keep = new boolean[size];
+    for (int i = 0; i < size; i++) {
+      x[i] = i;
+      y[i] = i % 7;
+    }
+    keep[13] = true;
+    keep[500] = true;
+    keep[501] = true;
+
+    int[] indices = HistoryDownsampler.selectIndices(x, y, keep, 10);
+
+    int kept = 0;
+    for (int index : indices) {
+      if (index == 13 || index == 500 || index == 501) {
+        kept++;
+      }
+    }
+    assertEquals(3, kept);
+  }
+
+  @Test
+  public void testPointsAroundEventsAreKept() {
+    int size = 1000;
+    long[] x = new long[size];
+    double[] y = new double[size];
+    for (int i = 0; i < size; i++) {
+      x[i] = i * 10L;
+    }
+    y[100] = 50;
+    boolean[] keep = new boolean[size];
+
+    // Alarm activated between two points, terminated exactly on a point
+    HistoryDownsampler.keepAround(x, new long[] { 6005, 3210 }, keep);
+    int[] indices = HistoryDownsampler.selectIndices(x, y, keep, 10);
+
+    int kept = 0;
+    for (int index : indices) {
+      if (index == 321 || index == 322 || index == 600 || index == 601) {
+        kept++;
+      }
+    }
+    assertEquals(4, kept);
+  }
+
+  @Test
+  public void testEventsOutsideTheSeries() {
+    long[] x = { 10, 20, 30 };
+    boolean[] keep = new boolean[x.length];
+
+    HistoryDownsampler.keepAround(x, new long[] { 5 }, keep);
+    assertArrayEquals(new boolean[] { true, false, false }, keep);
+
+    HistoryDownsampler.keepAround(x, new long[] { 35 }, keep);
+    assertArrayEquals(new boolean[] { true, false, true }, keep);
+  }
+}
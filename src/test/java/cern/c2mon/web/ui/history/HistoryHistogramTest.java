@@ -0,0 +1,110 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.shared.common.datatag.DataTagQuality;
+
+public class HistoryHistogramTest {
+
+  private final List<HistoryTagValueUpdate> history = new ArrayList<>();
+
+  private void add(final Object value, final boolean valid) {
+    DataTagQuality dataTagQuality = mock(DataTagQuality.class);
+    when(dataTagQuality.isValid()).thenReturn(valid);
+
+    HistoryTagValueUpdate update = mock(HistoryTagValueUpdate.class);
+    when(update.getServerTimestamp()).thenReturn(new Timestamp(1000L * history.size()));
+    when(update.getValue()).thenReturn(value);
+    when(update.getDataTagQuality()).thenReturn(dataTagQuality);
+    when(update.getValueClassName()).thenReturn(value.getClass().getName());
+    history.add(update);
+  }
+
+  private HistoryHistogram histogram(final HistoryHistogram.Weight weight, final long endTime) {
+    return HistoryHistogram.of(HistorySeries.of(history), weight, 50, endTime);
+  }
+
+  @Test
+  public void booleanHistoriesHaveOneBinPerValue() {
+    add(true, true);
+    add(false, true);
+    add(true, false);
+
+    HistoryHistogram histogram = histogram(HistoryHistogram.Weight.SAMPLES, 0);
+    assertArrayEquals(new double[] { -0.5, 0.5, 1.5 }, histogram.getEdges(), 0);
+    assertArrayEquals(new double[] { 1, 1 }, histogram.getCounts(), 0);
+    assertArrayEquals(new double[] { 0, 1 }, histogram.getInvalidCounts(), 0);
+  }
+
+  @Test
+  public void constantHistoriesHaveASingleBin() {
+    for (int i = 0; i < 10; i++) {
+      add(5.0, i != 3);
+    }
+
+    HistoryHistogram histogram = histogram(HistoryHistogram.Weight.SAMPLES, 0);
+    assertArrayEquals(new double[] { 4.5, 5.5 }, histogram.getEdges(), 0);
+    assertArrayEquals(new double[] { 9 }, histogram.getCounts(), 0);
+    assertArrayEquals(new double[] { 1 }, histogram.getInvalidCounts(), 0);
+  }
+
+  @Test
+  public void zeroInterquartileRangeFallsBackToSturges() {
+    add(0.0, true);
+    for (int i = 0; i < 98; i++) {
+      add(1.0, true);
+    }
+    add(10.0, false);
+
+    // ceil(log2(100)) + 1 bins between 0 and 10
+    HistoryHistogram histogram = histogram(HistoryHistogram.Weight.SAMPLES, 0);
+    double[] edges = histogram.getEdges();
+    assertEquals(9, edges.length);
+    assertEquals(0, edges[0], 0);
+    assertEquals(10, edges[8], 0);
+    // the bins are 1.25 wide: 0 and the 1s share the first one
+    assertEquals(99, histogram.getCounts()[0], 0);
+    // the largest value falls in the last bin, counted as invalid only
+    assertEquals(0, histogram.getCounts()[7], 0);
+    assertEquals(1, histogram.getInvalidCounts()[7], 0);
+  }
+
+  @Test
+  public void timeWeightCountsTheTimeEachValueStood() {
+    add(1.0, true);
+    add("text", true);
+    add(1.0, false);
+
+    // points every second, the last value standing until 5 s
+    HistoryHistogram histogram = histogram(HistoryHistogram.Weight.TIME, 5000);
+    assertArrayEquals(new double[] { 1000 }, histogram.getCounts(), 0);
+    assertArrayEquals(new double[] { 3000 }, histogram.getInvalidCounts(), 0);
+    assertEquals(1000, histogram.getNonNumeric(), 0);
+  }
+}
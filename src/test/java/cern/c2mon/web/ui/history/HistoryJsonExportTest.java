@@ -0,0 +1,77 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.shared.common.datatag.DataTagQuality;
+import cern.c2mon.web.ui.service.HistoryService;
+
+public class HistoryJsonExportTest {
+
+  private static HistoryTagValueUpdate point(final long time, final Object value) {
+    DataTagQuality dataTagQuality = mock(DataTagQuality.class);
+    when(dataTagQuality.isValid()).thenReturn(true);
+    when(dataTagQuality.getDescription()).thenReturn("OK");
+
+    HistoryTagValueUpdate update = mock(HistoryTagValueUpdate.class);
+    when(update.getServerTimestamp()).thenReturn(new Timestamp(time));
+    when(update.getValue()).thenReturn(value);
+    when(update.getDataTagQuality()).thenReturn(dataTagQuality);
+    when(update.getValueClassName()).thenReturn(value.getClass().getName());
+    return update;
+  }
+
+  @Test
+  public void infiniteValuesAreWrittenAsStrings() throws IOException {
+    List<HistoryTagValueUpdate> history = new ArrayList<>();
+    history.add(point(1000, Double.POSITIVE_INFINITY));
+    history.add(point(2000, Double.NEGATIVE_INFINITY));
+    history.add(point(3000, Double.NaN));
+    history.add(point(4000, Float.POSITIVE_INFINITY));
+    history.add(point(5000, 1.5));
+    history.add(point(6000, Long.MAX_VALUE));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new HistoryService().writeJson(HistorySeries.of(history), out);
+
+    // parsed by a strict parser, which rejects the bare Infinity and NaN tokens
+    JsonNode json = new ObjectMapper().readTree(out.toByteArray());
+    assertEquals(6, json.size());
+    assertEquals("Infinity", json.get(0).get("value").textValue());
+    assertEquals("-Infinity", json.get(1).get("value").textValue());
+    assertTrue(json.get(2).get("value").isNull());
+    assertEquals("Infinity", json.get(3).get("value").textValue());
+    assertTrue(json.get(4).get("value").isNumber());
+    assertEquals(1.5, json.get(4).get("value").doubleValue(), 0);
+    assertEquals(Long.MAX_VALUE, json.get(5).get("value").longValue());
+  }
+}
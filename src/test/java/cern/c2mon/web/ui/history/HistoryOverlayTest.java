@@ -0,0 +1,121 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.shared.common.datatag.DataTagQuality;
+
+public class HistoryOverlayTest {
+
+  private static HistoryTagValueUpdate point(final long time, final double value, final boolean valid) {
+    DataTagQuality dataTagQuality = mock(DataTagQuality.class);
+    when(dataTagQuality.isValid()).thenReturn(valid);
+
+    HistoryTagValueUpdate update = mock(HistoryTagValueUpdate.class);
+    when(update.getServerTimestamp()).thenReturn(new Timestamp(time));
+    when(update.getValue()).thenReturn(value);
+    when(update.getDataTagQuality()).thenReturn(dataTagQuality);
+    when(update.getValueClassName()).thenReturn("java.lang.Double");
+    return update;
+  }
+
+  /**
+   * @return a trend whose chart values are the point values, the points with
+   *         a negative value having an invalid quality
+   */
+  private static HistoryTrend trend(final long[] times, final double[] values) {
+    List<HistoryTagValueUpdate> points = new ArrayList<>();
+    for (int i = 0; i < times.length; i++) {
+      points.add(point(times[i], values[i], values[i] >= 0));
+    }
+    return new HistoryTrend(HistorySeries.of(points), values, false);
+  }
+
+  private static HistoryOverlay merge(final HistoryTrend... trends) {
+    List<Long> tagIds = new ArrayList<>();
+    for (int t = 0; t < trends.length; t++) {
+      tagIds.add((long) t + 1);
+    }
+    return HistoryOverlay.merge(tagIds, Arrays.asList(trends));
+  }
+
+  @Test
+  public void equalTimestampsShareARow() {
+    HistoryOverlay overlay = merge(
+        trend(new long[] { 1000, 2000, 3000 }, new double[] { 1, 2, 3 }),
+        trend(new long[] { 1000, 3000 }, new double[] { 10, 30 }));
+
+    assertArrayEquals(new long[] { 1000, 2000, 3000 }, overlay.getTimestamps());
+    assertEquals(1L, overlay.getSeries().get(0).getTagId());
+    assertEquals(2L, overlay.getSeries().get(1).getTagId());
+    assertArrayEquals(new double[] { 1, 2, 3 }, overlay.getSeries().get(0).getValues(), 0);
+    assertArrayEquals(new double[] { 10, 10, 30 }, overlay.getSeries().get(1).getValues(), 0);
+  }
+
+  @Test
+  public void tagsStartAtTheirFirstPoint() {
+    HistoryOverlay overlay = merge(
+        trend(new long[] { 1000, 2000, 4000 }, new double[] { 1, 2, 4 }),
+        trend(new long[] { 2500, 3000 }, new double[] { 25, 30 }),
+        trend(new long[0], new double[0]));
+
+    assertArrayEquals(new long[] { 1000, 2000, 2500, 3000, 4000 }, overlay.getTimestamps());
+    HistoryOverlay.Series late = overlay.getSeries().get(1);
+    assertEquals(2, late.getFirst());
+    assertArrayEquals(new double[] { 25, 30, 30 }, late.getValues(), 0);
+
+    HistoryOverlay.Series empty = overlay.getSeries().get(2);
+    assertEquals(5, empty.getFirst());
+    assertEquals(0, empty.getValues().length);
+  }
+
+  @Test
+  public void lastValueIsCarriedForward() {
+    HistoryOverlay overlay = merge(
+        trend(new long[] { 1000, 1000, 5000 }, new double[] { 1, 2, 5 }),
+        trend(new long[] { 2000, 3000, 4000 }, new double[] { 20, 30, 40 }));
+
+    // of two points at the same time, the last one stands
+    assertArrayEquals(new long[] { 1000, 2000, 3000, 4000, 5000 }, overlay.getTimestamps());
+    assertArrayEquals(new double[] { 2, 2, 2, 2, 5 }, overlay.getSeries().get(0).getValues(), 0);
+    assertArrayEquals(new double[] { 20, 30, 40, 40 }, overlay.getSeries().get(1).getValues(), 0);
+  }
+
+  @Test
+  public void invalidRowsLastUntilTheNextValidPoint() {
+    HistoryOverlay overlay = merge(
+        trend(new long[] { 1000, 2000, 4000 }, new double[] { 1, -2, 4 }),
+        trend(new long[] { 2000, 3000 }, new double[] { -20, 30 }));
+
+    assertArrayEquals(new long[] { 1000, 2000, 3000, 4000 }, overlay.getTimestamps());
+    // rows are counted from the first row of the overlay
+    assertArrayEquals(new int[] { 1, 2 }, overlay.getSeries().get(0).getInvalid());
+    assertArrayEquals(new int[] { 1 }, overlay.getSeries().get(1).getInvalid());
+  }
+}
@@ -0,0 +1,114 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.shared.common.datatag.DataTagQuality;
+
+public class HistoryPageTest {
+
+  private static HistoryTagValueUpdate point(final long time, final Object value) {
+    DataTagQuality dataTagQuality = mock(DataTagQuality.class);
+    when(dataTagQuality.isValid()).thenReturn(true);
+
+    HistoryTagValueUpdate update = mock(HistoryTagValueUpdate.class);
+    when(update.getServerTimestamp()).thenReturn(new Timestamp(time));
+    when(update.getValue()).thenReturn(value);
+    when(update.getDataTagQuality()).thenReturn(dataTagQuality);
+    return update;
+  }
+
+  /**
+   * @return the values of all pages of the history, read with the cursors
+   */
+  private static List<Object> readAll(final List<HistoryTagValueUpdate> history, final int limit) {
+    final List<Object> values = new ArrayList<>();
+    String cursor = null;
+    do {
+      HistoryPage page = HistoryPage.of(history, HistoryPage.indexOf(history, cursor), limit);
+      page.getRows().forEach(row -> values.add(row.getValue()));
+      cursor = page.getNext();
+    } while (cursor != null);
+    return values;
+  }
+
+  @Test
+  public void pagesCoverTheHistoryOnceWithEqualTimestamps() {
+    final List<HistoryTagValueUpdate> history = new ArrayList<>();
+    final List<Object> expected = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      // runs of 3 points share a timestamp, and a run of 10 from 40 to 49,
+      // across the page boundaries
+      history.add(point(1000L * (i < 40 ? i / 3 : Math.max(40, i - 9)), i));
+      expected.add(i);
+    }
+
+    for (int limit : new int[] { 1, 3, 7, 100, 500 }) {
+      assertEquals(expected, readAll(history, limit));
+    }
+  }
+
+  @Test
+  public void nextPageFollowsTheCursorWhenTheHistoryMovesOn() {
+    final List<HistoryTagValueUpdate> history = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      history.add(point(1000L * i, i));
+    }
+    final HistoryPage first = HistoryPage.of(history, 0, 4);
+    assertEquals("3000.1", first.getNext());
+
+    // the oldest points of a window relative to now drop out
+    final List<HistoryTagValueUpdate> moved = new ArrayList<>(history.subList(2, 10));
+    moved.add(point(10000L, 10));
+    final HistoryPage second = HistoryPage.of(moved, HistoryPage.indexOf(moved, first.getNext()), 4);
+    assertEquals(4, second.getRows().get(0).getValue());
+    assertEquals(9, second.getTotal());
+
+    final HistoryPage last = HistoryPage.of(moved, HistoryPage.indexOf(moved, second.getNext()), 4);
+    assertEquals(3, last.getRows().size());
+    assertNull(last.getNext());
+  }
+
+  @Test
+  public void alarmStatesAreGivenPerRowOfThePage() {
+    final List<HistoryTagValueUpdate> history = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      history.add(point(1000L * i, i));
+    }
+    final HistoryPage page = HistoryPage.of(history, 4, 3, new Boolean[] { null, true, false });
+    assertNull(page.getRows().get(0).getAlarmActive());
+    assertEquals(Boolean.TRUE, page.getRows().get(1).getAlarmActive());
+    assertEquals(Boolean.FALSE, page.getRows().get(2).getAlarmActive());
+    assertNull(HistoryPage.of(history, 4, 3).getRows().get(1).getAlarmActive());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void malformedCursorIsRejected() {
+    HistoryPage.indexOf(new ArrayList<>(), "12");
+  }
+}
@@ -0,0 +1,114 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.common.HistoryProvider;
+import cern.c2mon.client.ext.history.common.exception.HistoryProviderException;
+
+public class HistoryProviderPoolTest {
+
+  private final AtomicInteger created = new AtomicInteger();
+
+  private final HistoryProviderPool pool = new HistoryProviderPool(() -> {
+    created.incrementAndGet();
+    return mock(HistoryProvider.class);
+  }, 2, 60000, 1000, 2);
+
+  @Test
+  public void testReturnedProviderIsReused() throws HistoryProviderException {
+    HistoryProvider first;
+    try (HistoryProviderPool.Lease lease = pool.borrow()) {
+      first = lease.getProvider();
+    }
+    try (HistoryProviderPool.Lease lease = pool.borrow()) {
+      assertSame(first, lease.getProvider());
+    }
+    assertEquals(1, created.get());
+  }
+
+  @Test
+  public void testInvalidatedProviderIsDiscarded() throws HistoryProviderException {
+    HistoryProvider first;
+    try (HistoryProviderPool.Lease lease = pool.borrow()) {
+      first = lease.getProvider();
+      lease.invalidate();
+    }
+    try (HistoryProviderPool.Lease lease = pool.borrow()) {
+      assertNotSame(first, lease.getProvider());
+    }
+    assertEquals(2, created.get());
+  }
+
+  @Test
+  public void testProviderBorrowedDuringClearIsDiscarded() throws HistoryProviderException {
+    HistoryProvider first;
+    try (HistoryProviderPool.Lease lease = pool.borrow()) {
+      first = lease.getProvider();
+      pool.clear();
+    }
+    try (HistoryProviderPool.Lease lease = pool.borrow()) {
+      assertNotSame(first, lease.getProvider());
+    }
+    assertEquals(2, created.get());
+    assertEquals(1L, (long) pool.getStatistics().get("cleared"));
+  }
+
+  @Test
+  public void testPoolIsClearedAfterFailuresInARow() throws HistoryProviderException {
+    HistoryProviderPool largerPool = new HistoryProviderPool(() -> mock(HistoryProvider.class), 3, 60000, 1000, 2);
+    HistoryProviderPool.Lease first = largerPool.borrow();
+    HistoryProviderPool.Lease second = largerPool.borrow();
+    HistoryProviderPool.Lease third = largerPool.borrow();
+    HistoryProvider idle = first.getProvider();
+    first.close();
+
+    second.invalidate();
+    second.close();
+    assertEquals(1L, (long) largerPool.getStatistics().get("idle"));
+
+    // the second failure in a row discards the idle provider too
+    third.invalidate();
+    third.close();
+    assertEquals(0L, (long) largerPool.getStatistics().get("idle"));
+    assertEquals(1L, (long) largerPool.getStatistics().get("cleared"));
+    try (HistoryProviderPool.Lease lease = largerPool.borrow()) {
+      assertNotSame(idle, lease.getProvider());
+    }
+  }
+
+  @Test
+  public void testSuccessfulLoadResetsTheFailures() throws HistoryProviderException {
+    try (HistoryProviderPool.Lease lease = pool.borrow()) {
+      lease.invalidate();
+    }
+    try (HistoryProviderPool.Lease first = pool.borrow(); HistoryProviderPool.Lease second = pool.borrow()) {
+      // second is returned first, then first fails
+      first.invalidate();
+    }
+    assertEquals(1L, (long) pool.getStatistics().get("idle"));
+    assertEquals(0L, (long) pool.getStatistics().get("cleared"));
+  }
+}
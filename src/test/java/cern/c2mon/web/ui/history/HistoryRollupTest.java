@@ -0,0 +1,82 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class HistoryRollupTest {
+
+  private static final long MINUTE = HistoryRollup.Interval.MINUTE.getMillis();
+
+  @Test
+  public void bucketsAreAlignedOnTheInterval() {
+    HistoryRollup rollup = new HistoryRollup(HistoryRollup.Interval.MINUTE, 0);
+    rollup.add(MINUTE + 5000, 3);
+    rollup.add(MINUTE + 59999, 1);
+    rollup.add(2 * MINUTE, 7);
+    // no point in the fourth minute: no bucket
+    rollup.add(4 * MINUTE + 1, 2);
+
+    assertArrayEquals(new long[] { MINUTE, 2 * MINUTE, 4 * MINUTE }, rollup.getTimestamps());
+    assertArrayEquals(new double[] { 1, 7, 2 }, rollup.getMin(), 0);
+    assertArrayEquals(new double[] { 3, 7, 2 }, rollup.getMax(), 0);
+    assertArrayEquals(new double[] { 2, 7, 2 }, rollup.getMean(), 0);
+    assertArrayEquals(new int[] { 2, 1, 1 }, rollup.getCount());
+    assertArrayEquals(new double[] { 3, 7, 2 }, rollup.getFirst(), 0);
+    assertArrayEquals(new double[] { 1, 7, 2 }, rollup.getLast(), 0);
+  }
+
+  @Test
+  public void bucketsBeforeTheEpochAreAlignedToo() {
+    HistoryRollup rollup = new HistoryRollup(HistoryRollup.Interval.HOUR, 1);
+    rollup.add(-1, 1);
+    rollup.add(0, 2);
+
+    long hour = HistoryRollup.Interval.HOUR.getMillis();
+    assertArrayEquals(new long[] { -hour, 0 }, rollup.getTimestamps());
+  }
+
+  @Test
+  public void nanValuesAreSkipped() {
+    HistoryRollup rollup = new HistoryRollup(HistoryRollup.Interval.MINUTE, 1);
+    rollup.add(0, Double.NaN);
+    rollup.add(1000, 4);
+    rollup.add(2000, Double.NaN);
+    rollup.add(MINUTE, Double.NaN);
+
+    assertEquals(1, rollup.getSize());
+    assertArrayEquals(new int[] { 1 }, rollup.getCount());
+    assertArrayEquals(new double[] { 4 }, rollup.getFirst(), 0);
+    assertArrayEquals(new double[] { 4 }, rollup.getLast(), 0);
+    assertArrayEquals(new double[] { 4 }, rollup.getMean(), 0);
+  }
+
+  @Test
+  public void bucketsGrowBeyondTheEstimate() {
+    HistoryRollup rollup = new HistoryRollup(HistoryRollup.Interval.MINUTE, 1);
+    for (int i = 0; i < 100; i++) {
+      rollup.add(i * MINUTE, i);
+    }
+
+    assertEquals(100, rollup.getSize());
+    assertEquals(99 * MINUTE, rollup.getTimestamps()[99]);
+    assertEquals(99, rollup.getLast()[99], 0);
+  }
+}
@@ -0,0 +1,164 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.shared.common.datatag.DataTagQuality;
+
+public class HistorySegmentTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static HistoryTagValueUpdate point(final long time, final Object value, final boolean valid,
+      final String quality, final Timestamp sourceTimestamp) {
+    DataTagQuality dataTagQuality = mock(DataTagQuality.class);
+    when(dataTagQuality.isValid()).thenReturn(valid);
+    when(dataTagQuality.getDescription()).thenReturn(quality);
+
+    HistoryTagValueUpdate update = mock(HistoryTagValueUpdate.class);
+    when(update.getServerTimestamp()).thenReturn(new Timestamp(time));
+    when(update.getSourceTimestamp()).thenReturn(sourceTimestamp);
+    when(update.getValue()).thenReturn(value);
+    when(update.getValueDescription()).thenReturn(valid ? "ok" : null);
+    when(update.getDataTagQuality()).thenReturn(dataTagQuality);
+    when(update.getValueClassName()).thenReturn("java.lang.Float");
+    return update;
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException {
+    List<HistoryTagValueUpdate> history = new ArrayList<>();
+    long time = 1477789200000L;
+    for (int i = 0; i < 1000; i++) {
+      time += i % 7 == 0 ? 3600 * 1000L : i;
+      Object value = i % 50 == 0 ? "text " + (i % 3) : (i % 40 == 0 ? null : (float) Math.sin(i));
+      Timestamp source = i % 3 == 0 ? null : new Timestamp(time - i * 13);
+      history.add(point(time, value, i % 11 != 0, "quality " + (i % 5), source));
+    }
+    HistorySeries expected = HistorySeries.of(history);
+
+    Path file = folder.getRoot().toPath().resolve("segment.seg");
+    HistorySegment.write(expected, file);
+    HistorySeries actual = HistorySegment.read(file);
+
+    assertEquals(expected.size(), actual.size());
+    assertEquals(expected.getValueClassName(), actual.getValueClassName());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.getServerTimestamp(i), actual.getServerTimestamp(i));
+      assertEquals(expected.getSourceTimestamp(i), actual.getSourceTimestamp(i));
+      assertEquals(expected.getValue(i), actual.getValue(i), 0);
+      assertEquals(expected.getValueObject(i), actual.getValueObject(i));
+      assertEquals(expected.isValid(i), actual.isValid(i));
+      assertEquals(expected.getQualityDescription(i), actual.getQualityDescription(i));
+      assertEquals(expected.getValueDescription(i), actual.getValueDescription(i));
+    }
+  }
+
+  @Test
+  public void testExactLongValues() throws IOException {
+    List<HistoryTagValueUpdate> history = new ArrayList<>();
+    long[] values = { (1L << 53) + 1, Long.MAX_VALUE, Long.MIN_VALUE, -((1L << 60) + 7), 42 };
+    for (int i = 0; i < values.length; i++) {
+      HistoryTagValueUpdate update = point(1000L * i, values[i], true, "OK", null);
+      when(update.getValueClassName()).thenReturn("java.lang.Long");
+      history.add(update);
+    }
+    HistoryTagValueUpdate missing = point(1000L * values.length, null, true, "OK", null);
+    when(missing.getValueClassName()).thenReturn("java.lang.Long");
+    history.add(missing);
+    HistorySeries series = HistorySeries.of(history);
+
+    Path file = folder.getRoot().toPath().resolve("long.seg");
+    HistorySegment.write(series, file);
+    HistorySeries actual = HistorySegment.read(file);
+
+    for (int i = 0; i < values.length; i++) {
+      assertEquals(values[i], series.getValueObject(i));
+      assertEquals(values[i], actual.getValueObject(i));
+    }
+    assertNull(series.getValueObject(values.length));
+    assertNull(actual.getValueObject(values.length));
+    assertEquals(42L, series.select(new int[] { 1, 4 }).getValueObject(1));
+  }
+
+  @Test
+  public void testEmptySeries() throws IOException {
+    Path file = folder.getRoot().toPath().resolve("empty.seg");
+    HistorySegment.write(HistorySeries.of(new ArrayList<>()), file);
+    HistorySeries actual = HistorySegment.read(file);
+
+    assertEquals(0, actual.size());
+    assertNull(actual.getValueClassName());
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedFile() throws IOException {
+    List<HistoryTagValueUpdate> history = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      history.add(point(1000L * i, (float) i, true, "OK", null));
+    }
+    Path file = folder.getRoot().toPath().resolve("truncated.seg");
+    HistorySegment.write(HistorySeries.of(history), file);
+
+    byte[] bytes = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+    HistorySegment.read(file);
+  }
+
+  @Test
+  public void testCorruptedSize() throws IOException {
+    List<HistoryTagValueUpdate> history = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      history.add(point(1000L * i, (float) i, true, "OK", null));
+    }
+    Path file = folder.getRoot().toPath().resolve("corrupted.seg");
+    HistorySegment.write(HistorySeries.of(history), file);
+    byte[] bytes = Files.readAllBytes(file);
+
+    // the size follows the magic, the version and the write time
+    for (int size : new int[] { -1, Integer.MAX_VALUE, 1 << 20 }) {
+      ByteBuffer.wrap(bytes).putInt(16, size);
+      Files.write(file, bytes);
+      try {
+        HistorySegment.read(file);
+        fail("Size " + size + " was accepted");
+      } catch (IOException e) {
+        // expected, a cache miss for the disk cache
+      }
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class HistoryStoreTest {
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  private final HistoryStore<List<Long>> store = new HistoryStore<>(
+      new HistoryCache<>(1000, 60000, List::size), new HistoryCache<>(1000, 60000, List::size), 60000);
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Starts a request for the last records of tag 1, with the given loader
+   */
+  private Future<Map<Long, List<Long>>> request(final HistoryStore.Loader<List<Long>> loader) {
+    return executor.submit(() -> store.get(Collections.singletonList(1L), id -> HistoryQuery.lastRecords(id, 10), loader));
+  }
+
+  /**
+   * @return a loader blocking until the latch is released
+   */
+  private static HistoryStore.Loader<List<Long>> blockingLoader(final CountDownLatch started, final CountDownLatch release,
+      final AtomicInteger loads, final Runnable result) {
+    return tagIds -> {
+      loads.incrementAndGet();
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      result.run();
+      Map<Long, List<Long>> loaded = new HashMap<>();
+      tagIds.forEach(id -> loaded.put(id, Collections.singletonList(id)));
+      return loaded;
+    };
+  }
+
+  @Test(timeout = 10000)
+  public void concurrentIdenticalQueriesAreLoadedOnce() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger loads = new AtomicInteger();
+    HistoryStore.Loader<List<Long>> loader = blockingLoader(started, release, loads, () -> { });
+
+    Future<Map<Long, List<Long>>> first = request(loader);
+    started.await();
+    Future<Map<Long, List<Long>>> second = request(loader);
+    while (store.getStatistics().get("loads").get("coalesced") == 0) {
+      Thread.sleep(1);
+    }
+    release.countDown();
+
+    assertSame(first.get().get(1L), second.get().get(1L));
+    assertEquals(1, loads.get());
+    assertEquals(1L, (long) store.getStatistics().get("loads").get("coalesced"));
+    assertEquals(0L, (long) store.getStatistics().get("loads").get("inFlight"));
+  }
+
+  @Test(timeout = 10000)
+  public void errorsAreForwardedToTheCoalescedQueries() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    HistoryStore.Loader<List<Long>> loader = blockingLoader(started, release, new AtomicInteger(), () -> {
+      throw new StackOverflowError();
+    });
+
+    Future<Map<Long, List<Long>>> first = request(loader);
+    started.await();
+    Future<Map<Long, List<Long>>> second = request(loader);
+    while (store.getStatistics().get("loads").get("coalesced") == 0) {
+      Thread.sleep(1);
+    }
+    release.countDown();
+
+    assertEquals(StackOverflowError.class, causeOf(first));
+    assertEquals(StackOverflowError.class, causeOf(second));
+    assertEquals(0L, (long) store.getStatistics().get("loads").get("inFlight"));
+  }
+
+  @Test
+  public void periodsAreClosedAfterTheCloseDelay() throws Exception {
+    long now = System.currentTimeMillis();
+    HistoryStore.Loader<List<Long>> loader = tagIds -> Collections.singletonMap(1L, Collections.singletonList(1L));
+
+    // ended a second ago: values may still arrive, kept with the recent windows
+    store.get(Collections.singletonList(1L), id -> HistoryQuery.range(id, new Timestamp(now - 3600000), new Timestamp(now - 1000)), loader);
+    assertEquals(1L, (long) store.getStatistics().get("recent").get("entries"));
+    assertEquals(0L, (long) store.getStatistics().get("closed").get("entries"));
+
+    store.get(Collections.singletonList(1L), id -> HistoryQuery.range(id, new Timestamp(now - 3600000), new Timestamp(now - 120000)), loader);
+    assertEquals(1L, (long) store.getStatistics().get("closed").get("entries"));
+  }
+
+  private static Class<?> causeOf(final Future<?> future) throws InterruptedException {
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      return null;
+    } catch (ExecutionException e) {
+      return e.getCause().getClass();
+    } catch (TimeoutException e) {
+      return TimeoutException.class;
+    }
+  }
+}
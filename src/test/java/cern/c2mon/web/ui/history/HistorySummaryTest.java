@@ -0,0 +1,79 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistorySummaryTest {
+
+  @Test
+  public void valuesAreWeightedByTheTimeTheyStand() {
+    HistorySummary summary = new HistorySummary();
+    summary.add(0, 10, true);
+    summary.add(1000, 20, true);
+    // the invalid point ends the 20, and does not stand itself
+    summary.add(3000, 99, false);
+    summary.add(4000, 40, true);
+    summary.finish(5000);
+
+    assertEquals((10 * 1000 + 20 * 2000 + 40 * 1000) / 4000.0, summary.getTimeWeightedAverage(), 1e-9);
+    assertEquals(70 / 3.0, summary.getMean(), 1e-9);
+    assertEquals(4, summary.getPoints());
+    assertEquals(1, summary.getInvalid());
+    assertEquals(3, summary.getCount());
+    assertEquals(10, summary.getMin(), 0);
+    assertEquals(40, summary.getMax(), 0);
+  }
+
+  @Test
+  public void lastValueStandsUntilTheEndOfThePeriod() {
+    HistorySummary summary = new HistorySummary();
+    summary.add(0, 1, true);
+    summary.add(1000, 3, true);
+    assertEquals(1, summary.getTimeWeightedAverage(), 0);
+
+    summary.finish(4000);
+    assertEquals((1 * 1000 + 3 * 3000) / 4000.0, summary.getTimeWeightedAverage(), 1e-9);
+    assertEquals(1000L, (long) summary.getEnd());
+  }
+
+  @Test
+  public void endBeforeTheLastPointIsIgnored() {
+    HistorySummary summary = new HistorySummary();
+    summary.add(0, 1, true);
+    summary.add(1000, 3, true);
+    summary.finish(500);
+
+    assertEquals(1, summary.getTimeWeightedAverage(), 0);
+  }
+
+  @Test
+  public void emptyHistoryHasNoStatistics() {
+    HistorySummary summary = new HistorySummary();
+    summary.finish(1000);
+
+    assertEquals(0, summary.getPoints());
+    assertNull(summary.getStart());
+    assertNull(summary.getMean());
+    assertNull(summary.getTimeWeightedAverage());
+    assertTrue(summary.getPercentiles().isEmpty());
+  }
+}
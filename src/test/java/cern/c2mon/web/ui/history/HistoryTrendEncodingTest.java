@@ -0,0 +1,231 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import cern.c2mon.client.ext.history.common.HistoryTagValueUpdate;
+import cern.c2mon.shared.common.datatag.DataTagQuality;
+
+/**
+ * Writes trends with {@link HistoryTrendEncoding} and reads them back with a
+ * decoder following the format, as <code>TrendView.decodeHistory</code> does.
+ */
+public class HistoryTrendEncodingTest {
+
+  private static HistoryTagValueUpdate point(final long time, final boolean valid, final String quality,
+      final String description) {
+    DataTagQuality dataTagQuality = mock(DataTagQuality.class);
+    when(dataTagQuality.isValid()).thenReturn(valid);
+    when(dataTagQuality.getDescription()).thenReturn(quality);
+
+    HistoryTagValueUpdate update = mock(HistoryTagValueUpdate.class);
+    when(update.getServerTimestamp()).thenReturn(new Timestamp(time));
+    when(update.getValue()).thenReturn(0d);
+    when(update.getValueDescription()).thenReturn(description);
+    when(update.getDataTagQuality()).thenReturn(dataTagQuality);
+    when(update.getValueClassName()).thenReturn("java.lang.Double");
+    return update;
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    List<HistoryTagValueUpdate> history = new ArrayList<>();
+    double[] values = new double[500];
+    long time = 1477789200000L;
+    for (int i = 0; i < values.length; i++) {
+      time += i % 13 == 0 ? -250 : 1000 + i;
+      history.add(point(time, i % 7 != 3, i % 7 == 3 ? "stale" : "OK", i % 50 == 0 ? null : "d\u00e9bit " + i % 4));
+      if (i % 10 < 3) {
+        values[i] = 42.5;
+      } else if (i % 97 == 0) {
+        values[i] = i % 2 == 0 ? Double.NaN : Double.NEGATIVE_INFINITY;
+      } else {
+        values[i] = Math.sin(i / 10.0) * (i % 3 == 0 ? 1e6 : 1) - (i % 5 == 0 ? 1e-300 : 0);
+      }
+    }
+    values[1] = -0.0;
+    assertRoundTrip(new HistoryTrend(HistorySeries.of(history), values, true));
+  }
+
+  @Test
+  public void testEmptyTrend() throws IOException {
+    assertRoundTrip(new HistoryTrend(HistorySeries.of(new ArrayList<>()), new double[0], false));
+  }
+
+  @Test
+  public void testSinglePoint() throws IOException {
+    List<HistoryTagValueUpdate> history = new ArrayList<>();
+    history.add(point(-1000L, false, null, null));
+    assertRoundTrip(new HistoryTrend(HistorySeries.of(history), new double[] { 1 }, false));
+  }
+
+  private static void assertRoundTrip(final HistoryTrend expected) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HistoryTrendEncoding.write(expected, out);
+    Decoder in = new Decoder(out.toByteArray());
+
+    assertEquals(HistoryTrendEncoding.VERSION, in.readByte());
+    int flags = in.readByte();
+    assertEquals(expected.isBooleanData(), (flags & 1) != 0);
+    assertEquals(expected.isDownsampled(), (flags & 2) != 0);
+    int size = (int) in.readVarLong();
+    assertEquals(expected.getTimestamps().length, size);
+
+    long[] timestamps = new long[size];
+    long previous = 0;
+    for (int i = 0; i < size; i++) {
+      previous += in.readZigZag();
+      timestamps[i] = previous;
+    }
+    assertArrayEquals(expected.getTimestamps(), timestamps);
+
+    double[] values = in.readValues(size);
+    for (int i = 0; i < size; i++) {
+      assertEquals(Double.doubleToRawLongBits(expected.getValues()[i]), Double.doubleToRawLongBits(values[i]));
+    }
+
+    byte[] invalidBitmap = in.readBytes((size + 7) / 8);
+    List<Integer> invalid = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      if ((invalidBitmap[i >> 3] & (1 << (i & 7))) != 0) {
+        invalid.add(i);
+      }
+    }
+    assertArrayEquals(expected.getInvalid(), invalid.stream().mapToInt(Integer::intValue).toArray());
+
+    assertArrayEquals(expected.getValueDescriptions(), in.readWords());
+    assertArrayEquals(expected.getValueDescriptionCodes(), in.readCodes(size));
+    assertArrayEquals(expected.getQualities(), in.readWords());
+    assertArrayEquals(expected.getQualityCodes(), in.readCodes(size));
+    assertEquals(0, in.buffer.remaining());
+  }
+
+  private static final class Decoder {
+
+    private final ByteBuffer buffer;
+
+    private Decoder(final byte[] bytes) {
+      buffer = ByteBuffer.wrap(bytes);
+    }
+
+    private int readByte() {
+      return buffer.get() & 0xFF;
+    }
+
+    private byte[] readBytes(final int length) {
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      return bytes;
+    }
+
+    private long readVarLong() {
+      long value = 0;
+      int shift = 0;
+      int b;
+      do {
+        b = readByte();
+        value |= (long) (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+
+    private long readZigZag() {
+      long value = readVarLong();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    private double[] readValues(final int size) {
+      BitReader bits = new BitReader();
+      double[] values = new double[size];
+      long previous = 0;
+      int leading = 0;
+      int trailing = 0;
+      for (int i = 0; i < size; i++) {
+        long value;
+        if (i == 0) {
+          value = bits.read(64);
+        } else if (bits.read(1) == 0) {
+          value = previous;
+        } else {
+          if (bits.read(1) == 1) {
+            leading = (int) bits.read(5);
+            int meaningful = (int) bits.read(6);
+            trailing = 64 - leading - (meaningful == 0 ? 64 : meaningful);
+          }
+          value = previous ^ (bits.read(64 - leading - trailing) << trailing);
+        }
+        values[i] = Double.longBitsToDouble(value);
+        previous = value;
+      }
+      return values;
+    }
+
+    private String[] readWords() {
+      String[] words = new String[(int) readVarLong()];
+      for (int i = 0; i < words.length; i++) {
+        int length = (int) readVarLong();
+        words[i] = length == 0 ? null : new String(readBytes(length - 1), StandardCharsets.UTF_8);
+      }
+      return words;
+    }
+
+    private int[] readCodes(final int size) {
+      int[] codes = new int[size];
+      for (int i = 0; i < size; i++) {
+        codes[i] = (int) readVarLong();
+      }
+      return codes;
+    }
+
+    /**
+     * Reads bits most significant first, the last byte being padded
+     */
+    private final class BitReader {
+
+      private int current;
+
+      private int remaining = 0;
+
+      private long read(final int count) {
+        long value = 0;
+        for (int i = 0; i < count; i++) {
+          if (remaining == 0) {
+            current = readByte();
+            remaining = 8;
+          }
+          value = (value << 1) | ((current >> --remaining) & 1);
+        }
+        return value;
+      }
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/******************************************************************************
+ * Copyright (C) 2010-2016 CERN. All rights not expressly granted are reserved.
+ *
+ * This file is part of the CERN Control and Monitoring Platform 'C2MON'.
+ * C2MON is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation, either version 3 of the license.
+ *
+ * C2MON is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with C2MON. If not, see <http://www.gnu.org/licenses/>.
+ *****************************************************************************/
+package cern.c2mon.web.ui.history;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class QuantileSketchTest {
+
+  private static void assertRelativeError(final double expected, final double actual, final double accuracy) {
+    assertTrue("expected " + expected + " but was " + actual,
+        Math.abs(actual - expected) <= accuracy * Math.abs(expected) + 1e-12);
+  }
+
+  @Test
+  public void quantilesAreWithinTheRelativeAccuracy() {
+    final Random random = new Random(42);
+    final double[] values = new double[100000];
+    final QuantileSketch sketch = new QuantileSketch(0.01);
+    for (int i = 0; i < values.length; i++) {
+      values[i] = Math.exp(random.nextGaussian() * 2) * (random.nextInt(4) == 0 ? -1 : 1);
+      sketch.add(values[i]);
+    }
+    Arrays.sort(values);
+
+    assertEquals(values.length, sketch.getCount());
+    assertEquals(values[0], sketch.getQuantile(0), 0);
+    assertEquals(values[values.length - 1], sketch.getQuantile(1), 0);
+    for (final double q : new double[] { 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99 }) {
+      assertRelativeError(values[(int) (q * (values.length - 1))], sketch.getQuantile(q), 0.01);
+    }
+  }
+
+  @Test
+  public void mergedSketchEqualsSketchOfAllValues() {
+    final QuantileSketch all = new QuantileSketch();
+    final QuantileSketch low = new QuantileSketch();
+    final QuantileSketch high = new QuantileSketch();
+    for (int i = -500; i <= 1000; i++) {
+      all.add(i);
+      (i < 250 ? low : high).add(i);
+    }
+    low.merge(high);
+
+    assertEquals(all.getCount(), low.getCount());
+    for (double q = 0; q <= 1; q += 0.05) {
+      assertEquals(all.getQuantile(q), low.getQuantile(q), 0);
+    }
+  }
+
+  @Test
+  public void emptySketchHasNoQuantile() {
+    final QuantileSketch sketch = new QuantileSketch();
+    sketch.add(Double.NaN);
+    assertEquals(0, sketch.getCount());
+    assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+  }
+}